@@ -0,0 +1,79 @@
+package controllers;
+
+import javafx.embed.swing.JFXPanel;
+import javafx.scene.image.WritableImage;
+import models.DetectModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Отрисовка "прямоугольников" с лицами на изображениях разного размера.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RenderBenchmark {
+
+    @Param({"640x480", "1920x1080", "4000x3000"})
+    public String size;
+
+    private WritableImage image;
+
+    private DetectModel detect;
+
+    /**
+     * Несколько лиц в ряд, как на групповом фото.
+     */
+    private List<DetectModel> faces;
+
+    private BaseController controller;
+
+    @Setup
+    public void setUp() {
+        //инициализация JavaFX для работы с изображениями
+        new JFXPanel();
+
+        String[] dimensions = size.split("x");
+        int width = Integer.parseInt(dimensions[0]);
+        int height = Integer.parseInt(dimensions[1]);
+        image = new WritableImage(width, height);
+
+        int side = Math.min(width, height) / 3;
+        detect = new DetectModel();
+        detect.setX((width - side) / 2);
+        detect.setY((height - side) / 2);
+        detect.setWidth(side);
+        detect.setHeight(side);
+        faces = new ArrayList<>();
+        int faceSide = width / 10;
+        for (int i = 0; i < 8; i++) {
+            DetectModel face = new DetectModel();
+            face.setX(faceSide / 2 + i * (faceSide + faceSide / 8));
+            face.setY(height / 3);
+            face.setWidth(faceSide);
+            face.setHeight(faceSide);
+            faces.add(face);
+        }
+        controller = new BaseController();
+    }
+
+    @Benchmark
+    public WritableImage drawRectangleOnImage() {
+        return controller.drawRectangleOnImage(image, detect);
+    }
+
+    @Benchmark
+    public WritableImage drawRectanglesOnImage() {
+        return controller.drawRectanglesOnImage(image, faces);
+    }
+}
@@ -0,0 +1,71 @@
+package utils;
+
+import models.DetectModel;
+import models.VerifyModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Распознавание двух фото и сравнение через локальную замену Face API.
+ * Кэши, ограничения и проверка качества отключены: каждый вызов выполняет
+ * запросы, фото отправляются без локального анализа.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EndToEndBenchmark {
+
+    private LocalFaceServer server;
+
+    private File first;
+
+    private File second;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalFaceServer();
+        FaceAPI.setDetectionCache(null);
+        FaceAPI.setVerifyCache(null);
+        FaceAPI.setRateLimiter(null);
+        FaceAPI.setConcurrencyLimiter(null);
+        FaceAPI.setQualityGate(null);
+        first = copyResource("/face.jpg");
+        second = copyResource("/face2.jpg");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+        first.delete();
+        second.delete();
+    }
+
+    @Benchmark
+    public VerifyModel detectAndVerify() throws IOException, URISyntaxException {
+        DetectModel face1 = FaceAPI.faceDetect(server.getBaseURL(), first);
+        DetectModel face2 = FaceAPI.faceDetect(server.getBaseURL(), second);
+        return FaceAPI.faceVerify(server.getBaseURL(), face1, face2);
+    }
+
+    private static File copyResource(String name) throws IOException {
+        File file = File.createTempFile("bench", ".jpg");
+        try (InputStream in = EndToEndBenchmark.class.getResourceAsStream(name)) {
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,85 @@
+package utils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import models.DetectModel;
+import models.VerifyModel;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор ответов /detect и /verify.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParsingBenchmark {
+
+    /**
+     * Ответ /detect с одним лицом и 27 точками лица, как у Face API.
+     */
+    private String detectJson;
+
+    /**
+     * Ответ /verify.
+     */
+    private String verifyJson;
+
+    /**
+     * Прямоугольник лица для конструктора DetectModel.
+     */
+    private JsonObject faceRectangle;
+
+    @Setup
+    public void setUp() {
+        StringBuilder landmarks = new StringBuilder();
+        String[] names = {"pupilLeft", "pupilRight", "noseTip", "mouthLeft",
+                "mouthRight", "eyebrowLeftOuter", "eyebrowLeftInner",
+                "eyeLeftOuter", "eyeLeftTop", "eyeLeftBottom", "eyeLeftInner",
+                "eyebrowRightInner", "eyebrowRightOuter", "eyeRightInner",
+                "eyeRightTop", "eyeRightBottom", "eyeRightOuter",
+                "noseRootLeft", "noseRootRight", "noseLeftAlarTop",
+                "noseRightAlarTop", "noseLeftAlarOutTip", "noseRightAlarOutTip",
+                "upperLipTop", "upperLipBottom", "underLipTop", "underLipBottom"};
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                landmarks.append(',');
+            }
+            landmarks.append(String.format("\"%s\":{\"x\":%.1f,\"y\":%.1f}",
+                    names[i], 400.5 + i, 300.25 + i));
+        }
+        detectJson = "[{\"faceId\":\"c5c24a82-6845-4031-9d5d-978df9175426\","
+                + "\"faceRectangle\":{\"top\":281,\"left\":397,\"width\":312,\"height\":312},"
+                + "\"faceLandmarks\":{" + landmarks + "}}]";
+        verifyJson = "{\"isIdentical\":true,\"confidence\":0.9312}";
+        faceRectangle = new JsonParser().parse(
+                "{\"top\":281,\"left\":397,\"width\":312,\"height\":312}")
+                .getAsJsonObject();
+    }
+
+    @Benchmark
+    public DetectModel detectModelFromJson() {
+        return new DetectModel("c5c24a82-6845-4031-9d5d-978df9175426", faceRectangle);
+    }
+
+    @Benchmark
+    public List<DetectModel> parseDetect() throws IOException {
+        return FaceAPI.parseDetect(new StringEntity(detectJson, ContentType.APPLICATION_JSON));
+    }
+
+    @Benchmark
+    public VerifyModel parseVerify() throws IOException {
+        return FaceAPI.parseVerify(new StringEntity(verifyJson, ContentType.APPLICATION_JSON));
+    }
+}
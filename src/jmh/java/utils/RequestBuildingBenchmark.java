@@ -0,0 +1,45 @@
+package utils;
+
+import models.DetectModel;
+import org.apache.http.client.methods.HttpPost;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сборка запросов /detect и /verify (URIBuilder, StringEntity).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RequestBuildingBenchmark {
+
+    private DetectModel face1;
+
+    private DetectModel face2;
+
+    @Setup
+    public void setUp() {
+        face1 = new DetectModel();
+        face1.setFaceId("c5c24a82-6845-4031-9d5d-978df9175426");
+        face2 = new DetectModel();
+        face2.setFaceId("015839fb-fbd9-4f79-ace9-7675fc2f1dd9");
+    }
+
+    @Benchmark
+    public HttpPost buildDetectRequest() throws URISyntaxException {
+        return FaceAPI.buildDetectRequest(FaceAPI.DEFAULT_BASE_URL, DetectOptions.DEFAULT);
+    }
+
+    @Benchmark
+    public HttpPost buildVerifyRequest() throws URISyntaxException {
+        return FaceAPI.buildVerifyRequest(FaceAPI.DEFAULT_BASE_URL, face1, face2);
+    }
+}
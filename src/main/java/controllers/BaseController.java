@@ -1,33 +1,41 @@
 package controllers;
 
 import javafx.animation.FadeTransition;
-import javafx.beans.value.ChangeListener;
-import javafx.beans.value.ObservableValue;
-import javafx.event.ActionEvent;
-import javafx.event.EventHandler;
-import javafx.fxml.FXMLLoader;
+import javafx.application.Platform;
 import javafx.scene.Node;
-import javafx.scene.Parent;
-import javafx.scene.Scene;
 import javafx.scene.control.Alert;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
-import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.PixelWriter;
 import javafx.scene.image.WritableImage;
 import javafx.scene.layout.Pane;
-import javafx.scene.paint.Color;
 import javafx.stage.FileChooser;
-import javafx.stage.Stage;
 import javafx.util.Duration;
 import models.DetectModel;
+import utils.BestShotSelector;
+import utils.DecodedImage;
+import utils.DetectOptions;
 import utils.FaceAPI;
+import utils.FaceDetector;
+import utils.FacePolicy;
+import utils.ImagePreprocessor;
+import utils.ImageQualityException;
+import utils.Metrics;
+import utils.PrefilterFaceDetector;
+import utils.RemoteFaceDetector;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * Базовый класс для контроллеров.
@@ -35,14 +43,52 @@ import java.util.List;
 public class BaseController {
 
     /**
-     * Базовый URL для запросов к Face API.
+     * Цвет "прямоугольника" с лицом в формате ARGB.
      */
-    private static final String uriBase =
-            "https://westcentralus.api.cognitive.microsoft.com/face/v1.0";
+    private static final int RECTANGLE_COLOR = 0xFFFF0000;
 
+    /**
+     * Правило выбора лица, если на фото несколько лиц.
+     * Пользователь может выбрать другое лицо щелчком по фото.
+     */
+    private static final FacePolicy FACE_POLICY = FacePolicy.LARGEST;
+
+    /**
+     * Поиск лиц в Face API. С -Dfaceverify.prefilter=true фото, на которых
+     * локально не найдено лицо, не отправляются в Face API
+     * ({@link PrefilterFaceDetector}).
+     */
+    private static final FaceDetector DETECTOR = PrefilterFaceDetector.optional(
+            new RemoteFaceDetector(DetectOptions.DEFAULT));
+
+    /**
+     * Фото для отображения. Бюджет памяти задается в мегабайтах
+     * параметром -Dfaceverify.imageCacheMb.
+     */
+    private static final ImageCache IMAGE_CACHE = new ImageCache(
+            ImageCache.DEFAULT_DISPLAY_SIZE, Long.getLong("faceverify.imageCacheMb",
+            ImageCache.DEFAULT_BUDGET_BYTES / (1024 * 1024)) * 1024 * 1024);
+
+    /**
+     * Выбор лучшего кадра, если выбрано несколько фото (серия).
+     */
+    private static final BestShotSelector SELECTOR = new BestShotSelector();
+
+    static {
+        Metrics.gauge("imageCacheBytes", IMAGE_CACHE::getUsedBytes);
+        Metrics.gauge("imageCacheEvictions", IMAGE_CACHE::getEvictions);
+        if (DETECTOR instanceof PrefilterFaceDetector) {
+            Metrics.gauge("prefilterRejected", ((PrefilterFaceDetector) DETECTOR)::getRejected);
+        }
+    }
 
+    /**
+     * Базовый URL для запросов к Face API, определяется при каждом запросе
+     * ({@link FaceAPI#getBaseURL()}).
+     * @return базовый URL
+     */
     public static String getUriBase() {
-        return uriBase;
+        return FaceAPI.getBaseURL();
     }
 
     /**
@@ -52,96 +98,367 @@ public class BaseController {
      */
     private FileChooser getFileChooser() throws URISyntaxException {
         FileChooser fileChooser = new FileChooser();
-        fileChooser.setTitle("Выберете изображение");
+        fileChooser.setTitle("Выберете изображение или серию изображений");
         fileChooser.getExtensionFilters().add(
                 new FileChooser.ExtensionFilter("JPG", "*.jpg"));
         return fileChooser;
     }
 
+    /**
+     * Переходы между экранами.
+     */
+    private SceneNavigator navigator;
+
+    /**
+     * Текущий фоновый запрос к Face API, результат которого ожидает контроллер.
+     */
+    private CompletableFuture<?> pendingTask;
+
     /**
      * Загрузка и отображение фото.
+     * Фото показывается сразу, распознавание лиц выполняется в фоне.
+     * Если лиц несколько, выбирается лицо по {@link #FACE_POLICY}, остальные
+     * показываются на слое и могут быть выбраны щелчком, при этом
+     * обработчик вызывается снова.
+     * Фото читается и декодируется один раз ({@link DecodedImage}): то же
+     * изображение показывается через {@link #IMAGE_CACHE}, проверяется
+     * и отправляется в Face API, результат сохраняется в photo. Если выбрано несколько фото,
+     * показывается лучший кадр серии ({@link #SELECTOR}).
      * @param pane панель компановки
      * @param imageView узел для отображения фото
-     * @return DetectModel
+     * @param progress индикатор выполнения запроса
+     * @param overlay слой для "прямоугольников" с лицами
+     * @param photo фото сессии для результата
+     * @param onDetected обработчик выбранного лица, вызывается в потоке JavaFX
+     *                   (null, если лицо не найдено)
+     * @return future с найденными лицами или null, если фото не выбрано
      * @throws URISyntaxException в случае неверного URL
-     * @throws IOException в случае ошибки в запросе
+     * @throws IOException в случае ошибки при чтении фото
      */
-    public DetectModel loadAndShowImage(Pane pane, ImageView imageView)
+    public CompletableFuture<List<DetectModel>> loadAndShowImage(
+            Pane pane, ImageView imageView, ProgressIndicator progress,
+            FaceOverlay overlay, Session.Photo photo,
+            Consumer<DetectModel> onDetected)
             throws URISyntaxException, IOException {
-        File imageFile
-                = getFileChooser().showOpenDialog(pane.getScene().getWindow());
-        DetectModel detect = null;
-        if (imageFile != null) {
-            detect = FaceAPI.faceDetect(getUriBase(), imageFile);
+        List<File> files = getFileChooser()
+                .showOpenMultipleDialog(pane.getScene().getWindow());
+        if (files == null || files.isEmpty()) {
+            return null;
+        }
+        if (files.size() > 1) {
+            return loadBestShot(files, imageView, progress, overlay, photo, onDetected);
+        }
+        File imageFile = files.get(0);
 
-            if (detect != null) {
-                Image image = new Image(imageFile.toURI().toURL().toString());
-                WritableImage writableImage = drawRectangleOnImage(image, detect);
+        //предыдущее фото больше не нужно
+        photo.invalidate();
+        DecodedImage decoded = DecodedImage.read(imageFile, decodeSize());
+        ImageCache.DisplayImage image = IMAGE_CACHE.get(decoded);
+        imageView.setPreserveRatio(true);
+        overlay.clear();
+        overlay.setSourceSize(image.getSourceWidth(), image.getSourceHeight());
+        imageView.setImage(image.getImage());
+        overlay.setOnFaceSelected(detect -> {
+            photo.select(detect);
+            onDetected.accept(detect);
+        });
+        progress.setVisible(true);
 
-                imageView.setPreserveRatio(true);
-                imageView.setImage(writableImage);
+        return runInBackground(DETECTOR.detectAsync(decoded), (faces, error) -> {
+            progress.setVisible(false);
+            DetectModel detect = faces != null ? FACE_POLICY.select(faces,
+                    image.getSourceWidth(), image.getSourceHeight()) : null;
+            if (detect != null) {
+                overlay.show(faces, detect);
+                photo.set(image, faces, detect);
             } else {
-                Alert alert = new Alert(Alert.AlertType.INFORMATION);
-                alert.setTitle("Ошибка при загрузке изображения.");
-                alert.setHeaderText("Ошибка при загрузке изображения.");
-                alert.setContentText("Изображение не содержит лиц. " +
-                        "Выберете другое изображение для загрузки.");
+                imageView.setImage(null);
+                showDetectFailure(error);
+            }
+            onDetected.accept(detect);
+        });
+    }
 
-                alert.showAndWait();
+    /**
+     * Размер, до которого фото прореживается при декодировании: достаточный
+     * для экрана и для уменьшения перед отправкой ({@link ImagePreprocessor}).
+     * Без уменьшения фото отправляется без изменений, и декодированное
+     * изображение нужно только для экрана и проверок.
+     * @return размер большей стороны, пикселей
+     */
+    private static int decodeSize() {
+        ImagePreprocessor preprocessor = FaceAPI.getPreprocessor();
+        return Math.max(ImageCache.DEFAULT_DISPLAY_SIZE,
+                preprocessor != null ? preprocessor.getMaxDimension() : 0);
+    }
+
+    /**
+     * Выбор и отображение лучшего кадра серии. Кадры оцениваются локально,
+     * в Face API отправляются только лучшие из них, фото показывается
+     * после выбора.
+     * @param files кадры серии
+     * @param imageView узел для отображения фото
+     * @param progress индикатор выполнения запроса
+     * @param overlay слой для "прямоугольников" с лицами
+     * @param photo фото сессии для результата
+     * @param onDetected обработчик выбранного лица, вызывается в потоке JavaFX
+     *                   (null, если лицо не найдено)
+     * @return future с лицами на выбранном кадре
+     */
+    private CompletableFuture<List<DetectModel>> loadBestShot(
+            List<File> files, ImageView imageView, ProgressIndicator progress,
+            FaceOverlay overlay, Session.Photo photo, Consumer<DetectModel> onDetected) {
+        //предыдущее фото больше не нужно
+        photo.invalidate();
+        imageView.setImage(null);
+        imageView.setPreserveRatio(true);
+        overlay.clear();
+        progress.setVisible(true);
+
+        return runInBackground(SELECTOR.selectAsync(getUriBase(), files, DetectOptions.DEFAULT),
+                (shot, error) -> {
+                    progress.setVisible(false);
+                    DetectModel detect = null;
+                    Throwable failure = error;
+                    if (shot != null) {
+                        try {
+                            ImageCache.DisplayImage image = IMAGE_CACHE.get(shot.getFile());
+                            overlay.setSourceSize(image.getSourceWidth(), image.getSourceHeight());
+                            imageView.setImage(image.getImage());
+                            overlay.setOnFaceSelected(selected -> {
+                                photo.select(selected);
+                                onDetected.accept(selected);
+                            });
+                            detect = FACE_POLICY.select(shot.getFaces(),
+                                    image.getSourceWidth(), image.getSourceHeight());
+                            overlay.show(shot.getFaces(), detect);
+                            photo.set(image, shot.getFaces(), detect);
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    }
+                    if (detect == null) {
+                        showDetectFailure(failure);
+                    }
+                    onDetected.accept(detect);
+                }).thenApply(shot -> shot != null
+                ? shot.getFaces() : Collections.<DetectModel>emptyList());
+    }
+
+    /**
+     * Сообщение о том, что лицо на фото не получено.
+     * @param error ошибка или null, если лиц не найдено
+     */
+    private void showDetectFailure(Throwable error) {
+        if (error instanceof ImageQualityException) {
+            //фото не отправлялось: причина понятна без запроса
+            showAlert("Изображение плохого качества.", error.getMessage()
+                    + " Выберете другое изображение для загрузки.");
+        } else {
+            showAlert("Ошибка при загрузке изображения.", error != null
+                    ? "Не удалось выполнить запрос: " + error.getMessage()
+                    : "Изображение не содержит лиц. " +
+                    "Выберете другое изображение для загрузки.");
+        }
+    }
+
+    /**
+     * Ожидание фонового запроса с обработкой результата в потоке JavaFX.
+     * Предыдущий запрос контроллера отменяется, результат отмененного
+     * запроса не обрабатывается.
+     * @param future фоновый запрос
+     * @param handler обработчик результата или ошибки
+     * @param <T> тип результата
+     * @return future
+     */
+    protected <T> CompletableFuture<T> runInBackground(
+            CompletableFuture<T> future, BiConsumer<T, Throwable> handler) {
+        cancelPendingTask();
+        pendingTask = future;
+        future.whenComplete((result, error) -> Platform.runLater(() -> {
+            if (future.isCancelled()) {
+                return;
+            }
+            if (pendingTask == future) {
+                pendingTask = null;
             }
+            handler.accept(result, error instanceof CompletionException
+                    && error.getCause() != null ? error.getCause() : error);
+        }));
+        return future;
+    }
+
+    /**
+     * Отмена текущего фонового запроса контроллера.
+     */
+    protected void cancelPendingTask() {
+        if (pendingTask != null) {
+            pendingTask.cancel(true);
+            pendingTask = null;
         }
-        return detect;
     }
 
     /**
-     * Отрисовка "прямоуголиника" с лицом на фото.
-     * @param image изображение
+     * Отображение диалогового окна с ошибкой.
+     * @param header заголовок
+     * @param content текст сообщения
+     */
+    protected void showAlert(String header, String content) {
+        Alert alert = new Alert(Alert.AlertType.INFORMATION);
+        alert.setTitle(header);
+        alert.setHeaderText(header);
+        alert.setContentText(content);
+
+        alert.showAndWait();
+    }
+
+    /**
+     * Отрисовка "прямоуголиника" с лицом на копии фото.
+     * Для отображения используется {@link FaceOverlay}, этот метод нужен,
+     * когда прямоугольник должен быть частью изображения.
+     * @param image изображение в исходном размере
      * @param detect информация о фото
      * @return изображение с "прямоугольником"
      */
     public WritableImage drawRectangleOnImage(Image image,
                                               DetectModel detect) {
-        WritableImage wImage = new WritableImage((int)image.getWidth(),
-                (int)image.getHeight());
+        return drawRectanglesOnImage(image, Collections.singletonList(detect));
+    }
 
-        PixelReader pixelReader = image.getPixelReader();
+    /**
+     * Отрисовка "прямоуголиника" с лицом на копии фото, уменьшенного
+     * для отображения ({@link ImageCache}).
+     * @param display фото для отображения и размер исходного фото
+     * @param detect информация о фото в пикселях исходного фото
+     * @return изображение с "прямоугольником"
+     */
+    public WritableImage drawRectangleOnImage(ImageCache.DisplayImage display,
+                                              DetectModel detect) {
+        return drawRectanglesOnImage(display.getImage(), Collections.singletonList(detect),
+                display.getSourceWidth(), display.getSourceHeight());
+    }
+
+    /**
+     * Отрисовка "прямоуголиников" всех лиц на одной копии фото.
+     * @param image изображение в исходном размере
+     * @param faces лица на фото
+     * @return изображение с "прямоугольниками"
+     */
+    public WritableImage drawRectanglesOnImage(Image image,
+                                               List<DetectModel> faces) {
+        return drawRectanglesOnImage(image, faces, 0, 0);
+    }
+
+    /**
+     * Отрисовка "прямоуголиников" всех лиц на одной копии фото.
+     * Координаты лиц заданы в пикселях исходного фото и пересчитываются
+     * в размер изображения, как в {@link FaceOverlay}.
+     * Фото копируется один раз, затем записываются только строки и столбцы рамок.
+     * @param image изображение
+     * @param faces лица на фото
+     * @param sourceWidth ширина исходного фото (0 - как у изображения)
+     * @param sourceHeight высота исходного фото (0 - как у изображения)
+     * @return изображение с "прямоугольниками"
+     */
+    public WritableImage drawRectanglesOnImage(Image image, List<DetectModel> faces,
+                                               double sourceWidth, double sourceHeight) {
+        long start = Metrics.start();
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        double scaleX = sourceWidth > 0 ? width / sourceWidth : 1;
+        double scaleY = sourceHeight > 0 ? height / sourceHeight : 1;
+        WritableImage wImage
+                = new WritableImage(image.getPixelReader(), width, height);
         PixelWriter writer = wImage.getPixelWriter();
-        //левая точка прямоуголника
-        int xLeft = detect.getX();
-        //правая точка прямоугольника
-        int xRight = xLeft + detect.getWidth();
-        //верхняя точка прямоугольника
-        int yTop = detect.getY();
-        //нижняя точка прямоугольника
-        int yBottom = yTop + detect.getHeight();
-
-        //проход по изображению и отрисовка прямоугольника
-        for(int y = 0; y < (int)image.getHeight(); y++) {
-            for(int x = 0; x < (int)image.getWidth(); x++) {
-                if (x <= xRight && x >= xLeft && y >= yTop && y <= yTop + 1
-                        || x <= xRight && x >= xLeft && y >= yBottom - 2 && y <= yBottom
-                        || x >= xLeft && x <= xLeft + 1 && y >= yTop && y <= yBottom
-                        || x >= xRight && x <= xRight + 1 && y >= yTop && y <= yBottom) {
-                    writer.setColor(x, y, Color.RED);
-                } else {
-                    Color color = pixelReader.getColor(x, y);
-                    writer.setColor(x, y, color);
-                }
-            }
+
+        //буфер красных пикселей на самую большую сторону рамки (до 3 px толщиной)
+        int maxSide = 0;
+        for (DetectModel detect : faces) {
+            maxSide = Math.max(maxSide, (int) Math.ceil(Math.max(
+                    detect.getWidth() * scaleX + 2, detect.getHeight() * scaleY + 1)));
+        }
+        int[] red = new int[3 * maxSide];
+        Arrays.fill(red, RECTANGLE_COLOR);
+
+        for (DetectModel detect : faces) {
+            //левая точка прямоуголника
+            int xLeft = (int) Math.round(detect.getX() * scaleX);
+            //правая точка прямоугольника
+            int xRight = (int) Math.round((detect.getX() + detect.getWidth()) * scaleX);
+            //верхняя точка прямоугольника
+            int yTop = (int) Math.round(detect.getY() * scaleY);
+            //нижняя точка прямоугольника
+            int yBottom = (int) Math.round((detect.getY() + detect.getHeight()) * scaleY);
+
+            //верхняя и нижняя стороны
+            fillRect(writer, red, width, height, xLeft, yTop, xRight, yTop + 1);
+            fillRect(writer, red, width, height, xLeft, yBottom - 2, xRight, yBottom);
+            //левая и правая стороны
+            fillRect(writer, red, width, height, xLeft, yTop, xLeft + 1, yBottom);
+            fillRect(writer, red, width, height, xRight, yTop, xRight + 1, yBottom);
         }
+        Metrics.record(Metrics.Stage.RENDER, start);
         return wImage;
     }
 
     /**
-     * Анимация исчезновения для перехода между сценами.
-     * @param node узел текущей сцены
-     * @param resourceName название ресурса fxml следующей сцены
-     * @param detects справочник объектов DetectModel
-     * @param imageViews справочник объектов ImageView
+     * Заполнение прямоугольной области цветом из буфера.
+     * Границы включаются и обрезаются по размеру изображения.
+     * @param writer PixelWriter изображения
+     * @param color буфер с цветом, не меньше площади области
+     * @param width ширина изображения
+     * @param height высота изображения
+     * @param x0 левая граница
+     * @param y0 верхняя граница
+     * @param x1 правая граница
+     * @param y1 нижняя граница
      */
-    public void fadeOut(Node node, String resourceName,
-                        HashMap<String, DetectModel> detects,
-                        HashMap<String, ImageView> imageViews) {
+    private void fillRect(PixelWriter writer, int[] color, int width, int height,
+                          int x0, int y0, int x1, int y1) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, width - 1);
+        y1 = Math.min(y1, height - 1);
+        if (x0 > x1 || y0 > y1) {
+            return;
+        }
+        int w = x1 - x0 + 1;
+        writer.setPixels(x0, y0, w, y1 - y0 + 1,
+                PixelFormat.getIntArgbInstance(), color, 0, w);
+    }
+
+    /**
+     * Установка объекта переходов между экранами. Вызывается при загрузке экрана.
+     * @param navigator переходы между экранами
+     */
+    void setNavigator(SceneNavigator navigator) {
+        this.navigator = navigator;
+    }
+
+    /**
+     * Общие данные экранов.
+     * @return сессия
+     */
+    protected Session getSession() {
+        return navigator.getSession();
+    }
+
+    /**
+     * Обновление экрана по данным сессии при каждом переходе на него.
+     * Узлы экрана сохраняются между переходами.
+     */
+    protected void onShow() {
+    }
+
+    /**
+     * Анимация исчезновения для перехода между экранами.
+     * @param node узел текущего экрана
+     * @param next следующий экран
+     */
+    public void fadeOut(Node node, SceneNavigator.Screen next) {
+        //результат текущего запроса больше не нужен
+        cancelPendingTask();
+
         FadeTransition fadeTransition = new FadeTransition();
         fadeTransition.setNode(node);
         fadeTransition.setDuration(Duration.millis(1000));
@@ -149,54 +466,15 @@ public class BaseController {
         fadeTransition.setToValue(0.0);
 
         fadeTransition.setOnFinished(event -> {
+            //экран переиспользуется, при возврате он должен быть видимым
+            node.setOpacity(1.0);
             try {
-                loadNextScreen((Stage) node.getScene().getWindow(),
-                        resourceName, detects, imageViews);
+                navigator.show(next);
             } catch (IOException e) {
                 e.printStackTrace();
-            } catch (URISyntaxException e) {
-                e.printStackTrace();
             }
         });
 
         fadeTransition.play();
     }
-
-    /**
-     * Загрузка следущей сцены.
-     * @param currentStage текущая сцена
-     * @param resourceName название ресурса fxml следующей сцены
-     * @param detects справочник объектов DetectModel
-     * @param imageViews справочник объектов ImageView
-     * @throws URISyntaxException в случае неверного URL
-     * @throws IOException в случае ошибки в запросе
-     */
-    private void loadNextScreen(Stage currentStage, String resourceName,
-                                HashMap<String, DetectModel> detects,
-                                HashMap<String, ImageView> imageViews)
-            throws IOException, URISyntaxException {
-        FXMLLoader loader = new FXMLLoader(getClass().getResource(resourceName));
-        Parent nextView = loader.load();
-        Scene scene = new Scene(nextView);
-        currentStage.setScene(scene);
-
-        //из второго в первый контроллер
-        if (resourceName.contains("FirstView")) {
-            FirstController controller = loader.getController();
-            controller.setDetectAndImageView(detects, imageViews);
-            currentStage.setTitle("Первый экран");
-
-        //из первого во второй контроллер или из третьего во второй
-        } else if (resourceName.contains("SecondView")) {
-            SecondController controller = loader.getController();
-            controller.setDetectAndImageView(detects, imageViews);
-            currentStage.setTitle("Второй экран");
-        //из второго в третий контроллер
-        } else  if(resourceName.contains("ThirdView")) {
-            ThirdController controller = loader.getController();
-            controller.setDetectAndImageView(detects, imageViews);
-            currentStage.setTitle("Третий экран");
-        }
-        currentStage.show();
-    }
 }
@@ -0,0 +1,65 @@
+package controllers;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.Label;
+import javafx.scene.layout.StackPane;
+import javafx.scene.text.Font;
+import javafx.util.Duration;
+import utils.Metrics;
+
+/**
+ * Панель с замерами длительности этапов поверх экрана.
+ * Переключается клавишей F12, при показе включает замеры
+ * ({@link Metrics#setEnabled(boolean)}) и обновляется раз в секунду.
+ * Скрытая панель не обновляется.
+ */
+public class DiagnosticsPanel extends Label {
+
+    /**
+     * Период обновления, мс.
+     */
+    private static final double REFRESH_MILLIS = 1000;
+
+    private final Timeline refresh = new Timeline(
+            new KeyFrame(Duration.millis(REFRESH_MILLIS), event -> update()));
+
+    public DiagnosticsPanel() {
+        setMouseTransparent(true);
+        setVisible(false);
+        setFont(Font.font("Monospaced", 11));
+        setPadding(new Insets(6));
+        setStyle("-fx-background-color: rgba(0, 0, 0, 0.7); -fx-text-fill: white;");
+        setMaxSize(USE_PREF_SIZE, USE_PREF_SIZE);
+        StackPane.setAlignment(this, Pos.TOP_RIGHT);
+        refresh.setCycleCount(Animation.INDEFINITE);
+    }
+
+    /**
+     * Показ или скрытие панели.
+     */
+    public void toggle() {
+        setShown(!isVisible());
+    }
+
+    /**
+     * @param shown true - показать панель и включить замеры
+     */
+    public void setShown(boolean shown) {
+        setVisible(shown);
+        if (shown) {
+            Metrics.setEnabled(true);
+            update();
+            refresh.play();
+        } else {
+            refresh.stop();
+        }
+    }
+
+    private void update() {
+        setText(Metrics.summary());
+    }
+}
@@ -0,0 +1,236 @@
+package controllers;
+
+import javafx.geometry.Bounds;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.ClosePath;
+import javafx.scene.shape.LineTo;
+import javafx.scene.shape.MoveTo;
+import javafx.scene.shape.Path;
+import javafx.scene.shape.PathElement;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.shape.StrokeType;
+import models.DetectModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Слой с "прямоугольниками" лиц поверх ImageView.
+ * Пиксели фото не изменяются, прямоугольники пересчитываются при изменении
+ * размеров ImageView. Слой должен лежать в том же StackPane, что и ImageView.
+ * Если фото отображается уменьшенным, нужно указать размер исходного фото
+ * ({@link #setSourceSize}), в пикселях которого заданы координаты лиц.
+ * <p>
+ * Выбранное лицо выделяется красным, остальные лица рисуются одним контуром
+ * (один узел на любое число лиц). Щелчок по лицу на фото выбирает его.
+ */
+public class FaceOverlay extends Pane {
+
+    /**
+     * "Прямоугольник" с выбранным лицом.
+     */
+    private final Rectangle rectangle = new Rectangle();
+
+    /**
+     * Контур остальных лиц.
+     */
+    private final Path others = new Path();
+
+    /**
+     * ImageView, над которым отображается слой.
+     */
+    private ImageView imageView;
+
+    /**
+     * Все лица на фото.
+     */
+    private List<DetectModel> faces = Collections.emptyList();
+
+    /**
+     * Выбранное лицо.
+     */
+    private DetectModel detect;
+
+    /**
+     * Размер исходного фото (0 - совпадает с размером отображаемого фото).
+     */
+    private double sourceWidth;
+    private double sourceHeight;
+
+    /**
+     * Обработчик выбора лица щелчком (null - выбор отключен).
+     */
+    private Consumer<DetectModel> onFaceSelected;
+
+    public FaceOverlay() {
+        setMouseTransparent(true);
+        setMinSize(0, 0);
+        setPrefSize(0, 0);
+
+        others.setManaged(false);
+        others.setStroke(Color.YELLOW);
+        others.setStrokeWidth(1);
+        getChildren().add(others);
+
+        rectangle.setManaged(false);
+        rectangle.setVisible(false);
+        rectangle.setFill(Color.TRANSPARENT);
+        rectangle.setStroke(Color.RED);
+        rectangle.setStrokeWidth(2);
+        rectangle.setStrokeType(StrokeType.INSIDE);
+        getChildren().add(rectangle);
+    }
+
+    /**
+     * Привязка слоя к ImageView.
+     * @param imageView узел для отображения фото
+     */
+    public void attach(ImageView imageView) {
+        this.imageView = imageView;
+        imageView.boundsInParentProperty()
+                .addListener((observable, oldValue, newValue) -> update());
+        imageView.imageProperty()
+                .addListener((observable, oldValue, newValue) -> update());
+        imageView.setOnMouseClicked(this::onImageClicked);
+    }
+
+    /**
+     * Установка размера исходного фото для пересчета координат лиц.
+     * @param sourceWidth ширина исходного фото (0 - как у отображаемого)
+     * @param sourceHeight высота исходного фото (0 - как у отображаемого)
+     */
+    public void setSourceSize(double sourceWidth, double sourceHeight) {
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        update();
+    }
+
+    /**
+     * Установка обработчика выбора лица щелчком по фото.
+     * @param onFaceSelected обработчик или null, чтобы отключить выбор
+     */
+    public void setOnFaceSelected(Consumer<DetectModel> onFaceSelected) {
+        this.onFaceSelected = onFaceSelected;
+    }
+
+    /**
+     * Отображение "прямоугольника" с лицом.
+     * @param detect информация о лице (null - скрыть прямоугольник)
+     */
+    public void show(DetectModel detect) {
+        show(detect != null ? Collections.singletonList(detect)
+                : Collections.<DetectModel>emptyList(), detect);
+    }
+
+    /**
+     * Отображение всех лиц на фото с выделением выбранного.
+     * @param faces все лица на фото
+     * @param selected выбранное лицо (может быть null)
+     */
+    public void show(List<DetectModel> faces, DetectModel selected) {
+        this.faces = new ArrayList<>(faces);
+        this.detect = selected;
+        update();
+    }
+
+    /**
+     * Все отображаемые лица.
+     * @return лица (не изменять)
+     */
+    public List<DetectModel> getFaces() {
+        return faces;
+    }
+
+    /**
+     * Скрытие "прямоугольников" с лицами.
+     */
+    public void clear() {
+        show(null);
+    }
+
+    /**
+     * Выбор лица щелчком: из лиц, содержащих точку, выбирается наименьшее.
+     * @param event щелчок по ImageView
+     */
+    private void onImageClicked(MouseEvent event) {
+        Image image = imageView.getImage();
+        if (onFaceSelected == null || faces.size() < 2 || image == null) {
+            return;
+        }
+        Bounds bounds = imageView.getBoundsInLocal();
+        double x = (event.getX() - bounds.getMinX()) * sourceWidth(image) / bounds.getWidth();
+        double y = (event.getY() - bounds.getMinY()) * sourceHeight(image) / bounds.getHeight();
+
+        DetectModel hit = null;
+        for (DetectModel face : faces) {
+            if (x >= face.getX() && x <= face.getX() + face.getWidth()
+                    && y >= face.getY() && y <= face.getY() + face.getHeight()
+                    && (hit == null || (long) face.getWidth() * face.getHeight()
+                    < (long) hit.getWidth() * hit.getHeight())) {
+                hit = face;
+            }
+        }
+        if (hit != null && hit != detect) {
+            detect = hit;
+            update();
+            onFaceSelected.accept(hit);
+        }
+    }
+
+    /**
+     * Пересчет положения "прямоугольников" в координаты отображаемого фото.
+     */
+    private void update() {
+        Image image = imageView != null ? imageView.getImage() : null;
+        if (image == null || image.getWidth() <= 0 || image.getHeight() <= 0) {
+            others.getElements().clear();
+            rectangle.setVisible(false);
+            return;
+        }
+
+        Bounds bounds = imageView.getBoundsInParent();
+        double scaleX = bounds.getWidth() / sourceWidth(image);
+        double scaleY = bounds.getHeight() / sourceHeight(image);
+
+        List<PathElement> elements = new ArrayList<>();
+        for (DetectModel face : faces) {
+            if (face == detect) {
+                continue;
+            }
+            double x0 = bounds.getMinX() + face.getX() * scaleX;
+            double y0 = bounds.getMinY() + face.getY() * scaleY;
+            double x1 = x0 + face.getWidth() * scaleX;
+            double y1 = y0 + face.getHeight() * scaleY;
+            elements.add(new MoveTo(x0, y0));
+            elements.add(new LineTo(x1, y0));
+            elements.add(new LineTo(x1, y1));
+            elements.add(new LineTo(x0, y1));
+            elements.add(new ClosePath());
+        }
+        others.getElements().setAll(elements);
+
+        if (detect == null) {
+            rectangle.setVisible(false);
+            return;
+        }
+        rectangle.setX(bounds.getMinX() + detect.getX() * scaleX);
+        rectangle.setY(bounds.getMinY() + detect.getY() * scaleY);
+        rectangle.setWidth(detect.getWidth() * scaleX);
+        rectangle.setHeight(detect.getHeight() * scaleY);
+        rectangle.setVisible(true);
+    }
+
+    private double sourceWidth(Image image) {
+        return sourceWidth > 0 ? sourceWidth : image.getWidth();
+    }
+
+    private double sourceHeight(Image image) {
+        return sourceHeight > 0 ? sourceHeight : image.getHeight();
+    }
+}
@@ -2,13 +2,15 @@ package controllers;
 
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
-import javafx.scene.image.*;
+import javafx.scene.control.ProgressIndicator;
+import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
 import models.DetectModel;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Первый контроллер.
@@ -29,30 +31,27 @@ public class FirstController extends BaseController {
     private ImageView firstImageView = new ImageView();
 
     /**
-     * Кнопка перехода на следующую сцену.
+     * Индикатор выполнения запроса для первого изображения.
      */
     @FXML
-    private Button nextButton;
-
-    /**
-     * Информация о лице на фото.
-     */
-    private DetectModel detectModel;
+    private ProgressIndicator firstProgress;
 
     /**
-     * Справочник для информации на фото.
+     * Слой для "прямоугольника" с лицом на первом изображении.
      */
-    private HashMap<String, DetectModel> detects = new HashMap<>();
+    @FXML
+    private FaceOverlay firstOverlay;
 
     /**
-     * Справочник для загруженных изображений.
+     * Кнопка перехода на следующую сцену.
      */
-    private HashMap<String, ImageView> views = new HashMap<>();
+    @FXML
+    private Button nextButton;
 
     /**
-     * Название ресурса для следующей сцены.
+     * Следующий экран.
      */
-    private final String NEXT_SCENE = "/view/SecondView.fxml";
+    private static final SceneNavigator.Screen NEXT_SCENE = SceneNavigator.Screen.SECOND;
 
     /**
      * Инициализация элементов на сцене.
@@ -68,24 +67,17 @@ public class FirstController extends BaseController {
                 .addListener((observable, oldValue, newValue)
                 -> firstImageView.setFitWidth((double) newValue));
 
-        if (detectModel == null) {
-            nextButton.setDisable(true);
-        }
+        firstOverlay.attach(firstImageView);
+        nextButton.setDisable(true);
     }
 
     /**
-     * Установка переданных из другого контроллера detects и views.
-     * @param detects справочник для информации на фото
-     * @param views справочник для загруженных изображений
+     * Фото и лицо остаются на экране между переходами,
+     * обновляется только доступность перехода.
      */
-    public void setDetectAndImageView(HashMap<String, DetectModel> detects,
-                                      HashMap<String, ImageView> views) {
-        this.detects = detects;
-        this.views = views;
-
-        detectModel = detects.get("first");
-        firstImageView.setImage(views.get("first").getImage());
-        nextButton.setDisable(false);
+    @Override
+    protected void onShow() {
+        nextButton.setDisable(getSession().getFirst().getDetect() == null);
     }
 
     /**
@@ -94,22 +86,26 @@ public class FirstController extends BaseController {
      * @throws IOException в случае ошибки в запросе
      */
     public void onLoadFirstImage() throws URISyntaxException, IOException {
-        detectModel = loadAndShowImage(firstImagePane, firstImageView);
-        if (detectModel != null) {
-            nextButton.setDisable(false);
+        CompletableFuture<List<DetectModel>> future = loadAndShowImage(
+                firstImagePane, firstImageView, firstProgress, firstOverlay,
+                getSession().getFirst(), detect -> {
+            nextButton.setDisable(detect == null);
+
+            Session session = getSession();
+            session.getVerifier().start(getUriBase(),
+                    session.getFirst().getDetect(), session.getSecond().getDetect());
+        });
+        if (future != null) {
+            //до получения результата предыдущее фото недействительно
+            getSession().getVerifier().invalidate();
+            nextButton.setDisable(true);
         }
-        detects.put("first", detectModel);
-        views.put("first", firstImageView);
     }
 
     /**
      * Переход на следующую сцену.
      */
     public void onSecondSceneButton() {
-        fadeOut(firstImagePane, NEXT_SCENE, detects, views);
+        fadeOut(firstImagePane, NEXT_SCENE);
     }
-
-
-
-
 }
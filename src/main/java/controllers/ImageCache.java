@@ -0,0 +1,249 @@
+package controllers;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import utils.DecodedImage;
+import utils.ImagePreprocessor;
+import utils.Metrics;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Кэш фото для отображения с ограничением занимаемой памяти.
+ * <p>
+ * Фото декодируются сразу в размере для экрана (не больше
+ * {@link #DEFAULT_DISPLAY_SIZE} по большей стороне), а не в исходном
+ * разрешении. Фото, уже декодированное для отправки в Face API
+ * ({@link DecodedImage}), не читается из файла заново.
+ * Размер записи оценивается как ширина * высота * 4 байта, при превышении
+ * бюджета удаляются давно не использованные фото.
+ */
+public class ImageCache {
+
+    /**
+     * Размер большей стороны фото для отображения по умолчанию, пикселей.
+     */
+    public static final int DEFAULT_DISPLAY_SIZE = 1280;
+
+    /**
+     * Бюджет памяти по умолчанию, байт.
+     */
+    public static final long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+
+    private final int displaySize;
+    private final long budgetBytes;
+
+    /**
+     * Фото в порядке последнего использования.
+     */
+    private final LinkedHashMap<String, DisplayImage> entries
+            = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Память, занятая фото в кэше, байт.
+     */
+    private long usedBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ImageCache() {
+        this(DEFAULT_DISPLAY_SIZE, DEFAULT_BUDGET_BYTES);
+    }
+
+    /**
+     * @param displaySize размер большей стороны фото для отображения, пикселей
+     * @param budgetBytes бюджет памяти, байт
+     */
+    public ImageCache(int displaySize, long budgetBytes) {
+        this.displaySize = displaySize;
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Фото для отображения: из кэша или декодированное в размере для экрана.
+     * @param file фото
+     * @return фото и его исходный размер
+     * @throws IOException в случае ошибки чтения или декодирования
+     */
+    public synchronized DisplayImage get(File file) throws IOException {
+        String key = key(file);
+        DisplayImage cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        long start = Metrics.start();
+        int[] size = ImagePreprocessor.readSize(file);
+        String url = file.toURI().toURL().toString();
+        //уменьшение при декодировании: пиксели исходного размера не создаются
+        Image image = Math.max(size[0], size[1]) > displaySize
+                ? new Image(url, displaySize, displaySize, true, true)
+                : new Image(url);
+        if (image.isError()) {
+            throw new IOException("Не удалось декодировать фото: " + file.getName(),
+                    image.getException());
+        }
+        Metrics.record(Metrics.Stage.IMAGE_DECODE, start);
+
+        return store(key, new DisplayImage(image, size[0], size[1]));
+    }
+
+    /**
+     * Фото для отображения из уже декодированного фото: из кэша или
+     * уменьшенное до размера для экрана без повторного чтения файла.
+     * @param decoded фото
+     * @return фото и его исходный размер
+     */
+    public synchronized DisplayImage get(DecodedImage decoded) {
+        String key = key(decoded.getFile());
+        DisplayImage cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        BufferedImage source = decoded.getImage();
+        int maxSide = Math.max(source.getWidth(), source.getHeight());
+        double factor = Math.min(1.0, (double) displaySize / maxSide);
+        int width = Math.max(1, (int) Math.round(source.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * factor));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        WritableImage image = new WritableImage(width, height);
+        image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(),
+                scaled.getRGB(0, 0, width, height, null, 0, width), 0, width);
+        return store(key, new DisplayImage(image, decoded.getWidth(), decoded.getHeight()));
+    }
+
+    private static String key(File file) {
+        return file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length();
+    }
+
+    /**
+     * Поиск фото в кэше с подсчетом попаданий.
+     * @param key ключ фото
+     * @return фото или null
+     */
+    private DisplayImage lookup(String key) {
+        DisplayImage cached = entries.get(key);
+        if (cached != null) {
+            hits++;
+            Metrics.count(Metrics.Counter.IMAGE_CACHE_HITS, 1);
+            return cached;
+        }
+        misses++;
+        Metrics.count(Metrics.Counter.IMAGE_CACHE_MISSES, 1);
+        return null;
+    }
+
+    /**
+     * Сохранение фото в кэше.
+     * @param key ключ фото
+     * @param display фото
+     * @return display
+     */
+    private DisplayImage store(String key, DisplayImage display) {
+        //фото больше бюджета отображается, но не кэшируется
+        if (display.bytes <= budgetBytes) {
+            entries.put(key, display);
+            usedBytes += display.bytes;
+            evict();
+        }
+        return display;
+    }
+
+    /**
+     * Удаление давно не использованных фото до попадания в бюджет.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, DisplayImage>> iterator = entries.entrySet().iterator();
+        while (usedBytes > budgetBytes && iterator.hasNext()) {
+            usedBytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Удаление всех фото из кэша.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Фото для отображения и размер исходного фото.
+     * Координаты лиц от Face API заданы в пикселях исходного фото.
+     */
+    public static class DisplayImage {
+
+        private final Image image;
+        private final int sourceWidth;
+        private final int sourceHeight;
+
+        /**
+         * Оценка занимаемой памяти, байт.
+         */
+        private final long bytes;
+
+        DisplayImage(Image image, int sourceWidth, int sourceHeight) {
+            this.image = image;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.bytes = (long) image.getWidth() * (long) image.getHeight() * 4;
+        }
+
+        public Image getImage() {
+            return image;
+        }
+
+        public int getSourceWidth() {
+            return sourceWidth;
+        }
+
+        public int getSourceHeight() {
+            return sourceHeight;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
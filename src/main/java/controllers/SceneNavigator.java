@@ -0,0 +1,194 @@
+package controllers;
+
+import javafx.application.Platform;
+import javafx.fxml.FXMLLoader;
+import javafx.scene.Parent;
+import javafx.scene.Scene;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.layout.StackPane;
+import javafx.stage.Stage;
+import utils.Metrics;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Переходы между экранами.
+ * Каждый экран загружается из FXML один раз, затем его узлы и контроллер
+ * переиспользуются: при переходе заменяется только корневой узел сцены.
+ * Данные экранов хранятся в общем объекте {@link Session}.
+ * Все методы вызываются в потоке JavaFX.
+ * <p>
+ * Экран отображается в общем контейнере вместе с панелью замеров
+ * ({@link DiagnosticsPanel}, клавиша F12).
+ */
+public class SceneNavigator {
+
+    /**
+     * Экраны приложения.
+     */
+    public enum Screen {
+        FIRST("/view/FirstView.fxml", "Первый экран"),
+        SECOND("/view/SecondView.fxml", "Второй экран"),
+        THIRD("/view/ThirdView.fxml", "Третий экран");
+
+        private final String resourceName;
+        private final String title;
+
+        Screen(String resourceName, String title) {
+            this.resourceName = resourceName;
+            this.title = title;
+        }
+    }
+
+    private final Stage stage;
+    private final Session session;
+
+    /**
+     * Загруженные экраны.
+     */
+    private final Map<Screen, LoadedScreen> screens = new EnumMap<>(Screen.class);
+
+    /**
+     * Экраны, ожидающие предварительной загрузки.
+     */
+    private final Deque<Screen> preloading = new ArrayDeque<>();
+
+    /**
+     * Сцена окна, создается при первом переходе.
+     */
+    private Scene scene;
+
+    /**
+     * Корневой узел сцены: текущий экран и панель замеров над ним.
+     */
+    private final StackPane container = new StackPane();
+
+    private final DiagnosticsPanel diagnostics = new DiagnosticsPanel();
+
+    /**
+     * @param stage окно приложения
+     * @param session общие данные экранов
+     */
+    public SceneNavigator(Stage stage, Session session) {
+        this.stage = stage;
+        this.session = session;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Загрузка еще не загруженных экранов, чтобы первый переход на них
+     * не ждал разбора FXML.
+     * Узлы JavaFX и initialize() контроллеров требуют потока JavaFX, поэтому
+     * экраны загружаются в нем по одному: следующий экран загружается
+     * отдельной задачей, и события ввода обрабатываются между загрузками.
+     */
+    public void preload() {
+        boolean idle = preloading.isEmpty();
+        for (Screen screen : Screen.values()) {
+            if (!screens.containsKey(screen) && !preloading.contains(screen)) {
+                preloading.add(screen);
+            }
+        }
+        if (idle && !preloading.isEmpty()) {
+            Platform.runLater(this::preloadNext);
+        }
+    }
+
+    /**
+     * Загрузка следующего экрана из очереди предварительной загрузки.
+     */
+    private void preloadNext() {
+        Screen screen = preloading.poll();
+        if (screen == null) {
+            return;
+        }
+        if (!screens.containsKey(screen)) {
+            try {
+                screens.put(screen, load(screen));
+            } catch (IOException e) {
+                //ошибка повторится и будет показана при переходе на экран
+                e.printStackTrace();
+            }
+        }
+        if (!preloading.isEmpty()) {
+            Platform.runLater(this::preloadNext);
+        }
+    }
+
+    /**
+     * Переход на экран.
+     * @param screen экран
+     * @throws IOException в случае ошибки загрузки FXML
+     */
+    public void show(Screen screen) throws IOException {
+        long start = Metrics.start();
+        LoadedScreen loaded = screens.get(screen);
+        if (loaded == null) {
+            loaded = load(screen);
+            screens.put(screen, loaded);
+        }
+
+        if (scene == null) {
+            container.getChildren().setAll(loaded.root, diagnostics);
+            scene = new Scene(container);
+            scene.addEventFilter(KeyEvent.KEY_PRESSED, event -> {
+                if (event.getCode() == KeyCode.F12) {
+                    diagnostics.toggle();
+                    event.consume();
+                }
+            });
+            stage.setScene(scene);
+        } else {
+            container.getChildren().set(0, loaded.root);
+        }
+        stage.setTitle(screen.title);
+        loaded.controller.onShow();
+        stage.show();
+        Metrics.record(Metrics.Stage.SCENE_SHOW, start);
+    }
+
+    /**
+     * Показ или скрытие панели замеров.
+     * @param shown true - показать панель и включить замеры
+     */
+    public void setDiagnosticsShown(boolean shown) {
+        diagnostics.setShown(shown);
+    }
+
+    /**
+     * Загрузка экрана из FXML.
+     * @param screen экран
+     * @return корневой узел и контроллер
+     * @throws IOException в случае ошибки загрузки
+     */
+    private LoadedScreen load(Screen screen) throws IOException {
+        long start = Metrics.start();
+        FXMLLoader loader = new FXMLLoader(getClass().getResource(screen.resourceName));
+        Parent root = loader.load();
+        BaseController controller = loader.getController();
+        controller.setNavigator(this);
+        Metrics.record(Metrics.Stage.SCENE_LOAD, start);
+        return new LoadedScreen(root, controller);
+    }
+
+    /**
+     * Загруженный экран.
+     */
+    private static class LoadedScreen {
+        private final Parent root;
+        private final BaseController controller;
+
+        LoadedScreen(Parent root, BaseController controller) {
+            this.root = root;
+            this.controller = controller;
+        }
+    }
+}
@@ -2,13 +2,15 @@ package controllers;
 
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
 import models.DetectModel;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Второй контроллер.
@@ -29,35 +31,32 @@ public class SecondController extends BaseController {
     private ImageView secondImageView = new ImageView();
 
     /**
-     * Кнопка перехода на следующую сцену.
+     * Индикатор выполнения запроса для второго изображения.
      */
     @FXML
-    private Button nextButton;
-
-    /**
-     * Информация о лице на фото.
-     */
-    private DetectModel detectModel;
+    private ProgressIndicator secondProgress;
 
     /**
-     * Справочник для информации на фото.
+     * Слой для "прямоугольника" с лицом на втором изображении.
      */
-    private HashMap<String, DetectModel> detects = new HashMap<>();
+    @FXML
+    private FaceOverlay secondOverlay;
 
     /**
-     * Справочник для загруженных изображений.
+     * Кнопка перехода на следующую сцену.
      */
-    private HashMap<String, ImageView> views = new HashMap<>();
+    @FXML
+    private Button nextButton;
 
     /**
-     * Название ресурса для следующей сцены.
+     * Следующий экран.
      */
-    private final String NEXT_SCENE = "/view/ThirdView.fxml";
+    private static final SceneNavigator.Screen NEXT_SCENE = SceneNavigator.Screen.THIRD;
 
     /**
-     * Название ресурса для предыдущей сцены.
+     * Предыдущий экран.
      */
-    private final String PREVIOUS_SCENE = "/view/FirstView.fxml";
+    private static final SceneNavigator.Screen PREVIOUS_SCENE = SceneNavigator.Screen.FIRST;
 
     /**
      * Инициализация элементов на сцене.
@@ -73,27 +72,17 @@ public class SecondController extends BaseController {
                 .addListener((observable, oldValue, newValue)
                         -> secondImageView.setFitWidth((double) newValue));
 
-        if (detectModel == null) {
-            nextButton.setDisable(true);
-        }
+        secondOverlay.attach(secondImageView);
+        nextButton.setDisable(true);
     }
 
     /**
-     * Установка переданных из другого контроллера detects и views.
-     * @param detects справочник для информации на фото
-     * @param views справочник для загруженных изображений
+     * Фото и лицо остаются на экране между переходами,
+     * обновляется только доступность перехода.
      */
-    public void setDetectAndImageView(HashMap<String, DetectModel> detects,
-                                      HashMap<String, ImageView> views) {
-        this.detects = detects;
-        this.views = views;
-
-        if (detects.get("second") != null) {
-            detectModel = detects.get("second");
-            secondImageView.setImage(views.get("second").getImage());
-
-            nextButton.setDisable(false);
-        }
+    @Override
+    protected void onShow() {
+        nextButton.setDisable(getSession().getSecond().getDetect() == null);
     }
 
     /**
@@ -103,26 +92,33 @@ public class SecondController extends BaseController {
      */
     public void onLoadSecondImage()
             throws URISyntaxException, IOException {
-        detectModel = loadAndShowImage(secondImagePane, secondImageView);
-        if (detectModel != null) {
-            nextButton.setDisable(false);
+        CompletableFuture<List<DetectModel>> future = loadAndShowImage(
+                secondImagePane, secondImageView, secondProgress, secondOverlay,
+                getSession().getSecond(), detect -> {
+            nextButton.setDisable(detect == null);
+
+            Session session = getSession();
+            session.getVerifier().start(getUriBase(),
+                    session.getFirst().getDetect(), session.getSecond().getDetect());
+        });
+        if (future != null) {
+            //до получения результата предыдущее фото недействительно
+            getSession().getVerifier().invalidate();
+            nextButton.setDisable(true);
         }
-
-        detects.put("second", detectModel);
-        views.put("second", secondImageView);
     }
 
     /**
      * Переход на следующую сцену.
      */
     public void onThirdSceneButton() {
-        fadeOut(secondImagePane, NEXT_SCENE, detects, views);
+        fadeOut(secondImagePane, NEXT_SCENE);
     }
 
     /**
      * Переход на предыдущую сцену.
      */
     public void onFirstSceneButton() {
-        fadeOut(secondImagePane, PREVIOUS_SCENE, detects, views);
+        fadeOut(secondImagePane, PREVIOUS_SCENE);
     }
 }
@@ -0,0 +1,105 @@
+package controllers;
+
+import javafx.scene.image.Image;
+import models.DetectModel;
+import utils.SpeculativeVerifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Данные, общие для всех экранов: два сравниваемых фото
+ * и опережающее сравнение их лиц.
+ * Используется только в потоке JavaFX.
+ */
+public class Session {
+
+    private final Photo first = new Photo();
+    private final Photo second = new Photo();
+    private final SpeculativeVerifier verifier = new SpeculativeVerifier();
+
+    public Photo getFirst() {
+        return first;
+    }
+
+    public Photo getSecond() {
+        return second;
+    }
+
+    public SpeculativeVerifier getVerifier() {
+        return verifier;
+    }
+
+    /**
+     * Фото и найденные на нем лица.
+     */
+    public static class Photo {
+
+        /**
+         * Фото в размере для экрана и размер исходного фото.
+         */
+        private ImageCache.DisplayImage image;
+
+        /**
+         * Все лица на фото.
+         */
+        private List<DetectModel> faces = Collections.emptyList();
+
+        /**
+         * Выбранное лицо (null, если лицо не найдено или фото загружается).
+         */
+        private DetectModel detect;
+
+        /**
+         * Установка результата распознавания.
+         * @param image фото
+         * @param faces все лица на фото
+         * @param detect выбранное лицо
+         */
+        public void set(ImageCache.DisplayImage image, List<DetectModel> faces,
+                        DetectModel detect) {
+            this.image = image;
+            this.faces = new ArrayList<>(faces);
+            this.detect = detect;
+        }
+
+        /**
+         * Выбор другого лица на том же фото.
+         * @param detect выбранное лицо
+         */
+        public void select(DetectModel detect) {
+            this.detect = detect;
+        }
+
+        /**
+         * Сброс фото: до получения нового результата фото недействительно,
+         * предыдущее фото больше не удерживается в памяти.
+         */
+        public void invalidate() {
+            image = null;
+            faces = Collections.emptyList();
+            detect = null;
+        }
+
+        public Image getImage() {
+            return image != null ? image.getImage() : null;
+        }
+
+        public int getSourceWidth() {
+            return image != null ? image.getSourceWidth() : 0;
+        }
+
+        public int getSourceHeight() {
+            return image != null ? image.getSourceHeight() : 0;
+        }
+
+        public List<DetectModel> getFaces() {
+            return faces;
+        }
+
+        public DetectModel getDetect() {
+            return detect;
+        }
+    }
+}
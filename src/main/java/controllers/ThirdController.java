@@ -2,15 +2,15 @@ package controllers;
 
 import javafx.fxml.FXML;
 import javafx.scene.control.Label;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
 import models.DetectModel;
 import models.VerifyModel;
-import utils.FaceAPI;
 
-import java.io.IOException;
 import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+
 
 /**
  * Третий контроллер.
@@ -31,41 +31,33 @@ public class ThirdController extends BaseController {
     private ImageView res1ImageView = new ImageView();
 
     /**
-     * ImageView для второго изображения.
+     * Слой для "прямоугольника" с лицом на первом изображении.
      */
     @FXML
-    private ImageView res2ImageView = new ImageView();
+    private FaceOverlay res1Overlay;
 
     /**
-     * Label для отображения результата сравнения.
+     * ImageView для второго изображения.
      */
     @FXML
-    private Label resultLabel;
-
-    /**
-     * Справочник для информации на фото.
-     */
-    private HashMap<String, DetectModel> detects = new HashMap<>();
-
-    /**
-     * Справочник для загруженных изображений.
-     */
-    private HashMap<String, ImageView> views = new HashMap<>();
+    private ImageView res2ImageView = new ImageView();
 
     /**
-     * Информация о лице на первом фото.
+     * Слой для "прямоугольника" с лицом на втором изображении.
      */
-    private DetectModel firstDetectModel;
+    @FXML
+    private FaceOverlay res2Overlay;
 
     /**
-     * Информация о лице на втором фото.
+     * Label для отображения результата сравнения.
      */
-    private DetectModel secondDetectModel;
+    @FXML
+    private Label resultLabel;
 
     /**
-     * Название ресурса для предыдущей сцены.
+     * Предыдущий экран.
      */
-    private final String PREVIOUS_SCENE = "/view/SecondView.fxml";
+    private static final SceneNavigator.Screen PREVIOUS_SCENE = SceneNavigator.Screen.SECOND;
 
     /**
      * Инициализация элементов на сцене.
@@ -85,40 +77,64 @@ public class ThirdController extends BaseController {
             res1ImageView.setFitWidth(half);
             res2ImageView.setFitWidth(half);
         });
+
+        res1Overlay.attach(res1ImageView);
+        res2Overlay.attach(res2ImageView);
     }
 
     /**
      * Переход на предыдущую сцену.
      */
     public void onSecondSceneButton() {
-        fadeOut(thirdImageHBox, PREVIOUS_SCENE, detects, views);
+        fadeOut(thirdImageHBox, PREVIOUS_SCENE);
     }
 
     /**
-     * Установка переданных из другого контроллера detects и views.
-     * @param detects справочник для информации на фото
-     * @param views справочник для загруженных изображений
+     * Отображение фото из сессии и сравнение выбранных лиц
+     * при каждом переходе на экран.
      */
-    public void setDetectAndImageView(HashMap<String, DetectModel> detects, HashMap<String, ImageView> views)
-            throws IOException, URISyntaxException {
-        this.detects = detects;
-        this.views = views;
-        if (detects.get("first") != null) {
-            firstDetectModel = detects.get("first");
-
-            res1ImageView.setPreserveRatio(true);
-            res1ImageView.setImage(views.get("first").getImage());
+    @Override
+    protected void onShow() {
+        Session.Photo first = getSession().getFirst();
+        Session.Photo second = getSession().getSecond();
+        DetectModel firstDetectModel = first.getDetect();
+        DetectModel secondDetectModel = second.getDetect();
+
+        res1ImageView.setPreserveRatio(true);
+        res1ImageView.setImage(first.getImage());
+        res1Overlay.setSourceSize(first.getSourceWidth(), first.getSourceHeight());
+        res1Overlay.show(first.getFaces(), firstDetectModel);
+
+        res2ImageView.setPreserveRatio(true);
+        res2ImageView.setImage(second.getImage());
+        res2Overlay.setSourceSize(second.getSourceWidth(), second.getSourceHeight());
+        res2Overlay.show(second.getFaces(), secondDetectModel);
+
+        ProgressIndicator progress = new ProgressIndicator();
+        progress.setPrefSize(20, 20);
+        resultLabel.setGraphic(progress);
+        resultLabel.setText("Выполняется сравнение...");
+
+        //используется опережающее сравнение, запущенное на втором экране
+        CompletableFuture<VerifyModel> future;
+        try {
+            future = getSession().getVerifier().verify(getUriBase(),
+                    firstDetectModel, secondDetectModel);
+        } catch (URISyntaxException e) {
+            e.printStackTrace();
+            resultLabel.setGraphic(null);
+            resultLabel.setText("Ошибка при сравнении лиц: " + e.getMessage());
+            return;
         }
-
-        if (detects.get("second") != null) {
-            secondDetectModel = detects.get("second");
-
-            res2ImageView.setPreserveRatio(true);
-            res2ImageView.setImage(views.get("second").getImage());
-        }
-
-        VerifyModel verifyModel = FaceAPI.faceVerify(getUriBase(),
-                firstDetectModel, secondDetectModel);
-        resultLabel.setText(verifyModel.toString());
+        runInBackground(future, (verifyModel, error) -> {
+            resultLabel.setGraphic(null);
+            if (verifyModel != null) {
+                resultLabel.setText(verifyModel.toString());
+            } else {
+                resultLabel.setText(error != null
+                        ? "Ошибка при сравнении лиц: " + error.getMessage()
+                        : "Не удалось сравнить лица.");
+            }
+        });
     }
 }
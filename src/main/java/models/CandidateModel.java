@@ -0,0 +1,24 @@
+package models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Класс-модель для представления кандидата при поиске лица в галерее.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class CandidateModel {
+
+    private String personId;
+    private String name;
+    private double confidence;
+
+    @Override
+    public String toString() {
+        return String.format("%s. Процент совпадения: %.2f",
+                name != null ? name : personId, confidence);
+    }
+}
@@ -1,10 +1,17 @@
 package models;
 
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Класс-модель для представления информации о лице на фото.
  */
@@ -13,14 +20,54 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 public class DetectModel {
 
+    /**
+     * Время хранения faceId в Face API, мс (24 часа).
+     */
+    public static final long FACE_ID_LIFETIME = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Запас до истечения faceId, мс: faceId, который вот-вот истечет,
+     * считается недействительным.
+     */
+    public static final long FACE_ID_EXPIRY_MARGIN = 10 * 60 * 1000L;
+
     private String faceId;
     private int x;
     private int y;
     private int width;
     private int height;
 
+    /**
+     * Время получения faceId, мс с начала эпохи.
+     * Face API хранит faceId ограниченное время.
+     */
+    private long detectedAt;
+
+    /**
+     * Точки лица по названию (pupilLeft, noseTip и т.д.).
+     * Заполняются, только если были запрошены, иначе null.
+     */
+    private Map<String, FacePoint> landmarks;
+
+    /**
+     * Атрибуты лица. Заполняются, только если были запрошены, иначе null.
+     */
+    private FaceAttributes attributes;
+
+    /**
+     * Базовый URL региона, выдавшего faceId (null - не известен).
+     * faceId действителен только в этом регионе.
+     */
+    private String endpoint;
+
+    /**
+     * Фото, на котором найдено лицо. Не сохраняется.
+     */
+    private transient File source;
+
     public DetectModel(String faceId, JsonObject faceRectangle) {
         this.faceId = faceId;
+        this.detectedAt = System.currentTimeMillis();
         this.x = faceRectangle.get("left").getAsInt();
         this.y = faceRectangle.get("top").getAsInt();
 
@@ -28,4 +75,168 @@ public class DetectModel {
         this.height = faceRectangle.get("height").getAsInt();
     }
 
+    public DetectModel(DetectModel source) {
+        this(source.faceId, source.x, source.y, source.width, source.height,
+                source.detectedAt, null,
+                source.attributes != null ? new FaceAttributes(source.attributes) : null,
+                source.endpoint, source.source);
+        if (source.landmarks != null) {
+            landmarks = new LinkedHashMap<>();
+            for (Map.Entry<String, FacePoint> entry : source.landmarks.entrySet()) {
+                landmarks.put(entry.getKey(), new FacePoint(entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Чтение лица из ответа /detect без построения дерева JSON.
+     * Неизвестные поля пропускаются. faceId может отсутствовать,
+     * если он не был запрошен.
+     * @param reader JsonReader, установленный на объект лица
+     * @return DetectModel
+     * @throws IOException в случае ошибки чтения или неполного ответа
+     */
+    public static DetectModel read(JsonReader reader) throws IOException {
+        DetectModel detect = new DetectModel();
+        boolean rectangle = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "faceId":
+                    detect.faceId = reader.nextString();
+                    break;
+                case "faceRectangle":
+                    readRectangle(reader, detect);
+                    rectangle = true;
+                    break;
+                case "faceLandmarks":
+                    detect.landmarks = readLandmarks(reader);
+                    break;
+                case "faceAttributes":
+                    detect.attributes = FaceAttributes.read(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (!rectangle) {
+            throw new IOException("В ответе нет faceRectangle.");
+        }
+        detect.detectedAt = System.currentTimeMillis();
+        return detect;
+    }
+
+    /**
+     * Запись лица в формате ответа /detect.
+     * @param writer JsonWriter
+     * @throws IOException в случае ошибки записи
+     */
+    public void write(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        if (faceId != null) {
+            writer.name("faceId").value(faceId);
+        }
+        writer.name("faceRectangle").beginObject();
+        writer.name("top").value(y);
+        writer.name("left").value(x);
+        writer.name("width").value(width);
+        writer.name("height").value(height);
+        writer.endObject();
+        if (landmarks != null) {
+            writer.name("faceLandmarks").beginObject();
+            for (Map.Entry<String, FacePoint> entry : landmarks.entrySet()) {
+                writer.name(entry.getKey()).beginObject();
+                writer.name("x").value(entry.getValue().getX());
+                writer.name("y").value(entry.getValue().getY());
+                writer.endObject();
+            }
+            writer.endObject();
+        }
+        if (attributes != null) {
+            writer.name("faceAttributes");
+            attributes.write(writer);
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Чтение объекта faceRectangle.
+     * @param reader JsonReader, установленный на объект
+     * @param detect модель для заполнения
+     * @throws IOException в случае ошибки чтения
+     */
+    private static void readRectangle(JsonReader reader, DetectModel detect)
+            throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "left":
+                    detect.x = reader.nextInt();
+                    break;
+                case "top":
+                    detect.y = reader.nextInt();
+                    break;
+                case "width":
+                    detect.width = reader.nextInt();
+                    break;
+                case "height":
+                    detect.height = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Чтение объекта faceLandmarks.
+     * @param reader JsonReader, установленный на объект
+     * @return точки лица по названию
+     * @throws IOException в случае ошибки чтения
+     */
+    private static Map<String, FacePoint> readLandmarks(JsonReader reader)
+            throws IOException {
+        Map<String, FacePoint> landmarks = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            FacePoint point = new FacePoint();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "x":
+                        point.setX(reader.nextDouble());
+                        break;
+                    case "y":
+                        point.setY(reader.nextDouble());
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            landmarks.put(name, point);
+        }
+        reader.endObject();
+        return landmarks;
+    }
+
+    /**
+     * Время, после которого faceId нельзя использовать в запросах.
+     * @return мс с начала эпохи
+     */
+    public long getExpiresAt() {
+        return detectedAt + FACE_ID_LIFETIME - FACE_ID_EXPIRY_MARGIN;
+    }
+
+    /**
+     * Проверка, что faceId больше нельзя использовать в запросах.
+     * @return true, если faceId истек или скоро истечет
+     */
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= getExpiresAt();
+    }
+
 }
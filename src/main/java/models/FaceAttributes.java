@@ -0,0 +1,203 @@
+package models;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.IOException;
+
+/**
+ * Класс-модель для представления атрибутов лица.
+ * Заполняются только запрошенные атрибуты, остальные равны null.
+ */
+@Data
+@NoArgsConstructor
+public class FaceAttributes {
+
+    private Double age;
+    private String gender;
+    private Double smile;
+    private String glasses;
+
+    /**
+     * Наклон головы вперед/назад, градусы.
+     */
+    private Double pitch;
+
+    /**
+     * Наклон головы к плечу, градусы.
+     */
+    private Double roll;
+
+    /**
+     * Поворот головы влево/вправо, градусы.
+     */
+    private Double yaw;
+
+    /**
+     * Размытость, от 0 до 1.
+     */
+    private Double blur;
+
+    /**
+     * Экспозиция, от 0 (темное) до 1 (пересвеченное).
+     */
+    private Double exposure;
+
+    /**
+     * Шум, от 0 до 1.
+     */
+    private Double noise;
+
+    public FaceAttributes(FaceAttributes source) {
+        this.age = source.age;
+        this.gender = source.gender;
+        this.smile = source.smile;
+        this.glasses = source.glasses;
+        this.pitch = source.pitch;
+        this.roll = source.roll;
+        this.yaw = source.yaw;
+        this.blur = source.blur;
+        this.exposure = source.exposure;
+        this.noise = source.noise;
+    }
+
+    /**
+     * Чтение объекта faceAttributes из ответа /detect.
+     * Неизвестные атрибуты пропускаются.
+     * @param reader JsonReader, установленный на объект
+     * @return FaceAttributes
+     * @throws IOException в случае ошибки чтения
+     */
+    public static FaceAttributes read(JsonReader reader) throws IOException {
+        FaceAttributes attributes = new FaceAttributes();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "age":
+                    attributes.age = reader.nextDouble();
+                    break;
+                case "gender":
+                    attributes.gender = reader.nextString();
+                    break;
+                case "smile":
+                    attributes.smile = reader.nextDouble();
+                    break;
+                case "glasses":
+                    attributes.glasses = reader.nextString();
+                    break;
+                case "headPose":
+                    readHeadPose(reader, attributes);
+                    break;
+                case "blur":
+                    attributes.blur = readValue(reader);
+                    break;
+                case "exposure":
+                    attributes.exposure = readValue(reader);
+                    break;
+                case "noise":
+                    attributes.noise = readValue(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return attributes;
+    }
+
+    /**
+     * Запись объекта faceAttributes в формате ответа /detect.
+     * Незаполненные атрибуты не записываются.
+     * @param writer JsonWriter
+     * @throws IOException в случае ошибки записи
+     */
+    public void write(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        if (age != null) {
+            writer.name("age").value(age);
+        }
+        if (gender != null) {
+            writer.name("gender").value(gender);
+        }
+        if (smile != null) {
+            writer.name("smile").value(smile);
+        }
+        if (glasses != null) {
+            writer.name("glasses").value(glasses);
+        }
+        if (pitch != null || roll != null || yaw != null) {
+            writer.name("headPose").beginObject();
+            writer.name("pitch").value(pitch != null ? pitch : 0.0);
+            writer.name("roll").value(roll != null ? roll : 0.0);
+            writer.name("yaw").value(yaw != null ? yaw : 0.0);
+            writer.endObject();
+        }
+        writeValue(writer, "blur", blur);
+        writeValue(writer, "exposure", exposure);
+        writeValue(writer, "noise", noise);
+        writer.endObject();
+    }
+
+    /**
+     * Запись объекта вида {"value": значение}.
+     * @param writer JsonWriter
+     * @param name название атрибута
+     * @param value значение (null - атрибут не записывается)
+     * @throws IOException в случае ошибки записи
+     */
+    private static void writeValue(JsonWriter writer, String name, Double value)
+            throws IOException {
+        if (value != null) {
+            writer.name(name).beginObject().name("value").value(value).endObject();
+        }
+    }
+
+    /**
+     * Чтение объекта headPose.
+     * @param reader JsonReader, установленный на объект
+     * @param attributes модель для заполнения
+     * @throws IOException в случае ошибки чтения
+     */
+    private static void readHeadPose(JsonReader reader, FaceAttributes attributes)
+            throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "pitch":
+                    attributes.pitch = reader.nextDouble();
+                    break;
+                case "roll":
+                    attributes.roll = reader.nextDouble();
+                    break;
+                case "yaw":
+                    attributes.yaw = reader.nextDouble();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Чтение поля value из объектов blur, exposure и noise.
+     * @param reader JsonReader, установленный на объект
+     * @return значение или null, если его нет
+     * @throws IOException в случае ошибки чтения
+     */
+    private static Double readValue(JsonReader reader) throws IOException {
+        Double value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("value".equals(reader.nextName())) {
+                value = reader.nextDouble();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return value;
+    }
+}
@@ -0,0 +1,21 @@
+package models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Класс-модель для представления точки лица (зрачок, кончик носа и т.д.).
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class FacePoint {
+
+    private double x;
+    private double y;
+
+    public FacePoint(FacePoint source) {
+        this(source.x, source.y);
+    }
+}
@@ -1,9 +1,13 @@
 package models;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.io.IOException;
+
 /**
  * Класс-модель для представления результата сравнения двух лиц.
  */
@@ -15,6 +19,50 @@ public class VerifyModel {
     private boolean isIdentical;
     private double confidence;
 
+    /**
+     * Чтение ответа /verify без построения дерева JSON.
+     * @param reader JsonReader, установленный на объект ответа
+     * @return VerifyModel
+     * @throws IOException в случае ошибки чтения или неполного ответа
+     */
+    public static VerifyModel read(JsonReader reader) throws IOException {
+        VerifyModel verify = new VerifyModel();
+        boolean identical = false;
+        boolean confidence = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "isIdentical":
+                    verify.isIdentical = reader.nextBoolean();
+                    identical = true;
+                    break;
+                case "confidence":
+                    verify.confidence = reader.nextDouble();
+                    confidence = true;
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (!identical || !confidence) {
+            throw new IOException("В ответе нет isIdentical или confidence.");
+        }
+        return verify;
+    }
+
+    /**
+     * Запись результата в формате ответа /verify.
+     * @param writer JsonWriter
+     * @throws IOException в случае ошибки записи
+     */
+    public void write(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("isIdentical").value(isIdentical);
+        writer.name("confidence").value(confidence);
+        writer.endObject();
+    }
+
     @Override
     public String toString() {
         return String.format("%s. Процент совпадения: %.2f",
@@ -0,0 +1,336 @@
+package runners;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import utils.AdaptiveLimiter;
+import utils.AsyncHttpTransport;
+import utils.BatchVerifier;
+import utils.BestShotSelector;
+import utils.EndpointPool;
+import utils.FaceAPI;
+import utils.LocalFaceServer;
+import utils.Metrics;
+import utils.RateLimiter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пакетное сравнение пар фото без интерфейса.
+ * <p>
+ * Запуск: {@code java -cp FaceVerify.jar runners.BatchRunner
+ * --input pairs.csv|папка --output results.csv|results.jsonl
+ * [--concurrency 8] [--rate 10] [--endpoint URL] [--stub задержка_мс]
+ * [--metrics metrics.json] [--transport nio] [--in-flight 16]
+ * [--endpoints регион=URL|ключ,регион=URL|ключ] [--top-k 2]}
+ * <p>
+ * Во входной папке сторона пары может быть папкой с серией кадров: в Face API
+ * отправляются --top-k лучших по локальной оценке кадров, для сравнения
+ * выбирается лучший из них. В результат записывается выбранный кадр.
+ * <p>
+ * С параметром --transport nio запросы выполняются неблокирующим транспортом:
+ * --concurrency задает число пар в работе, --in-flight - число одновременных
+ * запросов (по умолчанию вдвое больше пар), пул потоков на пары не создается.
+ * <p>
+ * С параметром --stub запросы выполняются к локальной замене Face API
+ * с заданной медианой задержки, без сети. С параметром --endpoints запросы
+ * распределяются по регионам Face API, --endpoint не используется. С параметром --metrics
+ * включаются замеры этапов, по окончании они сохраняются в JSON файл.
+ * <p>
+ * Выходной файл служит контрольной точкой: при повторном запуске пары,
+ * уже записанные в него, пропускаются, новые результаты дописываются.
+ */
+public class BatchRunner {
+
+    /**
+     * Заголовок выходного CSV файла.
+     */
+    private static final String CSV_HEADER
+            = "id,first,second,status,identical,confidence,elapsedMs,error";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseArgs(args);
+        if (!options.containsKey("input") || !options.containsKey("output")) {
+            System.err.println("Использование: BatchRunner --input pairs.csv|папка "
+                    + "--output results.csv|results.jsonl [--concurrency 8] "
+                    + "[--rate 10] [--endpoint URL] [--stub задержка_мс] "
+                    + "[--metrics metrics.json] [--transport nio] [--in-flight 16] "
+                    + "[--endpoints регион=URL|ключ,...] [--top-k 2]");
+            System.exit(2);
+        }
+
+        File input = new File(options.get("input"));
+        File output = new File(options.get("output"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "8"));
+        int topK = Integer.parseInt(options.getOrDefault("top-k",
+                String.valueOf(BestShotSelector.DEFAULT_TOP_K)));
+        String endpoint = options.getOrDefault("endpoint", FaceAPI.DEFAULT_BASE_URL);
+        LocalFaceServer stub = null;
+        if (options.containsKey("stub")) {
+            stub = new LocalFaceServer();
+            stub.setLatency(Double.parseDouble(options.get("stub")), 0.3);
+            endpoint = stub.getBaseURL();
+        }
+        if (options.containsKey("endpoints")) {
+            EndpointPool pool = EndpointPool.parse(options.get("endpoints"));
+            FaceAPI.setEndpoints(pool);
+            endpoint = pool.getPrimary().getBaseURL();
+        }
+        boolean jsonl = output.getName().toLowerCase().endsWith(".jsonl");
+        if (options.containsKey("metrics")) {
+            Metrics.setEnabled(true);
+        }
+
+        //на каждую пару до двух соединений
+        FaceAPI.configure(concurrency * 2, concurrency * 2, 5_000, 30_000);
+        //частота запросов по тарифу подписки, одновременных запросов - не больше потоков
+        if (options.containsKey("rate")) {
+            double rate = Double.parseDouble(options.get("rate"));
+            FaceAPI.setRateLimiter(new RateLimiter(rate, Math.max(1, (int) rate)));
+        }
+        FaceAPI.setConcurrencyLimiter(new AdaptiveLimiter(1, concurrency, concurrency));
+        if ("nio".equals(options.get("transport"))) {
+            int inFlight = Integer.parseInt(options.getOrDefault("in-flight",
+                    String.valueOf(concurrency * 2)));
+            //на каждую пару до трех запросов в очереди
+            FaceAPI.setTransport(new AsyncHttpTransport(2, inFlight, concurrency * 3,
+                    5_000, 30_000));
+        }
+
+        Set<String> completed = readCompleted(output, jsonl);
+        if (!completed.isEmpty()) {
+            System.out.printf("Пропускается уже обработанных пар: %d%n", completed.size());
+        }
+
+        Iterator<BatchVerifier.Pair> pairs = input.isDirectory()
+                ? BatchVerifier.readDirectory(input)
+                : BatchVerifier.readCsv(input);
+
+        long start = System.nanoTime();
+        AtomicInteger done = new AtomicInteger();
+        int total;
+        boolean writeHeader = !jsonl && (!output.exists() || output.length() == 0);
+        try (Writer writer = Files.newBufferedWriter(output.toPath(),
+                StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND)) {
+            if (writeHeader) {
+                writer.write(CSV_HEADER);
+                writer.write(System.lineSeparator());
+            } else if (!endsWithNewLine(output)) {
+                //прерванная запись последней строки
+                writer.write(System.lineSeparator());
+            }
+            Gson gson = new Gson();
+            total = new BatchVerifier(endpoint, concurrency, new BestShotSelector(topK))
+                    .run(pairs, completed,
+                    result -> {
+                        String line = jsonl ? gson.toJson(result) : toCsv(result);
+                        synchronized (writer) {
+                            try {
+                                writer.write(line);
+                                writer.write(System.lineSeparator());
+                                writer.flush();
+                            } catch (IOException e) {
+                                throw new IllegalStateException(
+                                        "Ошибка записи в " + output, e);
+                            }
+                        }
+                        int count = done.incrementAndGet();
+                        if (count % 100 == 0) {
+                            System.out.printf("Обработано пар: %d%n", count);
+                        }
+                    });
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Обработано пар: %d за %.1f с (%.2f пар/с)%n",
+                total, seconds, seconds > 0 ? total / seconds : 0);
+        RateLimiter rateLimiter = FaceAPI.getRateLimiter();
+        if (rateLimiter != null) {
+            System.out.printf("Ожидание лимита частоты: %.1f с, запросов с ожиданием: %d из %d%n",
+                    rateLimiter.getWaitNanos() / 1e9, rateLimiter.getThrottled(),
+                    rateLimiter.getAcquired());
+        }
+        if (FaceAPI.getTransport() instanceof AsyncHttpTransport) {
+            System.out.printf("Неблокирующий транспорт: одновременных запросов до %d, "
+                            + "отклонено запросов: %d%n",
+                    ((AsyncHttpTransport) FaceAPI.getTransport()).getMaxInFlight(),
+                    ((AsyncHttpTransport) FaceAPI.getTransport()).getRejected());
+        } else {
+            System.out.printf("Ожидание лимита одновременных запросов: %.1f с, "
+                            + "итоговый лимит: %d%n",
+                    FaceAPI.getConcurrencyLimiter().getWaitNanos() / 1e9,
+                    FaceAPI.getConcurrencyLimiter().getLimit());
+        }
+        System.out.printf("Повторов после 429/503: %d, ожидание повторов: %.1f с%n",
+                FaceAPI.getRetries(), FaceAPI.getRetryWaitNanos() / 1e9);
+        if (options.containsKey("metrics")) {
+            System.out.println(Metrics.summary());
+            Metrics.dump(new File(options.get("metrics")));
+        }
+        if (stub != null) {
+            System.out.printf("Локальная замена Face API: запросов %d, получено фото %d байт%n",
+                    stub.getRequests(), stub.getImageBytes());
+            stub.close();
+        }
+        FaceAPI.shutdown();
+    }
+
+    /**
+     * Разбор аргументов вида --name value.
+     * @param args аргументы командной строки
+     * @return значения аргументов
+     */
+    static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                throw new IllegalArgumentException("Неверный аргумент: " + args[i]);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Идентификаторы пар, уже записанных в выходной файл.
+     * Пары с ошибкой и поврежденные строки обрабатываются заново.
+     * @param output выходной файл
+     * @param jsonl формат JSON Lines
+     * @return идентификаторы пар
+     * @throws IOException в случае ошибки чтения
+     */
+    private static Set<String> readCompleted(File output, boolean jsonl)
+            throws IOException {
+        Set<String> completed = new HashSet<>();
+        if (!output.isFile()) {
+            return completed;
+        }
+        JsonParser parser = new JsonParser();
+        try (BufferedReader reader = Files.newBufferedReader(output.toPath(),
+                StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.equals(CSV_HEADER)) {
+                    continue;
+                }
+                try {
+                    String id;
+                    String status;
+                    if (jsonl) {
+                        JsonObject json = parser.parse(line).getAsJsonObject();
+                        id = json.get("id").getAsString();
+                        status = json.get("status").getAsString();
+                    } else {
+                        List<String> columns = fromCsv(line);
+                        id = columns.get(0);
+                        status = columns.get(3);
+                    }
+                    if (!BatchVerifier.Status.ERROR.name().equals(status)) {
+                        completed.add(id);
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Пропущена поврежденная строка: " + line);
+                }
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * Проверка, что файл пуст или заканчивается переводом строки.
+     * @param file файл
+     * @return true, если дописывать можно с новой строки
+     * @throws IOException в случае ошибки чтения
+     */
+    private static boolean endsWithNewLine(File file) throws IOException {
+        if (!file.isFile() || file.length() == 0) {
+            return true;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(raf.length() - 1);
+            return raf.read() == '\n';
+        }
+    }
+
+    /**
+     * Строка выходного CSV файла.
+     * @param result результат обработки пары
+     * @return строка без перевода строки
+     */
+    private static String toCsv(BatchVerifier.Result result) {
+        return String.join(",",
+                quote(result.getId()),
+                quote(result.getFirst()),
+                quote(result.getSecond()),
+                result.getStatus().name(),
+                result.getIdentical() != null ? result.getIdentical().toString() : "",
+                result.getConfidence() != null ? result.getConfidence().toString() : "",
+                Long.toString(result.getElapsedMs()),
+                quote(result.getError() != null ? result.getError() : ""));
+    }
+
+    /**
+     * Значение в кавычках для CSV.
+     * @param value значение
+     * @return экранированное значение
+     */
+    private static String quote(String value) {
+        return "\"" + value.replace("\"", "\"\"").replace('\n', ' ') + "\"";
+    }
+
+    /**
+     * Разбор строки выходного CSV файла.
+     * @param line строка CSV
+     * @return значения столбцов
+     */
+    private static List<String> fromCsv(String line) {
+        List<String> columns = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    value.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                columns.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Незакрытые кавычки: " + line);
+        }
+        columns.add(value.toString());
+        if (columns.size() != CSV_HEADER.split(",").length) {
+            throw new IllegalArgumentException("Неверное число столбцов: " + line);
+        }
+        return columns;
+    }
+}
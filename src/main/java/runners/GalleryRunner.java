@@ -0,0 +1,135 @@
+package runners;
+
+import models.CandidateModel;
+import utils.FaceAPI;
+import utils.FaceGallery;
+import utils.LocalFaceServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Галерея лиц и поиск человека по фото (1:N) без интерфейса.
+ * <p>
+ * Запуск: {@code java -cp FaceVerify.jar runners.GalleryRunner
+ * --gallery gallery.json [--group kiosk] [--enroll-dir папка] [--train true]
+ * [--identify фото|папка] [--candidates 3] [--endpoint URL] [--stub задержка_мс]}
+ * <p>
+ * В папке для добавления каждая вложенная папка - один человек,
+ * название папки - имя человека, файлы в ней - его фото.
+ */
+public class GalleryRunner {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = BatchRunner.parseArgs(args);
+        if (!options.containsKey("gallery")) {
+            System.err.println("Использование: GalleryRunner --gallery gallery.json "
+                    + "[--group kiosk] [--enroll-dir папка] [--train true] "
+                    + "[--identify фото|папка] [--candidates 3] [--endpoint URL] "
+                    + "[--stub задержка_мс]");
+            System.exit(2);
+        }
+
+        String endpoint = options.getOrDefault("endpoint", FaceAPI.DEFAULT_BASE_URL);
+        LocalFaceServer stub = null;
+        if (options.containsKey("stub")) {
+            stub = new LocalFaceServer();
+            stub.setLatency(Double.parseDouble(options.get("stub")), 0.3);
+            endpoint = stub.getBaseURL();
+        }
+        FaceGallery gallery = new FaceGallery(endpoint,
+                options.getOrDefault("group", "kiosk"), new File(options.get("gallery")));
+
+        if (options.containsKey("enroll-dir")) {
+            enroll(gallery, new File(options.get("enroll-dir")));
+        }
+        if (Boolean.parseBoolean(options.getOrDefault("train", "false"))) {
+            long start = System.nanoTime();
+            gallery.train();
+            System.out.printf("Группа обучена за %.1f с%n", (System.nanoTime() - start) / 1e9);
+        }
+        if (options.containsKey("identify")) {
+            identify(gallery, new File(options.get("identify")),
+                    Integer.parseInt(options.getOrDefault("candidates", "3")));
+        }
+
+        if (stub != null) {
+            System.out.printf("Локальная замена Face API: запросов %d%n", stub.getRequests());
+            stub.close();
+        }
+        FaceAPI.shutdown();
+    }
+
+    /**
+     * Добавление фото из вложенных папок (одна папка - один человек).
+     * @param gallery галерея
+     * @param dir папка с папками людей
+     */
+    private static void enroll(FaceGallery gallery, File dir) {
+        File[] personDirs = dir.listFiles(File::isDirectory);
+        if (personDirs == null) {
+            throw new IllegalArgumentException("Папка не найдена: " + dir);
+        }
+        Arrays.sort(personDirs);
+        int added = 0;
+        for (File personDir : personDirs) {
+            for (File photo : photos(personDir)) {
+                try {
+                    gallery.enroll(personDir.getName(), photo);
+                    added++;
+                } catch (Exception e) {
+                    System.err.printf("%s: %s%n", photo, e.getMessage());
+                }
+            }
+        }
+        System.out.printf("Добавлено фото: %d, людей в галерее: %d%n",
+                added, gallery.size());
+    }
+
+    /**
+     * Поиск людей по фото или по всем фото папки.
+     * @param gallery галерея
+     * @param input фото или папка
+     * @param maxCandidates максимальное число кандидатов
+     */
+    private static void identify(FaceGallery gallery, File input, int maxCandidates) {
+        List<File> files = input.isDirectory() ? photos(input)
+                : Arrays.asList(input);
+        if (!gallery.isTrained()) {
+            System.out.println("Группа не обучена: кандидаты отбираются локальным индексом "
+                    + "и проверяются сравнением лиц.");
+        }
+        for (File file : files) {
+            long start = System.nanoTime();
+            try {
+                List<CandidateModel> candidates = gallery.identify(file, maxCandidates);
+                System.out.printf("%s (%.0f мс): %s%n", file.getName(),
+                        (System.nanoTime() - start) / 1e6,
+                        candidates.isEmpty() ? "совпадений нет" : candidates);
+            } catch (IOException | RuntimeException | URISyntaxException e) {
+                System.err.printf("%s: %s%n", file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Фото в папке по имени файла.
+     * @param dir папка
+     * @return файлы с расширениями изображений
+     */
+    private static List<File> photos(File dir) {
+        List<File> photos = new ArrayList<>();
+        File[] files = dir.listFiles((parent, name) ->
+                name.toLowerCase().matches(".*\\.(jpe?g|png|bmp|gif)"));
+        if (files != null) {
+            Arrays.sort(files);
+            photos.addAll(Arrays.asList(files));
+        }
+        return photos;
+    }
+}
@@ -1,26 +1,63 @@
 package runners;
 
+import controllers.SceneNavigator;
+import controllers.Session;
 import javafx.application.Application;
-import javafx.fxml.FXMLLoader;
-import javafx.scene.Parent;
-import javafx.scene.Scene;
 import javafx.stage.Stage;
+import utils.DetectionCache;
+import utils.EndpointPool;
+import utils.FaceAPI;
+import utils.Metrics;
+
+import java.io.File;
+import java.io.IOException;
 
 public class MainRunner extends Application {
 
     public static void main(String[] args) {
+        //результаты распознавания сохраняются между запусками
+        FaceAPI.setDetectionCache(new DetectionCache(256,
+                new File(System.getProperty("user.home"),
+                        ".faceverify/detect-cache.json")));
+        //регионы Face API: -Dfaceverify.endpoints=регион=URL|ключ,...
+        String endpoints = System.getProperty("faceverify.endpoints");
+        if (endpoints != null) {
+            FaceAPI.setEndpoints(EndpointPool.parse(endpoints));
+        }
         launch(args);
     }
 
     @Override
     public void start(Stage primaryStage) throws Exception {
-        Parent root = FXMLLoader.load(getClass().getResource("/view/FirstView.fxml"));
-
-        Scene scene = new Scene(root);
-        primaryStage.setScene(scene);
         primaryStage.setMinHeight(600);
         primaryStage.setMinWidth(600);
-        primaryStage.setTitle("Первый экран");
-        primaryStage.show();
+
+        SceneNavigator navigator = new SceneNavigator(primaryStage, new Session());
+        navigator.show(SceneNavigator.Screen.FIRST);
+        //панель замеров (F12) при запуске
+        if (Boolean.getBoolean("faceverify.diagnostics")) {
+            navigator.setDiagnosticsShown(true);
+        }
+        //остальные экраны загружаются после показа первого (-Dfaceverify.preload=false - по требованию)
+        if (Boolean.parseBoolean(System.getProperty("faceverify.preload", "true"))) {
+            navigator.preload();
+        }
+    }
+
+    /**
+     * Сохранение замеров при закрытии в файл из -Dfaceverify.metricsFile
+     * и кэша распознавания.
+     */
+    @Override
+    public void stop() {
+        FaceAPI.shutdown();
+        String metricsFile = System.getProperty("faceverify.metricsFile");
+        if (metricsFile != null && Metrics.isEnabled()) {
+            try {
+                Metrics.dump(new File(metricsFile));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 }
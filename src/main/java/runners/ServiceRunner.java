@@ -0,0 +1,101 @@
+package runners;
+
+import utils.AsyncHttpTransport;
+import utils.DetectionCache;
+import utils.EndpointPool;
+import utils.FaceAPI;
+import utils.FaceService;
+import utils.LocalFaceServer;
+import utils.Metrics;
+import utils.RateLimiter;
+import utils.VerifyBatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Сервис распознавания и сравнения лиц для нескольких киосков без интерфейса.
+ * <p>
+ * Запуск: {@code java -cp FaceVerify.jar runners.ServiceRunner
+ * [--host 0.0.0.0] [--port 8090] [--rate 10] [--in-flight 16]
+ * [--batch-window 20] [--batch-size 32] [--endpoint URL]
+ * [--endpoints регион=URL|ключ,...] [--stub задержка_мс] [--metrics metrics.json]}
+ * <p>
+ * Киоск обращается к сервису как к Face API: базовый URL
+ * {@code http://сервер:8090/face/v1.0}. Запросы к Face API выполняются
+ * неблокирующим транспортом (--in-flight одновременных запросов) с общим
+ * ограничением частоты и общими кэшами. Сравнения собираются в пачки
+ * в течение --batch-window мс. Сервис работает до завершения процесса,
+ * с параметром --metrics при завершении сохраняются замеры.
+ */
+public class ServiceRunner {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = BatchRunner.parseArgs(args);
+        String host = options.getOrDefault("host", "0.0.0.0");
+        int port = Integer.parseInt(options.getOrDefault("port", "8090"));
+        int inFlight = Integer.parseInt(options.getOrDefault("in-flight", "16"));
+
+        String endpoint = options.getOrDefault("endpoint", FaceAPI.DEFAULT_BASE_URL);
+        LocalFaceServer stub = null;
+        if (options.containsKey("stub")) {
+            stub = new LocalFaceServer();
+            stub.setLatency(Double.parseDouble(options.get("stub")), 0.3);
+            endpoint = stub.getBaseURL();
+        }
+        if (options.containsKey("endpoints")) {
+            EndpointPool pool = EndpointPool.parse(options.get("endpoints"));
+            FaceAPI.setEndpoints(pool);
+            endpoint = pool.getPrimary().getBaseURL();
+        }
+        if (options.containsKey("metrics")) {
+            Metrics.setEnabled(true);
+        }
+
+        //общие для всех киосков результаты распознавания сохраняются между запусками
+        FaceAPI.setDetectionCache(new DetectionCache(4096,
+                new File(System.getProperty("user.home"),
+                        ".faceverify/service-detect-cache.json")));
+        if (options.containsKey("rate")) {
+            double rate = Double.parseDouble(options.get("rate"));
+            FaceAPI.setRateLimiter(new RateLimiter(rate, Math.max(1, (int) rate)));
+        }
+        FaceAPI.setTransport(new AsyncHttpTransport(2, inFlight, inFlight * 4,
+                5_000, 30_000));
+
+        VerifyBatcher batcher = new VerifyBatcher(endpoint,
+                Long.parseLong(options.getOrDefault("batch-window", "20")),
+                Integer.parseInt(options.getOrDefault("batch-size", "32")),
+                inFlight, inFlight * 16);
+        FaceService service = new FaceService(new InetSocketAddress(host, port), endpoint,
+                Math.max(4, inFlight), batcher);
+        System.out.printf("Сервис запущен: %s%n", service.getBaseURL(
+                "0.0.0.0".equals(host) ? "localhost" : host));
+
+        LocalFaceServer stubServer = stub;
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            service.close();
+            FaceAPI.shutdown();
+            System.out.printf("Запросов /detect: %d (объединено %d), /verify: %d "
+                            + "(пачек %d, объединено %d)%n",
+                    service.getDetectRequests(), service.getCoalesced(),
+                    batcher.getRequests(), batcher.getBatches(), batcher.getMerged());
+            if (options.containsKey("metrics")) {
+                try {
+                    Metrics.dump(new File(options.get("metrics")));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (stubServer != null) {
+                stubServer.close();
+            }
+            stopped.countDown();
+        }, "face-service-shutdown"));
+        stopped.await();
+    }
+}
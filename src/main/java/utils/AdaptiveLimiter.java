@@ -0,0 +1,131 @@
+package utils;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Адаптивное ограничение числа одновременных запросов.
+ * Лимит растет на единицу за каждые limit успешных быстрых запросов и
+ * уменьшается в 4/3 раза при ошибке, ответе 429 или росте задержки выше
+ * двукратной сглаженной задержки той же операции. Задержки операций
+ * сглаживаются раздельно: загрузка фото в /detect заметно дольше /verify
+ * и не должна считаться перегрузкой на фоне быстрых сравнений.
+ */
+public class AdaptiveLimiter {
+
+    /**
+     * Минимальный лимит.
+     */
+    private final int minLimit;
+
+    /**
+     * Максимальный лимит.
+     */
+    private final int maxLimit;
+
+    /**
+     * Текущий лимит (дробный для плавного роста).
+     */
+    private double limit;
+
+    /**
+     * Число выполняющихся запросов.
+     */
+    private int inFlight;
+
+    /**
+     * Сглаженная задержка успешных запросов по операциям, нс.
+     */
+    private final Map<String, Double> smoothedLatency = new HashMap<>();
+
+    /**
+     * Общее время ожидания разрешений, нс.
+     */
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * @param minLimit минимальный лимит
+     * @param initialLimit начальный лимит
+     * @param maxLimit максимальный лимит
+     */
+    public AdaptiveLimiter(int minLimit, int initialLimit, int maxLimit) {
+        if (minLimit <= 0 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException(String.format(
+                    "Неверные параметры: min=%d, initial=%d, max=%d",
+                    minLimit, initialLimit, maxLimit));
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+    }
+
+    /**
+     * Получение разрешения на запрос с ожиданием.
+     * @return время ожидания, нс
+     * @throws InterruptedIOException в случае прерывания ожидания
+     */
+    public synchronized long acquire() throws InterruptedIOException {
+        long start = System.nanoTime();
+        while (inFlight >= (int) limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Ожидание разрешения прервано.");
+            }
+        }
+        inFlight++;
+        long waited = System.nanoTime() - start;
+        waitNanos.addAndGet(waited);
+        return waited;
+    }
+
+    /**
+     * Освобождение разрешения с учетом результата запроса.
+     * @param operation операция (detect, verify, identify...), задержка
+     *                  сравнивается только с задержкой этой операции
+     * @param latencyNanos задержка запроса, нс
+     * @param overloaded таймаут, 429, 503 или другой признак перегрузки
+     */
+    public synchronized void release(String operation, long latencyNanos,
+                                     boolean overloaded) {
+        inFlight--;
+        Double smoothed = smoothedLatency.get(operation);
+        boolean slow = smoothed != null && latencyNanos > 2 * smoothed;
+        if (overloaded || slow) {
+            limit = Math.max(minLimit, limit * 0.75);
+        } else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        if (!overloaded) {
+            smoothedLatency.put(operation, smoothed == null
+                    ? latencyNanos : smoothed * 0.9 + latencyNanos * 0.1);
+        }
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Сглаженная задержка успешных запросов операции.
+     * @param operation операция
+     * @return задержка, мс (0 - еще не измерена)
+     */
+    public synchronized long getSmoothedLatencyMillis(String operation) {
+        Double smoothed = smoothedLatency.get(operation);
+        return smoothed == null ? 0 : TimeUnit.NANOSECONDS.toMillis(smoothed.longValue());
+    }
+
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+}
@@ -0,0 +1,247 @@
+package utils;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Неблокирующий транспорт на основе Apache HttpAsyncClient (NIO).
+ * <p>
+ * Все запросы выполняются несколькими потоками ввода-вывода через общий пул
+ * keep-alive соединений, поток на запрос не занимается. Одновременно
+ * выполняется не больше maxInFlight запросов, остальные ждут в очереди
+ * без занятия потока. Если очередь заполнена, запрос сразу завершается
+ * с {@link RejectedExecutionException}.
+ * <p>
+ * HttpAsyncClient 4.x поддерживает только HTTP/1.1, поэтому соединение
+ * используется запросами по очереди, а не одновременно.
+ */
+public class AsyncHttpTransport implements HttpTransport {
+
+    /**
+     * Время жизни соединения без активности, если сервер не прислал Keep-Alive, мс.
+     */
+    private static final long DEFAULT_KEEP_ALIVE = 30_000;
+
+    private final CloseableHttpAsyncClient client;
+
+    /**
+     * Максимальное число одновременно выполняющихся запросов.
+     */
+    private final int maxInFlight;
+
+    /**
+     * Максимальное число запросов, ожидающих отправки.
+     */
+    private final int maxQueued;
+
+    /**
+     * Запросы, ожидающие отправки.
+     */
+    private final Deque<Pending> queue = new ArrayDeque<>();
+
+    private int inFlight;
+    private long rejected;
+    private boolean closed;
+
+    /**
+     * @param ioThreads число потоков ввода-вывода
+     * @param maxInFlight максимальное число одновременных запросов (и соединений)
+     * @param maxQueued максимальное число запросов в очереди
+     * @param connectTimeout таймаут установки соединения, мс
+     * @param socketTimeout таймаут ожидания данных, мс
+     */
+    public AsyncHttpTransport(int ioThreads, int maxInFlight, int maxQueued,
+                              int connectTimeout, int socketTimeout) {
+        if (ioThreads <= 0 || maxInFlight <= 0 || maxQueued < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Неверные параметры: ioThreads=%d, maxInFlight=%d, maxQueued=%d",
+                    ioThreads, maxInFlight, maxQueued));
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads)
+                .setConnectTimeout(connectTimeout)
+                .setSoTimeout(socketTimeout)
+                .setTcpNoDelay(true)
+                .build();
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .build();
+
+        AtomicInteger counter = new AtomicInteger();
+        client = HttpAsyncClients.custom()
+                .setDefaultIOReactorConfig(ioReactorConfig)
+                .setDefaultRequestConfig(requestConfig)
+                //соединений не больше, чем одновременных запросов
+                .setMaxConnTotal(maxInFlight)
+                .setMaxConnPerRoute(maxInFlight)
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE
+                            .getKeepAliveDuration(response, context);
+                    return keepAlive > 0 ? keepAlive : DEFAULT_KEEP_ALIVE;
+                })
+                .setThreadFactory(runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "face-api-io-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                .build();
+        client.start();
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> send(HttpRequestBase request) {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                future.completeExceptionally(new IOException("Транспорт закрыт."));
+                return future;
+            }
+            if (inFlight >= maxInFlight) {
+                if (queue.size() >= maxQueued) {
+                    rejected++;
+                    future.completeExceptionally(new RejectedExecutionException(
+                            "Очередь запросов заполнена: " + maxQueued));
+                } else {
+                    queue.add(new Pending(request, future));
+                }
+                return future;
+            }
+            inFlight++;
+        }
+        dispatch(request, future);
+        return future;
+    }
+
+    /**
+     * Передача запроса HTTP клиенту. Место в лимите уже занято.
+     * @param request запрос
+     * @param future future для ответа
+     */
+    private void dispatch(HttpRequestBase request, CompletableFuture<HttpResponse> future) {
+        Future<HttpResponse> call;
+        try {
+            call = client.execute(request, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    release();
+                    future.complete(response);
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    release();
+                    future.completeExceptionally(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    release();
+                    future.cancel(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            //клиент остановлен
+            release();
+            future.completeExceptionally(e);
+            return;
+        }
+        future.whenComplete((response, error) -> {
+            if (future.isCancelled()) {
+                call.cancel(true);
+            }
+        });
+    }
+
+    /**
+     * Освобождение места в лимите: следующий запрос из очереди
+     * отправляется сразу, отмененные в очереди запросы пропускаются.
+     */
+    private void release() {
+        while (true) {
+            Pending next;
+            synchronized (this) {
+                next = queue.poll();
+                if (next == null) {
+                    inFlight--;
+                    return;
+                }
+            }
+            if (!next.future.isDone()) {
+                dispatch(next.request, next.future);
+                return;
+            }
+        }
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @Override
+    public void close() {
+        List<Pending> pending;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending = new ArrayList<>(queue);
+            queue.clear();
+        }
+        for (Pending request : pending) {
+            request.future.completeExceptionally(new IOException("Транспорт закрыт."));
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Запрос, ожидающий отправки.
+     */
+    private static class Pending {
+        private final HttpRequestBase request;
+        private final CompletableFuture<HttpResponse> future;
+
+        Pending(HttpRequestBase request, CompletableFuture<HttpResponse> future) {
+            this.request = request;
+            this.future = future;
+        }
+    }
+}
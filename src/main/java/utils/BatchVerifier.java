@@ -0,0 +1,547 @@
+package utils;
+
+import models.DetectModel;
+import models.VerifyModel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Пакетное сравнение пар фото (фото документа, селфи) без интерфейса.
+ * Пары читаются по мере обработки, одновременно обрабатывается не больше
+ * заданного числа пар, результаты передаются сразу после получения.
+ * <p>
+ * Если в {@link FaceAPI} установлен неблокирующий транспорт, пары
+ * обрабатываются без пула потоков: чтение пар приостанавливается,
+ * пока в работе заданное число пар.
+ * <p>
+ * Вместо фото стороной пары может быть серия кадров: из нее выбирается
+ * лучший кадр {@link BestShotSelector}, в Face API отправляются только
+ * лучшие кадры серии.
+ */
+public class BatchVerifier {
+
+    /**
+     * Базовый URL для запросов.
+     */
+    private final String baseURL;
+
+    /**
+     * Число одновременно обрабатываемых пар.
+     */
+    private final int concurrency;
+
+    /**
+     * Выбор лучшего кадра для серий.
+     */
+    private final BestShotSelector selector;
+
+    /**
+     * @param baseURL базовый URL для запросов
+     * @param concurrency число одновременно обрабатываемых пар
+     */
+    public BatchVerifier(String baseURL, int concurrency) {
+        this(baseURL, concurrency, new BestShotSelector());
+    }
+
+    /**
+     * @param baseURL базовый URL для запросов
+     * @param concurrency число одновременно обрабатываемых пар
+     * @param selector выбор лучшего кадра для серий
+     */
+    public BatchVerifier(String baseURL, int concurrency, BestShotSelector selector) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException(
+                    "Число потоков должно быть положительным: " + concurrency);
+        }
+        this.baseURL = baseURL;
+        this.concurrency = concurrency;
+        this.selector = selector;
+    }
+
+    /**
+     * Обработка всех пар.
+     * @param pairs пары фото
+     * @param completed идентификаторы уже обработанных пар (пропускаются)
+     * @param sink получатель результатов, вызывается из рабочих потоков
+     * @return число обработанных пар
+     * @throws InterruptedException в случае прерывания ожидания
+     */
+    public int run(Iterator<Pair> pairs, Set<String> completed,
+                   Consumer<Result> sink) throws InterruptedException {
+        if (FaceAPI.getTransport() != null) {
+            return runAsync(pairs, completed, sink);
+        }
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency,
+                runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "batch-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        //не больше concurrency пар в работе и столько же в очереди
+        Semaphore permits = new Semaphore(concurrency * 2);
+        int submitted = 0;
+        try {
+            while (pairs.hasNext()) {
+                Pair pair = pairs.next();
+                if (completed.contains(pair.getId())) {
+                    continue;
+                }
+                permits.acquire();
+                pool.execute(() -> {
+                    try {
+                        sink.accept(process(pair));
+                    } finally {
+                        permits.release();
+                    }
+                });
+                submitted++;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        return submitted;
+    }
+
+    /**
+     * Обработка всех пар неблокирующими запросами.
+     * @param pairs пары фото
+     * @param completed идентификаторы уже обработанных пар (пропускаются)
+     * @param sink получатель результатов, вызывается из потоков ввода-вывода
+     * @return число обработанных пар
+     * @throws InterruptedException в случае прерывания ожидания
+     */
+    private int runAsync(Iterator<Pair> pairs, Set<String> completed,
+                         Consumer<Result> sink) throws InterruptedException {
+        Semaphore permits = new Semaphore(concurrency);
+        int submitted = 0;
+        while (pairs.hasNext()) {
+            Pair pair = pairs.next();
+            if (completed.contains(pair.getId())) {
+                continue;
+            }
+            permits.acquire();
+            processAsync(pair).whenComplete((result, error) -> {
+                try {
+                    sink.accept(result);
+                } finally {
+                    permits.release();
+                }
+            });
+            submitted++;
+        }
+        //ожидание пар в работе
+        permits.acquire(concurrency);
+        return submitted;
+    }
+
+    /**
+     * Асинхронная обработка одной пары: оба фото распознаются одновременно,
+     * затем лица сравниваются.
+     * @param pair пара фото
+     * @return future с результатом (всегда завершается успешно)
+     */
+    public CompletableFuture<Result> processAsync(Pair pair) {
+        long start = System.nanoTime();
+        Result result = new Result(pair);
+        CompletableFuture<VerifyModel> verify;
+        try {
+            CompletableFuture<DetectModel> first = detectAsync(pair.getFirstFrames(),
+                    frame -> result.first = frame.getPath());
+            CompletableFuture<DetectModel> second = detectAsync(pair.getSecondFrames(),
+                    frame -> result.second = frame.getPath());
+            verify = first.thenCombine(second, (face1, face2) -> {
+                if (face1 == null) {
+                    result.status = Status.NO_FACE_FIRST;
+                } else if (face2 == null) {
+                    result.status = Status.NO_FACE_SECOND;
+                }
+                return new DetectModel[]{face1, face2};
+            }).thenCompose(faces -> {
+                if (result.status != null) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                try {
+                    return FaceAPI.verifyAsync(baseURL, faces[0], faces[1]);
+                } catch (URISyntaxException e) {
+                    throw new CompletionException(e);
+                }
+            });
+        } catch (URISyntaxException | RuntimeException e) {
+            verify = new CompletableFuture<>();
+            verify.completeExceptionally(e);
+        }
+
+        return verify.handle((verifyModel, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException
+                        && error.getCause() != null ? error.getCause() : error;
+                result.status = Status.ERROR;
+                result.error = String.valueOf(cause.getMessage());
+            } else if (result.status == null && verifyModel == null) {
+                result.status = Status.ERROR;
+                result.error = "Пустой ответ на сравнение.";
+            } else if (result.status == null) {
+                result.status = Status.OK;
+                result.identical = verifyModel.isIdentical();
+                result.confidence = verifyModel.getConfidence();
+            }
+            result.elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            return result;
+        });
+    }
+
+    /**
+     * Асинхронное распознавание одной стороны пары.
+     * @param frames фото или серия кадров
+     * @param onSelected получатель выбранного кадра серии
+     * @return future с самым крупным лицом (null, если лиц не найдено)
+     * @throws URISyntaxException в случае неверного URL
+     */
+    private CompletableFuture<DetectModel> detectAsync(List<File> frames,
+                                                       Consumer<File> onSelected)
+            throws URISyntaxException {
+        if (frames.size() == 1) {
+            return FaceAPI.detectAsync(baseURL, frames.get(0));
+        }
+        return selector.selectAsync(baseURL, frames, DetectOptions.DEFAULT).thenApply(shot -> {
+            if (shot == null) {
+                return null;
+            }
+            onSelected.accept(shot.getFile());
+            return shot.getDetect();
+        });
+    }
+
+    /**
+     * Распознавание одной стороны пары.
+     * @param frames фото или серия кадров
+     * @param onSelected получатель выбранного кадра серии
+     * @return самое крупное лицо или null, если лиц не найдено
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе
+     */
+    private DetectModel detect(List<File> frames, Consumer<File> onSelected)
+            throws URISyntaxException, IOException {
+        if (frames.size() == 1) {
+            return FaceAPI.faceDetect(baseURL, frames.get(0));
+        }
+        BestShotSelector.Shot shot = selector.select(baseURL, frames, DetectOptions.DEFAULT);
+        if (shot == null) {
+            return null;
+        }
+        onSelected.accept(shot.getFile());
+        return shot.getDetect();
+    }
+
+    /**
+     * Обработка одной пары: распознавание обоих фото и сравнение.
+     * @param pair пара фото
+     * @return результат
+     */
+    public Result process(Pair pair) {
+        long start = System.nanoTime();
+        Result result = new Result(pair);
+        try {
+            DetectModel first = detect(pair.getFirstFrames(),
+                    frame -> result.first = frame.getPath());
+            if (first == null) {
+                result.status = Status.NO_FACE_FIRST;
+                return result;
+            }
+            DetectModel second = detect(pair.getSecondFrames(),
+                    frame -> result.second = frame.getPath());
+            if (second == null) {
+                result.status = Status.NO_FACE_SECOND;
+                return result;
+            }
+            VerifyModel verifyModel = FaceAPI.faceVerify(baseURL, first, second);
+            if (verifyModel == null) {
+                result.status = Status.ERROR;
+                result.error = "Пустой ответ на сравнение.";
+                return result;
+            }
+            result.status = Status.OK;
+            result.identical = verifyModel.isIdentical();
+            result.confidence = verifyModel.getConfidence();
+        } catch (Exception e) {
+            result.status = Status.ERROR;
+            result.error = String.valueOf(e.getMessage());
+        } finally {
+            result.elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    /**
+     * Пары из CSV файла. Строка: "фото1,фото2" или "id,фото1,фото2",
+     * пути без кавычек, относительные пути - от папки CSV файла.
+     * Пустые строки и строки, начинающиеся с #, пропускаются.
+     * Без id идентификатором служит строка целиком.
+     * @param csv CSV файл
+     * @return итератор пар, файл читается по мере обхода
+     * @throws IOException в случае ошибки чтения
+     */
+    public static Iterator<Pair> readCsv(File csv) throws IOException {
+        BufferedReader reader = Files.newBufferedReader(csv.toPath(),
+                StandardCharsets.UTF_8);
+        File dir = csv.getAbsoluteFile().getParentFile();
+        return new Iterator<Pair>() {
+
+            private Pair next = advance();
+
+            private Pair advance() {
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        if (line.isEmpty() || line.startsWith("#")) {
+                            continue;
+                        }
+                        String[] columns = line.split(",", -1);
+                        if (columns.length == 2) {
+                            return new Pair(line, resolve(dir, columns[0]),
+                                    resolve(dir, columns[1]));
+                        } else if (columns.length == 3) {
+                            return new Pair(columns[0].trim(), resolve(dir, columns[1]),
+                                    resolve(dir, columns[2]));
+                        }
+                        throw new IllegalArgumentException(
+                                "Неверная строка в " + csv + ": " + line);
+                    }
+                    reader.close();
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Pair next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Pair current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Пары из папки: каждая вложенная папка содержит два фото .jpg,
+     * первое по имени - фото документа, второе - селфи, или две папки
+     * с сериями кадров .jpg (первая по имени - документ, вторая - селфи).
+     * Идентификатор пары - имя вложенной папки.
+     * @param dir папка с парами
+     * @return итератор пар
+     */
+    public static Iterator<Pair> readDirectory(File dir) {
+        File[] subdirs = dir.listFiles(File::isDirectory);
+        List<Pair> pairs = new ArrayList<>();
+        if (subdirs != null) {
+            Arrays.sort(subdirs);
+            for (File subdir : subdirs) {
+                File[] bursts = subdir.listFiles(File::isDirectory);
+                if (bursts != null && bursts.length == 2) {
+                    Arrays.sort(bursts);
+                    List<File> first = listPhotos(bursts[0]);
+                    List<File> second = listPhotos(bursts[1]);
+                    if (first.isEmpty() || second.isEmpty()) {
+                        System.err.println("Пропущена папка " + subdir
+                                + ": в сериях нет фото .jpg");
+                        continue;
+                    }
+                    pairs.add(new Pair(subdir.getName(), bursts[0], first,
+                            bursts[1], second));
+                    continue;
+                }
+                File[] photos = subdir.listFiles((d, name)
+                        -> name.toLowerCase().endsWith(".jpg"));
+                if (photos == null || photos.length != 2) {
+                    System.err.println("Пропущена папка " + subdir
+                            + ": нужно ровно два фото .jpg");
+                    continue;
+                }
+                Arrays.sort(photos);
+                pairs.add(new Pair(subdir.getName(), photos[0], photos[1]));
+            }
+        }
+        return Collections.unmodifiableList(pairs).iterator();
+    }
+
+    /**
+     * Фото .jpg в папке по имени (порядок съемки серии).
+     * @param dir папка
+     * @return фото
+     */
+    private static List<File> listPhotos(File dir) {
+        File[] photos = dir.listFiles((d, name) -> name.toLowerCase().endsWith(".jpg"));
+        if (photos == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(photos);
+        return Arrays.asList(photos);
+    }
+
+    /**
+     * Путь к фото относительно папки CSV файла.
+     * @param dir папка CSV файла
+     * @param path путь из CSV
+     * @return файл
+     */
+    private static File resolve(File dir, String path) {
+        File file = new File(path.trim());
+        return file.isAbsolute() ? file : new File(dir, path.trim());
+    }
+
+    /**
+     * Пара фото для сравнения.
+     */
+    public static class Pair {
+
+        private final String id;
+        private final File first;
+        private final File second;
+
+        /**
+         * Кадры сторон пары (одно фото или серия).
+         */
+        private final List<File> firstFrames;
+        private final List<File> secondFrames;
+
+        public Pair(String id, File first, File second) {
+            this(id, first, Collections.singletonList(first),
+                    second, Collections.singletonList(second));
+        }
+
+        /**
+         * Пара из серий кадров.
+         * @param id идентификатор пары
+         * @param first папка первой серии
+         * @param firstFrames кадры первой серии
+         * @param second папка второй серии
+         * @param secondFrames кадры второй серии
+         */
+        public Pair(String id, File first, List<File> firstFrames,
+                    File second, List<File> secondFrames) {
+            this.id = id;
+            this.first = first;
+            this.second = second;
+            this.firstFrames = firstFrames;
+            this.secondFrames = secondFrames;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public File getFirst() {
+            return first;
+        }
+
+        public File getSecond() {
+            return second;
+        }
+
+        public List<File> getFirstFrames() {
+            return firstFrames;
+        }
+
+        public List<File> getSecondFrames() {
+            return secondFrames;
+        }
+    }
+
+    /**
+     * Итог обработки пары.
+     */
+    public enum Status {
+        OK, NO_FACE_FIRST, NO_FACE_SECOND, ERROR
+    }
+
+    /**
+     * Результат обработки пары.
+     */
+    public static class Result {
+
+        private final String id;
+
+        /**
+         * Фото сторон пары, для серии - выбранный кадр.
+         */
+        private String first;
+        private String second;
+        private Status status;
+        private Boolean identical;
+        private Double confidence;
+        private String error;
+        private long elapsedMs;
+
+        Result(Pair pair) {
+            this.id = pair.getId();
+            this.first = pair.getFirst().getPath();
+            this.second = pair.getSecond().getPath();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getFirst() {
+            return first;
+        }
+
+        public String getSecond() {
+            return second;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public Boolean getIdentical() {
+            return identical;
+        }
+
+        public Double getConfidence() {
+            return confidence;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package utils;
+
+import models.DetectModel;
+import models.FaceAttributes;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Выбор лучшего кадра из серии фото одного человека.
+ * <p>
+ * Кадры оцениваются локально, параллельно в общем пуле fork/join: резкость
+ * (как в {@link ImageQuality}), размер лица и фронтальность (симметрия
+ * яркости лица, найденного {@link LocalFaceDetector}). В Face API отправляются
+ * только topK лучших кадров, из них выбирается кадр с лучшей оценкой,
+ * на котором Face API нашел лицо. Размер и поворот лица по ответу Face API
+ * уточняют оценку. Вместо распознавания каждого кадра серии выполняется
+ * topK запросов.
+ */
+public class BestShotSelector {
+
+    /**
+     * Число кадров, отправляемых в Face API, по умолчанию.
+     */
+    public static final int DEFAULT_TOP_K = 2;
+
+    /**
+     * Размер большей стороны кадра для оценки, пикселей.
+     */
+    private static final int ANALYSIS_SIZE = 320;
+
+    /**
+     * Резкость, при которой множитель резкости равен 0.5.
+     */
+    private static final double HALF_SHARPNESS = 100;
+
+    /**
+     * Меньшая сторона лица, при которой множитель размера равен 1, пикселей.
+     */
+    private static final int GOOD_FACE_SIZE = 200;
+
+    /**
+     * Поворот головы, при котором лицо считается не фронтальным, градусы.
+     */
+    private static final double MAX_YAW = 45;
+
+    /**
+     * Множители размера и фронтальности, если лицо локально не ищется
+     * (фото без цвета).
+     */
+    private static final double UNKNOWN_FACTOR = 0.5;
+
+    private final int topK;
+
+    public BestShotSelector() {
+        this(DEFAULT_TOP_K);
+    }
+
+    /**
+     * @param topK число кадров, отправляемых в Face API
+     */
+    public BestShotSelector(int topK) {
+        if (topK <= 0) {
+            throw new IllegalArgumentException("Число кадров должно быть положительным: " + topK);
+        }
+        this.topK = topK;
+    }
+
+    /**
+     * Локальная оценка кадров без запросов к Face API.
+     * Кадры, которые не удалось прочитать, получают оценку 0.
+     * @param frames кадры серии
+     * @return кадры по убыванию оценки
+     */
+    public List<Shot> rank(List<File> frames) {
+        Shot[] shots = new Shot[frames.size()];
+        ForkJoinPool.commonPool().invoke(new ScoreTask(frames, shots, 0, shots.length));
+        List<Shot> ranked = new ArrayList<>(shots.length);
+        Collections.addAll(ranked, shots);
+        //при равных оценках - кадр, снятый раньше
+        ranked.sort(Comparator.comparingDouble(Shot::getScore).reversed());
+        return ranked;
+    }
+
+    /**
+     * Выбор лучшего кадра: локальная оценка и распознавание topK кадров.
+     * Оценка выполняется в общем пуле fork/join, отмена future отменяет
+     * запросы к Face API.
+     * @param baseURL базовый URL для запросов
+     * @param frames кадры серии
+     * @param options запрашиваемые данные о лицах
+     * @return future с лучшим кадром (null, если ни на одном из topK кадров
+     * Face API не нашел лицо)
+     */
+    public CompletableFuture<Shot> selectAsync(String baseURL, List<File> frames,
+                                               DetectOptions options) {
+        if (frames.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<CompletableFuture<?>> requests = new ArrayList<>();
+        CompletableFuture<Shot> selected = CompletableFuture.supplyAsync(() -> rank(frames))
+                .thenCompose(ranked -> {
+                    List<Shot> top = ranked.subList(0, Math.min(topK, ranked.size()));
+                    CompletableFuture<?>[] detects = new CompletableFuture<?>[top.size()];
+                    for (int i = 0; i < top.size(); i++) {
+                        Shot shot = top.get(i);
+                        CompletableFuture<List<DetectModel>> request;
+                        try {
+                            request = FaceAPI.detectFacesAsync(baseURL, shot.file, options);
+                        } catch (URISyntaxException e) {
+                            throw new CompletionException(e);
+                        }
+                        synchronized (requests) {
+                            requests.add(request);
+                        }
+                        //ошибка одного кадра не мешает выбрать другой
+                        detects[i] = request.handle((faces, error) -> {
+                            if (error != null) {
+                                shot.error = error instanceof CompletionException
+                                        && error.getCause() != null ? error.getCause() : error;
+                            } else {
+                                shot.setFaces(faces);
+                            }
+                            return null;
+                        });
+                    }
+                    return CompletableFuture.allOf(detects).thenApply(ignored -> best(top));
+                });
+        //отмена выбора отменяет запросы к Face API
+        selected.whenComplete((shot, error) -> {
+            if (selected.isCancelled()) {
+                synchronized (requests) {
+                    for (CompletableFuture<?> request : requests) {
+                        request.cancel(true);
+                    }
+                }
+            }
+        });
+        return selected;
+    }
+
+    /**
+     * Выбор лучшего кадра.
+     * @param baseURL базовый URL для запросов
+     * @param frames кадры серии
+     * @param options запрашиваемые данные о лицах
+     * @return лучший кадр или null, если Face API не нашел лицо
+     * @throws IOException в случае ошибки в запросе
+     */
+    public Shot select(String baseURL, List<File> frames, DetectOptions options)
+            throws IOException {
+        return FaceAPI.await(selectAsync(baseURL, frames, options));
+    }
+
+    /**
+     * Лучший из распознанных кадров с учетом ответа Face API.
+     * @param top распознанные кадры
+     * @return кадр или null, если лиц нет
+     * @throws CompletionException с ошибкой первого кадра, если ни один кадр
+     * не распознан без ошибки
+     */
+    private static Shot best(List<Shot> top) {
+        Shot best = null;
+        Throwable error = null;
+        boolean recognized = false;
+        for (Shot shot : top) {
+            if (shot.error != null) {
+                error = error != null ? error : shot.error;
+                continue;
+            }
+            recognized = true;
+            if (shot.detect != null && (best == null || shot.score > best.score)) {
+                best = shot;
+            }
+        }
+        if (!recognized && error != null) {
+            throw new CompletionException(error);
+        }
+        return best;
+    }
+
+    /**
+     * Оценка кадров с разделением диапазона пополам.
+     */
+    private static class ScoreTask extends RecursiveAction {
+
+        private final List<File> frames;
+        private final Shot[] shots;
+        private final int from;
+        private final int to;
+
+        ScoreTask(List<File> frames, Shot[] shots, int from, int to) {
+            this.frames = frames;
+            this.shots = shots;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                for (int i = from; i < to; i++) {
+                    shots[i] = score(frames.get(i));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ScoreTask(frames, shots, from, middle),
+                    new ScoreTask(frames, shots, middle, to));
+        }
+    }
+
+    /**
+     * Локальная оценка кадра.
+     * @param file кадр
+     * @return оценка (0, если кадр не удалось прочитать)
+     */
+    private static Shot score(File file) {
+        long start = Metrics.start();
+        Shot shot = new Shot(file);
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input == null
+                    ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                return shot;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                shot.width = reader.getWidth(0);
+                shot.height = reader.getHeight(0);
+
+                //прореживание при декодировании: для оценки хватает уменьшенного кадра
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(shot.width, shot.height) / ANALYSIS_SIZE;
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                BufferedImage image = reader.read(0, param);
+                double scaleX = (double) shot.width / image.getWidth();
+                double scaleY = (double) shot.height / image.getHeight();
+
+                shot.sharpness = ImageQuality.sharpness(image);
+                LocalFaceDetector.Analysis analysis
+                        = LocalFaceDetector.analyze(image, scaleX, scaleY);
+                if (!analysis.getFaces().isEmpty()) {
+                    DetectModel face = analysis.getFaces().get(0);
+                    shot.faceSize = Math.min(face.getWidth(), face.getHeight());
+                    shot.frontal = symmetry(image, (int) (face.getX() / scaleX),
+                            (int) (face.getY() / scaleY), (int) (face.getWidth() / scaleX),
+                            (int) (face.getHeight() / scaleY));
+                }
+                shot.score = shot.localScore(analysis.mayContainFace());
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            //нечитаемый кадр не выбирается
+            shot.score = 0;
+        } finally {
+            Metrics.record(Metrics.Stage.SHOT_SCORE, start);
+        }
+        return shot;
+    }
+
+    /**
+     * Горизонтальная симметрия яркости лица: у лица анфас левая и правая
+     * половины почти зеркальны, при повороте головы симметрия падает.
+     * @param image уменьшенный кадр
+     * @param x левый край лица
+     * @param y верхний край лица
+     * @param width ширина лица
+     * @param height высота лица
+     * @return от 0 (несимметрично) до 1 (зеркально)
+     */
+    private static double symmetry(BufferedImage image, int x, int y, int width, int height) {
+        x = Math.max(0, x);
+        y = Math.max(0, y);
+        width = Math.min(width, image.getWidth() - x);
+        height = Math.min(height, image.getHeight() - y);
+        if (width < 2 || height < 1) {
+            return 0;
+        }
+        int[] rgb = image.getRGB(x, y, width, height, null, 0, width);
+        int[] luma = new int[rgb.length];
+        long sum = 0;
+        for (int i = 0; i < rgb.length; i++) {
+            int r = (rgb[i] >> 16) & 0xFF;
+            int g = (rgb[i] >> 8) & 0xFF;
+            int b = rgb[i] & 0xFF;
+            luma[i] = (299 * r + 587 * g + 114 * b) / 1000;
+            sum += luma[i];
+        }
+        double mean = (double) sum / luma.length;
+        double difference = 0;
+        double spread = 0;
+        for (int row = 0; row < height; row++) {
+            int left = row * width;
+            int right = left + width - 1;
+            for (int i = 0; i < width / 2; i++) {
+                difference += Math.abs(luma[left + i] - luma[right - i]);
+                spread += Math.abs(luma[left + i] - mean) + Math.abs(luma[right - i] - mean);
+            }
+        }
+        //однородная область без деталей считается симметричной
+        return spread > 0 ? Math.max(0, 1 - difference / spread) : 1;
+    }
+
+    /**
+     * Кадр серии и его оценка.
+     */
+    public static class Shot {
+
+        private final File file;
+        private int width;
+        private int height;
+        private double sharpness;
+
+        /**
+         * Меньшая сторона лица, пикселей исходного кадра (0 - лицо не найдено).
+         */
+        private int faceSize;
+
+        /**
+         * Фронтальность лица, от 0 до 1.
+         */
+        private double frontal;
+
+        private double score;
+
+        /**
+         * Лица по ответу Face API (null, если кадр не распознавался).
+         */
+        private List<DetectModel> faces;
+
+        /**
+         * Самое крупное лицо по ответу Face API.
+         */
+        private DetectModel detect;
+
+        /**
+         * Ошибка распознавания кадра.
+         */
+        private Throwable error;
+
+        Shot(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Оценка по локальному анализу.
+         * @param mayContainFace false, если на цветном кадре нет лица
+         * @return оценка
+         */
+        private double localScore(boolean mayContainFace) {
+            if (!mayContainFace) {
+                return 0;
+            }
+            double sharp = sharpness / (sharpness + HALF_SHARPNESS);
+            if (faceSize == 0) {
+                //лицо локально не ищется, кадры сравниваются по резкости
+                return sharp * UNKNOWN_FACTOR * UNKNOWN_FACTOR;
+            }
+            return sharp * sizeFactor(faceSize) * frontal;
+        }
+
+        /**
+         * Уточнение оценки по ответу Face API: размер лица берется из ответа,
+         * фронтальность - по повороту головы, если он запрашивался.
+         * @param faces лица по ответу Face API
+         */
+        private void setFaces(List<DetectModel> faces) {
+            this.faces = faces;
+            this.detect = FacePolicy.LARGEST.select(faces, width, height);
+            if (detect == null) {
+                score = 0;
+                return;
+            }
+            double sharp = sharpness / (sharpness + HALF_SHARPNESS);
+            FaceAttributes attributes = detect.getAttributes();
+            if (attributes != null && attributes.getYaw() != null) {
+                frontal = Math.max(0, 1 - Math.abs(attributes.getYaw()) / MAX_YAW);
+            } else if (faceSize == 0) {
+                frontal = UNKNOWN_FACTOR;
+            }
+            faceSize = Math.min(detect.getWidth(), detect.getHeight());
+            score = sharp * sizeFactor(faceSize) * frontal;
+        }
+
+        /**
+         * Множитель размера лица: 0 для лица меньше минимального размера
+         * Face API на отправляемом фото.
+         * @param size меньшая сторона лица, пикселей исходного кадра
+         * @return от 0 до 1
+         */
+        private double sizeFactor(int size) {
+            ImagePreprocessor preprocessor = FaceAPI.getPreprocessor();
+            int maxSide = Math.max(width, height);
+            double uploadSize = preprocessor != null && maxSide > preprocessor.getMaxDimension()
+                    ? (double) size * preprocessor.getMaxDimension() / maxSide : size;
+            if (uploadSize < ImageQuality.MIN_FACE_SIZE) {
+                return 0;
+            }
+            return Math.min(1.0, (double) size / GOOD_FACE_SIZE);
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public double getSharpness() {
+            return sharpness;
+        }
+
+        public int getFaceSize() {
+            return faceSize;
+        }
+
+        public double getFrontal() {
+            return frontal;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        /**
+         * @return лица по ответу Face API или пустой список, если кадр не распознавался
+         */
+        public List<DetectModel> getFaces() {
+            return faces != null ? faces : Collections.<DetectModel>emptyList();
+        }
+
+        /**
+         * @return самое крупное лицо по ответу Face API или null
+         */
+        public DetectModel getDetect() {
+            return detect;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: оценка %.3f, резкость %.1f, лицо %d px, фронтальность %.2f",
+                    file.getName(), score, sharpness, faceSize, frontal);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package utils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+/**
+ * Фото, прочитанное из файла и декодированное один раз.
+ * <p>
+ * Содержимое файла нужно для ключа кэша распознавания и для отправки
+ * без изменений, декодированное изображение - для отображения, проверки
+ * качества, локального поиска лиц и уменьшения перед отправкой. Фото
+ * декодируется с прореживанием до размера, достаточного для всех этих
+ * задач (см. {@link #read(File, int)}), и больше не изменяется.
+ */
+public class DecodedImage {
+
+    private final File file;
+
+    /**
+     * Содержимое файла.
+     */
+    private final byte[] data;
+
+    /**
+     * Декодированное (возможно, прореженное) изображение.
+     */
+    private final BufferedImage image;
+
+    /**
+     * Размер исходного фото.
+     */
+    private final int width;
+    private final int height;
+
+    DecodedImage(File file, byte[] data, BufferedImage image, int width, int height) {
+        this.file = file;
+        this.data = data;
+        this.image = image;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Чтение и декодирование фото.
+     * @param file фото
+     * @param maxDimension размер большей стороны, до которого фото
+     * прореживается при декодировании (0 - без прореживания)
+     * @return DecodedImage
+     * @throws IOException в случае ошибки чтения или неизвестного формата
+     */
+    public static DecodedImage read(File file, int maxDimension) throws IOException {
+        long start = Metrics.start();
+        byte[] data = Files.readAllBytes(file.toPath());
+        try (ImageInputStream input = ImageIO.createImageInputStream(
+                new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = input == null
+                    ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Неизвестный формат фото: " + file.getName());
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+
+                //грубое уменьшение при декодировании, без чтения всех пикселей
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = maxDimension > 0
+                        ? Math.max(width, height) / maxDimension : 1;
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                BufferedImage image = reader.read(0, param);
+                Metrics.record(Metrics.Stage.IMAGE_DECODE, start);
+                return new DecodedImage(file, data, image, width, height);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Изображение, прореженное до размера большей стороны не меньше
+     * maxDimension (как при декодировании с прореживанием).
+     * @param maxDimension размер большей стороны для анализа
+     * @return новое изображение или {@link #getImage()}, если прореживать не нужно
+     */
+    public BufferedImage subsample(int maxDimension) {
+        int step = Math.max(image.getWidth(), image.getHeight()) / maxDimension;
+        if (step <= 1) {
+            return image;
+        }
+        int width = (image.getWidth() + step - 1) / step;
+        int height = (image.getHeight() + step - 1) / step;
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[image.getWidth()];
+        int[] sampled = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y * step, image.getWidth(), 1, row, 0, image.getWidth());
+            for (int x = 0; x < width; x++) {
+                sampled[x] = row[x * step];
+            }
+            result.setRGB(0, y, width, 1, sampled, 0, width);
+        }
+        return result;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return содержимое файла (не изменяется)
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return декодированное изображение (не изменяется)
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
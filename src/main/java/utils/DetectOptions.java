@@ -0,0 +1,247 @@
+package utils;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Параметры запроса /detect: какие данные о лице запрашивать у Face API.
+ * Объект неизменяемый, методы with* возвращают измененную копию.
+ * По умолчанию запрашиваются только faceId и прямоугольник лица.
+ */
+public final class DetectOptions {
+
+    /**
+     * Параметры по умолчанию: faceId без точек и атрибутов лица.
+     */
+    public static final DetectOptions DEFAULT = new DetectOptions(true, false,
+            Collections.<Attribute>emptySet(), null, null);
+
+    /**
+     * Атрибуты лица, которые умеет разбирать {@link models.FaceAttributes}.
+     */
+    public enum Attribute {
+        AGE("age"),
+        GENDER("gender"),
+        SMILE("smile"),
+        GLASSES("glasses"),
+        HEAD_POSE("headPose"),
+        BLUR("blur"),
+        EXPOSURE("exposure"),
+        NOISE("noise");
+
+        /**
+         * Название атрибута в Face API.
+         */
+        private final String apiName;
+
+        Attribute(String apiName) {
+            this.apiName = apiName;
+        }
+
+        public String getApiName() {
+            return apiName;
+        }
+    }
+
+    private final boolean faceId;
+    private final boolean landmarks;
+    private final Set<Attribute> attributes;
+
+    /**
+     * Модель распознавания (например, recognition_02), null - по умолчанию.
+     */
+    private final String recognitionModel;
+
+    /**
+     * Модель поиска лиц (например, detection_01), null - по умолчанию.
+     */
+    private final String detectionModel;
+
+    private DetectOptions(boolean faceId, boolean landmarks, Set<Attribute> attributes,
+                          String recognitionModel, String detectionModel) {
+        this.faceId = faceId;
+        this.landmarks = landmarks;
+        this.attributes = attributes;
+        this.recognitionModel = recognitionModel;
+        this.detectionModel = detectionModel;
+    }
+
+    /**
+     * @param faceId запрашивать faceId (нужен для сравнения лиц)
+     * @return измененная копия
+     */
+    public DetectOptions withFaceId(boolean faceId) {
+        return new DetectOptions(faceId, landmarks, attributes,
+                recognitionModel, detectionModel);
+    }
+
+    /**
+     * @param landmarks запрашивать точки лица
+     * @return измененная копия
+     */
+    public DetectOptions withLandmarks(boolean landmarks) {
+        return new DetectOptions(faceId, landmarks, attributes,
+                recognitionModel, detectionModel);
+    }
+
+    /**
+     * @param attributes запрашиваемые атрибуты лица (пусто - без атрибутов)
+     * @return измененная копия
+     */
+    public DetectOptions withAttributes(Attribute... attributes) {
+        Set<Attribute> set = EnumSet.noneOf(Attribute.class);
+        Collections.addAll(set, attributes);
+        return new DetectOptions(faceId, landmarks, Collections.unmodifiableSet(set),
+                recognitionModel, detectionModel);
+    }
+
+    /**
+     * @param recognitionModel модель распознавания или null для модели по умолчанию
+     * @return измененная копия
+     */
+    public DetectOptions withRecognitionModel(String recognitionModel) {
+        return new DetectOptions(faceId, landmarks, attributes,
+                recognitionModel, detectionModel);
+    }
+
+    /**
+     * @param detectionModel модель поиска лиц или null для модели по умолчанию
+     * @return измененная копия
+     */
+    public DetectOptions withDetectionModel(String detectionModel) {
+        return new DetectOptions(faceId, landmarks, attributes,
+                recognitionModel, detectionModel);
+    }
+
+    public boolean isFaceId() {
+        return faceId;
+    }
+
+    public boolean isLandmarks() {
+        return landmarks;
+    }
+
+    public Set<Attribute> getAttributes() {
+        return attributes;
+    }
+
+    public String getRecognitionModel() {
+        return recognitionModel;
+    }
+
+    public String getDetectionModel() {
+        return detectionModel;
+    }
+
+    /**
+     * Установка параметров запроса /detect.
+     * Необязательные параметры передаются, только если они отличаются
+     * от значений по умолчанию в Face API.
+     * @param builder URIBuilder запроса
+     */
+    void apply(URIBuilder builder) {
+        builder.setParameter("returnFaceId", Boolean.toString(faceId));
+        if (landmarks) {
+            builder.setParameter("returnFaceLandmarks", "true");
+        }
+        if (!attributes.isEmpty()) {
+            builder.setParameter("returnFaceAttributes", attributeNames());
+        }
+        if (recognitionModel != null) {
+            builder.setParameter("recognitionModel", recognitionModel);
+        }
+        if (detectionModel != null) {
+            builder.setParameter("detectionModel", detectionModel);
+        }
+    }
+
+    /**
+     * Суффикс ключа {@link DetectionCache}: результаты распознавания одного
+     * фото с разными параметрами хранятся отдельно.
+     * @return пустая строка для параметров по умолчанию
+     */
+    String cacheKey() {
+        StringBuilder key = new StringBuilder();
+        if (!faceId) {
+            key.append("|noFaceId");
+        }
+        if (landmarks) {
+            key.append("|landmarks");
+        }
+        if (!attributes.isEmpty()) {
+            key.append("|attributes=").append(attributeNames());
+        }
+        if (recognitionModel != null) {
+            key.append("|recognitionModel=").append(recognitionModel);
+        }
+        if (detectionModel != null) {
+            key.append("|detectionModel=").append(detectionModel);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Разбор параметров из строки запроса /detect (обратно {@link #apply}).
+     * Неизвестные атрибуты и параметры пропускаются.
+     * @param query строка запроса (может быть null)
+     * @return параметры
+     */
+    public static DetectOptions fromQuery(String query) {
+        DetectOptions options = DEFAULT;
+        if (query == null || query.isEmpty()) {
+            return options;
+        }
+        for (NameValuePair param : URLEncodedUtils.parse(query, StandardCharsets.UTF_8)) {
+            String value = param.getValue() != null ? param.getValue() : "";
+            switch (param.getName()) {
+                case "returnFaceId":
+                    options = options.withFaceId(Boolean.parseBoolean(value));
+                    break;
+                case "returnFaceLandmarks":
+                    options = options.withLandmarks(Boolean.parseBoolean(value));
+                    break;
+                case "returnFaceAttributes":
+                    Set<Attribute> set = EnumSet.noneOf(Attribute.class);
+                    for (String name : value.split(",")) {
+                        for (Attribute attribute : Attribute.values()) {
+                            if (attribute.getApiName().equals(name.trim())) {
+                                set.add(attribute);
+                            }
+                        }
+                    }
+                    options = options.withAttributes(set.toArray(new Attribute[0]));
+                    break;
+                case "recognitionModel":
+                    options = options.withRecognitionModel(value);
+                    break;
+                case "detectionModel":
+                    options = options.withDetectionModel(value);
+                    break;
+                default:
+                    //остальные параметры Face API не поддерживаются
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Названия атрибутов через запятую, в порядке объявления.
+     * @return строка для параметра returnFaceAttributes
+     */
+    private String attributeNames() {
+        StringBuilder names = new StringBuilder();
+        for (Attribute attribute : attributes) {
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(attribute.getApiName());
+        }
+        return names.toString();
+    }
+}
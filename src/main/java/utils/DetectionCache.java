@@ -0,0 +1,397 @@
+package utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import models.DetectModel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш результатов распознавания лиц по содержимому фото и сервису,
+ * выдавшему faceId.
+ * Записи хранятся, пока действителен faceId, самые старые по обращению
+ * записи вытесняются при превышении размера.
+ * Файл кэша перезаписывается в фоне не чаще раза в {@link #SAVE_DELAY} мс
+ * и при {@link #flush()}, вызывающий поток на запись не задерживается.
+ */
+public class DetectionCache {
+
+    /**
+     * Размер буфера для чтения фото при подсчете хэша.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Задержка записи файла после изменения, мс. Изменения за это время
+     * сохраняются одной записью.
+     */
+    private static final long SAVE_DELAY = 2000;
+
+    /**
+     * Максимальное число записей.
+     */
+    private final int maxSize;
+
+    /**
+     * Файл для сохранения кэша между запусками (null - без сохранения).
+     */
+    private final File persistFile;
+
+    /**
+     * Записи кэша в порядке обращения.
+     */
+    private final LinkedHashMap<String, List<DetectModel>> entries;
+
+    /**
+     * Поток фоновой записи файла (null - без сохранения).
+     */
+    private final ScheduledExecutorService saver;
+
+    /**
+     * Записи изменены после последней записи файла.
+     */
+    private boolean dirty;
+
+    /**
+     * Запись файла уже запланирована.
+     */
+    private boolean saveScheduled;
+
+    /**
+     * Блокировка записи файла: фоновая запись и {@link #flush()}
+     * не пишут временный файл одновременно.
+     */
+    private final Object saveLock = new Object();
+
+    /**
+     * Число найденных в кэше результатов.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Число результатов, которых не было в кэше.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Кэш в памяти.
+     * @param maxSize максимальное число записей
+     */
+    public DetectionCache(int maxSize) {
+        this(maxSize, null);
+    }
+
+    /**
+     * Кэш с сохранением в файл.
+     * Действительные записи из файла загружаются сразу.
+     * @param maxSize максимальное число записей
+     * @param persistFile файл для сохранения кэша (null - без сохранения)
+     */
+    public DetectionCache(int maxSize, File persistFile) {
+        this.maxSize = maxSize;
+        this.persistFile = persistFile;
+        this.entries = new LinkedHashMap<String, List<DetectModel>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<DetectModel>> eldest) {
+                return size() > DetectionCache.this.maxSize;
+            }
+        };
+        if (persistFile != null) {
+            this.saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "detection-cache-save");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.saver = null;
+        }
+        load();
+    }
+
+    /**
+     * Ключ фото по содержимому: SHA-256 в шестнадцатеричном виде.
+     * @param file фото
+     * @return ключ
+     * @throws IOException в случае ошибки чтения
+     */
+    public static String key(File file) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Ключ фото в памяти, совпадает с {@link #key(File)}
+     * для файла с тем же содержимым.
+     * @param data фото
+     * @return ключ
+     */
+    public static String key(byte[] data) {
+        return hex(sha256().digest(data));
+    }
+
+    /**
+     * Ключ кэша по сервису, содержимому фото и запрошенным данным о лице.
+     * faceId действителен только в выдавшем его сервисе, поэтому одно фото,
+     * распознанное по разным базовым URL, хранится отдельно.
+     * @param baseURL базовый URL запроса
+     * @param file фото
+     * @param options запрашиваемые данные о лице
+     * @return ключ
+     * @throws IOException в случае ошибки чтения
+     */
+    public static String key(String baseURL, File file, DetectOptions options)
+            throws IOException {
+        return key(file) + options.cacheKey() + "@" + baseURL;
+    }
+
+    /**
+     * Ключ кэша для фото в памяти, совпадает с {@link #key(String, File, DetectOptions)}
+     * для файла с тем же содержимым.
+     * @param baseURL базовый URL запроса
+     * @param data фото
+     * @param options запрашиваемые данные о лице
+     * @return ключ
+     */
+    public static String key(String baseURL, byte[] data, DetectOptions options) {
+        return key(data) + options.cacheKey() + "@" + baseURL;
+    }
+
+    /**
+     * Получение результата распознавания.
+     * @param key ключ фото
+     * @return копии найденных лиц или null, если записи нет или faceId истек
+     */
+    public synchronized List<DetectModel> get(String key) {
+        List<DetectModel> faces = entries.get(key);
+        if (faces != null && isExpired(faces)) {
+            entries.remove(key);
+            faces = null;
+        }
+        if (faces == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return copy(faces);
+    }
+
+    /**
+     * Получение результата распознавания фото из файла.
+     * Фото найденных лиц указывается заново: запись могла быть сделана для
+     * другого файла с тем же содержимым или загружена из файла кэша, где
+     * фото не сохраняется.
+     * @param key ключ фото
+     * @param source фото, по которому получен ключ
+     * @return копии найденных лиц или null, если записи нет или faceId истек
+     */
+    public List<DetectModel> get(String key, File source) {
+        List<DetectModel> faces = get(key);
+        if (faces != null) {
+            for (DetectModel face : faces) {
+                face.setSource(source);
+            }
+        }
+        return faces;
+    }
+
+    /**
+     * Сохранение результата распознавания.
+     * Фото без лиц не сохраняются.
+     * @param key ключ фото
+     * @param faces найденные лица
+     */
+    public synchronized void put(String key, List<DetectModel> faces) {
+        if (faces == null || faces.isEmpty() || isExpired(faces)) {
+            return;
+        }
+        entries.put(key, copy(faces));
+        scheduleSave();
+    }
+
+    /**
+     * Удаление всех записей.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        scheduleSave();
+    }
+
+    /**
+     * Немедленная запись несохраненных изменений, например при завершении.
+     */
+    public void flush() {
+        //снимок берется под блокировкой записи, чтобы более старый снимок
+        //не перезаписал более новый
+        synchronized (saveLock) {
+            Map<String, List<DetectModel>> snapshot;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                dirty = false;
+                //записи не изменяются после добавления, копии карты достаточно
+                snapshot = new LinkedHashMap<>(entries);
+            }
+            save(snapshot);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Проверка, что faceId лиц истек. Все лица одного фото получены
+     * одним запросом, поэтому проверяется первое.
+     * @param faces найденные лица
+     * @return true, если записью нельзя пользоваться
+     */
+    private static boolean isExpired(List<DetectModel> faces) {
+        return faces.get(0).isExpired();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //SHA-256 есть в любой Java SE
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static List<DetectModel> copy(List<DetectModel> faces) {
+        List<DetectModel> copy = new ArrayList<>(faces.size());
+        for (DetectModel face : faces) {
+            copy.add(new DetectModel(face));
+        }
+        return copy;
+    }
+
+    /**
+     * Загрузка действительных записей из файла.
+     * Записи прежнего формата (одно лицо на фото) читаются как список из одного лица.
+     */
+    private void load() {
+        if (persistFile == null || !persistFile.isFile()) {
+            return;
+        }
+        try (Reader reader = new InputStreamReader(
+                new FileInputStream(persistFile), StandardCharsets.UTF_8)) {
+            JsonElement saved = new JsonParser().parse(reader);
+            if (saved == null || !saved.isJsonObject()) {
+                return;
+            }
+            Gson gson = new Gson();
+            Type listType = new TypeToken<List<DetectModel>>() {}.getType();
+            for (Map.Entry<String, JsonElement> entry
+                    : saved.getAsJsonObject().entrySet()) {
+                List<DetectModel> faces = entry.getValue().isJsonArray()
+                        ? gson.fromJson(entry.getValue(), listType)
+                        : Collections.singletonList(
+                                gson.fromJson(entry.getValue(), DetectModel.class));
+                if (faces != null && !faces.isEmpty() && !isExpired(faces)) {
+                    entries.put(entry.getKey(), new ArrayList<>(faces));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            //поврежденный кэш не мешает работе, он будет перезаписан
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Планирование фоновой записи файла после изменения записей.
+     */
+    private synchronized void scheduleSave() {
+        if (saver == null) {
+            return;
+        }
+        dirty = true;
+        if (!saveScheduled) {
+            saveScheduled = true;
+            saver.schedule(() -> {
+                synchronized (this) {
+                    saveScheduled = false;
+                }
+                flush();
+            }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Сохранение записей в файл через временный файл.
+     * @param snapshot копия записей
+     */
+    private void save(Map<String, List<DetectModel>> snapshot) {
+        try {
+            File dir = persistFile.getAbsoluteFile().getParentFile();
+            if (dir != null) {
+                Files.createDirectories(dir.toPath());
+            }
+            File tmp = new File(dir, persistFile.getName() + ".tmp");
+            try (Writer writer = new OutputStreamWriter(
+                    Files.newOutputStream(tmp.toPath()), StandardCharsets.UTF_8)) {
+                new Gson().toJson(snapshot, writer);
+            }
+            //файл заменяется целиком: прерванная запись не портит прежний кэш
+            try {
+                Files.move(tmp.toPath(), persistFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), persistFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Региональная точка доступа Face API со своим ключом подписки
+ * и статистикой запросов к ней.
+ * Статистику обновляет {@link EndpointPool}.
+ */
+public class Endpoint {
+
+    /**
+     * Вес нового значения в сглаженной задержке.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * Число замеров, после которого гистограмма задержек начинается заново,
+     * чтобы перцентили отражали текущее состояние региона.
+     */
+    private static final int LATENCY_WINDOW = 1000;
+
+    private final String region;
+    private final String baseURL;
+
+    /**
+     * Ключ подписки (null - ключ по умолчанию).
+     */
+    private final String subscriptionKey;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Сглаженная задержка, мс (0 - замеров еще нет).
+     */
+    private double smoothedMillis;
+
+    /**
+     * Число ошибок подряд.
+     */
+    private int consecutiveFailures;
+
+    private volatile boolean healthy = true;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param region название региона
+     * @param baseURL базовый URL для запросов
+     * @param subscriptionKey ключ подписки (null - ключ по умолчанию)
+     */
+    public Endpoint(String region, String baseURL, String subscriptionKey) {
+        this.region = region;
+        this.baseURL = baseURL;
+        this.subscriptionKey = subscriptionKey;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    public String getBaseURL() {
+        return baseURL;
+    }
+
+    public String getSubscriptionKey() {
+        return subscriptionKey;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    /**
+     * Возврат региона в работу после успешной проверки.
+     */
+    synchronized void readmit() {
+        consecutiveFailures = 0;
+        healthy = true;
+    }
+
+    public synchronized double getSmoothedMillis() {
+        return smoothedMillis;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Перцентиль задержки в текущем окне замеров.
+     * @param percentile от 0 до 100
+     * @return мс (0, если замеров нет)
+     */
+    public double getPercentileMillis(double percentile) {
+        return latency.getPercentileMillis(percentile);
+    }
+
+    /**
+     * @return число замеров в текущем окне
+     */
+    public long getSamples() {
+        return latency.getCount();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Учет ответа региона.
+     * @param nanos длительность запроса, нс
+     */
+    synchronized void recordSuccess(long nanos) {
+        requests.incrementAndGet();
+        consecutiveFailures = 0;
+        if (latency.getCount() >= LATENCY_WINDOW) {
+            latency.reset();
+        }
+        latency.record(nanos);
+        double millis = nanos / 1e6;
+        smoothedMillis = smoothedMillis == 0 ? millis
+                : smoothedMillis + SMOOTHING * (millis - smoothedMillis);
+    }
+
+    /**
+     * Учет ошибки региона (нет соединения, таймаут, 5xx).
+     * @return число ошибок подряд
+     */
+    synchronized int recordFailure() {
+        requests.incrementAndGet();
+        failures.incrementAndGet();
+        return ++consecutiveFailures;
+    }
+
+    @Override
+    public String toString() {
+        return region + " (" + baseURL + ")";
+    }
+}
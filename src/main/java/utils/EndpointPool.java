@@ -0,0 +1,461 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Набор региональных точек доступа Face API.
+ * <p>
+ * Запрос отправляется в самый быстрый по сглаженной задержке исправный
+ * регион. Текущий регион меняется, только если другой заметно быстрее,
+ * чтобы лица одной сессии по возможности получали faceId в одном регионе.
+ * Если ответ не получен за p95 задержки региона, тот же запрос отправляется
+ * во второй регион (не больше {@link #HEDGE_BUDGET} запросов), используется
+ * первый ответ. При ошибке соединения или 5xx запрос сразу повторяется
+ * в другом регионе.
+ * <p>
+ * Регион выводится из работы после {@link #FAILURES_TO_EJECT} ошибок подряд
+ * или неудачной проверки и возвращается после успешной проверки
+ * ({@link #startHealthChecks}).
+ */
+public class EndpointPool implements Closeable {
+
+    /**
+     * Число ошибок подряд, после которого регион выводится из работы.
+     */
+    static final int FAILURES_TO_EJECT = 3;
+
+    /**
+     * Перцентиль задержки, после которого отправляется повторный запрос.
+     */
+    private static final double HEDGE_PERCENTILE = 95;
+
+    /**
+     * Минимальное число замеров для расчета задержки повторного запроса.
+     */
+    private static final int MIN_HEDGE_SAMPLES = 20;
+
+    /**
+     * Задержка повторного запроса, пока замеров мало, мс.
+     */
+    private static final long DEFAULT_HEDGE_DELAY = 2_000;
+
+    /**
+     * Минимальная задержка повторного запроса, мс.
+     */
+    private static final long MIN_HEDGE_DELAY = 50;
+
+    /**
+     * Доля запросов, которые можно продублировать.
+     */
+    private static final double HEDGE_BUDGET = 0.1;
+
+    /**
+     * Регион меняется, если другой быстрее текущего хотя бы в 1 / SWITCH_RATIO раз.
+     */
+    private static final double SWITCH_RATIO = 0.8;
+
+    private final List<Endpoint> endpoints;
+
+    /**
+     * Текущий регион для новых запросов.
+     */
+    private Endpoint preferred;
+
+    /**
+     * Таймер повторных запросов и проверок.
+     */
+    private final ScheduledExecutorService scheduler
+            = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "face-api-endpoints");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+    private final AtomicLong ejections = new AtomicLong();
+
+    /**
+     * @param endpoints регионы, первый - основной
+     */
+    public EndpointPool(List<Endpoint> endpoints) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("Не задано ни одного региона.");
+        }
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+    }
+
+    /**
+     * Разбор списка регионов вида
+     * {@code регион=URL|ключ,регион=URL|ключ}. Ключ можно не указывать,
+     * тогда используется ключ по умолчанию.
+     * @param spec список регионов
+     * @return набор регионов
+     */
+    public static EndpointPool parse(String spec) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int eq = item.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Неверный регион: " + item);
+            }
+            String region = item.substring(0, eq);
+            String url = item.substring(eq + 1);
+            String key = null;
+            int bar = url.indexOf('|');
+            if (bar >= 0) {
+                key = url.substring(bar + 1);
+                url = url.substring(0, bar);
+            }
+            endpoints.add(new Endpoint(region, url, key));
+        }
+        return new EndpointPool(endpoints);
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return основной регион (первый в списке)
+     */
+    public Endpoint getPrimary() {
+        return endpoints.get(0);
+    }
+
+    /**
+     * Регион по базовому URL.
+     * @param baseURL базовый URL
+     * @return регион или null, если его нет в наборе
+     */
+    public Endpoint find(String baseURL) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.getBaseURL().equals(baseURL)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Выбор региона для запроса.
+     * @param exclude регион, который не подходит (null - любой)
+     * @return самый быстрый исправный регион; если исправных нет -
+     * регион с наименьшим числом ошибок подряд; null, если кроме exclude
+     * регионов нет
+     */
+    public synchronized Endpoint select(Endpoint exclude) {
+        Endpoint best = null;
+        Endpoint fallback = null;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint == exclude) {
+                continue;
+            }
+            if (fallback == null || endpoint.getConsecutiveFailures()
+                    < fallback.getConsecutiveFailures()) {
+                fallback = endpoint;
+            }
+            if (endpoint.isHealthy() && (best == null
+                    || endpoint.getSmoothedMillis() < best.getSmoothedMillis())) {
+                best = endpoint;
+            }
+        }
+        if (exclude != null) {
+            return best != null ? best : fallback;
+        }
+        if (best == null) {
+            return fallback;
+        }
+        //текущий регион сохраняется, если новый ненамного быстрее
+        //или его задержка еще не измерена
+        if (preferred != null && preferred != best && preferred.isHealthy()
+                && (best.getSamples() == 0
+                || best.getSmoothedMillis() > preferred.getSmoothedMillis() * SWITCH_RATIO)) {
+            return preferred;
+        }
+        preferred = best;
+        return best;
+    }
+
+    /**
+     * Задержка, после которой отправляется повторный запрос.
+     * @param endpoint регион первого запроса
+     * @return мс
+     */
+    public long hedgeDelayMillis(Endpoint endpoint) {
+        if (endpoint.getSamples() < MIN_HEDGE_SAMPLES) {
+            return DEFAULT_HEDGE_DELAY;
+        }
+        return Math.max(MIN_HEDGE_DELAY,
+                (long) Math.ceil(endpoint.getPercentileMillis(HEDGE_PERCENTILE)));
+    }
+
+    /**
+     * Выполнение запроса в лучшем регионе с повторным запросом в другом
+     * регионе при долгом ответе и переходом в другой регион при ошибке.
+     * @param attempt отправка запроса в регион (для каждой попытки - новый запрос)
+     * @param <T> тип результата
+     * @return future с первым успешным результатом, отмена future
+     * отменяет все попытки
+     */
+    public <T> CompletableFuture<T> execute(Function<Endpoint, CompletableFuture<T>> attempt) {
+        return new Call<>(attempt, false).start(select(null));
+    }
+
+    /**
+     * Выполнение запроса в заданном регионе, например сравнение faceId,
+     * которые действительны только там. Повторный запрос при долгом ответе
+     * отправляется в тот же регион.
+     * @param endpoint регион
+     * @param attempt отправка запроса в регион
+     * @param <T> тип результата
+     * @return future с первым успешным результатом
+     */
+    public <T> CompletableFuture<T> executeIn(Endpoint endpoint,
+                                              Function<Endpoint, CompletableFuture<T>> attempt) {
+        return new Call<>(attempt, true).start(endpoint);
+    }
+
+    /**
+     * Запуск периодической проверки регионов. Исправный регион с неудачной
+     * проверкой выводится из работы, выведенный - возвращается после удачной.
+     * @param check проверка региона
+     * @param periodMillis период проверки, мс
+     */
+    public void startHealthChecks(HealthCheck check, long periodMillis) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (Endpoint endpoint : endpoints) {
+                boolean ok;
+                try {
+                    ok = check.isHealthy(endpoint);
+                } catch (RuntimeException e) {
+                    ok = false;
+                }
+                if (ok && !endpoint.isHealthy()) {
+                    endpoint.readmit();
+                } else if (!ok && endpoint.isHealthy()) {
+                    eject(endpoint);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void eject(Endpoint endpoint) {
+        if (endpoint.isHealthy()) {
+            endpoint.setHealthy(false);
+            ejections.incrementAndGet();
+        }
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    public long getEjections() {
+        return ejections.get();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Ошибка, после которой запрос стоит повторить в другом регионе:
+     * нет соединения, таймаут, 5xx или 429 после всех повторов.
+     * Ошибки запроса (неверное фото, неизвестный faceId) регион не меняют.
+     * @param error ошибка попытки
+     * @return true, если ошибка региона
+     */
+    static boolean isEndpointFailure(Throwable error) {
+        if (error instanceof FaceApiException) {
+            int status = ((FaceApiException) error).getStatusCode();
+            return status >= 500 || status == 429;
+        }
+        return error instanceof IOException;
+    }
+
+    /**
+     * Проверка региона.
+     */
+    @FunctionalInterface
+    public interface HealthCheck {
+        boolean isHealthy(Endpoint endpoint);
+    }
+
+    /**
+     * Выполнение одного запроса: основная попытка и не больше одной
+     * дополнительной (повтор при долгом ответе или после ошибки).
+     * @param <T> тип результата
+     */
+    private class Call<T> {
+
+        private final Function<Endpoint, CompletableFuture<T>> attempt;
+
+        /**
+         * Дополнительная попытка - в тот же регион.
+         */
+        private final boolean pinned;
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final List<CompletableFuture<T>> attempts = new ArrayList<>();
+
+        private Endpoint first;
+        private boolean extraStarted;
+
+        /**
+         * Попытки в работе, включая дополнительную, для которой еще выбирается регион.
+         */
+        private int running;
+
+        /**
+         * Ошибка последней неудачной попытки.
+         */
+        private Throwable lastError;
+
+        Call(Function<Endpoint, CompletableFuture<T>> attempt, boolean pinned) {
+            this.attempt = attempt;
+            this.pinned = pinned;
+            result.whenComplete((value, error) -> {
+                List<CompletableFuture<T>> started;
+                synchronized (this) {
+                    started = new ArrayList<>(attempts);
+                }
+                //ответ получен или запрос отменен: остальные попытки не нужны
+                for (CompletableFuture<T> future : started) {
+                    future.cancel(true);
+                }
+            });
+        }
+
+        CompletableFuture<T> start(Endpoint endpoint) {
+            calls.incrementAndGet();
+            first = endpoint;
+            synchronized (this) {
+                running++;
+            }
+            launch(endpoint);
+            long delay = hedgeDelayMillis(endpoint);
+            scheduler.schedule(() -> {
+                //ограничение доли дублируемых запросов
+                if (hedges.get() < calls.get() * HEDGE_BUDGET && startExtra()) {
+                    hedges.incrementAndGet();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            return result;
+        }
+
+        /**
+         * Запуск дополнительной попытки.
+         * @return true, если попытка запущена
+         */
+        private boolean startExtra() {
+            synchronized (this) {
+                if (extraStarted || result.isDone()) {
+                    return false;
+                }
+                extraStarted = true;
+                //место занимается сразу: ошибка первой попытки до запуска
+                //дополнительной не должна завершить запрос
+                running++;
+            }
+            Endpoint endpoint = pinned ? first : select(first);
+            if (endpoint == null) {
+                Throwable error;
+                synchronized (this) {
+                    running--;
+                    error = running == 0 ? lastError : null;
+                }
+                if (error != null) {
+                    result.completeExceptionally(error);
+                }
+                return false;
+            }
+            launch(endpoint);
+            return true;
+        }
+
+        /**
+         * Запуск попытки, место для которой уже занято в running.
+         * @param endpoint регион
+         */
+        private void launch(Endpoint endpoint) {
+            long start = System.nanoTime();
+            CompletableFuture<T> future;
+            try {
+                future = attempt.apply(endpoint);
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            synchronized (this) {
+                attempts.add(future);
+            }
+            future.whenComplete((value, error) -> complete(endpoint, start, value, error));
+        }
+
+        private void complete(Endpoint endpoint, long start, T value, Throwable error) {
+            synchronized (this) {
+                running--;
+            }
+            if (error == null) {
+                endpoint.recordSuccess(System.nanoTime() - start);
+                result.complete(value);
+                return;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error;
+            if (cause instanceof CancellationException || result.isDone()) {
+                return;
+            }
+            if (!isEndpointFailure(cause)) {
+                //регион ответил, ошибка в самом запросе
+                endpoint.recordSuccess(System.nanoTime() - start);
+                result.completeExceptionally(cause);
+                return;
+            }
+            if (endpoint.recordFailure() >= FAILURES_TO_EJECT) {
+                eject(endpoint);
+            }
+            synchronized (this) {
+                lastError = cause;
+            }
+            if (!pinned && startExtra()) {
+                failovers.incrementAndGet();
+                return;
+            }
+            boolean last;
+            synchronized (this) {
+                last = running == 0;
+            }
+            if (last) {
+                result.completeExceptionally(cause);
+            }
+        }
+    }
+}
@@ -1,34 +1,72 @@
 package utils;
 
 import com.google.gson.*;
-import io.restassured.builder.MultiPartSpecBuilder;
-import io.restassured.builder.RequestSpecBuilder;
-import io.restassured.http.ContentType;
-import io.restassured.response.Response;
-import io.restassured.specification.RequestSpecification;
+import com.google.gson.stream.JsonReader;
 import models.DetectModel;
 import models.VerifyModel;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.EntityUtils;
 
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Base64;
-import java.util.HashMap;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Класс для распознавания/сравнения лиц. Используется Microsoft Cognitive Services Face API.
  */
 public class FaceAPI {
 
+    /**
+     * Базовый URL для запросов к Face API по умолчанию.
+     */
+    public static final String DEFAULT_BASE_URL =
+            "https://westcentralus.api.cognitive.microsoft.com/face/v1.0";
+
     /**
      * Ключ подписки.
      */
@@ -46,7 +84,324 @@ public class FaceAPI {
     private static final String VERIFY_URL = "/verify";
 
     /**
-     * Получение информации о лице на фото.
+     * URL проверки доступности региона (короткий список групп).
+     */
+    private static final String PROBE_URL = "/persongroups?top=1";
+
+    /**
+     * Период проверки регионов, мс.
+     */
+    private static final long HEALTH_CHECK_PERIOD = 10_000;
+
+    /**
+     * Таймаут проверки региона, мс.
+     */
+    private static final int PROBE_TIMEOUT = 3_000;
+
+    /**
+     * Минимальное перекрытие прямоугольников, при котором лицо, найденное
+     * повторно в другом регионе, считается тем же лицом.
+     */
+    private static final double MIN_FACE_OVERLAP = 0.3;
+
+    /**
+     * Число потоков для асинхронных запросов.
+     */
+    private static final int ASYNC_THREADS = 4;
+
+    /**
+     * Максимальное число запросов, ожидающих свободный поток.
+     * Запрос сверх очереди завершается ошибкой (см. {@link #submit}).
+     */
+    private static final int ASYNC_QUEUE_SIZE = 64;
+
+    /**
+     * Максимальное число повторов запроса при ответе 429 или 503.
+     */
+    private static final int MAX_RETRIES = 5;
+
+    /**
+     * Начальная задержка перед повтором, мс.
+     */
+    private static final long BASE_BACKOFF = 500;
+
+    /**
+     * Максимальная задержка перед повтором без учета Retry-After, мс.
+     */
+    private static final long MAX_BACKOFF = 30_000;
+
+    /**
+     * Ограниченный пул потоков для асинхронных запросов.
+     */
+    private static final ExecutorService EXECUTOR = createExecutor();
+
+    /**
+     * Таймер повторов и ожидания лимита частоты для неблокирующих запросов.
+     */
+    private static final ScheduledExecutorService SCHEDULER
+            = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "face-api-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * HTTP клиент, неблокирующий транспорт (без него асинхронные запросы
+     * выполняются в пуле {@link #EXECUTOR}) и набор регионов.
+     */
+    private static final FaceApiConnections CONNECTIONS = new FaceApiConnections();
+
+    /**
+     * Подготовка фото перед отправкой (null - отправка без изменений).
+     */
+    private static volatile ImagePreprocessor preprocessor
+            = new ImagePreprocessor();
+
+    /**
+     * Проверка качества фото перед отправкой (null - без проверки).
+     * По умолчанию выключена: порог резкости не откалиброван на настоящих фото.
+     */
+    private static volatile ImageQuality qualityGate;
+
+    /**
+     * Кэш результатов распознавания (null - без кэша).
+     */
+    private static volatile DetectionCache detectionCache
+            = new DetectionCache(256);
+
+    /**
+     * Кэш результатов сравнения (null - без кэша).
+     */
+    private static volatile VerifyCache verifyCache = new VerifyCache(256);
+
+    /**
+     * Ограничение частоты запросов (null - без ограничения).
+     * По умолчанию 10 запросов в секунду, как у подписки S0.
+     */
+    private static volatile RateLimiter rateLimiter = new RateLimiter(10, 10);
+
+    /**
+     * Адаптивное ограничение числа одновременных запросов (null - без ограничения).
+     */
+    private static volatile AdaptiveLimiter concurrencyLimiter
+            = new AdaptiveLimiter(1, 4, 32);
+
+    /**
+     * Число повторов запросов после ответов 429 и 503.
+     */
+    private static final AtomicLong retries = new AtomicLong();
+
+    /**
+     * Общее время ожидания повторов, нс.
+     */
+    private static final AtomicLong retryWaitNanos = new AtomicLong();
+
+    static {
+        configure(20, 10, 5_000, 30_000);
+        Runtime.getRuntime().addShutdownHook(
+                new Thread(FaceAPI::shutdown, "face-api-shutdown"));
+    }
+
+    /**
+     * Настройка общего HTTP клиента. Ранее созданный клиент закрывается,
+     * неблокирующий транспорт и набор регионов не меняются.
+     * @param maxTotal максимальное число соединений в пуле
+     * @param maxPerRoute максимальное число соединений на один хост
+     * @param connectTimeout таймаут установки соединения, мс
+     * @param socketTimeout таймаут ожидания данных, мс
+     */
+    public static void configure(int maxTotal, int maxPerRoute, int connectTimeout,
+                                 int socketTimeout) {
+        CONNECTIONS.configureHttpClient(maxTotal, maxPerRoute, connectTimeout, socketTimeout);
+    }
+
+    /**
+     * Установка своего HTTP клиента для блокирующих запросов вместо общего,
+     * например в тестах. Клиент не закрывается Face API: его закрывает
+     * вызывающий код после возврата общего клиента ({@code setHttpClient(null)}).
+     * @param client клиент или null для общего клиента
+     */
+    public static void setHttpClient(CloseableHttpClient client) {
+        CONNECTIONS.setHttpClient(client);
+    }
+
+    /**
+     * Установка неблокирующего транспорта для всех запросов.
+     * Асинхронные методы не занимают поток на время запроса, синхронные
+     * ожидают ответа в вызывающем потоке. Адаптивное ограничение
+     * ({@link #setConcurrencyLimiter}) при этом не применяется: число
+     * одновременных запросов ограничивает транспорт.
+     * Ранее установленный транспорт закрывается.
+     * @param httpTransport транспорт или null для блокирующего HTTP клиента
+     */
+    public static void setTransport(HttpTransport httpTransport) {
+        CONNECTIONS.setTransport(httpTransport);
+    }
+
+    public static HttpTransport getTransport() {
+        return CONNECTIONS.getTransport();
+    }
+
+    /**
+     * Установка набора регионов. Запросы на распознавание с базовым URL
+     * одного из регионов отправляются в самый быстрый исправный регион,
+     * сравнение - в регион, выдавший faceId. Запускается периодическая
+     * проверка регионов. Ранее установленный набор закрывается.
+     * @param pool набор регионов или null для запросов по переданному URL
+     */
+    public static void setEndpoints(EndpointPool pool) {
+        if (CONNECTIONS.setEndpoints(pool)) {
+            pool.startHealthChecks(FaceAPI::probe, HEALTH_CHECK_PERIOD);
+            Metrics.gauge("endpointHedges", pool::getHedges);
+            Metrics.gauge("endpointFailovers", pool::getFailovers);
+            Metrics.gauge("endpointEjections", pool::getEjections);
+        }
+    }
+
+    public static EndpointPool getEndpoints() {
+        return CONNECTIONS.getEndpoints();
+    }
+
+    /**
+     * Базовый URL для запросов без явно заданного адреса: основной регион
+     * текущего набора ({@link #setEndpoints}), запросы к нему распределяются
+     * по регионам, или {@link #DEFAULT_BASE_URL}. Вызывается при каждом
+     * запросе, поэтому учитывает набор, установленный позже.
+     * @return базовый URL
+     */
+    public static String getBaseURL() {
+        EndpointPool pool = CONNECTIONS.getEndpoints();
+        return pool != null ? pool.getPrimary().getBaseURL() : DEFAULT_BASE_URL;
+    }
+
+    /**
+     * Установка подготовки фото перед отправкой.
+     * @param imagePreprocessor подготовка фото или null для отправки без изменений
+     */
+    public static void setPreprocessor(ImagePreprocessor imagePreprocessor) {
+        preprocessor = imagePreprocessor;
+    }
+
+    public static ImagePreprocessor getPreprocessor() {
+        return preprocessor;
+    }
+
+    /**
+     * Установка проверки качества фото перед отправкой. Фото, которое
+     * нельзя исправить, не отправляется: запрос завершается
+     * с {@link ImageQualityException}. Исправление яркости и размера
+     * выполняет подготовка фото, без нее такие фото тоже не отправляются.
+     * @param gate проверка или null для отключения
+     */
+    public static void setQualityGate(ImageQuality gate) {
+        qualityGate = gate;
+    }
+
+    public static ImageQuality getQualityGate() {
+        return qualityGate;
+    }
+
+    /**
+     * Установка кэша результатов распознавания.
+     * @param cache кэш или null для отключения
+     */
+    public static void setDetectionCache(DetectionCache cache) {
+        detectionCache = cache;
+    }
+
+    public static DetectionCache getDetectionCache() {
+        return detectionCache;
+    }
+
+    /**
+     * Установка кэша результатов сравнения.
+     * @param cache кэш или null для отключения
+     */
+    public static void setVerifyCache(VerifyCache cache) {
+        verifyCache = cache;
+    }
+
+    public static VerifyCache getVerifyCache() {
+        return verifyCache;
+    }
+
+    /**
+     * Установка ограничения частоты запросов под тариф подписки.
+     * @param limiter ограничение или null для отключения
+     */
+    public static void setRateLimiter(RateLimiter limiter) {
+        rateLimiter = limiter;
+    }
+
+    public static RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Установка адаптивного ограничения числа одновременных запросов.
+     * @param limiter ограничение или null для отключения
+     */
+    public static void setConcurrencyLimiter(AdaptiveLimiter limiter) {
+        concurrencyLimiter = limiter;
+    }
+
+    public static AdaptiveLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Число повторов запросов после ответов 429 и 503.
+     * @return число повторов
+     */
+    public static long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Общее время ожидания повторов.
+     * @return время, нс
+     */
+    public static long getRetryWaitNanos() {
+        return retryWaitNanos.get();
+    }
+
+    /**
+     * Закрытие общего HTTP клиента, неблокирующего транспорта,
+     * проверки регионов и всех соединений пула.
+     * Несохраненные записи кэша распознавания записываются в файл.
+     * Следующий запрос создаст общий HTTP клиент заново с прежними настройками.
+     */
+    public static void shutdown() {
+        DetectionCache cache = detectionCache;
+        if (cache != null) {
+            cache.flush();
+        }
+        CONNECTIONS.close();
+    }
+
+    /**
+     * Создание пула потоков для асинхронных запросов.
+     * Потоки - демоны, чтобы не мешать завершению приложения.
+     * @return ExecutorService
+     */
+    private static ExecutorService createExecutor() {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                ASYNC_THREADS, ASYNC_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(ASYNC_QUEUE_SIZE),
+                runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "face-api-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Получение информации о лице на фото (faceId и прямоугольник лица).
+     * Если лиц несколько, возвращается самое крупное.
      * @param baseURL базовый URL для запроса
      * @param file фото лица
      * @return DetectModel
@@ -55,47 +410,653 @@ public class FaceAPI {
      */
     public static DetectModel faceDetect(String baseURL, File file)
             throws URISyntaxException, IOException {
+        return faceDetect(baseURL, file, DetectOptions.DEFAULT);
+    }
+
+    /**
+     * Получение информации о лице на фото с заданным набором данных.
+     * Если лиц несколько, возвращается самое крупное.
+     * @param baseURL базовый URL для запроса
+     * @param file фото лица
+     * @param options запрашиваемые данные о лице
+     * @return DetectModel
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе
+     */
+    public static DetectModel faceDetect(String baseURL, File file,
+                                         DetectOptions options)
+            throws URISyntaxException, IOException {
+        return FacePolicy.LARGEST.select(detectFaces(baseURL, file, options), 0, 0);
+    }
+
+    /**
+     * Получение информации обо всех лицах на фото.
+     * @param baseURL базовый URL для запроса
+     * @param file фото
+     * @param options запрашиваемые данные о лицах
+     * @return лица по убыванию размера (пустой список, если лиц нет)
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе
+     */
+    public static List<DetectModel> detectFaces(String baseURL, File file,
+                                                DetectOptions options)
+            throws URISyntaxException, IOException {
+        EndpointPool pool = routing(baseURL);
+        if (pool != null) {
+            return await(executeDetectRouted(pool, baseURL, file, null, options));
+        }
+        return executeDetect(baseURL, buildDetectRequest(baseURL, options), file, null, options);
+    }
+
+    /**
+     * Асинхронное получение информации о лице на фото (faceId и прямоугольник лица).
+     * Запрос выполняется в фоновом пуле потоков или неблокирующим транспортом,
+     * отмена future прерывает запрос.
+     * Если лиц несколько, возвращается самое крупное.
+     * @param baseURL базовый URL для запроса
+     * @param file фото лица
+     * @return future с DetectModel (null, если лиц не найдено)
+     * @throws URISyntaxException в случае неверного URL
+     */
+    public static CompletableFuture<DetectModel> detectAsync(String baseURL,
+                                                             File file)
+            throws URISyntaxException {
+        return detectAsync(baseURL, file, DetectOptions.DEFAULT);
+    }
+
+    /**
+     * Асинхронное получение информации о лице на фото с заданным набором данных.
+     * @param baseURL базовый URL для запроса
+     * @param file фото лица
+     * @param options запрашиваемые данные о лице
+     * @return future с DetectModel (null, если лиц не найдено)
+     * @throws URISyntaxException в случае неверного URL
+     */
+    public static CompletableFuture<DetectModel> detectAsync(String baseURL,
+                                                             File file,
+                                                             DetectOptions options)
+            throws URISyntaxException {
+        return thenApplyCancellable(detectFacesAsync(baseURL, file, options),
+                faces -> FacePolicy.LARGEST.select(faces, 0, 0));
+    }
+
+    /**
+     * Асинхронное получение информации обо всех лицах на фото.
+     * Запрос выполняется в фоновом пуле потоков или неблокирующим транспортом,
+     * отмена future прерывает запрос.
+     * @param baseURL базовый URL для запроса
+     * @param file фото
+     * @param options запрашиваемые данные о лицах
+     * @return future с лицами по убыванию размера (пустой список, если лиц нет)
+     * @throws URISyntaxException в случае неверного URL
+     */
+    public static CompletableFuture<List<DetectModel>> detectFacesAsync(
+            String baseURL, File file, DetectOptions options)
+            throws URISyntaxException {
+        return detectFacesAsync(baseURL, file, null, options);
+    }
+
+    /**
+     * Асинхронное получение информации обо всех лицах на уже декодированном
+     * фото: файл не читается и не декодируется повторно (проверка качества,
+     * уменьшение и ключ кэша - по {@link DecodedImage}).
+     * Запрос выполняется в фоновом пуле потоков или неблокирующим транспортом,
+     * отмена future прерывает запрос.
+     * @param baseURL базовый URL для запроса
+     * @param decoded фото
+     * @param options запрашиваемые данные о лицах
+     * @return future с лицами по убыванию размера (пустой список, если лиц нет)
+     * @throws URISyntaxException в случае неверного URL
+     */
+    public static CompletableFuture<List<DetectModel>> detectFacesAsync(
+            String baseURL, DecodedImage decoded, DetectOptions options)
+            throws URISyntaxException {
+        return detectFacesAsync(baseURL, decoded.getFile(), decoded, options);
+    }
+
+    /**
+     * Асинхронное распознавание фото из файла или уже декодированного.
+     * @param baseURL базовый URL для запроса
+     * @param file фото
+     * @param decoded декодированное фото (null - фото читается из файла)
+     * @param options запрашиваемые данные о лицах
+     * @return future с лицами по убыванию размера
+     * @throws URISyntaxException в случае неверного URL
+     */
+    private static CompletableFuture<List<DetectModel>> detectFacesAsync(
+            String baseURL, File file, DecodedImage decoded, DetectOptions options)
+            throws URISyntaxException {
+        EndpointPool pool = routing(baseURL);
+        if (pool != null) {
+            return executeDetectRouted(pool, baseURL, file, decoded, options);
+        }
+        HttpPost request = buildDetectRequest(baseURL, options);
+        HttpTransport nio = CONNECTIONS.getTransport();
+        if (nio == null) {
+            return submit(request, () -> executeDetect(baseURL, request, file, decoded, options));
+        }
+        return executeDetectAsync(baseURL, file, decoded, null, options, detectionCache,
+                entity -> {
+                    request.setEntity(entity);
+                    return executeAsync(nio, request, FaceAPI::parseDetect);
+                });
+    }
+
+    /**
+     * Набор регионов, если базовый URL входит в него.
+     * @param baseURL базовый URL для запроса
+     * @return набор регионов или null для запроса по baseURL
+     */
+    private static EndpointPool routing(String baseURL) {
+        EndpointPool pool = CONNECTIONS.getEndpoints();
+        return pool != null && pool.find(baseURL) != null ? pool : null;
+    }
+
+    /**
+     * Установка ключа подписки в заголовок запроса.
+     * @param request запрос к Face API
+     */
+    static void authorize(HttpRequestBase request) {
+        request.setHeader("Ocp-Apim-Subscription-Key", SUBSCRIPTION_KEY);
+    }
+
+    /**
+     * Установка ключа подписки региона в заголовок запроса.
+     * @param request запрос к Face API
+     * @param endpoint регион
+     */
+    static void authorize(HttpRequestBase request, Endpoint endpoint) {
+        request.setHeader("Ocp-Apim-Subscription-Key",
+                endpoint.getSubscriptionKey() != null
+                        ? endpoint.getSubscriptionKey() : SUBSCRIPTION_KEY);
+    }
+
+    /**
+     * Проверка доступности региона коротким запросом мимо ограничения частоты.
+     * @param endpoint регион
+     * @return true, если регион отвечает и принимает ключ подписки
+     */
+    private static boolean probe(Endpoint endpoint) {
+        HttpGet request = new HttpGet(endpoint.getBaseURL() + PROBE_URL);
+        authorize(request, endpoint);
+        request.setConfig(RequestConfig.custom()
+                .setConnectTimeout(PROBE_TIMEOUT)
+                .setConnectionRequestTimeout(PROBE_TIMEOUT)
+                .setSocketTimeout(PROBE_TIMEOUT)
+                .build());
+        try (CloseableHttpResponse response = CONNECTIONS.getHttpClient().execute(request)) {
+            int status = response.getStatusLine().getStatusCode();
+            EntityUtils.consume(response.getEntity());
+            return status < 500 && status != 429 && status != 401 && status != 403;
+        } catch (IOException | IllegalStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Сборка запроса для получения информации о лице.
+     * Тело запроса устанавливается при выполнении.
+     * @param baseURL базовый URL для запроса
+     * @param options запрашиваемые данные о лице
+     * @return HttpPost
+     * @throws URISyntaxException в случае неверного URL
+     */
+    static HttpPost buildDetectRequest(String baseURL, DetectOptions options)
+            throws URISyntaxException {
         URIBuilder builder = new URIBuilder(String.format("%s%s",
                 baseURL, DETECT_URL));
 
         //параметры для запроса (необязательные)
-        builder.setParameter("returnFaceId", "true");
-        builder.setParameter("returnFaceLandmarks", "true");
+        options.apply(builder);
 
         URI uri = builder.build();
         HttpPost request = new HttpPost(uri);
 
         //заголовки запроса
         request.setHeader("Content-Type", "application/octet-stream");
-        request.setHeader("Ocp-Apim-Subscription-Key", SUBSCRIPTION_KEY);
+        authorize(request);
+        return request;
+    }
 
-        //тело запроса
-        FileEntity entity = new FileEntity(file);
+    /**
+     * Выполнение запроса на получение информации о лицах.
+     * Фото предварительно уменьшается, координаты лиц пересчитываются
+     * в координаты исходного фото.
+     * @param baseURL базовый URL запроса (часть ключа кэша)
+     * @param request запрос
+     * @param file фото
+     * @param decoded декодированное фото (null - фото читается из файла)
+     * @param options запрашиваемые данные о лицах
+     * @return найденные лица
+     * @throws IOException в случае ошибки в запросе
+     */
+    private static List<DetectModel> executeDetect(String baseURL, HttpPost request,
+                                                   File file, DecodedImage decoded,
+                                                   DetectOptions options)
+            throws IOException {
+        //повторно выбранное фото не отправляется
+        long start = Metrics.start();
+        DetectionCache cache = detectionCache;
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = cacheKey(baseURL, file, decoded, options);
+            List<DetectModel> cached = cache.get(cacheKey, file);
+            if (cached != null) {
+                Metrics.count(Metrics.Counter.DETECT_CACHE_HITS, 1);
+                Metrics.record(Metrics.Stage.DETECT, start);
+                return cached;
+            }
+            Metrics.count(Metrics.Counter.DETECT_CACHE_MISSES, 1);
+        }
+
+        ImagePreprocessor.PreparedImage prepared = decoded != null
+                ? prepare(decoded) : prepare(file);
+        request.setEntity(detectEntity(file, decoded, prepared));
+        List<DetectModel> faces = execute(request, FaceAPI::parseDetect);
+        return completeDetect(faces, file, prepared, cache, cacheKey, start);
+    }
+
+    /**
+     * Распознавание в самом быстром исправном регионе набора.
+     * Лица помечаются регионом, выдавшим faceId.
+     * @param pool набор регионов
+     * @param baseURL базовый URL запроса, входящий в набор (часть ключа кэша)
+     * @param file фото
+     * @param decoded декодированное фото (null - фото читается из файла)
+     * @param options запрашиваемые данные о лицах
+     * @return future с найденными лицами, отмена future прерывает запрос
+     */
+    private static CompletableFuture<List<DetectModel>> executeDetectRouted(
+            EndpointPool pool, String baseURL, File file, DecodedImage decoded,
+            DetectOptions options) {
+        return executeDetectAsync(baseURL, file, decoded, null, options, detectionCache,
+                entity -> pool.execute(endpoint -> sendDetect(endpoint, options, entity)));
+    }
+
+    /**
+     * Отправка запроса на распознавание в регион.
+     * @param endpoint регион
+     * @param options запрашиваемые данные о лицах
+     * @param entity подготовленное фото
+     * @return future с лицами, помеченными регионом
+     */
+    private static CompletableFuture<List<DetectModel>> sendDetect(Endpoint endpoint,
+                                                                   DetectOptions options,
+                                                                   HttpEntity entity) {
+        HttpPost request;
+        try {
+            request = buildDetectRequest(endpoint.getBaseURL(), options);
+        } catch (URISyntaxException e) {
+            throw new CompletionException(e);
+        }
+        authorize(request, endpoint);
         request.setEntity(entity);
+        return thenApplyCancellable(executeAsync(request, FaceAPI::parseDetect), faces -> {
+            for (DetectModel face : faces) {
+                face.setEndpoint(endpoint.getBaseURL());
+            }
+            return faces;
+        });
+    }
 
-        HttpResponse response
-                = HttpClientBuilder.create().build().execute(request);
-        HttpEntity responseBody = response.getEntity();
-        DetectModel detect = null;
-        String jsonString = null;
+    /**
+     * Асинхронное выполнение запроса на получение информации о лицах.
+     * Фото готовится в пуле {@link #EXECUTOR}, затем отправляется send
+     * (неблокирующим транспортом или в регион набора).
+     * @param baseURL базовый URL запроса (часть ключа кэша, без кэша не нужен)
+     * @param file фото
+     * @param decoded декодированное фото (null - фото читается из файла)
+     * @param crop известное лицо, вокруг которого вырезается фото
+     *             (null - отправляется все фото)
+     * @param options запрашиваемые данные о лицах
+     * @param cache кэш (null - без кэша)
+     * @param send отправка подготовленного фото
+     * @return future с найденными лицами, отмена future прерывает запрос
+     */
+    private static CompletableFuture<List<DetectModel>> executeDetectAsync(
+            String baseURL, File file, DecodedImage decoded, DetectModel crop,
+            DetectOptions options, DetectionCache cache,
+            Function<HttpEntity, CompletableFuture<List<DetectModel>>> send) {
+        long start = Metrics.start();
+        AtomicReference<String> cacheKey = new AtomicReference<>();
+        CompletableFuture<List<DetectModel>> result = new CompletableFuture<>();
+
+        //чтение, декодирование и уменьшение фото - не в потоках ввода-вывода
+        Supplier<ImagePreprocessor.PreparedImage> prepare = () -> {
+            try {
+                //повторно выбранное фото не отправляется
+                if (cache != null) {
+                    cacheKey.set(cacheKey(baseURL, file, decoded, options));
+                    List<DetectModel> cached = cache.get(cacheKey.get(), file);
+                    if (cached != null) {
+                        Metrics.count(Metrics.Counter.DETECT_CACHE_HITS, 1);
+                        Metrics.record(Metrics.Stage.DETECT, start);
+                        result.complete(cached);
+                        return null;
+                    }
+                    Metrics.count(Metrics.Counter.DETECT_CACHE_MISSES, 1);
+                }
+                if (crop != null) {
+                    return prepareCrop(file, crop);
+                }
+                return decoded != null ? prepare(decoded) : prepare(file);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        };
+        CompletableFuture<ImagePreprocessor.PreparedImage> preparing;
+        try {
+            preparing = CompletableFuture.supplyAsync(prepare, EXECUTOR);
+        } catch (RejectedExecutionException e) {
+            //очередь пула заполнена: подготовка в вызывающем потоке
+            //замедляет источник запросов
+            preparing = new CompletableFuture<>();
+            try {
+                preparing.complete(prepare.get());
+            } catch (CompletionException prepareError) {
+                preparing.completeExceptionally(prepareError.getCause());
+            }
+        }
+        cancelWith(result, preparing);
+        preparing.whenComplete((prepared, error) -> {
+            if (error != null) {
+                result.completeExceptionally(unwrap(error));
+                return;
+            }
+            if (prepared == null) {
+                //результат из кэша
+                return;
+            }
+            CompletableFuture<List<DetectModel>> call;
+            try {
+                call = send.apply(detectEntity(file, decoded, prepared));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(unwrap(e));
+                return;
+            }
+            cancelWith(result, call);
+            call.whenComplete((faces, callError) -> {
+                if (callError != null) {
+                    result.completeExceptionally(unwrap(callError));
+                } else {
+                    result.complete(completeDetect(faces, file, prepared, cache,
+                            cacheKey.get(), start));
+                }
+            });
+        });
+        return result;
+    }
+
+    /**
+     * Проверка качества и подготовка фото к отправке.
+     * @param file фото
+     * @return подготовленное фото
+     * @throws ImageQualityException если фото не подходит и не может быть исправлено
+     * @throws IOException в случае ошибки чтения фото
+     */
+    private static ImagePreprocessor.PreparedImage prepare(File file) throws IOException {
+        long start = Metrics.start();
+        ImagePreprocessor imagePreprocessor = preprocessor;
+        ImageQuality gate = qualityGate;
+        int[] levels = gate != null
+                ? checkQuality(file, gate.analyze(file), imagePreprocessor != null) : null;
+        ImagePreprocessor.PreparedImage prepared = imagePreprocessor != null
+                ? imagePreprocessor.prepare(file, levels)
+                : ImagePreprocessor.PreparedImage.original(file);
+        Metrics.record(Metrics.Stage.PREPARE, start);
+        return prepared;
+    }
+
+    /**
+     * Проверка качества и подготовка уже декодированного фото.
+     * @param decoded фото
+     * @return подготовленное фото
+     * @throws ImageQualityException если фото не подходит и не может быть исправлено
+     * @throws IOException в случае ошибки сжатия
+     */
+    private static ImagePreprocessor.PreparedImage prepare(DecodedImage decoded)
+            throws IOException {
+        long start = Metrics.start();
+        ImagePreprocessor imagePreprocessor = preprocessor;
+        ImageQuality gate = qualityGate;
+        int[] levels = gate != null ? checkQuality(decoded.getFile(), gate.analyze(decoded),
+                imagePreprocessor != null) : null;
+        ImagePreprocessor.PreparedImage prepared = imagePreprocessor != null
+                ? imagePreprocessor.prepare(decoded, levels)
+                : ImagePreprocessor.PreparedImage.original(decoded.getFile());
+        Metrics.record(Metrics.Stage.PREPARE, start);
+        return prepared;
+    }
+
+    /**
+     * Решение по результату проверки качества.
+     * @param file фото
+     * @param report результат проверки
+     * @param canFix будет ли фото подготовлено {@link ImagePreprocessor}
+     * @return таблица яркости для исправления или null
+     * @throws ImageQualityException если фото не подходит и не может быть исправлено
+     */
+    private static int[] checkQuality(File file, ImageQuality.Report report, boolean canFix)
+            throws ImageQualityException {
+        Set<ImageQuality.Issue> blocking = report.getBlockingIssues(canFix);
+        if (!blocking.isEmpty()) {
+            Metrics.count(Metrics.Counter.QUALITY_REJECTED, 1);
+            throw new ImageQualityException(file, blocking);
+        }
+        if (!report.getIssues().isEmpty()) {
+            Metrics.count(Metrics.Counter.QUALITY_FIXED, 1);
+        }
+        return report.getLevels();
+    }
+
+    /**
+     * Ключ кэша распознавания: по содержимому в памяти, если фото уже прочитано.
+     * @param baseURL базовый URL запроса
+     * @param file фото
+     * @param decoded декодированное фото (null - ключ по файлу)
+     * @param options запрашиваемые данные о лицах
+     * @return ключ
+     * @throws IOException в случае ошибки чтения файла
+     */
+    private static String cacheKey(String baseURL, File file, DecodedImage decoded,
+                                   DetectOptions options) throws IOException {
+        return decoded != null
+                ? DetectionCache.key(baseURL, decoded.getData(), options)
+                : DetectionCache.key(baseURL, file, options);
+    }
+
+    /**
+     * Подготовка к повторному распознаванию: вырезается область вокруг
+     * известного лица. Проверка качества не выполняется, фото уже прошло
+     * ее при первом распознавании. Без подготовки фото отправляется целиком.
+     * @param file фото
+     * @param face известное лицо
+     * @return подготовленное фото
+     * @throws IOException в случае ошибки чтения фото
+     */
+    private static ImagePreprocessor.PreparedImage prepareCrop(File file, DetectModel face)
+            throws IOException {
+        ImagePreprocessor imagePreprocessor = preprocessor;
+        if (imagePreprocessor == null) {
+            return prepare(file);
+        }
+        long start = Metrics.start();
+        ImagePreprocessor.PreparedImage prepared = imagePreprocessor.crop(file, face,
+                ImagePreprocessor.DEFAULT_CROP_PADDING);
+        Metrics.record(Metrics.Stage.PREPARE, start);
+        return prepared;
+    }
 
-        //проверка статуса ответа и сбор объекта DetectModel
-        if (response.getStatusLine().getStatusCode() == 200
-                && responseBody != null && (jsonString = EntityUtils.toString(responseBody).trim()).length() > 2) {
+    /**
+     * Тело запроса на получение информации о лицах. Тело можно отправить
+     * несколько раз, в том числе одновременно в разные регионы.
+     * @param file фото
+     * @param decoded декодированное фото (null - исходное фото отправляется из файла)
+     * @param prepared подготовленное фото
+     * @return HttpEntity
+     */
+    private static HttpEntity detectEntity(File file, DecodedImage decoded,
+                                           ImagePreprocessor.PreparedImage prepared) {
+        if (prepared.isOriginal()) {
+            return decoded != null ? new ByteArrayEntity(decoded.getData()) : new FileEntity(file);
+        }
+        return new ByteArrayEntity(prepared.getData(), 0, prepared.getLength());
+    }
+
+    /**
+     * Пересчет координат лиц в координаты исходного фото и запись в кэш.
+     * @param faces лица из ответа
+     * @param file фото
+     * @param prepared отправленное фото
+     * @param cache кэш (может быть null)
+     * @param cacheKey ключ кэша
+     * @param start начало замера {@link Metrics.Stage#DETECT}
+     * @return лица
+     */
+    private static List<DetectModel> completeDetect(List<DetectModel> faces, File file,
+                                                    ImagePreprocessor.PreparedImage prepared,
+                                                    DetectionCache cache,
+                                                    String cacheKey, long start) {
+        for (DetectModel face : faces) {
+            prepared.toOriginal(face);
+            face.setSource(file);
+        }
+        if (cache != null) {
+            cache.put(cacheKey, faces);
+        }
+        Metrics.record(Metrics.Stage.DETECT, start);
+        return faces;
+    }
+
+    /**
+     * Повторное распознавание известного лица (новый faceId после истечения
+     * или запрос других данных о лице). В Face API отправляется только
+     * область фото вокруг прямоугольника лица, координаты в ответе
+     * пересчитываются в координаты исходного фото.
+     * @param baseURL базовый URL для запроса
+     * @param face лицо, полученное распознаванием фото
+     * @param options запрашиваемые данные о лице
+     * @return то же лицо с новым faceId
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе или если лицо не найдено
+     */
+    public static DetectModel redetect(String baseURL, DetectModel face, DetectOptions options)
+            throws URISyntaxException, IOException {
+        return await(redetectAsync(baseURL, face, options));
+    }
 
-            JsonParser jsonParser = new JsonParser();
-            JsonArray jsonRes = (JsonArray)jsonParser.parse(jsonString);
-            detect = new DetectModel(
-                    jsonRes.get(0).getAsJsonObject()
-                            .get("faceId").getAsString(),
-                    jsonRes.get(0).getAsJsonObject()
-                            .getAsJsonObject("faceRectangle"));
+    /**
+     * Асинхронное повторное распознавание известного лица по вырезанной
+     * области фото. Если на области лицо не найдено, распознается все фото.
+     * Отмена future прерывает запрос.
+     * @param baseURL базовый URL для запроса
+     * @param face лицо, полученное распознаванием фото
+     * @param options запрашиваемые данные о лице
+     * @return future с тем же лицом с новым faceId
+     * @throws URISyntaxException в случае неверного URL
+     */
+    public static CompletableFuture<DetectModel> redetectAsync(String baseURL, DetectModel face,
+                                                               DetectOptions options)
+            throws URISyntaxException {
+        Function<HttpEntity, CompletableFuture<List<DetectModel>>> send;
+        EndpointPool pool = routing(baseURL);
+        if (pool != null) {
+            send = entity -> pool.execute(endpoint -> sendDetect(endpoint, options, entity));
+        } else {
+            //URL проверяется до запроса, запросы области и всего фото - отдельные
+            buildDetectRequest(baseURL, options);
+            send = entity -> {
+                HttpPost request;
+                try {
+                    request = buildDetectRequest(baseURL, options);
+                } catch (URISyntaxException e) {
+                    throw new CompletionException(e);
+                }
+                request.setEntity(entity);
+                return executeAsync(request, FaceAPI::parseDetect);
+            };
         }
-        return detect;
+        return thenApplyCancellable(redetect(face, options, send), match -> {
+            if (match == null) {
+                throw new CompletionException(new IOException(String.format(
+                        "Лицо %s не найдено при повторном распознавании.", face.getFaceId())));
+            }
+            return match;
+        });
+    }
+
+    /**
+     * Повторное распознавание лица: сначала вырезанная область вокруг лица,
+     * если лицо на ней не найдено - все фото.
+     * @param face лицо с известным фото
+     * @param options запрашиваемые данные о лице
+     * @param send отправка подготовленного фото
+     * @return future с совпадающим по положению лицом (null, если не найдено)
+     */
+    private static CompletableFuture<DetectModel> redetect(
+            DetectModel face, DetectOptions options,
+            Function<HttpEntity, CompletableFuture<List<DetectModel>>> send) {
+        CompletableFuture<DetectModel> result = new CompletableFuture<>();
+        File file = face.getSource();
+        if (file == null) {
+            result.completeExceptionally(new IOException(String.format(
+                    "Фото лица %s не известно, повторное распознавание невозможно.",
+                    face.getFaceId())));
+            return result;
+        }
+        CompletableFuture<List<DetectModel>> cropped
+                = executeDetectAsync(null, file, null, face, options, null, send);
+        cancelWith(result, cropped);
+        cropped.whenComplete((faces, error) -> {
+            if (error != null) {
+                result.completeExceptionally(unwrap(error));
+                return;
+            }
+            DetectModel match = matching(face, faces);
+            if (match != null || result.isDone()) {
+                result.complete(match);
+                return;
+            }
+            //на области лицо не найдено (мало фона): повтор по всему фото
+            CompletableFuture<List<DetectModel>> full
+                    = executeDetectAsync(null, file, null, null, options, null, send);
+            cancelWith(result, full);
+            full.whenComplete((allFaces, fullError) -> {
+                if (fullError != null) {
+                    result.completeExceptionally(unwrap(fullError));
+                } else {
+                    result.complete(matching(face, allFaces));
+                }
+            });
+        });
+        return result;
+    }
+
+    /**
+     * Лицо, совпадающее по положению с известным.
+     * @param face известное лицо
+     * @param faces найденные лица в координатах того же фото
+     * @return лицо с наибольшим перекрытием не меньше {@link #MIN_FACE_OVERLAP}
+     * или null
+     */
+    private static DetectModel matching(DetectModel face, List<DetectModel> faces) {
+        DetectModel best = null;
+        double bestOverlap = MIN_FACE_OVERLAP;
+        for (DetectModel candidate : faces) {
+            double overlap = overlap(face, candidate);
+            if (overlap >= bestOverlap) {
+                best = candidate;
+                bestOverlap = overlap;
+            }
+        }
+        return best;
     }
 
     /**
      * Сравнение лиц на двух фото.
+     * Если установлен набор регионов и faceId выдан одним из них, запрос
+     * выполняется в этом регионе (см. {@link #verifyAsync}). Лицо с истекшим
+     * faceId сначала распознается повторно.
      * @param baseURL базовый URL для запроса
      * @param face1 информация о лице 1
      * @param face2 информация о лице 2
@@ -107,6 +1068,282 @@ public class FaceAPI {
                                          DetectModel face1,
                                          DetectModel face2)
             throws URISyntaxException, IOException {
+        EndpointPool pool = CONNECTIONS.getEndpoints();
+        if (pool != null && issuer(pool, face1, face2) != null
+                || isRefreshable(face1) || isRefreshable(face2)) {
+            return await(verifyAsync(baseURL, face1, face2));
+        }
+        HttpPost request = buildVerifyRequest(baseURL, face1, face2);
+        VerifyCache cache = verifyCache;
+        if (cache == null) {
+            return executeVerify(request);
+        }
+
+        //новый запрос выполняется в этом потоке, иначе ожидание уже
+        //выполняющегося сравнения той же пары
+        return await(cache.join(face1, face2, () -> {
+            CompletableFuture<VerifyModel> result = new CompletableFuture<>();
+            try {
+                result.complete(executeVerify(request));
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }));
+    }
+
+    /**
+     * Асинхронное сравнение лиц на двух фото.
+     * Запрос выполняется в фоновом пуле потоков или неблокирующим транспортом,
+     * отмена future прерывает запрос.
+     * Если та же пара уже сравнивается, возвращается ожидание этого запроса.
+     * Общий запрос прерывается, только когда отменены ожидания всех
+     * вызывающих (см. {@link VerifyCache#join}).
+     * <p>
+     * faceId действителен только в выдавшем его регионе, поэтому при
+     * установленном наборе регионов запрос выполняется в регионе лица 1
+     * (или лица 2, если регион лица 1 не известен). Если второе лицо
+     * получено в другом регионе, его фото распознается повторно в регионе
+     * сравнения.
+     * <p>
+     * Лицо с истекшим faceId и известным фото сначала распознается повторно
+     * ({@link #redetectAsync}).
+     * @param baseURL базовый URL для запроса
+     * @param face1 информация о лице 1
+     * @param face2 информация о лице 2
+     * @return future с результатом сравнения лиц
+     * @throws URISyntaxException в случае неверного URL
+     */
+    public static CompletableFuture<VerifyModel> verifyAsync(String baseURL,
+                                                             DetectModel face1,
+                                                             DetectModel face2)
+            throws URISyntaxException {
+        if (isRefreshable(face1) || isRefreshable(face2)) {
+            return verifyRefreshed(baseURL, face1, face2);
+        }
+        Supplier<CompletableFuture<VerifyModel>> verify;
+        EndpointPool pool = CONNECTIONS.getEndpoints();
+        Endpoint region = pool != null ? issuer(pool, face1, face2) : null;
+        if (region != null) {
+            verify = () -> verifyIn(pool, region, face1, face2);
+        } else {
+            HttpPost request = buildVerifyRequest(baseURL, face1, face2);
+            verify = () -> executeVerifyAsync(request);
+        }
+        VerifyCache cache = verifyCache;
+        if (cache == null) {
+            return verify.get();
+        }
+
+        return cache.join(face1, face2, verify);
+    }
+
+    /**
+     * Можно ли получить новый faceId вместо истекшего.
+     * @param face лицо
+     * @return true, если faceId истек, а фото лица известно
+     */
+    private static boolean isRefreshable(DetectModel face) {
+        return face.isExpired() && face.getSource() != null;
+    }
+
+    /**
+     * Сравнение после повторного распознавания лиц с истекшим faceId.
+     * @param baseURL базовый URL для запроса
+     * @param face1 информация о лице 1
+     * @param face2 информация о лице 2
+     * @return future с результатом сравнения, отмена future прерывает запросы
+     * @throws URISyntaxException в случае неверного URL
+     */
+    private static CompletableFuture<VerifyModel> verifyRefreshed(String baseURL,
+                                                                  DetectModel face1,
+                                                                  DetectModel face2)
+            throws URISyntaxException {
+        CompletableFuture<DetectModel> first = isRefreshable(face1)
+                ? redetectAsync(baseURL, face1, DetectOptions.DEFAULT)
+                : CompletableFuture.completedFuture(face1);
+        CompletableFuture<DetectModel> second = isRefreshable(face2)
+                ? redetectAsync(baseURL, face2, DetectOptions.DEFAULT)
+                : CompletableFuture.completedFuture(face2);
+        CompletableFuture<VerifyModel> result = new CompletableFuture<>();
+        cancelWith(result, first);
+        cancelWith(result, second);
+        first.thenAcceptBoth(second, (fresh1, fresh2) -> {
+            CompletableFuture<VerifyModel> call;
+            try {
+                call = verifyAsync(baseURL, fresh1, fresh2);
+            } catch (URISyntaxException e) {
+                throw new CompletionException(e);
+            }
+            cancelWith(result, call);
+            call.whenComplete((verifyModel, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(unwrap(error));
+                } else {
+                    result.complete(verifyModel);
+                }
+            });
+        }).whenComplete((ignored, error) -> {
+            if (error != null) {
+                result.completeExceptionally(unwrap(error));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Регион, выдавший faceId одного из лиц.
+     * @param pool набор регионов
+     * @param face1 информация о лице 1
+     * @param face2 информация о лице 2
+     * @return регион лица 1, иначе регион лица 2; null, если ни один
+     * не входит в набор
+     */
+    private static Endpoint issuer(EndpointPool pool, DetectModel face1, DetectModel face2) {
+        Endpoint region = face1.getEndpoint() != null ? pool.find(face1.getEndpoint()) : null;
+        if (region == null && face2.getEndpoint() != null) {
+            region = pool.find(face2.getEndpoint());
+        }
+        return region;
+    }
+
+    /**
+     * Сравнение лиц в заданном регионе. Повторный запрос при долгом ответе
+     * отправляется в тот же регион.
+     * @param pool набор регионов
+     * @param region регион сравнения
+     * @param face1 информация о лице 1
+     * @param face2 информация о лице 2
+     * @return future с результатом сравнения, отмена future прерывает запросы
+     */
+    private static CompletableFuture<VerifyModel> verifyIn(EndpointPool pool, Endpoint region,
+                                                           DetectModel face1,
+                                                           DetectModel face2) {
+        CompletableFuture<DetectModel> first = inRegion(pool, region, face1);
+        CompletableFuture<DetectModel> second = inRegion(pool, region, face2);
+        CompletableFuture<VerifyModel> result = new CompletableFuture<>();
+        cancelWith(result, first);
+        cancelWith(result, second);
+        first.thenAcceptBoth(second, (regional1, regional2) -> {
+            CompletableFuture<VerifyModel> call = pool.executeIn(region, endpoint -> {
+                HttpPost request;
+                try {
+                    request = buildVerifyRequest(endpoint.getBaseURL(), regional1, regional2);
+                } catch (URISyntaxException e) {
+                    throw new CompletionException(e);
+                }
+                authorize(request, endpoint);
+                return executeVerifyAsync(request);
+            });
+            cancelWith(result, call);
+            call.whenComplete((verifyModel, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(unwrap(error));
+                } else {
+                    result.complete(verifyModel);
+                }
+            });
+        }).whenComplete((ignored, error) -> {
+            if (error != null) {
+                result.completeExceptionally(unwrap(error));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Лицо с faceId, действительным в регионе. Лицо из другого региона
+     * распознается повторно по области сохраненного фото вокруг лица
+     * (без кэша), из найденных лиц выбирается совпадающее по положению.
+     * @param pool набор регионов
+     * @param region регион
+     * @param face лицо
+     * @return future с лицом в регионе
+     */
+    private static CompletableFuture<DetectModel> inRegion(EndpointPool pool, Endpoint region,
+                                                           DetectModel face) {
+        if (region.getBaseURL().equals(face.getEndpoint())) {
+            return CompletableFuture.completedFuture(face);
+        }
+        if (face.getSource() == null) {
+            CompletableFuture<DetectModel> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException(String.format(
+                    "faceId %s выдан в другом регионе, фото для распознавания в %s не известно.",
+                    face.getFaceId(), region.getRegion())));
+            return failed;
+        }
+        CompletableFuture<DetectModel> detect = redetect(face, DetectOptions.DEFAULT,
+                entity -> pool.executeIn(region,
+                        endpoint -> sendDetect(endpoint, DetectOptions.DEFAULT, entity)));
+        return thenApplyCancellable(detect, best -> {
+            if (best == null) {
+                throw new CompletionException(new IOException(String.format(
+                        "Лицо %s не найдено при повторном распознавании в %s.",
+                        face.getFaceId(), region.getRegion())));
+            }
+            return best;
+        });
+    }
+
+    /**
+     * Отношение площади пересечения прямоугольников лиц к площади объединения.
+     * @param a лицо 1
+     * @param b лицо 2
+     * @return от 0 до 1
+     */
+    private static double overlap(DetectModel a, DetectModel b) {
+        long width = Math.min(a.getX() + a.getWidth(), b.getX() + b.getWidth())
+                - Math.max(a.getX(), b.getX());
+        long height = Math.min(a.getY() + a.getHeight(), b.getY() + b.getHeight())
+                - Math.max(a.getY(), b.getY());
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        long intersection = width * height;
+        long union = (long) a.getWidth() * a.getHeight()
+                + (long) b.getWidth() * b.getHeight() - intersection;
+        return (double) intersection / union;
+    }
+
+    /**
+     * Ожидание результата выполняющегося запроса.
+     * @param future запрос
+     * @param <T> тип результата
+     * @return результат
+     * @throws IOException в случае ошибки в запросе или прерывания ожидания
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Ожидание запроса прервано.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } catch (CancellationException e) {
+            throw new IOException("Запрос отменен.", e);
+        }
+    }
+
+    /**
+     * Сборка запроса для сравнения лиц.
+     * @param baseURL базовый URL для запроса
+     * @param face1 информация о лице 1
+     * @param face2 информация о лице 2
+     * @return HttpPost
+     * @throws URISyntaxException в случае неверного URL
+     */
+    static HttpPost buildVerifyRequest(String baseURL,
+                                       DetectModel face1,
+                                       DetectModel face2)
+            throws URISyntaxException {
         URIBuilder builder = new URIBuilder(String.format("%s%s", baseURL, VERIFY_URL));
 
         URI uri = builder.build();
@@ -114,34 +1351,529 @@ public class FaceAPI {
 
         //заголовки
         request.setHeader("Content-Type", "application/json");
-        request.setHeader("Ocp-Apim-Subscription-Key", SUBSCRIPTION_KEY);
+        authorize(request);
 
         //тело запроса
         JsonObject faces = new JsonObject();
         faces.addProperty("faceId1", face1.getFaceId());
         faces.addProperty("faceId2", face2.getFaceId());
 
-        StringEntity reqEntity = new StringEntity(faces.toString());
+        StringEntity reqEntity = new StringEntity(faces.toString(),
+                StandardCharsets.UTF_8);
         request.setEntity(reqEntity);
+        return request;
+    }
+
+    /**
+     * Выполнение запроса на сравнение лиц.
+     * @param request запрос
+     * @return результат сравнения лиц
+     * @throws IOException в случае ошибки в запросе
+     */
+    private static VerifyModel executeVerify(HttpPost request)
+            throws IOException {
+        long start = Metrics.start();
+        VerifyModel verifyModel = execute(request, FaceAPI::parseVerify);
+        Metrics.record(Metrics.Stage.VERIFY, start);
+        return verifyModel;
+    }
+
+    /**
+     * Асинхронное выполнение запроса на сравнение лиц.
+     * @param request запрос
+     * @return future с результатом сравнения, отмена future прерывает запрос
+     */
+    private static CompletableFuture<VerifyModel> executeVerifyAsync(HttpPost request) {
+        long start = Metrics.start();
+        CompletableFuture<VerifyModel> call = executeAsync(request, FaceAPI::parseVerify);
+        call.thenRun(() -> Metrics.record(Metrics.Stage.VERIFY, start));
+        return call;
+    }
+
+    /**
+     * Разбор успешного ответа /detect потоком, без чтения тела в строку.
+     * @param responseBody тело ответа
+     * @return все найденные лица в порядке ответа
+     * @throws IOException в случае ошибки чтения или неверного ответа
+     */
+    static List<DetectModel> parseDetect(HttpEntity responseBody) throws IOException {
+        try (JsonReader reader = jsonReader(responseBody)) {
+            List<DetectModel> faces = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                faces.add(DetectModel.read(reader));
+            }
+            reader.endArray();
+            return faces;
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Неверный ответ Face API: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Разбор успешного ответа /verify потоком, без чтения тела в строку.
+     * @param responseBody тело ответа
+     * @return результат сравнения лиц
+     * @throws IOException в случае ошибки чтения или неверного ответа
+     */
+    static VerifyModel parseVerify(HttpEntity responseBody) throws IOException {
+        try (JsonReader reader = jsonReader(responseBody)) {
+            return VerifyModel.read(reader);
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Неверный ответ Face API: " + e.getMessage(), e);
+        }
+    }
 
-        HttpResponse response
-                = HttpClientBuilder.create().build().execute(request);
+    /**
+     * Разбор ответа с ошибкой вида {"error": {"code": ..., "message": ...}}.
+     * Если тело ответа не в этом формате, используется текст статуса.
+     * Тело ответа дочитывается, чтобы соединение вернулось в пул.
+     * @param response ответ с кодом, отличным от 200
+     * @return исключение для выброса
+     */
+    static FaceApiException parseError(HttpResponse response) {
+        int status = response.getStatusLine().getStatusCode();
+        String code = null;
+        String message = null;
         HttpEntity responseBody = response.getEntity();
-        VerifyModel verifyModel = null;
+        if (responseBody != null) {
+            try (JsonReader reader = jsonReader(responseBody)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!"error".equals(reader.nextName())) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        switch (reader.nextName()) {
+                            case "code":
+                                code = reader.nextString();
+                                break;
+                            case "message":
+                                message = reader.nextString();
+                                break;
+                            default:
+                                reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+            } catch (IOException | IllegalStateException e) {
+                //тело ответа не JSON (например, страница прокси)
+            }
+        }
+        if (message == null) {
+            message = response.getStatusLine().getReasonPhrase();
+        }
+        return new FaceApiException(status, code, message);
+    }
+
+    /**
+     * Потоковое чтение JSON из тела ответа в кодировке из Content-Type.
+     * Закрытие JsonReader дочитывает тело и возвращает соединение в пул.
+     * @param responseBody тело ответа
+     * @return JsonReader
+     * @throws IOException в случае ошибки чтения
+     */
+    static JsonReader jsonReader(HttpEntity responseBody) throws IOException {
+        if (responseBody == null) {
+            throw new IOException("Пустой ответ Face API.");
+        }
+        Charset charset = ContentType.getLenientOrDefault(responseBody).getCharset();
+        return new JsonReader(new InputStreamReader(responseBody.getContent(),
+                charset != null ? charset : StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Выполнение запроса с ограничением частоты и числа одновременных запросов.
+     * Ответы 429 и 503 повторяются с экспоненциальной задержкой со случайным
+     * разбросом, но не раньше, чем указано в заголовке Retry-After.
+     * @param request запрос
+     * @param parser разбор тела успешного ответа
+     * @param <T> тип результата
+     * @return результат разбора ответа
+     * @throws FaceApiException если Face API вернул ошибку или лимит повторов исчерпан
+     * @throws IOException в случае ошибки в запросе
+     */
+    static <T> T execute(HttpRequestBase request, ResponseParser<T> parser)
+            throws IOException {
+        HttpTransport nio = CONNECTIONS.getTransport();
+        if (nio != null) {
+            return await(executeAsync(nio, request, parser));
+        }
+        for (int attempt = 0; ; attempt++) {
+            RateLimiter rate = rateLimiter;
+            if (rate != null) {
+                rate.acquire();
+            }
+            AdaptiveLimiter limiter = concurrencyLimiter;
+            if (limiter != null) {
+                limiter.acquire();
+            }
 
-        //проверка статуса ответа и сбор объекта VerifyModel
-        if (response.getStatusLine().getStatusCode() == 200
-                && responseBody != null) {
-            String jsonString = EntityUtils.toString(responseBody).trim();
+            //замер передачи тела запроса, только при включенных замерах
+            UploadTimer upload = Metrics.isEnabled() ? UploadTimer.wrap(request) : null;
+            Metrics.count(Metrics.Counter.REQUESTS, 1);
 
-            JsonParser jsonParser = new JsonParser();
-            JsonObject jsonRes = (JsonObject)jsonParser.parse(jsonString);
+            long start = System.nanoTime();
+            boolean overloaded = true;
+            long delay;
+            try (CloseableHttpResponse response
+                         = CONNECTIONS.getHttpClient().execute(request)) {
+                if (upload != null) {
+                    Metrics.recordNanos(Metrics.Stage.UPLOAD, upload.nanos);
+                    Metrics.recordNanos(Metrics.Stage.SERVER,
+                            System.nanoTime() - start - upload.nanos);
+                    Metrics.count(Metrics.Counter.UPLOAD_BYTES, upload.bytes);
+                    upload.reset();
+                }
+                int status = response.getStatusLine().getStatusCode();
+                if (status >= 200 && status < 300) {
+                    overloaded = false;
+                    long parseStart = Metrics.start();
+                    T result = parser.parse(response.getEntity());
+                    Metrics.record(Metrics.Stage.PARSE, parseStart);
+                    return result;
+                }
+                if (status != 429 && status != 503) {
+                    overloaded = false;
+                    throw parseError(response);
+                }
+                if (attempt >= MAX_RETRIES) {
+                    throw parseError(response);
+                }
 
-            verifyModel = new VerifyModel(
-                    jsonRes.get("isIdentical").getAsBoolean(),
-                    jsonRes.get("confidence").getAsDouble());
+                //возврат соединения в пул
+                EntityUtils.consume(response.getEntity());
+                delay = retryDelay(response, attempt);
+            } finally {
+                if (limiter != null) {
+                    limiter.release(operationOf(request),
+                            System.nanoTime() - start, overloaded);
+                }
+            }
+
+            retries.incrementAndGet();
+            retryWaitNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(delay));
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Ожидание повтора прервано.");
+            }
+        }
+    }
+
+    /**
+     * Задержка перед повтором запроса.
+     * @param response ответ 429 или 503
+     * @param attempt номер попытки, начиная с 0
+     * @return задержка, мс
+     */
+    static long retryDelay(HttpResponse response, int attempt) {
+        long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << attempt);
+        long delay = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+
+        Header retryAfter = response.getFirstHeader("Retry-After");
+        if (retryAfter != null) {
+            String value = retryAfter.getValue().trim();
+            try {
+                delay = Math.max(delay, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+            } catch (NumberFormatException e) {
+                //Retry-After в виде даты
+                Date date = DateUtils.parseDate(value);
+                if (date != null) {
+                    delay = Math.max(delay, date.getTime() - System.currentTimeMillis());
+                }
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * Операция запроса для раздельного учета задержек в {@link AdaptiveLimiter}.
+     * @param request запрос
+     * @return последний сегмент пути: detect, verify, identify...
+     */
+    private static String operationOf(HttpRequestBase request) {
+        String path = request.getURI().getPath();
+        if (path == null) {
+            return "";
+        }
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Асинхронное выполнение запроса: неблокирующим транспортом, если он
+     * установлен, иначе блокирующим клиентом в пуле {@link #EXECUTOR}.
+     * @param request запрос
+     * @param parser разбор тела успешного ответа
+     * @param <T> тип результата
+     * @return future с результатом, отмена future прерывает запрос
+     */
+    static <T> CompletableFuture<T> executeAsync(HttpRequestBase request,
+                                                 ResponseParser<T> parser) {
+        HttpTransport nio = CONNECTIONS.getTransport();
+        if (nio == null) {
+            return submit(request, () -> execute(request, parser));
+        }
+        return executeAsync(nio, request, parser);
+    }
+
+    /**
+     * Неблокирующее выполнение запроса с ограничением частоты и повторами,
+     * как в {@link #execute}. Ожидание лимита частоты и задержки повторов
+     * выполняются таймером, поток на это время не занимается.
+     * @param nio транспорт
+     * @param request запрос
+     * @param parser разбор тела успешного ответа
+     * @param <T> тип результата
+     * @return future с результатом, отмена future прерывает запрос
+     */
+    private static <T> CompletableFuture<T> executeAsync(HttpTransport nio,
+                                                         HttpRequestBase request,
+                                                         ResponseParser<T> parser) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attemptAsync(nio, request, parser, 0, result);
+        return result;
+    }
+
+    /**
+     * Попытка неблокирующего запроса.
+     * @param nio транспорт
+     * @param request запрос
+     * @param parser разбор тела успешного ответа
+     * @param attempt номер попытки, начиная с 0
+     * @param result future с результатом запроса
+     * @param <T> тип результата
+     */
+    private static <T> void attemptAsync(HttpTransport nio, HttpRequestBase request,
+                                         ResponseParser<T> parser, int attempt,
+                                         CompletableFuture<T> result) {
+        if (result.isDone()) {
+            return;
+        }
+        RateLimiter rate = rateLimiter;
+        long wait = rate != null ? rate.reserve() : 0;
+        if (wait > 0) {
+            SCHEDULER.schedule(() -> sendAsync(nio, request, parser, attempt, result),
+                    wait, TimeUnit.NANOSECONDS);
+        } else {
+            sendAsync(nio, request, parser, attempt, result);
+        }
+    }
+
+    /**
+     * Отправка запроса транспортом и разбор ответа.
+     * Ответы 429 и 503 повторяются после задержки {@link #retryDelay}.
+     * @param nio транспорт
+     * @param request запрос
+     * @param parser разбор тела успешного ответа
+     * @param attempt номер попытки, начиная с 0
+     * @param result future с результатом запроса
+     * @param <T> тип результата
+     */
+    private static <T> void sendAsync(HttpTransport nio, HttpRequestBase request,
+                                      ResponseParser<T> parser, int attempt,
+                                      CompletableFuture<T> result) {
+        if (result.isDone()) {
+            return;
+        }
+        Metrics.count(Metrics.Counter.REQUESTS, 1);
+        if (request instanceof HttpEntityEnclosingRequestBase
+                && ((HttpEntityEnclosingRequestBase) request).getEntity() != null) {
+            Metrics.count(Metrics.Counter.UPLOAD_BYTES,
+                    ((HttpEntityEnclosingRequestBase) request).getEntity().getContentLength());
+        }
+        long start = Metrics.start();
+        CompletableFuture<HttpResponse> sent = nio.send(request);
+        cancelWith(result, sent);
+        sent.whenComplete((response, error) -> {
+            if (error != null) {
+                result.completeExceptionally(unwrap(error));
+                return;
+            }
+            //без отдельного замера передачи: время до полного получения ответа
+            Metrics.record(Metrics.Stage.SERVER, start);
+            try {
+                int status = response.getStatusLine().getStatusCode();
+                if (status >= 200 && status < 300) {
+                    long parseStart = Metrics.start();
+                    T parsed = parser.parse(response.getEntity());
+                    Metrics.record(Metrics.Stage.PARSE, parseStart);
+                    result.complete(parsed);
+                    return;
+                }
+                if ((status != 429 && status != 503) || attempt >= MAX_RETRIES) {
+                    result.completeExceptionally(parseError(response));
+                    return;
+                }
+                EntityUtils.consume(response.getEntity());
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+
+            long delay = retryDelay(response, attempt);
+            retries.incrementAndGet();
+            retryWaitNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(delay));
+            SCHEDULER.schedule(() -> attemptAsync(nio, request, parser, attempt + 1, result),
+                    delay, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * Отмена future при отмене другого future.
+     * @param outer future, отмену которого нужно передать
+     * @param inner future, который отменяется вместе с outer
+     */
+    private static void cancelWith(CompletableFuture<?> outer, Future<?> inner) {
+        outer.whenComplete((result, error) -> {
+            if (outer.isCancelled()) {
+                inner.cancel(true);
+            }
+        });
+    }
+
+    /**
+     * Преобразование результата future с передачей отмены исходному future.
+     * @param source исходный future
+     * @param mapper преобразование результата
+     * @param <T> тип исходного результата
+     * @param <R> тип результата
+     * @return future с преобразованным результатом
+     */
+    private static <T, R> CompletableFuture<R> thenApplyCancellable(
+            CompletableFuture<T> source, Function<T, R> mapper) {
+        CompletableFuture<R> result = source.thenApply(mapper);
+        cancelWith(result, source);
+        return result;
+    }
+
+    /**
+     * Исходная ошибка из CompletionException.
+     * @param error ошибка завершения future
+     * @return исходная ошибка
+     */
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null
+                ? error.getCause() : error;
+    }
+
+    /**
+     * Разбор тела успешного ответа Face API.
+     * @param <T> тип результата
+     */
+    @FunctionalInterface
+    interface ResponseParser<T> {
+        T parse(HttpEntity responseBody) throws IOException;
+    }
+
+    /**
+     * Запуск запроса в пуле {@link #EXECUTOR}.
+     * При отмене future запрос прерывается, а соединение освобождается.
+     * Если очередь пула заполнена, future сразу завершается
+     * с {@link RejectedExecutionException}, как и у неблокирующего транспорта.
+     * @param request запрос
+     * @param call выполнение запроса и разбор ответа
+     * @param <T> тип результата
+     * @return future с результатом
+     */
+    static <T> CompletableFuture<T> submit(HttpRequestBase request,
+                                                   FaceCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            EXECUTOR.execute(() -> {
+                if (future.isDone()) {
+                    //отменен в очереди
+                    return;
+                }
+                try {
+                    future.complete(call.call());
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                request.abort();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Вызов Face API, выбрасывающий IOException.
+     * @param <T> тип результата
+     */
+    @FunctionalInterface
+    interface FaceCall<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Тело запроса с замером времени передачи и числа отправленных байт.
+     * Обертка устанавливается в запрос один раз и используется при повторах.
+     */
+    private static class UploadTimer extends HttpEntityWrapper {
+
+        private long nanos;
+        private long bytes;
+
+        private UploadTimer(HttpEntity entity) {
+            super(entity);
+        }
+
+        /**
+         * Установка обертки в запрос с телом.
+         * @param request запрос
+         * @return обертка или null, если у запроса нет тела
+         */
+        static UploadTimer wrap(HttpRequestBase request) {
+            if (!(request instanceof HttpEntityEnclosingRequestBase)) {
+                return null;
+            }
+            HttpEntityEnclosingRequestBase enclosing = (HttpEntityEnclosingRequestBase) request;
+            HttpEntity entity = enclosing.getEntity();
+            if (entity == null) {
+                return null;
+            }
+            if (entity instanceof UploadTimer) {
+                return (UploadTimer) entity;
+            }
+            UploadTimer upload = new UploadTimer(entity);
+            enclosing.setEntity(upload);
+            return upload;
+        }
+
+        void reset() {
+            nanos = 0;
+            bytes = 0;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            long start = System.nanoTime();
+            super.writeTo(new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    bytes++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    bytes += len;
+                }
+            });
+            nanos += System.nanoTime() - start;
         }
-        return verifyModel;
     }
 
 }
@@ -0,0 +1,187 @@
+package utils;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Соединения {@link FaceAPI}: общий HTTP клиент, неблокирующий транспорт
+ * и набор регионов.
+ * Каждый объект закрывается только при замене на другой объект того же
+ * вида или в {@link #close()}: настройка HTTP клиента не закрывает
+ * транспорт и регионы. После {@link #close()} HTTP клиент создается заново
+ * с прежними настройками при следующем запросе.
+ */
+final class FaceApiConnections {
+
+    /**
+     * Максимальное время жизни соединения без активности, мс.
+     * Используется, если сервер не прислал заголовок Keep-Alive.
+     */
+    private static final long DEFAULT_KEEP_ALIVE = 30_000;
+
+    /**
+     * Общий HTTP клиент, переиспользующий соединения из пула.
+     */
+    private CloseableHttpClient httpClient;
+
+    /**
+     * Настройки общего HTTP клиента: maxTotal, maxPerRoute, connectTimeout,
+     * socketTimeout (null - клиент не настраивался).
+     */
+    private int[] httpClientConfig;
+
+    /**
+     * HTTP клиент вызывающего кода (null - общий клиент). Не закрывается:
+     * его закрывает тот, кто его создал.
+     */
+    private CloseableHttpClient externalClient;
+
+    /**
+     * Неблокирующий транспорт (null - запросы выполняются HTTP клиентом).
+     */
+    private volatile HttpTransport transport;
+
+    /**
+     * Региональные точки доступа (null - запросы по переданному базовому URL).
+     */
+    private volatile EndpointPool endpoints;
+
+    /**
+     * Создание HTTP клиента. Ранее созданный клиент закрывается.
+     * @param maxTotal максимальное число соединений в пуле
+     * @param maxPerRoute максимальное число соединений на один хост
+     * @param connectTimeout таймаут установки соединения, мс
+     * @param socketTimeout таймаут ожидания данных, мс
+     */
+    synchronized void configureHttpClient(int maxTotal, int maxPerRoute,
+                                          int connectTimeout, int socketTimeout) {
+        closeHttpClient();
+        httpClientConfig = new int[]{maxTotal, maxPerRoute, connectTimeout, socketTimeout};
+    }
+
+    /**
+     * Создание общего HTTP клиента по сохраненным настройкам.
+     * @return CloseableHttpClient
+     */
+    private CloseableHttpClient createHttpClient() {
+        int maxTotal = httpClientConfig[0];
+        int maxPerRoute = httpClientConfig[1];
+        int connectTimeout = httpClientConfig[2];
+        int socketTimeout = httpClientConfig[3];
+
+        PoolingHttpClientConnectionManager connectionManager
+                = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        //проверка соединения, простаивавшего дольше 2 секунд
+        connectionManager.setValidateAfterInactivity(2_000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .build();
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE
+                            .getKeepAliveDuration(response, context);
+                    return keepAlive > 0 ? keepAlive : DEFAULT_KEEP_ALIVE;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(DEFAULT_KEEP_ALIVE, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * HTTP клиент для запроса: клиент вызывающего кода или общий клиент.
+     * Закрытый общий клиент создается заново.
+     * @return CloseableHttpClient
+     * @throws IllegalStateException если клиент не настраивался
+     */
+    synchronized CloseableHttpClient getHttpClient() {
+        if (externalClient != null) {
+            return externalClient;
+        }
+        if (httpClient == null) {
+            if (httpClientConfig == null) {
+                throw new IllegalStateException("HTTP клиент Face API не настроен.");
+            }
+            httpClient = createHttpClient();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Установка HTTP клиента вызывающего кода вместо общего.
+     * Клиент не закрывается ни при замене, ни в {@link #close()}.
+     * @param client клиент или null для общего клиента
+     */
+    synchronized void setHttpClient(CloseableHttpClient client) {
+        externalClient = client;
+    }
+
+    /**
+     * Замена транспорта. Ранее установленный транспорт закрывается.
+     * @param httpTransport транспорт или null
+     */
+    synchronized void setTransport(HttpTransport httpTransport) {
+        HttpTransport previous = transport;
+        transport = httpTransport;
+        if (previous != null && previous != httpTransport) {
+            previous.close();
+        }
+    }
+
+    HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Замена набора регионов. Ранее установленный набор закрывается.
+     * @param pool набор регионов или null
+     * @return true, если установлен новый набор
+     */
+    synchronized boolean setEndpoints(EndpointPool pool) {
+        EndpointPool previous = endpoints;
+        endpoints = pool;
+        if (previous != null && previous != pool) {
+            previous.close();
+        }
+        return pool != null && pool != previous;
+    }
+
+    EndpointPool getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Закрытие набора регионов, транспорта и общего HTTP клиента.
+     * Клиент вызывающего кода больше не используется, но не закрывается.
+     */
+    synchronized void close() {
+        setEndpoints(null);
+        setTransport(null);
+        externalClient = null;
+        closeHttpClient();
+    }
+
+    private void closeHttpClient() {
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            httpClient = null;
+        }
+    }
+}
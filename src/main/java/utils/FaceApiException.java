@@ -0,0 +1,47 @@
+package utils;
+
+import java.io.IOException;
+
+/**
+ * Ошибка, которую вернул Face API.
+ */
+public class FaceApiException extends IOException {
+
+    /**
+     * HTTP статус ответа.
+     */
+    private final int statusCode;
+
+    /**
+     * Код ошибки из тела ответа (например, InvalidImageSize), может быть null.
+     */
+    private final String errorCode;
+
+    public FaceApiException(int statusCode, String message) {
+        this(statusCode, null, message);
+    }
+
+    public FaceApiException(int statusCode, String errorCode, String message) {
+        super(errorCode != null
+                ? String.format("Face API вернул %d (%s): %s", statusCode, errorCode, message)
+                : String.format("Face API вернул %d: %s", statusCode, message));
+        this.statusCode = statusCode;
+        this.errorCode = errorCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Признак превышения лимита запросов.
+     * @return true для ответа 429
+     */
+    public boolean isThrottled() {
+        return statusCode == 429;
+    }
+}
@@ -0,0 +1,48 @@
+package utils;
+
+import models.DetectModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Поиск лиц на фото.
+ * Реализации: {@link RemoteFaceDetector} (Face API), {@link LocalFaceDetector}
+ * (локально, без сети) и {@link PrefilterFaceDetector} (Face API только для фото,
+ * на которых локально найдено лицо).
+ */
+public interface FaceDetector {
+
+    /**
+     * Поиск всех лиц на фото.
+     * @param file фото
+     * @return лица по убыванию размера (пустой список, если лиц нет)
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки чтения фото или запроса
+     */
+    List<DetectModel> detect(File file) throws URISyntaxException, IOException;
+
+    /**
+     * Асинхронный поиск всех лиц на фото. Отмена future прерывает запрос.
+     * @param file фото
+     * @return future с лицами по убыванию размера
+     * @throws URISyntaxException в случае неверного URL
+     */
+    CompletableFuture<List<DetectModel>> detectAsync(File file)
+            throws URISyntaxException;
+
+    /**
+     * Асинхронный поиск всех лиц на уже декодированном фото.
+     * По умолчанию фото читается из файла заново.
+     * @param decoded фото
+     * @return future с лицами по убыванию размера
+     * @throws URISyntaxException в случае неверного URL
+     */
+    default CompletableFuture<List<DetectModel>> detectAsync(DecodedImage decoded)
+            throws URISyntaxException {
+        return detectAsync(decoded.getFile());
+    }
+}
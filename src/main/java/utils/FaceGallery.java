@@ -0,0 +1,370 @@
+package utils;
+
+import com.google.gson.Gson;
+import models.CandidateModel;
+import models.DetectModel;
+import models.VerifyModel;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Локальная галерея лиц для поиска человека по фото (1:N).
+ * <p>
+ * Люди и их фото хранятся в группе людей Face API, список людей
+ * и хэши их лиц - в локальном файле и в {@link FaceIndex}.
+ * Если группа обучена, поиск выполняется одним запросом /identify.
+ * Пока группа не обучена (например, сразу после добавления фото),
+ * индекс отбирает несколько ближайших людей, и лицо сравнивается
+ * только с ними, а не со всей галереей.
+ */
+public class FaceGallery {
+
+    /**
+     * Число людей, отбираемых индексом для сравнения, на одного кандидата.
+     */
+    private static final int SHORTLIST_FACTOR = 3;
+
+    /**
+     * Интервал проверки состояния обучения, мс.
+     */
+    private static final long TRAINING_POLL_MILLIS = 1_000;
+
+    /**
+     * Максимальное время ожидания обучения, мс.
+     */
+    private static final long TRAINING_TIMEOUT_MILLIS = 5 * 60_000;
+
+    private final String baseURL;
+    private final String personGroupId;
+
+    /**
+     * Файл для хранения галереи между запусками (null - без сохранения).
+     */
+    private final File persistFile;
+
+    /**
+     * Люди галереи по personId.
+     */
+    private final Map<String, Person> persons = new LinkedHashMap<>();
+
+    private final FaceIndex index = new FaceIndex();
+
+    /**
+     * Группа обучена после последнего изменения галереи.
+     */
+    private boolean trained;
+
+    /**
+     * Группа создана в Face API.
+     */
+    private boolean groupCreated;
+
+    /**
+     * @param baseURL базовый URL Face API
+     * @param personGroupId идентификатор группы людей
+     * @param persistFile файл для хранения галереи (null - без сохранения)
+     */
+    public FaceGallery(String baseURL, String personGroupId, File persistFile) {
+        this.baseURL = baseURL;
+        this.personGroupId = personGroupId;
+        this.persistFile = persistFile;
+        load();
+    }
+
+    /**
+     * Добавление фото человека в галерею. Человек создается при первом фото.
+     * @param name имя человека
+     * @param file фото с лицом человека
+     * @return лицо, добавленное в галерею
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе или если лица нет
+     */
+    public synchronized DetectModel enroll(String name, File file)
+            throws URISyntaxException, IOException {
+        DetectModel face = FaceAPI.faceDetect(baseURL, file);
+        if (face == null) {
+            throw new IOException("На фото " + file.getName() + " не найдено лицо.");
+        }
+        if (!groupCreated) {
+            PersonGroupAPI.createPersonGroup(baseURL, personGroupId, personGroupId);
+            groupCreated = true;
+        }
+
+        Person person = findByName(name);
+        if (person == null) {
+            person = new Person(PersonGroupAPI.createPerson(baseURL, personGroupId, name),
+                    name, new ArrayList<>());
+            persons.put(person.personId, person);
+        }
+        String persistedFaceId = PersonGroupAPI.addPersonFace(baseURL, personGroupId,
+                person.personId, file, face);
+        long hash = FaceIndex.hash(readImage(file), face);
+        person.faces.add(new PersistedFace(persistedFaceId, hash));
+        index.add(hash, person.personId);
+        trained = false;
+        save();
+        return face;
+    }
+
+    /**
+     * Удаление человека из галереи.
+     * @param name имя человека
+     * @return true, если человек был в галерее
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе
+     */
+    public synchronized boolean remove(String name)
+            throws URISyntaxException, IOException {
+        Person person = findByName(name);
+        if (person == null) {
+            return false;
+        }
+        PersonGroupAPI.deletePerson(baseURL, personGroupId, person.personId);
+        persons.remove(person.personId);
+        rebuildIndex();
+        trained = false;
+        save();
+        return true;
+    }
+
+    /**
+     * Обучение группы и ожидание его завершения.
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе или обучении
+     */
+    public synchronized void train() throws URISyntaxException, IOException {
+        if (persons.isEmpty()) {
+            return;
+        }
+        PersonGroupAPI.train(baseURL, personGroupId);
+        long deadline = System.currentTimeMillis() + TRAINING_TIMEOUT_MILLIS;
+        while (true) {
+            String status = PersonGroupAPI.getTrainingStatus(baseURL, personGroupId);
+            if ("succeeded".equals(status)) {
+                break;
+            }
+            if ("failed".equals(status)) {
+                throw new IOException("Обучение группы " + personGroupId + " не удалось.");
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Обучение группы " + personGroupId
+                        + " не завершилось вовремя.");
+            }
+            try {
+                Thread.sleep(TRAINING_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Ожидание обучения прервано.");
+            }
+        }
+        trained = true;
+        save();
+    }
+
+    /**
+     * Поиск человека по фото.
+     * @param file фото с лицом
+     * @param maxCandidates максимальное число кандидатов
+     * @return кандидаты по убыванию уверенности (пустой список, если лица нет
+     * или совпадений не найдено)
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе
+     */
+    public synchronized List<CandidateModel> identify(File file, int maxCandidates)
+            throws URISyntaxException, IOException {
+        List<CandidateModel> candidates = new ArrayList<>();
+        DetectModel face = FaceAPI.faceDetect(baseURL, file);
+        if (face == null || persons.isEmpty()) {
+            return candidates;
+        }
+
+        if (trained) {
+            for (CandidateModel candidate : PersonGroupAPI.identify(baseURL,
+                    personGroupId, face, maxCandidates)) {
+                Person person = persons.get(candidate.getPersonId());
+                if (person != null) {
+                    candidate.setName(person.name);
+                    candidates.add(candidate);
+                }
+            }
+            return candidates;
+        }
+
+        //группа не обучена: сравнение только с ближайшими по индексу людьми
+        long hash = FaceIndex.hash(readImage(file), face);
+        List<String> shortlist = index.nearest(hash, maxCandidates * SHORTLIST_FACTOR);
+        List<CompletableFuture<VerifyModel>> futures = new ArrayList<>();
+        for (String personId : shortlist) {
+            futures.add(PersonGroupAPI.verifyPersonAsync(baseURL, face,
+                    personGroupId, personId));
+        }
+        for (int i = 0; i < shortlist.size(); i++) {
+            VerifyModel verify = FaceAPI.await(futures.get(i));
+            if (verify.isIdentical()) {
+                Person person = persons.get(shortlist.get(i));
+                candidates.add(new CandidateModel(person.personId, person.name,
+                        verify.getConfidence()));
+            }
+        }
+        candidates.sort((a, b) -> Double.compare(b.getConfidence(), a.getConfidence()));
+        return candidates.size() > maxCandidates
+                ? new ArrayList<>(candidates.subList(0, maxCandidates)) : candidates;
+    }
+
+    public synchronized int size() {
+        return persons.size();
+    }
+
+    public synchronized boolean isTrained() {
+        return trained;
+    }
+
+    /**
+     * Индекс лиц галереи (для оценки затрат поиска).
+     * @return индекс
+     */
+    public FaceIndex getIndex() {
+        return index;
+    }
+
+    private Person findByName(String name) {
+        for (Person person : persons.values()) {
+            if (person.name.equals(name)) {
+                return person;
+            }
+        }
+        return null;
+    }
+
+    private static BufferedImage readImage(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Неизвестный формат фото: " + file.getName());
+        }
+        return image;
+    }
+
+    private void rebuildIndex() {
+        index.clear();
+        for (Person person : persons.values()) {
+            for (PersistedFace face : person.faces) {
+                index.add(face.hash, person.personId);
+            }
+        }
+    }
+
+    /**
+     * Загрузка галереи из файла и построение индекса.
+     */
+    private void load() {
+        if (persistFile == null || !persistFile.isFile()) {
+            return;
+        }
+        try (Reader reader = new InputStreamReader(
+                new FileInputStream(persistFile), StandardCharsets.UTF_8)) {
+            Saved saved = new Gson().fromJson(reader, Saved.class);
+            if (saved == null || !personGroupId.equals(saved.personGroupId)
+                    || saved.persons == null) {
+                return;
+            }
+            for (Person person : saved.persons) {
+                if (person.faces == null) {
+                    person.faces = new ArrayList<>();
+                }
+                persons.put(person.personId, person);
+            }
+            trained = saved.trained;
+            groupCreated = true;
+            rebuildIndex();
+        } catch (IOException | RuntimeException e) {
+            //поврежденный файл не мешает работе, галерея будет заполнена заново
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Сохранение галереи в файл через временный файл.
+     */
+    private void save() {
+        if (persistFile == null) {
+            return;
+        }
+        try {
+            File dir = persistFile.getAbsoluteFile().getParentFile();
+            if (dir != null) {
+                Files.createDirectories(dir.toPath());
+            }
+            File tmp = new File(dir, persistFile.getName() + ".tmp");
+            try (Writer writer = new OutputStreamWriter(
+                    Files.newOutputStream(tmp.toPath()), StandardCharsets.UTF_8)) {
+                new Gson().toJson(new Saved(personGroupId, trained,
+                        new ArrayList<>(persons.values())), writer);
+            }
+            Files.move(tmp.toPath(), persistFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Содержимое файла галереи.
+     */
+    private static class Saved {
+        private String personGroupId;
+        private boolean trained;
+        private List<Person> persons;
+
+        Saved(String personGroupId, boolean trained, List<Person> persons) {
+            this.personGroupId = personGroupId;
+            this.trained = trained;
+            this.persons = persons;
+        }
+    }
+
+    /**
+     * Человек галереи.
+     */
+    private static class Person {
+        private String personId;
+        private String name;
+        private List<PersistedFace> faces;
+
+        Person(String personId, String name, List<PersistedFace> faces) {
+            this.personId = personId;
+            this.name = name;
+            this.faces = faces;
+        }
+    }
+
+    /**
+     * Фото человека в группе Face API и хэш лица на нем.
+     */
+    private static class PersistedFace {
+        private String persistedFaceId;
+        private long hash;
+
+        PersistedFace(String persistedFaceId, long hash) {
+            this.persistedFaceId = persistedFaceId;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package utils;
+
+import models.DetectModel;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Локальный индекс лиц галереи для отбора кандидатов без запросов к Face API.
+ * Лицо описывается 64-битным разностным хэшем (dHash) вырезанного лица,
+ * хэши хранятся в BK-дереве по расстоянию Хэмминга: поиск ближайших
+ * просматривает только ветви, которые могут содержать близкие хэши,
+ * а не всю галерею.
+ * <p>
+ * Хэш устойчив к масштабу и яркости, но не заменяет сравнение лиц:
+ * индекс только сужает список кандидатов для проверки в Face API.
+ */
+public class FaceIndex {
+
+    /**
+     * Радиусы поиска ближайших: поиск расширяется, пока не найдено
+     * достаточно кандидатов. Последний радиус охватывает все хэши.
+     */
+    private static final int[] SEARCH_RADII = {6, 12, 20, 32, 64};
+
+    /**
+     * Корень BK-дерева.
+     */
+    private Node root;
+
+    /**
+     * Число хэшей в индексе.
+     */
+    private int size;
+
+    /**
+     * Число узлов, просмотренных последним поиском.
+     */
+    private int lastVisited;
+
+    /**
+     * Разностный хэш лица: лицо уменьшается до 9x8 в оттенках серого,
+     * каждый бит - сравнение яркости соседних по горизонтали пикселей.
+     * @param image фото
+     * @param face лицо на фото
+     * @return 64-битный хэш
+     */
+    public static long hash(BufferedImage image, DetectModel face) {
+        int x = Math.max(0, face.getX());
+        int y = Math.max(0, face.getY());
+        int width = Math.max(1, Math.min(face.getWidth(), image.getWidth() - x));
+        int height = Math.max(1, Math.min(face.getHeight(), image.getHeight() - y));
+
+        BufferedImage small = new BufferedImage(9, 8, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = small.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, 9, 8, x, y, x + width, y + height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        long hash = 0;
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                int left = small.getRaster().getSample(col, row, 0);
+                int right = small.getRaster().getSample(col + 1, row, 0);
+                hash = (hash << 1) | (left > right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Добавление лица человека в индекс.
+     * @param hash хэш лица
+     * @param personId идентификатор человека
+     */
+    public synchronized void add(long hash, String personId) {
+        size++;
+        if (root == null) {
+            root = new Node(hash, personId);
+            return;
+        }
+        Node node = root;
+        while (true) {
+            int distance = Long.bitCount(node.hash ^ hash);
+            if (distance == 0) {
+                node.personIds.add(personId);
+                return;
+            }
+            Node child = node.children.get(distance);
+            if (child == null) {
+                node.children.put(distance, new Node(hash, personId));
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Ближайшие к хэшу люди, по возрастанию расстояния до их ближайшего лица.
+     * @param hash хэш лица
+     * @param limit максимальное число людей
+     * @return идентификаторы людей
+     */
+    public synchronized List<String> nearest(long hash, int limit) {
+        Map<String, Integer> distances = new HashMap<>();
+        lastVisited = 0;
+        for (int radius : SEARCH_RADII) {
+            distances.clear();
+            lastVisited += search(root, hash, radius, distances);
+            if (distances.size() >= limit) {
+                break;
+            }
+        }
+
+        List<Map.Entry<String, Integer>> sorted = new ArrayList<>(distances.entrySet());
+        sorted.sort(Map.Entry.comparingByValue());
+        List<String> personIds = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : sorted) {
+            if (personIds.size() >= limit) {
+                break;
+            }
+            personIds.add(entry.getKey());
+        }
+        return personIds;
+    }
+
+    /**
+     * Поиск хэшей на расстоянии не больше радиуса.
+     * По неравенству треугольника просматриваются только дочерние узлы
+     * с расстоянием в [d - radius, d + radius].
+     * @param node корень поддерева (может быть null)
+     * @param hash искомый хэш
+     * @param radius радиус поиска
+     * @param distances найденные люди и расстояния (дополняется)
+     * @return число просмотренных узлов
+     */
+    private static int search(Node node, long hash, int radius,
+                              Map<String, Integer> distances) {
+        if (node == null) {
+            return 0;
+        }
+        int visited = 1;
+        int distance = Long.bitCount(node.hash ^ hash);
+        if (distance <= radius) {
+            for (String personId : node.personIds) {
+                distances.merge(personId, distance, Math::min);
+            }
+        }
+        for (Map.Entry<Integer, Node> child : node.children.entrySet()) {
+            if (Math.abs(child.getKey() - distance) <= radius) {
+                visited += search(child.getValue(), hash, radius, distances);
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Удаление всех лиц.
+     */
+    public synchronized void clear() {
+        root = null;
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Число узлов, просмотренных последним поиском (для оценки затрат поиска).
+     * @return число узлов
+     */
+    public synchronized int getLastVisited() {
+        return lastVisited;
+    }
+
+    /**
+     * Узел BK-дерева.
+     */
+    private static class Node {
+
+        private final long hash;
+
+        /**
+         * Люди, у которых есть лицо с этим хэшем.
+         */
+        private final List<String> personIds = new ArrayList<>(1);
+
+        /**
+         * Дочерние узлы по расстоянию Хэмминга до этого узла.
+         */
+        private final Map<Integer, Node> children = new LinkedHashMap<>();
+
+        Node(long hash, String personId) {
+            this.hash = hash;
+            personIds.add(personId);
+        }
+    }
+}
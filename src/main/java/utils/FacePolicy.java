@@ -0,0 +1,64 @@
+package utils;
+
+import models.DetectModel;
+
+import java.util.List;
+
+/**
+ * Правило выбора лица для сравнения, если на фото найдено несколько лиц.
+ */
+public enum FacePolicy {
+
+    /**
+     * Лицо с наибольшей площадью прямоугольника.
+     */
+    LARGEST {
+        @Override
+        double score(DetectModel face, double imageWidth, double imageHeight) {
+            return (double) face.getWidth() * face.getHeight();
+        }
+    },
+
+    /**
+     * Лицо, центр которого ближе всего к центру фото.
+     */
+    MOST_CENTRAL {
+        @Override
+        double score(DetectModel face, double imageWidth, double imageHeight) {
+            double dx = face.getX() + face.getWidth() / 2.0 - imageWidth / 2;
+            double dy = face.getY() + face.getHeight() / 2.0 - imageHeight / 2;
+            return -(dx * dx + dy * dy);
+        }
+    };
+
+    /**
+     * Оценка лица: выбирается лицо с наибольшей оценкой.
+     * @param face лицо
+     * @param imageWidth ширина фото
+     * @param imageHeight высота фото
+     * @return оценка
+     */
+    abstract double score(DetectModel face, double imageWidth, double imageHeight);
+
+    /**
+     * Выбор лица. При равных оценках выбирается лицо, идущее раньше
+     * (Face API возвращает лица по убыванию размера).
+     * @param faces найденные лица
+     * @param imageWidth ширина фото
+     * @param imageHeight высота фото
+     * @return выбранное лицо или null, если лиц нет
+     */
+    public DetectModel select(List<DetectModel> faces, double imageWidth,
+                              double imageHeight) {
+        DetectModel best = null;
+        double bestScore = 0;
+        for (DetectModel face : faces) {
+            double score = score(face, imageWidth, imageHeight);
+            if (best == null || score > bestScore) {
+                best = face;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,560 @@
+package utils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import models.DetectModel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Встроенный HTTP сервис распознавания и сравнения лиц для нескольких
+ * клиентов (киосков) с общими кэшами и общим ограничением частоты.
+ * <p>
+ * Реализует /detect и /verify с теми же форматами, что и Face API, поэтому
+ * клиент - тот же {@link FaceAPI} с базовым URL сервиса. Ключ подписки
+ * клиента не используется, запросы к Face API выполняются с ключом сервиса.
+ * <p>
+ * Одновременные запросы /detect с одинаковым фото и параметрами выполняются
+ * одним запросом к Face API, повторные берутся из кэша распознавания.
+ * Сравнения собираются в пачки {@link VerifyBatcher}. При переполнении
+ * очередей сервис отвечает 503 с Retry-After, и клиент повторяет запрос.
+ */
+public class FaceService implements Closeable {
+
+    /**
+     * Максимальный размер фото, байт (как у Face API).
+     */
+    private static final int MAX_IMAGE_BYTES = 6 * 1024 * 1024;
+
+    /**
+     * Число фото, сохраненных для повторного распознавания в другом регионе.
+     */
+    private static final int SPOOL_SIZE = 1024;
+
+    /**
+     * Число запоминаемых выданных лиц.
+     */
+    private static final int ISSUED_FACES = 10_000;
+
+    /**
+     * Retry-After при переполнении очереди, с.
+     */
+    private static final int BUSY_RETRY_AFTER = 1;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Базовый URL Face API.
+     */
+    private final String baseURL;
+
+    private final VerifyBatcher batcher;
+
+    /**
+     * Число сохраненных фото.
+     */
+    private final int spoolSize;
+
+    /**
+     * Выполняющиеся распознавания по ключу фото и параметров.
+     */
+    private final Map<String, CompletableFuture<List<DetectModel>>> detecting
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Папка с полученными фото.
+     */
+    private final File spoolDir;
+
+    /**
+     * Полученные фото по ключу содержимого в порядке обращения.
+     * Вытесненное фото удаляется после завершения его распознаваний,
+     * выданные по нему лица забываются.
+     */
+    private final LinkedHashMap<String, SpoolEntry> spool
+            = new LinkedHashMap<String, SpoolEntry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SpoolEntry> eldest) {
+                    if (size() > spoolSize) {
+                        evict(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * Выданные лица по faceId: регион и фото нужны для сравнения
+     * (см. {@link FaceAPI#verifyAsync}). Блокировка берется после
+     * блокировки {@link #spool}.
+     */
+    private final LinkedHashMap<String, DetectModel> issued
+            = new LinkedHashMap<String, DetectModel>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DetectModel> eldest) {
+                    return size() > ISSUED_FACES;
+                }
+            };
+
+    private final AtomicLong detectRequests = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param address адрес и порт (порт 0 - свободный)
+     * @param baseURL базовый URL Face API
+     * @param threads число потоков чтения запросов и записи ответов
+     * @param batcher сравнение пачками, закрывается вместе с сервисом
+     * @throws IOException в случае ошибки запуска
+     */
+    public FaceService(InetSocketAddress address, String baseURL, int threads,
+                       VerifyBatcher batcher) throws IOException {
+        this(address, baseURL, threads, batcher, SPOOL_SIZE);
+    }
+
+    /**
+     * @param address адрес и порт (порт 0 - свободный)
+     * @param baseURL базовый URL Face API
+     * @param threads число потоков чтения запросов и записи ответов
+     * @param batcher сравнение пачками, закрывается вместе с сервисом
+     * @param spoolSize число сохраненных фото
+     * @throws IOException в случае ошибки запуска
+     */
+    FaceService(InetSocketAddress address, String baseURL, int threads,
+                VerifyBatcher batcher, int spoolSize) throws IOException {
+        this.baseURL = baseURL;
+        this.batcher = batcher;
+        this.spoolSize = spoolSize;
+        this.spoolDir = Files.createTempDirectory("faceverify-service").toFile();
+
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "face-service-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/face/v1.0/detect", this::handleDetect);
+        server.createContext("/face/v1.0/verify", this::handleVerify);
+        server.createContext("/status", this::handleStatus);
+        server.start();
+
+        Metrics.gauge("serviceDetects", detectRequests::get);
+        Metrics.gauge("serviceCoalesced", coalesced::get);
+        Metrics.gauge("serviceVerifies", batcher::getRequests);
+        Metrics.gauge("serviceVerifyBatches", batcher::getBatches);
+        Metrics.gauge("serviceVerifyMerged", batcher::getMerged);
+    }
+
+    /**
+     * Базовый URL сервиса для клиентов.
+     * @param host имя или адрес сервера, доступный клиентам
+     * @return URL вида http://host:port/face/v1.0
+     */
+    public String getBaseURL(String host) {
+        return String.format("http://%s:%d/face/v1.0", host, server.getAddress().getPort());
+    }
+
+    public long getDetectRequests() {
+        return detectRequests.get();
+    }
+
+    /**
+     * @return число запросов /detect, присоединенных к выполняющемуся запросу
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return папка с сохраненными фото
+     */
+    File getSpoolDir() {
+        return spoolDir;
+    }
+
+    /**
+     * @param faceId faceId
+     * @return true, если лицо выдано сервисом и его фото не вытеснено
+     */
+    boolean isIssued(String faceId) {
+        synchronized (issued) {
+            return issued.containsKey(faceId);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        batcher.close();
+        executor.shutdownNow();
+        synchronized (spool) {
+            for (SpoolEntry entry : spool.values()) {
+                entry.file.delete();
+            }
+            spool.clear();
+        }
+        spoolDir.delete();
+    }
+
+    /**
+     * Обработка /detect: фото в теле запроса, параметры - как у Face API.
+     * @param exchange запрос
+     * @throws IOException в случае ошибки ответа
+     */
+    private void handleDetect(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendError(exchange, 405, "MethodNotAllowed", "Only POST is supported.");
+            return;
+        }
+        byte[] body = readBody(exchange);
+        if (body == null) {
+            sendError(exchange, 400, "InvalidImageSize", "Image size is too big.");
+            return;
+        }
+        if (body.length == 0) {
+            sendError(exchange, 400, "InvalidImage", "Image is empty.");
+            return;
+        }
+        detectRequests.incrementAndGet();
+        DetectOptions options = DetectOptions.fromQuery(exchange.getRequestURI().getRawQuery());
+        String photoKey = DetectionCache.key(body);
+        String key = photoKey + options.cacheKey();
+
+        //одинаковое фото от нескольких клиентов - один запрос
+        CompletableFuture<List<DetectModel>> created = new CompletableFuture<>();
+        CompletableFuture<List<DetectModel>> existing = detecting.putIfAbsent(key, created);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            respond(exchange, existing, FaceService::writeFaces);
+            return;
+        }
+        created.whenComplete((faces, error) -> detecting.remove(key, created));
+        SpoolEntry entry = null;
+        try {
+            SpoolEntry spooled = spool(photoKey, body);
+            entry = spooled;
+            FaceAPI.detectFacesAsync(baseURL, spooled.file, options).whenComplete((faces, error) -> {
+                release(spooled, error == null ? faces : null);
+                if (error != null) {
+                    created.completeExceptionally(error);
+                } else {
+                    created.complete(faces);
+                }
+            });
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            if (entry != null) {
+                release(entry, null);
+            }
+            created.completeExceptionally(e);
+        }
+        respond(exchange, created, FaceService::writeFaces);
+    }
+
+    /**
+     * Обработка /verify: {"faceId1": ..., "faceId2": ...}.
+     * @param exchange запрос
+     * @throws IOException в случае ошибки ответа
+     */
+    private void handleVerify(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendError(exchange, 405, "MethodNotAllowed", "Only POST is supported.");
+            return;
+        }
+        byte[] body = readBody(exchange);
+        String faceId1;
+        String faceId2;
+        try {
+            JsonObject json = new JsonParser()
+                    .parse(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+            faceId1 = json.get("faceId1").getAsString();
+            faceId2 = json.get("faceId2").getAsString();
+        } catch (RuntimeException e) {
+            sendError(exchange, 400, "BadArgument", "Request body is invalid.");
+            return;
+        }
+        respond(exchange, batcher.submit(issuedFace(faceId1), issuedFace(faceId2)),
+                (writer, verifyModel) -> verifyModel.write(writer));
+    }
+
+    /**
+     * Обработка /status: замеры и счетчики сервиса.
+     * @param exchange запрос
+     * @throws IOException в случае ошибки ответа
+     */
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        readBody(exchange);
+        send(exchange, 200, Metrics.toJson().toString());
+    }
+
+    /**
+     * Лицо, выданное сервисом, или лицо только с faceId, если сервис
+     * его не выдавал (например, после перезапуска).
+     * @param faceId faceId
+     * @return DetectModel
+     */
+    private DetectModel issuedFace(String faceId) {
+        synchronized (issued) {
+            DetectModel face = issued.get(faceId);
+            if (face != null) {
+                return face;
+            }
+        }
+        DetectModel face = new DetectModel();
+        face.setFaceId(faceId);
+        face.setDetectedAt(System.currentTimeMillis());
+        return face;
+    }
+
+    /**
+     * Сохранение фото в файл для {@link FaceAPI} (одно фото - один файл).
+     * Файл закрепляется до {@link #release}, вытеснение его не удаляет.
+     * @param photoKey ключ содержимого фото
+     * @param body фото
+     * @return закрепленная запись с файлом
+     * @throws IOException в случае ошибки записи
+     */
+    private SpoolEntry spool(String photoKey, byte[] body) throws IOException {
+        synchronized (spool) {
+            SpoolEntry entry = spool.get(photoKey);
+            if (entry != null) {
+                entry.pins++;
+                return entry;
+            }
+        }
+        //у каждой записи свой файл: вытесненный, но еще читаемый файл
+        //не перезаписывается новой записью того же фото
+        File file = File.createTempFile(photoKey, ".jpg", spoolDir);
+        try {
+            Files.write(file.toPath(), body);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        synchronized (spool) {
+            SpoolEntry entry = spool.get(photoKey);
+            if (entry != null) {
+                //то же фото сохранено параллельно
+                file.delete();
+            } else {
+                entry = new SpoolEntry(file);
+                spool.put(photoKey, entry);
+            }
+            entry.pins++;
+            return entry;
+        }
+    }
+
+    /**
+     * Снятие закрепления фото после распознавания.
+     * Найденные лица запоминаются, если фото еще не вытеснено.
+     * @param entry запись фото
+     * @param faces найденные лица (null - ошибка распознавания)
+     */
+    private void release(SpoolEntry entry, List<DetectModel> faces) {
+        synchronized (spool) {
+            if (faces != null && !entry.evicted) {
+                synchronized (issued) {
+                    for (DetectModel face : faces) {
+                        if (face.getFaceId() != null) {
+                            issued.put(face.getFaceId(), face);
+                            entry.faceIds.add(face.getFaceId());
+                        }
+                    }
+                }
+            }
+            entry.pins--;
+            if (entry.evicted && entry.pins == 0) {
+                entry.file.delete();
+            }
+        }
+    }
+
+    /**
+     * Вытеснение фото из {@link #spool}, вызывается под его блокировкой.
+     * Лица этого фото больше не сравниваются с повторным распознаванием,
+     * файл удаляется сразу или после последнего распознавания.
+     * @param entry запись фото
+     */
+    private void evict(SpoolEntry entry) {
+        entry.evicted = true;
+        synchronized (issued) {
+            for (String faceId : entry.faceIds) {
+                issued.remove(faceId);
+            }
+        }
+        entry.faceIds.clear();
+        if (entry.pins == 0) {
+            entry.file.delete();
+        }
+    }
+
+    /**
+     * Ответ по завершении future в потоке сервиса.
+     * @param exchange запрос
+     * @param future результат
+     * @param body запись результата в JSON
+     * @param <T> тип результата
+     */
+    private <T> void respond(HttpExchange exchange, CompletableFuture<T> future,
+                             BodyWriter<T> body) {
+        future.whenCompleteAsync((result, error) -> {
+            try {
+                if (error != null) {
+                    sendFailure(exchange, error);
+                    return;
+                }
+                StringWriter json = new StringWriter();
+                try (JsonWriter writer = new JsonWriter(json)) {
+                    body.write(writer, result);
+                }
+                send(exchange, 200, json.toString());
+            } catch (IOException | RuntimeException e) {
+                //клиент закрыл соединение
+                exchange.close();
+            }
+        }, executor);
+    }
+
+    /**
+     * Ответ с ошибкой в формате Face API.
+     * @param exchange запрос
+     * @param error ошибка
+     * @throws IOException в случае ошибки ответа
+     */
+    private static void sendFailure(HttpExchange exchange, Throwable error) throws IOException {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof ImageQualityException) {
+            sendError(exchange, 400, "InvalidImage", error.getMessage());
+        } else if (error instanceof FaceApiException) {
+            FaceApiException apiError = (FaceApiException) error;
+            if (apiError.isThrottled()) {
+                exchange.getResponseHeaders().set("Retry-After",
+                        Integer.toString(BUSY_RETRY_AFTER));
+            }
+            sendError(exchange, apiError.getStatusCode(),
+                    apiError.getErrorCode() != null ? apiError.getErrorCode() : "Unspecified",
+                    apiError.getMessage());
+        } else if (error instanceof RejectedExecutionException) {
+            //очередь заполнена: клиент повторит запрос после задержки
+            exchange.getResponseHeaders().set("Retry-After", Integer.toString(BUSY_RETRY_AFTER));
+            sendError(exchange, 503, "ServiceBusy", error.getMessage());
+        } else {
+            sendError(exchange, 502, "BadGateway", String.valueOf(error.getMessage()));
+        }
+    }
+
+    private static void writeFaces(JsonWriter writer, List<DetectModel> faces)
+            throws IOException {
+        writer.beginArray();
+        for (DetectModel face : faces) {
+            face.write(writer);
+        }
+        writer.endArray();
+    }
+
+    /**
+     * Чтение тела запроса.
+     * @param exchange запрос
+     * @return тело или null, если оно больше {@link #MAX_IMAGE_BYTES}
+     * @throws IOException в случае ошибки чтения
+     */
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (out.size() + read > MAX_IMAGE_BYTES) {
+                    return null;
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void sendError(HttpExchange exchange, int status,
+                                  String code, String message) throws IOException {
+        JsonObject error = new JsonObject();
+        error.addProperty("code", code);
+        error.addProperty("message", message);
+        JsonObject body = new JsonObject();
+        body.add("error", error);
+        send(exchange, status, body.toString());
+    }
+
+    private static void send(HttpExchange exchange, int status, String json)
+            throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Запись результата в тело ответа.
+     * @param <T> тип результата
+     */
+    @FunctionalInterface
+    private interface BodyWriter<T> {
+        void write(JsonWriter writer, T result) throws IOException;
+    }
+
+    /**
+     * Сохраненное фото. Поля изменяются под блокировкой {@link #spool}.
+     */
+    private static final class SpoolEntry {
+
+        private final File file;
+
+        /**
+         * Число выполняющихся распознаваний фото.
+         */
+        private int pins;
+
+        /**
+         * Фото вытеснено, файл удаляется после последнего распознавания.
+         */
+        private boolean evicted;
+
+        /**
+         * faceId лиц, выданных по этому фото.
+         */
+        private final List<String> faceIds = new ArrayList<>();
+
+        private SpoolEntry(File file) {
+            this.file = file;
+        }
+    }
+}
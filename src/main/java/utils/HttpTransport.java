@@ -0,0 +1,32 @@
+package utils;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Транспорт для неблокирующего выполнения запросов к Face API.
+ * Устанавливается в {@link FaceAPI#setTransport(HttpTransport)}, без него
+ * запросы выполняются блокирующим HTTP клиентом.
+ */
+public interface HttpTransport extends Closeable {
+
+    /**
+     * Отправка запроса без ожидания ответа.
+     * Тело ответа читается целиком до завершения future.
+     * Future завершается в потоке ввода-вывода транспорта, поэтому
+     * его обработчики не должны выполнять блокирующие вызовы.
+     * @param request запрос
+     * @return future с ответом, отмена future прерывает запрос
+     */
+    CompletableFuture<HttpResponse> send(HttpRequestBase request);
+
+    /**
+     * Закрытие транспорта и всех соединений.
+     * Запросы, ожидающие отправки, завершаются с ошибкой.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,587 @@
+package utils;
+
+import models.DetectModel;
+import models.FacePoint;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Подготовка фото перед отправкой в Face API.
+ * Большие фото уменьшаются до заданного размера и пережимаются в JPEG,
+ * чтобы не передавать по сети мегабайты ради одного лица.
+ */
+public class ImagePreprocessor {
+
+    /**
+     * Максимальный размер стороны изображения по умолчанию, px.
+     */
+    public static final int DEFAULT_MAX_DIMENSION = 1280;
+
+    /**
+     * Качество JPEG по умолчанию.
+     */
+    public static final float DEFAULT_QUALITY = 0.85f;
+
+    /**
+     * Поле вокруг лица при вырезании, доля большей стороны лица
+     * с каждой стороны.
+     */
+    public static final double DEFAULT_CROP_PADDING = 0.5;
+
+    /**
+     * Доля площади фото, начиная с которой вырезание не дает выигрыша
+     * и отправляется все фото.
+     */
+    private static final double MAX_CROP_AREA = 0.6;
+
+    /**
+     * Минимальная сторона вырезанной области (ограничение Face API), px.
+     */
+    private static final int MIN_CROP_SIZE = 36;
+
+    /**
+     * Буфер для сжатия, переиспользуется в каждом потоке. Результат копируется
+     * из него: фото отправляется позже и, возможно, из другого потока.
+     */
+    private static final ThreadLocal<ExposedByteArrayOutputStream> BUFFER
+            = ThreadLocal.withInitial(() -> new ExposedByteArrayOutputStream(256 * 1024));
+
+    /**
+     * Общее число сэкономленных байт по всем запросам.
+     */
+    private static final AtomicLong TOTAL_BYTES_SAVED = new AtomicLong();
+
+    /**
+     * Общее число подготовленных фото.
+     */
+    private static final AtomicLong TOTAL_PREPARED = new AtomicLong();
+
+    /**
+     * Максимальный размер стороны изображения, px.
+     */
+    private final int maxDimension;
+
+    /**
+     * Качество JPEG от 0 до 1.
+     */
+    private final float quality;
+
+    public ImagePreprocessor() {
+        this(DEFAULT_MAX_DIMENSION, DEFAULT_QUALITY);
+    }
+
+    public ImagePreprocessor(int maxDimension, float quality) {
+        if (maxDimension <= 0 || quality <= 0 || quality > 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Неверные параметры: maxDimension=%d, quality=%.2f",
+                    maxDimension, quality));
+        }
+        this.maxDimension = maxDimension;
+        this.quality = quality;
+    }
+
+    /**
+     * Общее число сэкономленных байт по всем запросам.
+     * @return число байт
+     */
+    public static long getTotalBytesSaved() {
+        return TOTAL_BYTES_SAVED.get();
+    }
+
+    /**
+     * Общее число подготовленных фото.
+     * @return число фото
+     */
+    public static long getTotalPrepared() {
+        return TOTAL_PREPARED.get();
+    }
+
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    /**
+     * Размер фото по заголовку, без декодирования пикселей.
+     * @param file фото
+     * @return {ширина, высота}
+     * @throws IOException в случае ошибки чтения или неизвестного формата
+     */
+    public static int[] readSize(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input == null
+                    ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Неизвестный формат фото: " + file.getName());
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new int[]{reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Подготовка фото к отправке.
+     * Если фото не больше максимального размера и ограничения Face API
+     * на размер файла, оно отправляется без изменений.
+     * Возвращенный результат не зависит от потока и может отправляться позже.
+     * @param file фото
+     * @return подготовленное фото
+     * @throws IOException в случае ошибки чтения или сжатия
+     */
+    public PreparedImage prepare(File file) throws IOException {
+        return prepare(file, null);
+    }
+
+    /**
+     * Подготовка фото к отправке с исправлением яркости.
+     * Если таблица яркости задана или файл больше ограничения Face API
+     * ({@link ImageQuality#MAX_FILE_BYTES}), фото пережимается при любом размере.
+     * Возвращенный результат не зависит от потока и может отправляться позже.
+     * @param file фото
+     * @param levels таблица яркости из {@link ImageQuality.Report#getLevels()}
+     * (null - без исправления)
+     * @return подготовленное фото
+     * @throws IOException в случае ошибки чтения или сжатия
+     */
+    public PreparedImage prepare(File file, int[] levels) throws IOException {
+        long originalBytes = file.length();
+        TOTAL_PREPARED.incrementAndGet();
+
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input == null
+                    ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                return PreparedImage.original(file);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int maxSide = Math.max(width, height);
+                if (maxSide <= maxDimension && levels == null
+                        && originalBytes <= ImageQuality.MAX_FILE_BYTES) {
+                    return PreparedImage.original(file);
+                }
+
+                //грубое уменьшение при декодировании, без чтения всех пикселей
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = maxSide / maxDimension;
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                BufferedImage image = scale(reader.read(0, param));
+                if (levels != null) {
+                    applyLevels(image, levels);
+                }
+                return encodePrepared(file, originalBytes, width, height, image, levels);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Подготовка уже декодированного фото к отправке, как в
+     * {@link #prepare(File, int[])}, без повторного чтения файла.
+     * Декодированное изображение не изменяется. Если фото отправляется
+     * без изменений, тело запроса - {@link DecodedImage#getData()}.
+     * @param decoded фото, декодированное с прореживанием не сильнее,
+     * чем до {@link #getMaxDimension()}
+     * @param levels таблица яркости из {@link ImageQuality.Report#getLevels()}
+     * (null - без исправления)
+     * @return подготовленное фото
+     * @throws IOException в случае ошибки сжатия
+     */
+    public PreparedImage prepare(DecodedImage decoded, int[] levels) throws IOException {
+        long originalBytes = decoded.getData().length;
+        TOTAL_PREPARED.incrementAndGet();
+        int width = decoded.getWidth();
+        int height = decoded.getHeight();
+        if (Math.max(width, height) <= maxDimension && levels == null
+                && originalBytes <= ImageQuality.MAX_FILE_BYTES) {
+            return PreparedImage.original(decoded.getFile());
+        }
+
+        BufferedImage image = scale(decoded.getImage());
+        if (levels != null) {
+            //исправление на копии: декодированное фото еще отображается
+            if (image == decoded.getImage()) {
+                image = copy(image);
+            }
+            applyLevels(image, levels);
+        }
+        return encodePrepared(decoded.getFile(), originalBytes, width, height, image, levels);
+    }
+
+    /**
+     * Сжатие уменьшенного фото и выбор между ним и оригиналом.
+     * @param file исходный файл
+     * @param originalBytes размер исходного файла, байт
+     * @param width ширина исходного фото
+     * @param height высота исходного фото
+     * @param image уменьшенное и исправленное изображение
+     * @param levels таблица яркости (null - яркость не исправлялась)
+     * @return подготовленное фото
+     * @throws IOException в случае ошибки сжатия
+     */
+    private PreparedImage encodePrepared(File file, long originalBytes, int width, int height,
+                                         BufferedImage image, int[] levels) throws IOException {
+        ExposedByteArrayOutputStream buffer = BUFFER.get();
+        buffer.reset();
+        encode(image, buffer);
+
+        //если сжатие не уменьшило размер, отправляется оригинал
+        if (buffer.size() >= originalBytes && levels == null) {
+            return PreparedImage.original(file);
+        }
+
+        PreparedImage prepared = new PreparedImage(file,
+                Arrays.copyOf(buffer.getBuffer(), buffer.size()), buffer.size(),
+                originalBytes,
+                (double) width / image.getWidth(),
+                (double) height / image.getHeight(), 0, 0);
+        TOTAL_BYTES_SAVED.addAndGet(prepared.getBytesSaved());
+        return prepared;
+    }
+
+    /**
+     * Подготовка к повторному распознаванию известного лица: отправляется
+     * только область вокруг прямоугольника лица. Декодируются только пиксели
+     * области (без копии всего фото), большая область уменьшается при
+     * декодировании, как в {@link #prepare(File)}. Координаты лиц
+     * в ответе пересчитываются {@link PreparedImage#toOriginal}.
+     * Если область занимает большую часть фото, готовится все фото.
+     * Возвращенный результат не зависит от потока и может отправляться позже.
+     * @param file фото
+     * @param face лицо в координатах исходного фото
+     * @param padding поле вокруг лица, доля большей стороны лица
+     * @return подготовленное фото
+     * @throws IOException в случае ошибки чтения или сжатия
+     */
+    public PreparedImage crop(File file, DetectModel face, double padding) throws IOException {
+        long originalBytes = file.length();
+
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input == null
+                    ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                TOTAL_PREPARED.incrementAndGet();
+                return PreparedImage.original(file);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                Rectangle region = cropRegion(face, padding, width, height);
+                if (region == null) {
+                    return prepare(file);
+                }
+                TOTAL_PREPARED.incrementAndGet();
+
+                //декодируется только область, большая область - с прореживанием
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(region);
+                int subsampling = Math.max(region.width, region.height) / maxDimension;
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                BufferedImage image = scale(reader.read(0, param));
+
+                ExposedByteArrayOutputStream buffer = BUFFER.get();
+                buffer.reset();
+                encode(image, buffer);
+
+                PreparedImage prepared = new PreparedImage(file,
+                        Arrays.copyOf(buffer.getBuffer(), buffer.size()), buffer.size(),
+                        originalBytes,
+                        (double) region.width / image.getWidth(),
+                        (double) region.height / image.getHeight(), region.x, region.y);
+                TOTAL_BYTES_SAVED.addAndGet(prepared.getBytesSaved());
+                return prepared;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Область вокруг лица в пределах фото.
+     * @param face лицо
+     * @param padding поле вокруг лица, доля большей стороны лица
+     * @param width ширина фото
+     * @param height высота фото
+     * @return область или null, если вырезать нет смысла
+     */
+    private static Rectangle cropRegion(DetectModel face, double padding, int width, int height) {
+        int pad = (int) Math.round(Math.max(face.getWidth(), face.getHeight()) * padding);
+        int x0 = Math.max(0, face.getX() - pad);
+        int y0 = Math.max(0, face.getY() - pad);
+        int x1 = Math.min(width, face.getX() + face.getWidth() + pad);
+        int y1 = Math.min(height, face.getY() + face.getHeight() + pad);
+        //область не меньше минимального размера фото Face API
+        if (x1 - x0 < MIN_CROP_SIZE) {
+            x0 = Math.max(0, Math.min(x0, width - MIN_CROP_SIZE));
+            x1 = Math.min(width, x0 + MIN_CROP_SIZE);
+        }
+        if (y1 - y0 < MIN_CROP_SIZE) {
+            y0 = Math.max(0, Math.min(y0, height - MIN_CROP_SIZE));
+            y1 = Math.min(height, y0 + MIN_CROP_SIZE);
+        }
+        if (x1 <= x0 || y1 <= y0
+                || (double) (x1 - x0) * (y1 - y0) >= MAX_CROP_AREA * width * height) {
+            return null;
+        }
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * Точное уменьшение до максимального размера стороны.
+     * @param image изображение после декодирования
+     * @return изображение в формате RGB
+     */
+    private BufferedImage scale(BufferedImage image) {
+        int maxSide = Math.max(image.getWidth(), image.getHeight());
+        double factor = Math.min(1.0, (double) maxDimension / maxSide);
+        int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+        if (factor == 1.0 && !image.getColorModel().hasAlpha()) {
+            return image;
+        }
+
+        BufferedImage scaled = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * Копия изображения в формате RGB.
+     * @param image изображение
+     * @return копия
+     */
+    private static BufferedImage copy(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = copy.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return copy;
+    }
+
+    /**
+     * Исправление яркости по таблице на месте, построчно.
+     * @param image изображение после декодирования
+     * @param levels таблица из 256 значений для каждого канала
+     */
+    private static void applyLevels(BufferedImage image, int[] levels) {
+        int width = image.getWidth();
+        int[] row = new int[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int argb = row[x];
+                row[x] = (argb & 0xFF000000)
+                        | levels[(argb >> 16) & 0xFF] << 16
+                        | levels[(argb >> 8) & 0xFF] << 8
+                        | levels[argb & 0xFF];
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+    }
+
+    /**
+     * Сжатие изображения в JPEG с заданным качеством.
+     * @param image изображение
+     * @param out поток для записи
+     * @throws IOException в случае ошибки сжатия
+     */
+    private void encode(BufferedImage image, ByteArrayOutputStream out)
+            throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Фото, подготовленное к отправке.
+     */
+    public static class PreparedImage {
+
+        /**
+         * Исходный файл.
+         */
+        private final File file;
+
+        /**
+         * Сжатое изображение или null, если отправляется исходный файл.
+         */
+        private final byte[] data;
+
+        /**
+         * Длина сжатого изображения в data.
+         */
+        private final int length;
+
+        /**
+         * Размер исходного файла, байт.
+         */
+        private final long originalBytes;
+
+        /**
+         * Отношение ширины исходного изображения к отправленному.
+         */
+        private final double scaleX;
+
+        /**
+         * Отношение высоты исходного изображения к отправленному.
+         */
+        private final double scaleY;
+
+        /**
+         * Положение отправленной области на исходном изображении
+         * (0, если отправлено все изображение).
+         */
+        private final int offsetX;
+        private final int offsetY;
+
+        PreparedImage(File file, byte[] data, int length, long originalBytes,
+                      double scaleX, double scaleY, int offsetX, int offsetY) {
+            this.file = file;
+            this.data = data;
+            this.length = length;
+            this.originalBytes = originalBytes;
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+        }
+
+        /**
+         * Исходный файл без изменений.
+         * @param file фото
+         * @return PreparedImage
+         */
+        static PreparedImage original(File file) {
+            return new PreparedImage(file, null, 0, file.length(), 1.0, 1.0, 0, 0);
+        }
+
+        /**
+         * Отправляется ли исходный файл без изменений.
+         * @return true, если фото не пережималось
+         */
+        public boolean isOriginal() {
+            return data == null;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Размер отправляемых данных, байт.
+         * @return число байт
+         */
+        public long getUploadBytes() {
+            return isOriginal() ? originalBytes : length;
+        }
+
+        /**
+         * Число байт, сэкономленных на этом запросе.
+         * @return число байт
+         */
+        public long getBytesSaved() {
+            return originalBytes - getUploadBytes();
+        }
+
+        /**
+         * Пересчет прямоугольника и точек лица в координаты исходного изображения.
+         * @param detect информация о лице на отправленном изображении
+         * @return detect с исправленными координатами
+         */
+        public DetectModel toOriginal(DetectModel detect) {
+            if (detect != null && !isOriginal()) {
+                //округляются края, а не ширина: ошибки левого и правого края не складываются
+                int x0 = (int) Math.round(detect.getX() * scaleX);
+                int y0 = (int) Math.round(detect.getY() * scaleY);
+                int x1 = (int) Math.round((detect.getX() + detect.getWidth()) * scaleX);
+                int y1 = (int) Math.round((detect.getY() + detect.getHeight()) * scaleY);
+                detect.setX(x0 + offsetX);
+                detect.setY(y0 + offsetY);
+                detect.setWidth(x1 - x0);
+                detect.setHeight(y1 - y0);
+                if (detect.getLandmarks() != null) {
+                    for (FacePoint point : detect.getLandmarks().values()) {
+                        point.setX(point.getX() * scaleX + offsetX);
+                        point.setY(point.getY() * scaleY + offsetY);
+                    }
+                }
+            }
+            return detect;
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream с доступом к внутреннему буферу без копирования.
+     */
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        ExposedByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
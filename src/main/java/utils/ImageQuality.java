@@ -0,0 +1,520 @@
+package utils;
+
+import models.DetectModel;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Локальная проверка качества фото до запроса к Face API.
+ * <p>
+ * Размер файла и изображения сверяются с ограничениями Face API
+ * (файл от 1 КБ до 6 МБ, стороны от 36 до 4096 пикселей). Фото
+ * декодируется с прореживанием до ~{@link #DEFAULT_ANALYSIS_SIZE} пикселей
+ * по большей стороне и делится на плитки, которые обрабатываются
+ * параллельно: для каждой считается гистограмма яркости и дисперсия
+ * лапласиана (резкость). Резкость фото - резкость детальных плиток, чтобы
+ * размытый фон портрета не считался размытым фото.
+ * <p>
+ * Слишком темное или светлое фото с достаточным диапазоном яркости
+ * исправляется растяжением уровней ({@link Report#getLevels()}), большое -
+ * уменьшается {@link ImagePreprocessor}. Остальные проблемы исправить нельзя.
+ */
+public class ImageQuality {
+
+    /**
+     * Ограничения Face API на фото и лицо.
+     */
+    public static final long MIN_FILE_BYTES = 1024;
+    public static final long MAX_FILE_BYTES = 6 * 1024 * 1024;
+    public static final int MIN_DIMENSION = 36;
+    public static final int MAX_DIMENSION = 4096;
+    public static final int MIN_FACE_SIZE = 36;
+
+    /**
+     * Размер большей стороны фото для анализа по умолчанию, пикселей.
+     */
+    public static final int DEFAULT_ANALYSIS_SIZE = 640;
+
+    /**
+     * Минимальная резкость по умолчанию (дисперсия лапласиана яркости).
+     * Порог не откалиброван, поэтому проверка в {@link FaceAPI} включается явно.
+     */
+    public static final double DEFAULT_MIN_SHARPNESS = 20;
+
+    /**
+     * Размер плитки, пикселей.
+     */
+    private static final int TILE_SIZE = 64;
+
+    /**
+     * Доля плиток, резкость которых не больше резкости фото.
+     */
+    private static final double SHARP_TILE_PERCENTILE = 0.9;
+
+    /**
+     * Допустимая средняя яркость.
+     */
+    private static final double MIN_MEAN_LUMA = 60;
+    private static final double MAX_MEAN_LUMA = 200;
+
+    /**
+     * Яркость "черных" и "белых" пикселей.
+     */
+    private static final int BLACK = 8;
+    private static final int WHITE = 247;
+
+    /**
+     * Доля черных или белых пикселей, при которой детали потеряны
+     * и экспозицию исправить нельзя.
+     */
+    private static final double MAX_CLIPPED = 0.5;
+
+    /**
+     * Минимальный диапазон яркости (между 1 и 99 перцентилями)
+     * для исправления экспозиции.
+     */
+    private static final int MIN_LEVELS_RANGE = 32;
+
+    /**
+     * Проблемы фото.
+     */
+    public enum Issue {
+        FILE_TOO_SMALL("файл меньше 1 КБ"),
+        FILE_TOO_LARGE("файл больше 6 МБ"),
+        IMAGE_TOO_SMALL("сторона фото меньше 36 пикселей"),
+        IMAGE_TOO_LARGE("сторона фото больше 4096 пикселей"),
+        BLURRY("фото размыто"),
+        TOO_DARK("фото слишком темное"),
+        TOO_BRIGHT("фото слишком светлое"),
+        FACE_TOO_SMALL("лицо меньше 36 пикселей");
+
+        private final String description;
+
+        Issue(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private final int analysisSize;
+    private final double minSharpness;
+
+    public ImageQuality() {
+        this(DEFAULT_ANALYSIS_SIZE, DEFAULT_MIN_SHARPNESS);
+    }
+
+    /**
+     * @param analysisSize размер большей стороны фото для анализа, пикселей
+     * @param minSharpness минимальная резкость (0 - не проверять)
+     */
+    public ImageQuality(int analysisSize, double minSharpness) {
+        if (analysisSize < TILE_SIZE || minSharpness < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Неверные параметры: analysisSize=%d, minSharpness=%.1f",
+                    analysisSize, minSharpness));
+        }
+        this.analysisSize = analysisSize;
+        this.minSharpness = minSharpness;
+    }
+
+    /**
+     * Проверка фото.
+     * @param file фото
+     * @return результат проверки
+     * @throws IOException в случае ошибки чтения или неизвестного формата
+     */
+    public Report analyze(File file) throws IOException {
+        long start = Metrics.start();
+        try {
+            return analyzeFile(file);
+        } finally {
+            Metrics.record(Metrics.Stage.QUALITY, start);
+        }
+    }
+
+    /**
+     * Проверка уже декодированного фото без повторного чтения файла.
+     * @param decoded фото
+     * @return результат проверки
+     */
+    public Report analyze(DecodedImage decoded) {
+        long start = Metrics.start();
+        try {
+            Set<Issue> issues = fileIssues(decoded.getData().length);
+            int width = decoded.getWidth();
+            int height = decoded.getHeight();
+            if (Math.min(width, height) < MIN_DIMENSION) {
+                issues.add(Issue.IMAGE_TOO_SMALL);
+                return new Report(width, height, issues, 0, 0, null);
+            }
+            if (Math.max(width, height) > MAX_DIMENSION) {
+                issues.add(Issue.IMAGE_TOO_LARGE);
+            }
+            return evaluate(width, height, issues, measure(decoded.subsample(analysisSize)));
+        } finally {
+            Metrics.record(Metrics.Stage.QUALITY, start);
+        }
+    }
+
+    /**
+     * Проверка, что лицо не меньше минимального размера Face API
+     * на отправляемом фото (после уменьшения до maxUploadDimension).
+     * @param face лицо в координатах исходного фото
+     * @param width ширина исходного фото
+     * @param height высота исходного фото
+     * @param maxUploadDimension максимальная сторона отправляемого фото
+     * (0 - фото не уменьшается)
+     * @return true, если лицо слишком мало
+     */
+    public static boolean isFaceTooSmall(DetectModel face, int width, int height,
+                                         int maxUploadDimension) {
+        int maxSide = Math.max(width, height);
+        double scale = maxUploadDimension > 0 && maxSide > maxUploadDimension
+                ? (double) maxUploadDimension / maxSide : 1.0;
+        return Math.min(face.getWidth(), face.getHeight()) * scale < MIN_FACE_SIZE;
+    }
+
+    private Report analyzeFile(File file) throws IOException {
+        Set<Issue> issues = fileIssues(file.length());
+
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input == null
+                    ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Неизвестный формат фото: " + file.getName());
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (Math.min(width, height) < MIN_DIMENSION) {
+                    issues.add(Issue.IMAGE_TOO_SMALL);
+                    return new Report(width, height, issues, 0, 0, null);
+                }
+                if (Math.max(width, height) > MAX_DIMENSION) {
+                    issues.add(Issue.IMAGE_TOO_LARGE);
+                }
+
+                //прореживание при декодировании: для оценки хватает уменьшенного фото
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(width, height) / analysisSize;
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                BufferedImage image = reader.read(0, param);
+                return evaluate(width, height, issues, measure(image));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Проверка размера файла.
+     * @param bytes размер файла, байт
+     * @return найденные проблемы (изменяемое множество)
+     */
+    private static Set<Issue> fileIssues(long bytes) {
+        Set<Issue> issues = EnumSet.noneOf(Issue.class);
+        if (bytes < MIN_FILE_BYTES) {
+            issues.add(Issue.FILE_TOO_SMALL);
+        } else if (bytes > MAX_FILE_BYTES) {
+            issues.add(Issue.FILE_TOO_LARGE);
+        }
+        return issues;
+    }
+
+    /**
+     * Резкость уменьшенного фото без проверки экспозиции.
+     * @param image уменьшенное фото
+     * @return дисперсия лапласиана яркости детальных плиток
+     */
+    static double sharpness(BufferedImage image) {
+        return measure(image).sharpness;
+    }
+
+    /**
+     * Гистограмма и резкость по плиткам, плитки обрабатываются параллельно.
+     * @param image уменьшенное фото
+     * @return итог по всем плиткам
+     */
+    private static Tile measure(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        Tile[] tiles = IntStream.range(0, columns * rows).parallel()
+                .mapToObj(i -> measureTile(image, (i % columns) * TILE_SIZE,
+                        (i / columns) * TILE_SIZE))
+                .toArray(Tile[]::new);
+
+        Tile total = new Tile();
+        double[] sharpness = new double[tiles.length];
+        int measured = 0;
+        for (Tile tile : tiles) {
+            for (int i = 0; i < total.histogram.length; i++) {
+                total.histogram[i] += tile.histogram[i];
+            }
+            if (tile.count > 0) {
+                sharpness[measured++] = tile.variance();
+            }
+        }
+        if (measured > 0) {
+            Arrays.sort(sharpness, 0, measured);
+            total.sharpness = sharpness[(int) Math.min(measured - 1,
+                    Math.floor(measured * SHARP_TILE_PERCENTILE))];
+        }
+        return total;
+    }
+
+    /**
+     * Гистограмма яркости и дисперсия лапласиана в одной плитке.
+     * Плитка читается с рамкой в 1 пиксель для соседей лапласиана.
+     * @param image уменьшенное фото
+     * @param x0 левый край плитки
+     * @param y0 верхний край плитки
+     * @return результат по плитке
+     */
+    private static Tile measureTile(BufferedImage image, int x0, int y0) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int x1 = Math.min(width, x0 + TILE_SIZE);
+        int y1 = Math.min(height, y0 + TILE_SIZE);
+        int bx0 = Math.max(0, x0 - 1);
+        int by0 = Math.max(0, y0 - 1);
+        int bx1 = Math.min(width, x1 + 1);
+        int by1 = Math.min(height, y1 + 1);
+        int stride = bx1 - bx0;
+        int[] rgb = image.getRGB(bx0, by0, stride, by1 - by0, null, 0, stride);
+        int[] luma = new int[rgb.length];
+        for (int i = 0; i < rgb.length; i++) {
+            int r = (rgb[i] >> 16) & 0xFF;
+            int g = (rgb[i] >> 8) & 0xFF;
+            int b = rgb[i] & 0xFF;
+            luma[i] = (299 * r + 587 * g + 114 * b) / 1000;
+        }
+
+        Tile tile = new Tile();
+        for (int y = y0; y < y1; y++) {
+            int row = (y - by0) * stride - bx0;
+            for (int x = x0; x < x1; x++) {
+                int center = luma[row + x];
+                tile.histogram[center]++;
+                //лапласиан только там, где есть все 4 соседа
+                if (x > 0 && y > 0 && x < width - 1 && y < height - 1) {
+                    int laplacian = luma[row + x - 1] + luma[row + x + 1]
+                            + luma[row + x - stride] + luma[row + x + stride] - 4 * center;
+                    tile.sum += laplacian;
+                    tile.sumSquares += (long) laplacian * laplacian;
+                    tile.count++;
+                }
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Оценка резкости и экспозиции.
+     * @param width ширина фото
+     * @param height высота фото
+     * @param issues найденные проблемы размера (дополняется)
+     * @param total итог по плиткам
+     * @return результат проверки
+     */
+    private Report evaluate(int width, int height, Set<Issue> issues, Tile total) {
+        long pixels = 0;
+        double sum = 0;
+        for (int i = 0; i < total.histogram.length; i++) {
+            pixels += total.histogram[i];
+            sum += (double) i * total.histogram[i];
+        }
+        double mean = pixels > 0 ? sum / pixels : 0;
+        int low = percentile(total.histogram, pixels, 0.01);
+        int high = percentile(total.histogram, pixels, 0.99);
+        double black = fraction(total.histogram, pixels, 0, BLACK);
+        double white = fraction(total.histogram, pixels, WHITE, 255);
+
+        int[] levels = null;
+        if (mean < MIN_MEAN_LUMA || mean > MAX_MEAN_LUMA) {
+            issues.add(mean < MIN_MEAN_LUMA ? Issue.TOO_DARK : Issue.TOO_BRIGHT);
+            if (high - low >= MIN_LEVELS_RANGE && black < MAX_CLIPPED && white < MAX_CLIPPED) {
+                levels = levels(low, high, mean);
+            }
+        }
+
+        //лапласиан растет вместе с контрастом: темное фото после растяжения уровней
+        //будет резче, чем измерено
+        double sharpness = total.sharpness;
+        if (levels != null) {
+            double stretch = 255.0 / (high - low);
+            sharpness *= stretch * stretch;
+        }
+        if (minSharpness > 0 && sharpness < minSharpness) {
+            issues.add(Issue.BLURRY);
+        }
+        return new Report(width, height, issues, sharpness, mean, levels);
+    }
+
+    /**
+     * Таблица растяжения уровней: диапазон low..high растягивается на 0..255,
+     * затем гамма сдвигает среднюю яркость к середине.
+     * @param low яркость, которая станет черной
+     * @param high яркость, которая станет белой
+     * @param mean средняя яркость
+     * @return таблица из 256 значений
+     */
+    private static int[] levels(int low, int high, double mean) {
+        double stretched = Math.min(0.95, Math.max(0.05, (mean - low) / (high - low)));
+        double gamma = Math.min(2.5, Math.max(0.4, Math.log(0.5) / Math.log(stretched)));
+        int[] table = new int[256];
+        for (int i = 0; i < table.length; i++) {
+            double value = Math.min(1.0, Math.max(0.0, (double) (i - low) / (high - low)));
+            table[i] = (int) Math.round(255 * Math.pow(value, gamma));
+        }
+        return table;
+    }
+
+    private static int percentile(long[] histogram, long pixels, double percentile) {
+        long target = (long) Math.ceil(pixels * percentile);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= target && seen > 0) {
+                return i;
+            }
+        }
+        return histogram.length - 1;
+    }
+
+    private static double fraction(long[] histogram, long pixels, int from, int to) {
+        long count = 0;
+        for (int i = from; i <= to; i++) {
+            count += histogram[i];
+        }
+        return pixels > 0 ? (double) count / pixels : 0;
+    }
+
+    /**
+     * Результат по плитке или по всему фото.
+     */
+    private static class Tile {
+        private final long[] histogram = new long[256];
+        private long sum;
+        private long sumSquares;
+        private long count;
+        private double sharpness;
+
+        double variance() {
+            double mean = (double) sum / count;
+            return (double) sumSquares / count - mean * mean;
+        }
+    }
+
+    /**
+     * Результат проверки фото.
+     */
+    public static class Report {
+
+        private final int width;
+        private final int height;
+        private final Set<Issue> issues;
+
+        /**
+         * Дисперсия лапласиана яркости детальных плиток
+         * (с учетом исправления яркости).
+         */
+        private final double sharpness;
+
+        private final double meanLuma;
+
+        /**
+         * Таблица исправления яркости или null, если исправлять не нужно или нельзя.
+         */
+        private final int[] levels;
+
+        Report(int width, int height, Set<Issue> issues, double sharpness,
+               double meanLuma, int[] levels) {
+            this.width = width;
+            this.height = height;
+            this.issues = Collections.unmodifiableSet(issues);
+            this.sharpness = sharpness;
+            this.meanLuma = meanLuma;
+            this.levels = levels;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public Set<Issue> getIssues() {
+            return issues;
+        }
+
+        public double getSharpness() {
+            return sharpness;
+        }
+
+        public double getMeanLuma() {
+            return meanLuma;
+        }
+
+        public int[] getLevels() {
+            return levels;
+        }
+
+        /**
+         * Проблемы, которые нельзя исправить перед отправкой.
+         * @param canFix фото можно изменить перед отправкой
+         * (уменьшить и исправить яркость)
+         * @return проблемы (пустое множество - фото можно отправлять)
+         */
+        public Set<Issue> getBlockingIssues(boolean canFix) {
+            Set<Issue> blocking = EnumSet.noneOf(Issue.class);
+            for (Issue issue : issues) {
+                boolean fixed;
+                switch (issue) {
+                    case FILE_TOO_LARGE:
+                    case IMAGE_TOO_LARGE:
+                        fixed = canFix;
+                        break;
+                    case TOO_DARK:
+                    case TOO_BRIGHT:
+                        fixed = canFix && levels != null;
+                        break;
+                    default:
+                        fixed = false;
+                }
+                if (!fixed) {
+                    blocking.add(issue);
+                }
+            }
+            return blocking;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%dx%d, резкость %.1f, яркость %.0f, проблемы: %s",
+                    width, height, sharpness, meanLuma, issues);
+        }
+    }
+}
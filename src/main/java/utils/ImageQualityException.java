@@ -0,0 +1,38 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Фото не прошло локальную проверку качества ({@link ImageQuality})
+ * и не отправлялось в Face API.
+ */
+public class ImageQualityException extends IOException {
+
+    private final Set<ImageQuality.Issue> issues;
+
+    /**
+     * @param file фото
+     * @param issues проблемы, из-за которых фото не отправлено
+     */
+    public ImageQualityException(File file, Set<ImageQuality.Issue> issues) {
+        super(message(file, issues));
+        this.issues = Collections.unmodifiableSet(EnumSet.copyOf(issues));
+    }
+
+    public Set<ImageQuality.Issue> getIssues() {
+        return issues;
+    }
+
+    private static String message(File file, Set<ImageQuality.Issue> issues) {
+        StringBuilder message = new StringBuilder();
+        for (ImageQuality.Issue issue : issues) {
+            message.append(message.length() == 0 ? "" : ", ").append(issue.getDescription());
+        }
+        return String.format("Фото %s не подходит для распознавания: %s.",
+                file.getName(), message);
+    }
+}
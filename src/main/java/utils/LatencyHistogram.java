@@ -0,0 +1,129 @@
+package utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма длительностей с логарифмическими интервалами.
+ * <p>
+ * Значения хранятся в микросекундах: каждая степень двойки делится
+ * на 4 интервала, поэтому погрешность перцентилей не больше ~12%.
+ * Запись без блокировок (одно атомарное увеличение счетчика интервала),
+ * память постоянная и не зависит от числа значений.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Число интервалов на степень двойки (2^SUB_BITS).
+     */
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Максимальная степень двойки микросекунд (~12 суток).
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private final AtomicLongArray buckets
+            = new AtomicLongArray((MAX_EXPONENT + 1) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Запись длительности.
+     * @param nanos длительность, нс
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        buckets.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Средняя длительность.
+     * @return мс (0, если значений нет)
+     */
+    public double getMeanMillis() {
+        long n = count.get();
+        return n > 0 ? sumMicros.get() / 1000.0 / n : 0;
+    }
+
+    /**
+     * @return максимальная длительность, мс
+     */
+    public double getMaxMillis() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * Перцентиль длительности (середина интервала, в который он попал).
+     * @param percentile от 0 до 100
+     * @return мс (0, если значений нет)
+     */
+    public double getPercentileMillis(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(middle(i), maxMicros.get()) / 1000.0;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * Очистка гистограммы. Значения, записываемые одновременно
+     * с очисткой, могут учитываться частично.
+     */
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sumMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    /**
+     * Номер интервала для значения.
+     * @param micros значение, мкс
+     * @return номер интервала
+     */
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(micros));
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Середина интервала.
+     * @param bucket номер интервала
+     * @return значение, мкс
+     */
+    private static double middle(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        long lower = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lower + width / 2.0;
+    }
+}
@@ -0,0 +1,372 @@
+package utils;
+
+import models.DetectModel;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Локальный поиск лиц без сети (на Java, без нативных библиотек).
+ * <p>
+ * Фото декодируется с прореживанием до ~{@link #DEFAULT_ANALYSIS_SIZE} пикселей
+ * по большей стороне, затем находятся связные области цвета кожи (YCbCr),
+ * и каждая область проходит каскад проверок от дешевых к дорогим:
+ * площадь, пропорции, заполненность и наличие темных деталей (глаза, брови)
+ * в верхней половине. Области, прошедшие все проверки, считаются лицами.
+ * <p>
+ * Детектор грубый: у найденных лиц нет faceId, прямоугольник приблизительный.
+ * Основное назначение - быстро отсеять фото без лиц до запроса к Face API
+ * (см. {@link PrefilterFaceDetector}).
+ */
+public class LocalFaceDetector implements FaceDetector {
+
+    /**
+     * Размер большей стороны фото для анализа по умолчанию, пикселей.
+     */
+    public static final int DEFAULT_ANALYSIS_SIZE = 192;
+
+    /**
+     * Минимальная площадь лица, доля площади фото.
+     */
+    private static final double MIN_AREA = 0.004;
+
+    /**
+     * Допустимое отношение высоты к ширине области.
+     */
+    private static final double MIN_ASPECT = 0.7;
+    private static final double MAX_ASPECT = 2.5;
+
+    /**
+     * Минимальная доля пикселей кожи в прямоугольнике области.
+     */
+    private static final double MIN_FILL = 0.4;
+
+    /**
+     * Допустимая доля "дыр" в коже в верхней половине области (глаза, брови).
+     */
+    private static final double MIN_FEATURES = 0.02;
+    private static final double MAX_FEATURES = 0.5;
+
+    /**
+     * Максимальное отношение высоты лица к ширине: шея и плечи отрезаются.
+     */
+    private static final double MAX_FACE_ASPECT = 1.3;
+
+    /**
+     * Минимальная доля цветных пикселей: на фото с меньшей долей
+     * (оттенки серого, сепия) кожу по цвету найти нельзя.
+     */
+    private static final double MIN_COLOR_FRACTION = 0.05;
+
+    private final int analysisSize;
+
+    public LocalFaceDetector() {
+        this(DEFAULT_ANALYSIS_SIZE);
+    }
+
+    /**
+     * @param analysisSize размер большей стороны фото для анализа, пикселей
+     */
+    public LocalFaceDetector(int analysisSize) {
+        this.analysisSize = analysisSize;
+    }
+
+    @Override
+    public List<DetectModel> detect(File file) throws IOException {
+        return analyze(file).faces;
+    }
+
+    /**
+     * Поиск выполняется в общем пуле потоков, отмена future не прерывает анализ.
+     * @param file фото
+     * @return future с лицами по убыванию размера
+     */
+    @Override
+    public CompletableFuture<List<DetectModel>> detectAsync(File file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return detect(file);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Может ли на фото быть лицо: найдено лицо или фото без цвета,
+     * для которого локальный поиск не работает.
+     * @param file фото
+     * @return false, только если на цветном фото нет областей, похожих на лицо
+     * @throws IOException в случае ошибки чтения фото
+     */
+    public boolean mayContainFace(File file) throws IOException {
+        return analyze(file).mayContainFace();
+    }
+
+    /**
+     * Декодирование фото с прореживанием и поиск лиц.
+     * @param file фото
+     * @return результат анализа
+     * @throws IOException в случае ошибки чтения или неизвестного формата
+     */
+    Analysis analyze(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input == null
+                    ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Неизвестный формат фото: " + file.getName());
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+
+                //прореживание при декодировании: пиксели полного размера не нужны
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(width, height) / analysisSize;
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                BufferedImage image = reader.read(0, param);
+                Analysis analysis = analyze(image, (double) width / image.getWidth(),
+                        (double) height / image.getHeight());
+                analysis.width = width;
+                analysis.height = height;
+                return analysis;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Поиск лиц на уже декодированном фото.
+     * @param decoded фото
+     * @return результат анализа
+     */
+    Analysis analyze(DecodedImage decoded) {
+        BufferedImage image = decoded.subsample(analysisSize);
+        Analysis analysis = analyze(image, (double) decoded.getWidth() / image.getWidth(),
+                (double) decoded.getHeight() / image.getHeight());
+        analysis.width = decoded.getWidth();
+        analysis.height = decoded.getHeight();
+        return analysis;
+    }
+
+    /**
+     * Поиск лиц на уменьшенном фото.
+     * @param image уменьшенное фото
+     * @param scaleX отношение ширины оригинала к ширине уменьшенного фото
+     * @param scaleY отношение высоты оригинала к высоте уменьшенного фото
+     * @return результат анализа
+     */
+    static Analysis analyze(BufferedImage image, double scaleX, double scaleY) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+
+        boolean[] skin = new boolean[rgb.length];
+        int colored = 0;
+        for (int i = 0; i < rgb.length; i++) {
+            int r = (rgb[i] >> 16) & 0xFF;
+            int g = (rgb[i] >> 8) & 0xFF;
+            int b = rgb[i] & 0xFF;
+            double y = 0.299 * r + 0.587 * g + 0.114 * b;
+            double cb = 128 - 0.168736 * r - 0.331264 * g + 0.5 * b;
+            double cr = 128 + 0.5 * r - 0.418688 * g - 0.081312 * b;
+            if (Math.abs(cb - 128) + Math.abs(cr - 128) > 12) {
+                colored++;
+            }
+            //диапазон цвета кожи по Cb и Cr, без очень темных пикселей
+            skin[i] = y > 40 && cb >= 77 && cb <= 127 && cr >= 133 && cr <= 173;
+        }
+        if (colored < rgb.length * MIN_COLOR_FRACTION) {
+            return new Analysis(false, Collections.<DetectModel>emptyList());
+        }
+
+        List<DetectModel> faces = new ArrayList<>();
+        int[] labels = new int[rgb.length];
+        int[] queue = new int[rgb.length];
+        int label = 0;
+        long now = System.currentTimeMillis();
+        for (int start = 0; start < rgb.length; start++) {
+            if (!skin[start] || labels[start] != 0) {
+                continue;
+            }
+            label++;
+            int[] box = fill(skin, labels, queue, width, height, start, label);
+            int[] face = checkRegion(labels, width, height, box, label);
+            if (face != null) {
+                faces.add(new DetectModel(null,
+                        (int) Math.round(face[0] * scaleX),
+                        (int) Math.round(face[1] * scaleY),
+                        (int) Math.round(face[2] * scaleX),
+                        (int) Math.round(face[3] * scaleY), now, null, null,
+                        null, null));
+            }
+        }
+        faces.sort((a, b) -> Long.compare((long) b.getWidth() * b.getHeight(),
+                (long) a.getWidth() * a.getHeight()));
+        return new Analysis(true, faces);
+    }
+
+    /**
+     * Выделение связной области кожи (4-связность) обходом в ширину.
+     * @param skin маска кожи
+     * @param labels номера областей пикселей (дополняется)
+     * @param queue буфер очереди размером с фото
+     * @param width ширина фото
+     * @param height высота фото
+     * @param start первый пиксель области
+     * @param label номер области
+     * @return {minX, minY, maxX, maxY, число пикселей}
+     */
+    private static int[] fill(boolean[] skin, int[] labels, int[] queue,
+                              int width, int height, int start, int label) {
+        int[] box = {width, height, -1, -1, 0};
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        labels[start] = label;
+        while (head < tail) {
+            int pixel = queue[head++];
+            int x = pixel % width;
+            int y = pixel / width;
+            box[0] = Math.min(box[0], x);
+            box[1] = Math.min(box[1], y);
+            box[2] = Math.max(box[2], x);
+            box[3] = Math.max(box[3], y);
+            box[4]++;
+            if (x > 0 && skin[pixel - 1] && labels[pixel - 1] == 0) {
+                labels[pixel - 1] = label;
+                queue[tail++] = pixel - 1;
+            }
+            if (x < width - 1 && skin[pixel + 1] && labels[pixel + 1] == 0) {
+                labels[pixel + 1] = label;
+                queue[tail++] = pixel + 1;
+            }
+            if (y > 0 && skin[pixel - width] && labels[pixel - width] == 0) {
+                labels[pixel - width] = label;
+                queue[tail++] = pixel - width;
+            }
+            if (y < height - 1 && skin[pixel + width] && labels[pixel + width] == 0) {
+                labels[pixel + width] = label;
+                queue[tail++] = pixel + width;
+            }
+        }
+        return box;
+    }
+
+    /**
+     * Каскад проверок области: следующая проверка выполняется,
+     * только если пройдены предыдущие.
+     * @param labels номера областей пикселей
+     * @param width ширина фото
+     * @param height высота фото
+     * @param box {minX, minY, maxX, maxY, число пикселей} области
+     * @param label номер области
+     * @return {x, y, ширина, высота} лица или null, если область не похожа на лицо
+     */
+    private static int[] checkRegion(int[] labels, int width, int height,
+                                     int[] box, int label) {
+        //площадь
+        if (box[4] < MIN_AREA * width * height) {
+            return null;
+        }
+        int boxWidth = box[2] - box[0] + 1;
+        int boxHeight = box[3] - box[1] + 1;
+        //пропорции (вместе с шеей область выше лица)
+        double aspect = (double) boxHeight / boxWidth;
+        if (aspect < MIN_ASPECT || aspect > MAX_ASPECT) {
+            return null;
+        }
+        //лицо без шеи
+        int faceHeight = Math.min(boxHeight, (int) Math.round(boxWidth * MAX_FACE_ASPECT));
+        int inside = 0;
+        int features = 0;
+        for (int y = box[1]; y < box[1] + faceHeight; y++) {
+            int left = -1;
+            int right = -1;
+            int rowInside = 0;
+            for (int x = box[0]; x <= box[2]; x++) {
+                if (labels[y * width + x] == label) {
+                    rowInside++;
+                    if (left < 0) {
+                        left = x;
+                    }
+                    right = x;
+                }
+            }
+            inside += rowInside;
+            //детали - "дыры" внутри строки области, фон по краям не считается
+            if (y < box[1] + faceHeight / 2 && left >= 0) {
+                features += right - left + 1 - rowInside;
+            }
+        }
+        //заполненность
+        if (inside < MIN_FILL * boxWidth * faceHeight) {
+            return null;
+        }
+        //темные детали в верхней половине
+        double upper = boxWidth * (faceHeight / 2.0);
+        if (features < MIN_FEATURES * upper || features > MAX_FEATURES * upper) {
+            return null;
+        }
+        return new int[]{box[0], box[1], boxWidth, faceHeight};
+    }
+
+    /**
+     * Результат анализа фото.
+     */
+    static class Analysis {
+
+        /**
+         * На фото достаточно цвета для поиска кожи.
+         */
+        private final boolean colored;
+
+        private final List<DetectModel> faces;
+
+        /**
+         * Размер исходного фото.
+         */
+        private int width;
+        private int height;
+
+        Analysis(boolean colored, List<DetectModel> faces) {
+            this.colored = colored;
+            this.faces = faces;
+        }
+
+        /**
+         * @return false, только если на цветном фото нет областей, похожих на лицо
+         */
+        boolean mayContainFace() {
+            return !colored || !faces.isEmpty();
+        }
+
+        List<DetectModel> getFaces() {
+            return faces;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+    }
+}
@@ -0,0 +1,816 @@
+package utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Локальная замена Face API для нагрузочных тестов без сети.
+ * Реализует /detect, /verify, группы людей (/persongroups) и /identify
+ * с теми же форматами JSON, что и Face API, с настраиваемой задержкой,
+ * ошибками, ответами 429 и проверкой размера фото.
+ * <p>
+ * Лицо "находится" в центре любого корректного изображения, дополнительные
+ * лица (см. {@link #setFacesPerImage(int)}) - меньшего размера в верхнем ряду.
+ * Центральные лица считаются одинаковыми, если получены из фото с одинаковым
+ * содержимым, дополнительные лица разные. Человек группы совпадает с лицом,
+ * если одно из его фото совпадает с этим лицом.
+ */
+public class LocalFaceServer implements AutoCloseable {
+
+    /**
+     * Минимальный размер фото, который принимает Face API, байт.
+     */
+    public static final int MIN_IMAGE_BYTES = 1024;
+
+    /**
+     * Максимальный размер фото, который принимает Face API, байт.
+     */
+    public static final int MAX_IMAGE_BYTES = 6 * 1024 * 1024;
+
+    /**
+     * HTTP сервер.
+     */
+    private final HttpServer server;
+
+    /**
+     * Потоки для обработки запросов.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Хэш содержимого фото по выданному faceId.
+     */
+    private final Map<String, Integer> faces = new ConcurrentHashMap<>();
+
+    /**
+     * Группы людей по personGroupId.
+     */
+    private final Map<String, PersonGroup> groups = new ConcurrentHashMap<>();
+
+    /**
+     * Медиана задержки ответа, мс.
+     */
+    private volatile double latencyMedianMs;
+
+    /**
+     * Разброс задержки (сигма логнормального распределения).
+     */
+    private volatile double latencySigma;
+
+    /**
+     * Доля ответов 500.
+     */
+    private volatile double errorRate;
+
+    /**
+     * Доля ответов 429.
+     */
+    private volatile double throttleRate;
+
+    /**
+     * Число лиц на каждом фото.
+     */
+    private volatile int facesPerImage = 1;
+
+    /**
+     * Значение Retry-After для ответов 429, с.
+     */
+    private volatile int retryAfterSeconds = 1;
+
+    /**
+     * Число запросов.
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Общий размер полученных фото, байт.
+     */
+    private final AtomicLong imageBytes = new AtomicLong();
+
+    /**
+     * Максимальный размер полученного фото, байт.
+     */
+    private final AtomicLong maxImageBytes = new AtomicLong();
+
+    /**
+     * Число ответов 429.
+     */
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * Запуск сервера на свободном порту localhost.
+     * @throws IOException в случае ошибки запуска
+     */
+    public LocalFaceServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Запуск сервера на заданном порту localhost.
+     * @param port порт (0 - свободный)
+     * @throws IOException в случае ошибки запуска
+     */
+    public LocalFaceServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "local-face-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/face/v1.0/detect", this::handleDetect);
+        server.createContext("/face/v1.0/verify", this::handleVerify);
+        server.createContext("/face/v1.0/persongroups", this::handlePersonGroups);
+        server.createContext("/face/v1.0/identify", this::handleIdentify);
+        server.start();
+    }
+
+    /**
+     * Базовый URL для FaceAPI.
+     * @return URL вида http://127.0.0.1:port/face/v1.0
+     */
+    public String getBaseURL() {
+        return String.format("http://127.0.0.1:%d/face/v1.0",
+                server.getAddress().getPort());
+    }
+
+    /**
+     * Настройка задержки ответа (логнормальное распределение).
+     * @param medianMs медиана задержки, мс
+     * @param sigma разброс, 0 - постоянная задержка
+     */
+    public void setLatency(double medianMs, double sigma) {
+        this.latencyMedianMs = medianMs;
+        this.latencySigma = sigma;
+    }
+
+    /**
+     * Доля ответов 500.
+     * @param errorRate от 0 до 1
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Доля ответов 429 и значение Retry-After.
+     * @param throttleRate от 0 до 1
+     * @param retryAfterSeconds значение Retry-After, с
+     */
+    public void setThrottleRate(double throttleRate, int retryAfterSeconds) {
+        this.throttleRate = throttleRate;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Число лиц, которое "находится" на каждом фото.
+     * @param facesPerImage от 0 (на фото нет лиц)
+     */
+    public void setFacesPerImage(int facesPerImage) {
+        this.facesPerImage = Math.max(0, facesPerImage);
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getImageBytes() {
+        return imageBytes.get();
+    }
+
+    public long getMaxImageBytes() {
+        return maxImageBytes.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Обработка /detect.
+     * @param exchange запрос
+     * @throws IOException в случае ошибки ответа
+     */
+    private void handleDetect(HttpExchange exchange) throws IOException {
+        byte[] body = readBody(exchange);
+        if (!beforeRequest(exchange, "POST")) {
+            return;
+        }
+        int[] size = checkImage(exchange, body);
+        if (size == null) {
+            return;
+        }
+
+        String query = exchange.getRequestURI().getQuery();
+        String attributes = queryParam(query, "returnFaceAttributes");
+        int hash = Arrays.hashCode(body);
+        int count = facesPerImage;
+
+        JsonArray result = new JsonArray();
+        for (int i = 0; i < count; i++) {
+            int[] rect = faceRectangle(size, i);
+
+            String faceId = UUID.randomUUID().toString();
+            faces.put(faceId, hash + i);
+
+            JsonObject face = new JsonObject();
+            if (query == null || !query.contains("returnFaceId=false")) {
+                face.addProperty("faceId", faceId);
+            }
+            JsonObject rectangle = new JsonObject();
+            rectangle.addProperty("top", rect[1]);
+            rectangle.addProperty("left", rect[0]);
+            rectangle.addProperty("width", rect[2]);
+            rectangle.addProperty("height", rect[3]);
+            face.add("faceRectangle", rectangle);
+            if (query != null && query.contains("returnFaceLandmarks=true")) {
+                face.add("faceLandmarks", landmarks(rect[0], rect[1], rect[2]));
+            }
+            if (attributes != null && !attributes.isEmpty()) {
+                face.add("faceAttributes", attributes(attributes.split(",")));
+            }
+            result.add(face);
+        }
+        send(exchange, 200, result.toString());
+    }
+
+    /**
+     * Обработка /verify: сравнение двух лиц или лица с человеком из группы.
+     * @param exchange запрос
+     * @throws IOException в случае ошибки ответа
+     */
+    private void handleVerify(HttpExchange exchange) throws IOException {
+        byte[] body = readBody(exchange);
+        if (!beforeRequest(exchange, "POST")) {
+            return;
+        }
+        JsonObject json = parseJson(body);
+        if (json == null) {
+            sendError(exchange, 400, "BadArgument", "Request body is invalid.");
+            return;
+        }
+        if (json.has("personId")) {
+            handleVerifyPerson(exchange, json);
+            return;
+        }
+        String faceId1;
+        String faceId2;
+        try {
+            faceId1 = json.get("faceId1").getAsString();
+            faceId2 = json.get("faceId2").getAsString();
+        } catch (RuntimeException e) {
+            sendError(exchange, 400, "BadArgument", "Request body is invalid.");
+            return;
+        }
+        Integer hash1 = faces.get(faceId1);
+        Integer hash2 = faces.get(faceId2);
+        if (hash1 == null || hash2 == null) {
+            sendError(exchange, 400, "FaceNotFound", "Face is not found.");
+            return;
+        }
+
+        boolean identical = hash1.equals(hash2);
+        //детерминированная "уверенность" для пары разных фото
+        double confidence = identical ? 0.95
+                : 0.1 + Math.abs((hash1 * 31 + hash2) % 300) / 1000.0;
+        JsonObject result = new JsonObject();
+        result.addProperty("isIdentical", identical);
+        result.addProperty("confidence", confidence);
+        send(exchange, 200, result.toString());
+    }
+
+    /**
+     * Сравнение лица с человеком из группы (необученной группы тоже).
+     * @param exchange запрос
+     * @param json тело запроса
+     * @throws IOException в случае ошибки ответа
+     */
+    private void handleVerifyPerson(HttpExchange exchange, JsonObject json)
+            throws IOException {
+        Integer hash;
+        PersonGroup group;
+        String personId;
+        try {
+            hash = faces.get(json.get("faceId").getAsString());
+            group = groups.get(json.get("personGroupId").getAsString());
+            personId = json.get("personId").getAsString();
+        } catch (RuntimeException e) {
+            sendError(exchange, 400, "BadArgument", "Request body is invalid.");
+            return;
+        }
+        if (hash == null) {
+            sendError(exchange, 400, "FaceNotFound", "Face is not found.");
+            return;
+        }
+        if (group == null) {
+            sendError(exchange, 404, "PersonGroupNotFound", "Person group is not found.");
+            return;
+        }
+        boolean identical;
+        synchronized (group) {
+            Set<Integer> personFaces = group.persons.get(personId);
+            if (personFaces == null) {
+                sendError(exchange, 404, "PersonNotFound", "Person is not found.");
+                return;
+            }
+            identical = personFaces.contains(hash);
+        }
+        JsonObject result = new JsonObject();
+        result.addProperty("isIdentical", identical);
+        result.addProperty("confidence", identical ? 0.95
+                : 0.1 + Math.abs((hash * 31 + personId.hashCode()) % 300) / 1000.0);
+        send(exchange, 200, result.toString());
+    }
+
+    /**
+     * Обработка /persongroups[/{personGroupId}[/...]]: список групп, создание группы,
+     * людей и их фото, обучение и его состояние.
+     * @param exchange запрос
+     * @throws IOException в случае ошибки ответа
+     */
+    private void handlePersonGroups(HttpExchange exchange) throws IOException {
+        byte[] body = readBody(exchange);
+        if (!exchange.getRequestURI().getPath().startsWith("/face/v1.0/persongroups/")) {
+            //список групп: используется для проверки доступности
+            if (!beforeRequest(exchange, "GET")) {
+                return;
+            }
+            JsonArray list = new JsonArray();
+            for (String groupId : groups.keySet()) {
+                JsonObject group = new JsonObject();
+                group.addProperty("personGroupId", groupId);
+                list.add(group);
+            }
+            send(exchange, 200, list.toString());
+            return;
+        }
+        String[] path = exchange.getRequestURI().getPath()
+                .substring("/face/v1.0/persongroups/".length()).split("/");
+        String method;
+        if (path.length == 1) {
+            method = "PUT";
+        } else if (path.length == 2 && "training".equals(path[1])) {
+            method = "GET";
+        } else if (path.length == 3) {
+            method = "DELETE";
+        } else {
+            method = "POST";
+        }
+        if (!beforeRequest(exchange, method)) {
+            return;
+        }
+
+        String groupId = path[0];
+        if (path.length == 1) {
+            if (groups.putIfAbsent(groupId, new PersonGroup()) != null) {
+                sendError(exchange, 409, "PersonGroupExists",
+                        "Person group already exists.");
+                return;
+            }
+            send(exchange, 200, "");
+            return;
+        }
+        PersonGroup group = groups.get(groupId);
+        if (group == null) {
+            sendError(exchange, 404, "PersonGroupNotFound", "Person group is not found.");
+            return;
+        }
+
+        synchronized (group) {
+            if (path.length == 2 && "persons".equals(path[1])) {
+                String personId = UUID.randomUUID().toString();
+                group.persons.put(personId, new HashSet<>());
+                JsonObject result = new JsonObject();
+                result.addProperty("personId", personId);
+                send(exchange, 200, result.toString());
+            } else if (path.length == 2 && "train".equals(path[1])) {
+                //обучение "завершается" сразу: снимок людей для /identify
+                group.trained = new HashMap<>();
+                for (Map.Entry<String, Set<Integer>> person : group.persons.entrySet()) {
+                    group.trained.put(person.getKey(), new HashSet<>(person.getValue()));
+                }
+                send(exchange, 202, "");
+            } else if (path.length == 2 && "training".equals(path[1])) {
+                JsonObject result = new JsonObject();
+                result.addProperty("status",
+                        group.trained != null ? "succeeded" : "notstarted");
+                send(exchange, 200, result.toString());
+            } else if (path.length >= 3 && "persons".equals(path[1])
+                    && group.persons.containsKey(path[2])) {
+                if (path.length == 3) {
+                    group.persons.remove(path[2]);
+                    send(exchange, 200, "");
+                } else if (path.length == 4 && "persistedFaces".equals(path[3])) {
+                    addPersonFace(exchange, group.persons.get(path[2]), body);
+                } else {
+                    sendError(exchange, 404, "NotFound", "Resource is not found.");
+                }
+            } else if (path.length >= 3 && "persons".equals(path[1])) {
+                sendError(exchange, 404, "PersonNotFound", "Person is not found.");
+            } else {
+                sendError(exchange, 404, "NotFound", "Resource is not found.");
+            }
+        }
+    }
+
+    /**
+     * Добавление фото человека: запоминается лицо, заданное targetFace
+     * (без параметра - центральное лицо).
+     * @param exchange запрос
+     * @param personFaces хэши лиц человека
+     * @param body фото
+     * @throws IOException в случае ошибки ответа
+     */
+    private void addPersonFace(HttpExchange exchange, Set<Integer> personFaces,
+                               byte[] body) throws IOException {
+        int[] size = checkImage(exchange, body);
+        if (size == null) {
+            return;
+        }
+        int index = 0;
+        String targetFace = queryParam(exchange.getRequestURI().getQuery(), "targetFace");
+        if (targetFace != null) {
+            String[] target = targetFace.split(",");
+            index = -1;
+            for (int i = 0; i < facesPerImage && index < 0; i++) {
+                int[] rect = faceRectangle(size, i);
+                if (Integer.toString(rect[0]).equals(target[0])
+                        && Integer.toString(rect[1]).equals(target[1])) {
+                    index = i;
+                }
+            }
+            if (index < 0) {
+                sendError(exchange, 400, "InvalidTargetFace",
+                        "Target face is not found in the image.");
+                return;
+            }
+        }
+        personFaces.add(Arrays.hashCode(body) + index);
+        JsonObject result = new JsonObject();
+        result.addProperty("persistedFaceId", UUID.randomUUID().toString());
+        send(exchange, 200, result.toString());
+    }
+
+    /**
+     * Обработка /identify: поиск лиц среди людей обученной группы.
+     * Учитываются только фото, добавленные до обучения.
+     * @param exchange запрос
+     * @throws IOException в случае ошибки ответа
+     */
+    private void handleIdentify(HttpExchange exchange) throws IOException {
+        byte[] body = readBody(exchange);
+        if (!beforeRequest(exchange, "POST")) {
+            return;
+        }
+        PersonGroup group;
+        List<String> faceIds = new ArrayList<>();
+        int maxCandidates;
+        try {
+            JsonObject json = parseJson(body);
+            group = groups.get(json.get("personGroupId").getAsString());
+            json.get("faceIds").getAsJsonArray()
+                    .forEach(faceId -> faceIds.add(faceId.getAsString()));
+            maxCandidates = json.has("maxNumOfCandidatesReturned")
+                    ? json.get("maxNumOfCandidatesReturned").getAsInt() : 10;
+        } catch (RuntimeException e) {
+            sendError(exchange, 400, "BadArgument", "Request body is invalid.");
+            return;
+        }
+        if (group == null) {
+            sendError(exchange, 404, "PersonGroupNotFound", "Person group is not found.");
+            return;
+        }
+
+        JsonArray result = new JsonArray();
+        synchronized (group) {
+            if (group.trained == null) {
+                sendError(exchange, 400, "PersonGroupNotTrained",
+                        "Person group not trained.");
+                return;
+            }
+            for (String faceId : faceIds) {
+                Integer hash = faces.get(faceId);
+                if (hash == null) {
+                    sendError(exchange, 400, "FaceNotFound", "Face is not found.");
+                    return;
+                }
+                JsonArray candidates = new JsonArray();
+                for (Map.Entry<String, Set<Integer>> person : group.trained.entrySet()) {
+                    if (candidates.size() < maxCandidates
+                            && person.getValue().contains(hash)) {
+                        JsonObject candidate = new JsonObject();
+                        candidate.addProperty("personId", person.getKey());
+                        candidate.addProperty("confidence", 0.95);
+                        candidates.add(candidate);
+                    }
+                }
+                JsonObject face = new JsonObject();
+                face.addProperty("faceId", faceId);
+                face.add("candidates", candidates);
+                result.add(face);
+            }
+        }
+        send(exchange, 200, result.toString());
+    }
+
+    /**
+     * Общие проверки запроса: метод, ключ, задержка, внедрение ошибок.
+     * @param exchange запрос
+     * @param method ожидаемый HTTP метод
+     * @return true, если запрос нужно обработать
+     * @throws IOException в случае ошибки ответа
+     */
+    private boolean beforeRequest(HttpExchange exchange, String method)
+            throws IOException {
+        requests.incrementAndGet();
+        if (!method.equals(exchange.getRequestMethod())) {
+            sendError(exchange, 405, "MethodNotAllowed", "Only " + method + " is supported.");
+            return false;
+        }
+        if (exchange.getRequestHeaders().getFirst("Ocp-Apim-Subscription-Key") == null) {
+            sendError(exchange, 401, "Unspecified", "Access denied due to missing subscription key.");
+            return false;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double median = latencyMedianMs;
+        if (median > 0) {
+            long delay = (long) (median * Math.exp(latencySigma * random.nextGaussian()));
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        double roll = random.nextDouble();
+        if (roll < throttleRate) {
+            throttled.incrementAndGet();
+            exchange.getResponseHeaders().add("Retry-After",
+                    Integer.toString(retryAfterSeconds));
+            sendError(exchange, 429, "RateLimitExceeded", "Rate limit is exceeded.");
+            return false;
+        }
+        if (roll < throttleRate + errorRate) {
+            sendError(exchange, 500, "InternalServerError", "Injected error.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Проверка размера и формата фото, как в Face API.
+     * @param exchange запрос (при ошибке отправляется ответ 400)
+     * @param body фото
+     * @return {ширина, высота} или null, если фото не принято
+     * @throws IOException в случае ошибки ответа
+     */
+    private int[] checkImage(HttpExchange exchange, byte[] body) throws IOException {
+        if (body.length < MIN_IMAGE_BYTES || body.length > MAX_IMAGE_BYTES) {
+            sendError(exchange, 400, "InvalidImageSize", String.format(
+                    "Image size is too small or too big: %d bytes.", body.length));
+            return null;
+        }
+        imageBytes.addAndGet(body.length);
+        maxImageBytes.accumulateAndGet(body.length, Math::max);
+
+        int[] size = imageSize(body);
+        if (size == null) {
+            sendError(exchange, 400, "InvalidImage",
+                    "Decoding error, image format unsupported.");
+        }
+        return size;
+    }
+
+    /**
+     * Прямоугольник i-го лица на фото: первое лицо в центре,
+     * дополнительные меньше и в верхнем ряду (Face API сортирует по размеру).
+     * @param size {ширина, высота} фото
+     * @param i номер лица
+     * @return {left, top, width, height}
+     */
+    private static int[] faceRectangle(int[] size, int i) {
+        int side = Math.max(36, Math.min(size[0], size[1]) / 3);
+        if (i == 0) {
+            return new int[]{(size[0] - side) / 2, (size[1] - side) / 2, side, side};
+        }
+        int smallSide = Math.max(36, side / 2);
+        return new int[]{Math.min(size[0] - smallSide, (i - 1) * smallSide * 5 / 4), 0,
+                smallSide, smallSide};
+    }
+
+    /**
+     * Разбор JSON объекта из тела запроса.
+     * @param body тело запроса
+     * @return объект или null, если тело не является JSON объектом
+     */
+    private static JsonObject parseJson(byte[] body) {
+        try {
+            return new JsonParser()
+                    .parse(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Размер изображения по заголовку, без декодирования пикселей.
+     * @param body фото
+     * @return {ширина, высота} или null, если формат не поддерживается
+     */
+    private static int[] imageSize(byte[] body) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(
+                new ByteArrayInputStream(body))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new int[]{reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Пять основных точек лица внутри прямоугольника.
+     * @param left левая граница
+     * @param top верхняя граница
+     * @param side размер прямоугольника
+     * @return JSON объект faceLandmarks
+     */
+    private static JsonObject landmarks(int left, int top, int side) {
+        JsonObject landmarks = new JsonObject();
+        landmarks.add("pupilLeft", point(left + side * 0.3, top + side * 0.4));
+        landmarks.add("pupilRight", point(left + side * 0.7, top + side * 0.4));
+        landmarks.add("noseTip", point(left + side * 0.5, top + side * 0.6));
+        landmarks.add("mouthLeft", point(left + side * 0.35, top + side * 0.8));
+        landmarks.add("mouthRight", point(left + side * 0.65, top + side * 0.8));
+        return landmarks;
+    }
+
+    /**
+     * Постоянные значения запрошенных атрибутов лица.
+     * @param names названия атрибутов из returnFaceAttributes
+     * @return JSON объект faceAttributes
+     */
+    private static JsonObject attributes(String[] names) {
+        JsonObject attributes = new JsonObject();
+        for (String name : names) {
+            switch (name.trim()) {
+                case "age":
+                    attributes.addProperty("age", 30.0);
+                    break;
+                case "gender":
+                    attributes.addProperty("gender", "male");
+                    break;
+                case "smile":
+                    attributes.addProperty("smile", 0.1);
+                    break;
+                case "glasses":
+                    attributes.addProperty("glasses", "NoGlasses");
+                    break;
+                case "headPose":
+                    JsonObject headPose = new JsonObject();
+                    headPose.addProperty("pitch", 0.0);
+                    headPose.addProperty("roll", 0.0);
+                    headPose.addProperty("yaw", 0.0);
+                    attributes.add("headPose", headPose);
+                    break;
+                case "blur":
+                    attributes.add("blur", level("blurLevel", "low", 0.05));
+                    break;
+                case "exposure":
+                    attributes.add("exposure", level("exposureLevel", "goodExposure", 0.5));
+                    break;
+                case "noise":
+                    attributes.add("noise", level("noiseLevel", "low", 0.1));
+                    break;
+                default:
+                    //остальные атрибуты Face API не имитируются
+            }
+        }
+        return attributes;
+    }
+
+    private static JsonObject level(String levelName, String level, double value) {
+        JsonObject object = new JsonObject();
+        object.addProperty(levelName, level);
+        object.addProperty("value", value);
+        return object;
+    }
+
+    /**
+     * Значение параметра строки запроса.
+     * @param query строка запроса (может быть null)
+     * @param name имя параметра
+     * @return значение или null, если параметра нет
+     */
+    private static String queryParam(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String param : query.split("&")) {
+            if (param.startsWith(name + "=")) {
+                return param.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private static JsonObject point(double x, double y) {
+        JsonObject point = new JsonObject();
+        point.addProperty("x", x);
+        point.addProperty("y", y);
+        return point;
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void sendError(HttpExchange exchange, int status,
+                                  String code, String message) throws IOException {
+        JsonObject error = new JsonObject();
+        error.addProperty("code", code);
+        error.addProperty("message", message);
+        JsonObject body = new JsonObject();
+        body.add("error", error);
+        send(exchange, status, body.toString());
+    }
+
+    private static void send(HttpExchange exchange, int status, String json)
+            throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if (bytes.length == 0) {
+            //ответ без тела (-1), поток тела не открывается
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Группа людей: хэши лиц каждого человека и снимок на момент обучения.
+     */
+    private static class PersonGroup {
+        private final Map<String, Set<Integer>> persons = new HashMap<>();
+
+        /**
+         * Люди на момент последнего обучения (null - группа не обучена).
+         */
+        private Map<String, Set<Integer>> trained;
+    }
+}
@@ -0,0 +1,293 @@
+package utils;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Замеры длительности этапов обработки фото и счетчики.
+ * <p>
+ * Использование: {@code long start = Metrics.start(); ...;
+ * Metrics.record(Metrics.Stage.PARSE, start);}. Пока замеры выключены,
+ * start() возвращает 0 и record() ничего не делает: затраты - чтение
+ * одного volatile поля. Включаются параметром -Dfaceverify.metrics=true
+ * или {@link #setEnabled(boolean)}.
+ */
+public class Metrics {
+
+    /**
+     * Этапы обработки.
+     */
+    public enum Stage {
+        /**
+         * Чтение и уменьшение фото перед отправкой.
+         */
+        PREPARE,
+        /**
+         * Передача тела запроса.
+         */
+        UPLOAD,
+        /**
+         * От конца передачи запроса до получения заголовков ответа
+         * (обработка в Face API и сеть).
+         */
+        SERVER,
+        /**
+         * Разбор JSON ответа.
+         */
+        PARSE,
+        /**
+         * Поиск лиц целиком, включая кэш и повторы.
+         */
+        DETECT,
+        /**
+         * Сравнение лиц целиком, включая повторы.
+         */
+        VERIFY,
+        /**
+         * Локальный поиск лиц.
+         */
+        LOCAL_DETECT,
+        /**
+         * Локальная проверка качества фото (входит в PREPARE).
+         */
+        QUALITY,
+        /**
+         * Локальная оценка кадра серии при выборе лучшего кадра.
+         */
+        SHOT_SCORE,
+        /**
+         * Декодирование фото для экрана.
+         */
+        IMAGE_DECODE,
+        /**
+         * Отрисовка прямоугольников на копии фото.
+         */
+        RENDER,
+        /**
+         * Загрузка экрана из FXML.
+         */
+        SCENE_LOAD,
+        /**
+         * Переход на экран.
+         */
+        SCENE_SHOW
+    }
+
+    /**
+     * Счетчики.
+     */
+    public enum Counter {
+        UPLOAD_BYTES,
+        REQUESTS,
+        DETECT_CACHE_HITS,
+        DETECT_CACHE_MISSES,
+        IMAGE_CACHE_HITS,
+        IMAGE_CACHE_MISSES,
+        QUALITY_REJECTED,
+        QUALITY_FIXED
+    }
+
+    private static volatile boolean enabled
+            = Boolean.getBoolean("faceverify.metrics");
+
+    private static final Map<Stage, LatencyHistogram> HISTOGRAMS
+            = new EnumMap<>(Stage.class);
+
+    private static final Map<Counter, AtomicLong> COUNTERS = new EnumMap<>(Counter.class);
+
+    /**
+     * Значения, которые считаются в других классах (повторы, размер кэша).
+     */
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentSkipListMap<>();
+
+    static {
+        for (Stage stage : Stage.values()) {
+            HISTOGRAMS.put(stage, new LatencyHistogram());
+        }
+        for (Counter counter : Counter.values()) {
+            COUNTERS.put(counter, new AtomicLong());
+        }
+        gauge("retries", FaceAPI::getRetries);
+        gauge("retryWaitMs", () -> FaceAPI.getRetryWaitNanos() / 1_000_000);
+        gauge("preparedImages", ImagePreprocessor::getTotalPrepared);
+        gauge("preparedBytesSaved", ImagePreprocessor::getTotalBytesSaved);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * Начало замера.
+     * @return время начала, нс (0, если замеры выключены)
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Окончание замера.
+     * @param stage этап
+     * @param start значение {@link #start()}
+     */
+    public static void record(Stage stage, long start) {
+        if (start != 0) {
+            HISTOGRAMS.get(stage).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Запись длительности, измеренной отдельно.
+     * @param stage этап
+     * @param nanos длительность, нс
+     */
+    public static void recordNanos(Stage stage, long nanos) {
+        if (enabled) {
+            HISTOGRAMS.get(stage).record(nanos);
+        }
+    }
+
+    /**
+     * Увеличение счетчика.
+     * @param counter счетчик
+     * @param delta значение
+     */
+    public static void count(Counter counter, long delta) {
+        if (enabled) {
+            COUNTERS.get(counter).addAndGet(delta);
+        }
+    }
+
+    /**
+     * Регистрация значения, которое выводится вместе с замерами.
+     * @param name название
+     * @param supplier источник значения
+     */
+    public static void gauge(String name, LongSupplier supplier) {
+        GAUGES.put(name, supplier);
+    }
+
+    public static LatencyHistogram getHistogram(Stage stage) {
+        return HISTOGRAMS.get(stage);
+    }
+
+    public static long getCount(Counter counter) {
+        return COUNTERS.get(counter).get();
+    }
+
+    /**
+     * Очистка замеров и счетчиков.
+     */
+    public static void reset() {
+        for (LatencyHistogram histogram : HISTOGRAMS.values()) {
+            histogram.reset();
+        }
+        for (AtomicLong counter : COUNTERS.values()) {
+            counter.set(0);
+        }
+    }
+
+    /**
+     * Замеры в виде JSON: для каждого этапа число замеров, среднее,
+     * p50/p95/p99 и максимум в мс, затем счетчики и значения.
+     * @return JSON объект
+     */
+    public static JsonObject toJson() {
+        JsonObject stages = new JsonObject();
+        for (Map.Entry<Stage, LatencyHistogram> entry : HISTOGRAMS.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            JsonObject stage = new JsonObject();
+            stage.addProperty("count", histogram.getCount());
+            stage.addProperty("meanMs", round(histogram.getMeanMillis()));
+            stage.addProperty("p50Ms", round(histogram.getPercentileMillis(50)));
+            stage.addProperty("p95Ms", round(histogram.getPercentileMillis(95)));
+            stage.addProperty("p99Ms", round(histogram.getPercentileMillis(99)));
+            stage.addProperty("maxMs", round(histogram.getMaxMillis()));
+            stages.add(entry.getKey().name(), stage);
+        }
+        JsonObject counters = new JsonObject();
+        for (Map.Entry<Counter, AtomicLong> entry : COUNTERS.entrySet()) {
+            counters.addProperty(entry.getKey().name(), entry.getValue().get());
+        }
+        for (Map.Entry<String, LongSupplier> entry : GAUGES.entrySet()) {
+            counters.addProperty(entry.getKey(), entry.getValue().getAsLong());
+        }
+
+        JsonObject json = new JsonObject();
+        json.addProperty("timestamp", System.currentTimeMillis());
+        json.addProperty("enabled", enabled);
+        json.add("stages", stages);
+        json.add("counters", counters);
+        return json;
+    }
+
+    /**
+     * Краткая таблица замеров для вывода на экран.
+     * @return по строке на этап с замерами
+     */
+    public static String summary() {
+        StringBuilder text = new StringBuilder(String.format(
+                "%-13s %6s %8s %8s %8s%n", "этап", "n", "p50 мс", "p95 мс", "p99 мс"));
+        for (Map.Entry<Stage, LatencyHistogram> entry : HISTOGRAMS.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() > 0) {
+                text.append(String.format("%-13s %6d %8.1f %8.1f %8.1f%n",
+                        entry.getKey().name(), histogram.getCount(),
+                        histogram.getPercentileMillis(50),
+                        histogram.getPercentileMillis(95),
+                        histogram.getPercentileMillis(99)));
+            }
+        }
+        text.append(String.format("отправлено %d КБ, запросов %d, повторов %d, "
+                        + "кэш лиц %d/%d, кэш фото %d/%d",
+                getCount(Counter.UPLOAD_BYTES) / 1024, getCount(Counter.REQUESTS),
+                FaceAPI.getRetries(),
+                getCount(Counter.DETECT_CACHE_HITS),
+                getCount(Counter.DETECT_CACHE_HITS) + getCount(Counter.DETECT_CACHE_MISSES),
+                getCount(Counter.IMAGE_CACHE_HITS),
+                getCount(Counter.IMAGE_CACHE_HITS) + getCount(Counter.IMAGE_CACHE_MISSES)));
+        return text.toString();
+    }
+
+    /**
+     * Сохранение замеров в JSON файл через временный файл.
+     * @param file файл
+     * @throws IOException в случае ошибки записи
+     */
+    public static void dump(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            Files.createDirectories(dir.toPath());
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(
+                Files.newOutputStream(tmp.toPath()), StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(toJson(), writer);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static double round(double millis) {
+        return Math.round(millis * 100) / 100.0;
+    }
+}
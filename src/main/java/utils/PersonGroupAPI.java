@@ -0,0 +1,331 @@
+package utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import models.CandidateModel;
+import models.DetectModel;
+import models.VerifyModel;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Запросы к группам людей Face API (PersonGroup): создание группы и людей,
+ * добавление фото, обучение, поиск лица в группе (identify) и сравнение
+ * лица с человеком из группы. Запросы выполняются через {@link FaceAPI}
+ * с теми же ограничениями частоты и повторами.
+ */
+public class PersonGroupAPI {
+
+    /**
+     * URL групп людей.
+     */
+    private static final String PERSON_GROUPS_URL = "/persongroups";
+
+    /**
+     * URL поиска лиц в группе.
+     */
+    private static final String IDENTIFY_URL = "/identify";
+
+    /**
+     * URL сравнения лиц.
+     */
+    private static final String VERIFY_URL = "/verify";
+
+    /**
+     * Создание группы людей.
+     * @param baseURL базовый URL для запроса
+     * @param personGroupId идентификатор группы (строчные буквы, цифры, '-' и '_')
+     * @param name название группы
+     * @return true, если группа создана; false, если она уже существует
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе
+     */
+    public static boolean createPersonGroup(String baseURL, String personGroupId,
+                                            String name)
+            throws URISyntaxException, IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("name", name);
+        HttpPut request = new HttpPut(new URIBuilder(
+                groupUrl(baseURL, personGroupId)).build());
+        setJson(request, body.toString());
+        try {
+            FaceAPI.execute(request, PersonGroupAPI::discard);
+            return true;
+        } catch (FaceApiException e) {
+            if ("PersonGroupExists".equals(e.getErrorCode())) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Создание человека в группе.
+     * @param baseURL базовый URL для запроса
+     * @param personGroupId идентификатор группы
+     * @param name имя человека
+     * @return personId
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе
+     */
+    public static String createPerson(String baseURL, String personGroupId,
+                                      String name)
+            throws URISyntaxException, IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("name", name);
+        HttpPost request = new HttpPost(new URIBuilder(
+                groupUrl(baseURL, personGroupId) + "/persons").build());
+        setJson(request, body.toString());
+        return FaceAPI.execute(request,
+                responseBody -> readString(responseBody, "personId"));
+    }
+
+    /**
+     * Удаление человека из группы.
+     * @param baseURL базовый URL для запроса
+     * @param personGroupId идентификатор группы
+     * @param personId идентификатор человека
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе
+     */
+    public static void deletePerson(String baseURL, String personGroupId,
+                                    String personId)
+            throws URISyntaxException, IOException {
+        HttpDelete request = new HttpDelete(new URIBuilder(
+                groupUrl(baseURL, personGroupId) + "/persons/" + personId).build());
+        FaceAPI.authorize(request);
+        FaceAPI.execute(request, PersonGroupAPI::discard);
+    }
+
+    /**
+     * Добавление фото человека.
+     * @param baseURL базовый URL для запроса
+     * @param personGroupId идентификатор группы
+     * @param personId идентификатор человека
+     * @param file фото
+     * @param face лицо на фото, которое нужно добавить
+     * @return persistedFaceId
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе
+     */
+    public static String addPersonFace(String baseURL, String personGroupId,
+                                       String personId, File file,
+                                       DetectModel face)
+            throws URISyntaxException, IOException {
+        URIBuilder builder = new URIBuilder(groupUrl(baseURL, personGroupId)
+                + "/persons/" + personId + "/persistedFaces");
+        builder.setParameter("targetFace", String.format("%d,%d,%d,%d",
+                face.getX(), face.getY(), face.getWidth(), face.getHeight()));
+        HttpPost request = new HttpPost(builder.build());
+        request.setHeader("Content-Type", "application/octet-stream");
+        FaceAPI.authorize(request);
+        request.setEntity(new FileEntity(file));
+        return FaceAPI.execute(request,
+                responseBody -> readString(responseBody, "persistedFaceId"));
+    }
+
+    /**
+     * Запуск обучения группы. Обучение выполняется асинхронно,
+     * состояние проверяется через {@link #getTrainingStatus}.
+     * @param baseURL базовый URL для запроса
+     * @param personGroupId идентификатор группы
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе
+     */
+    public static void train(String baseURL, String personGroupId)
+            throws URISyntaxException, IOException {
+        HttpPost request = new HttpPost(new URIBuilder(
+                groupUrl(baseURL, personGroupId) + "/train").build());
+        FaceAPI.authorize(request);
+        FaceAPI.execute(request, PersonGroupAPI::discard);
+    }
+
+    /**
+     * Состояние обучения группы.
+     * @param baseURL базовый URL для запроса
+     * @param personGroupId идентификатор группы
+     * @return notstarted, running, succeeded или failed
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе
+     */
+    public static String getTrainingStatus(String baseURL, String personGroupId)
+            throws URISyntaxException, IOException {
+        HttpGet request = new HttpGet(new URIBuilder(
+                groupUrl(baseURL, personGroupId) + "/training").build());
+        FaceAPI.authorize(request);
+        return FaceAPI.execute(request,
+                responseBody -> readString(responseBody, "status"));
+    }
+
+    /**
+     * Поиск лица среди людей обученной группы.
+     * @param baseURL базовый URL для запроса
+     * @param personGroupId идентификатор группы
+     * @param face лицо (нужен faceId)
+     * @param maxCandidates максимальное число кандидатов (1..100)
+     * @return кандидаты по убыванию уверенности, без имен
+     * @throws URISyntaxException в случае неверного URL
+     * @throws IOException в случае ошибки в запросе
+     */
+    public static List<CandidateModel> identify(String baseURL,
+                                                String personGroupId,
+                                                DetectModel face,
+                                                int maxCandidates)
+            throws URISyntaxException, IOException {
+        JsonArray faceIds = new JsonArray();
+        faceIds.add(face.getFaceId());
+        JsonObject body = new JsonObject();
+        body.addProperty("personGroupId", personGroupId);
+        body.add("faceIds", faceIds);
+        body.addProperty("maxNumOfCandidatesReturned", maxCandidates);
+        HttpPost request = new HttpPost(new URIBuilder(
+                String.format("%s%s", baseURL, IDENTIFY_URL)).build());
+        setJson(request, body.toString());
+        return FaceAPI.execute(request, PersonGroupAPI::parseIdentify);
+    }
+
+    /**
+     * Асинхронное сравнение лица с человеком из группы.
+     * Запрос выполняется в фоновом пуле потоков {@link FaceAPI}
+     * или неблокирующим транспортом.
+     * @param baseURL базовый URL для запроса
+     * @param face лицо (нужен faceId)
+     * @param personGroupId идентификатор группы
+     * @param personId идентификатор человека
+     * @return future с результатом сравнения
+     * @throws URISyntaxException в случае неверного URL
+     */
+    public static CompletableFuture<VerifyModel> verifyPersonAsync(
+            String baseURL, DetectModel face, String personGroupId, String personId)
+            throws URISyntaxException {
+        JsonObject body = new JsonObject();
+        body.addProperty("faceId", face.getFaceId());
+        body.addProperty("personGroupId", personGroupId);
+        body.addProperty("personId", personId);
+        HttpPost request = new HttpPost(new URIBuilder(
+                String.format("%s%s", baseURL, VERIFY_URL)).build());
+        setJson(request, body.toString());
+        return FaceAPI.executeAsync(request, FaceAPI::parseVerify);
+    }
+
+    private static String groupUrl(String baseURL, String personGroupId) {
+        return String.format("%s%s/%s", baseURL, PERSON_GROUPS_URL, personGroupId);
+    }
+
+    /**
+     * Установка заголовков и JSON тела запроса.
+     * @param request запрос
+     * @param json тело запроса
+     */
+    private static void setJson(HttpEntityEnclosingRequestBase request, String json) {
+        request.setHeader("Content-Type", "application/json");
+        FaceAPI.authorize(request);
+        request.setEntity(new StringEntity(json, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Пропуск тела ответа, в котором нет нужных данных.
+     * @param responseBody тело ответа (может быть null)
+     * @return null
+     * @throws IOException в случае ошибки чтения
+     */
+    private static Void discard(HttpEntity responseBody)
+            throws IOException {
+        EntityUtils.consume(responseBody);
+        return null;
+    }
+
+    /**
+     * Чтение строкового поля из объекта ответа.
+     * @param responseBody тело ответа
+     * @param field название поля
+     * @return значение
+     * @throws IOException в случае ошибки чтения или если поля нет
+     */
+    private static String readString(HttpEntity responseBody,
+                                     String field) throws IOException {
+        String value = null;
+        try (JsonReader reader = FaceAPI.jsonReader(responseBody)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (field.equals(reader.nextName())) {
+                    value = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            throw new IOException("Неверный ответ Face API: " + e.getMessage(), e);
+        }
+        if (value == null) {
+            throw new IOException("В ответе нет " + field + ".");
+        }
+        return value;
+    }
+
+    /**
+     * Разбор ответа /identify для одного лица.
+     * @param responseBody тело ответа
+     * @return кандидаты
+     * @throws IOException в случае ошибки чтения
+     */
+    private static List<CandidateModel> parseIdentify(
+            HttpEntity responseBody) throws IOException {
+        List<CandidateModel> candidates = new ArrayList<>();
+        try (JsonReader reader = FaceAPI.jsonReader(responseBody)) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!"candidates".equals(reader.nextName())) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        CandidateModel candidate = new CandidateModel();
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            switch (reader.nextName()) {
+                                case "personId":
+                                    candidate.setPersonId(reader.nextString());
+                                    break;
+                                case "confidence":
+                                    candidate.setConfidence(reader.nextDouble());
+                                    break;
+                                default:
+                                    reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        candidates.add(candidate);
+                    }
+                    reader.endArray();
+                }
+                reader.endObject();
+            }
+            reader.endArray();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Неверный ответ Face API: " + e.getMessage(), e);
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,180 @@
+package utils;
+
+import models.DetectModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Поиск лиц с локальной предварительной проверкой: фото отправляется
+ * в Face API, только если {@link LocalFaceDetector} считает, что на нем
+ * может быть лицо. Для фото без лиц ответ получается без сети.
+ * <p>
+ * Лица всегда возвращает основной детектор, поэтому у них есть faceId.
+ * Локальный поиск по цвету кожи пропускает часть настоящих лиц (светлые
+ * волосы и борода сливаются с кожей, темные тона кожи при слабом свете),
+ * поэтому проверка включается явно: {@link #optional(FaceDetector)}.
+ */
+public class PrefilterFaceDetector implements FaceDetector {
+
+    /**
+     * Системное свойство, включающее локальную проверку.
+     */
+    public static final String ENABLED_PROPERTY = "faceverify.prefilter";
+
+    private final LocalFaceDetector prefilter;
+    private final FaceDetector detector;
+
+    /**
+     * Число фото, отсеянных без запроса.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Число фото, переданных основному детектору.
+     */
+    private final AtomicLong passed = new AtomicLong();
+
+    /**
+     * @param prefilter локальная проверка
+     * @param detector основной детектор (обычно {@link RemoteFaceDetector})
+     */
+    public PrefilterFaceDetector(LocalFaceDetector prefilter, FaceDetector detector) {
+        this.prefilter = prefilter;
+        this.detector = detector;
+    }
+
+    /**
+     * Детектор с локальной проверкой, если она включена свойством
+     * {@code -Dfaceverify.prefilter=true}, иначе основной детектор.
+     * @param detector основной детектор
+     * @return FaceDetector
+     */
+    public static FaceDetector optional(FaceDetector detector) {
+        return Boolean.getBoolean(ENABLED_PROPERTY)
+                ? new PrefilterFaceDetector(new LocalFaceDetector(), detector) : detector;
+    }
+
+    @Override
+    public List<DetectModel> detect(File file) throws URISyntaxException, IOException {
+        if (!check(file)) {
+            return new ArrayList<>();
+        }
+        return detector.detect(file);
+    }
+
+    /**
+     * Проверка выполняется в общем пуле потоков, запрос - основным детектором.
+     * Отмена future отменяет и запрос основного детектора.
+     * @param file фото
+     * @return future с лицами по убыванию размера
+     */
+    @Override
+    public CompletableFuture<List<DetectModel>> detectAsync(File file) {
+        return detectAfterCheck(() -> check(file), () -> detector.detectAsync(file));
+    }
+
+    /**
+     * Проверка по уже декодированному фото, запрос - основным детектором
+     * с тем же фото.
+     * @param decoded фото
+     * @return future с лицами по убыванию размера
+     */
+    @Override
+    public CompletableFuture<List<DetectModel>> detectAsync(DecodedImage decoded) {
+        return detectAfterCheck(() -> check(decoded), () -> detector.detectAsync(decoded));
+    }
+
+    /**
+     * Проверка в общем пуле потоков и запрос основного детектора.
+     * @param check локальная проверка
+     * @param request запрос основного детектора
+     * @return future с лицами, отмена future отменяет и запрос
+     */
+    private static CompletableFuture<List<DetectModel>> detectAfterCheck(
+            Callable<Boolean> check, Callable<CompletableFuture<List<DetectModel>>> request) {
+        CompletableFuture<List<DetectModel>> result = new CompletableFuture<>();
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return check.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((mayContainFace, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (!mayContainFace) {
+                result.complete(new ArrayList<>());
+                return;
+            }
+            if (result.isDone()) {
+                //отменено во время проверки
+                return;
+            }
+            try {
+                CompletableFuture<List<DetectModel>> call = request.call();
+                result.whenComplete((faces, resultError) -> {
+                    if (result.isCancelled()) {
+                        call.cancel(true);
+                    }
+                });
+                call.whenComplete((faces, requestError) -> {
+                    if (requestError != null) {
+                        result.completeExceptionally(requestError);
+                    } else {
+                        result.complete(faces);
+                    }
+                });
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getPassed() {
+        return passed.get();
+    }
+
+    /**
+     * Локальная проверка фото с подсчетом результатов.
+     * Размер лица локально не проверяется: прямоугольники приблизительные,
+     * а лица меньше минимального размера Face API не находит сам.
+     * @param file фото
+     * @return true, если фото нужно передать основному детектору
+     * @throws IOException в случае ошибки чтения фото
+     */
+    private boolean check(File file) throws IOException {
+        long start = Metrics.start();
+        return record(prefilter.analyze(file).mayContainFace(), start);
+    }
+
+    /**
+     * Локальная проверка уже декодированного фото, см. {@link #check(File)}.
+     * @param decoded фото
+     * @return true, если фото нужно передать основному детектору
+     */
+    private boolean check(DecodedImage decoded) {
+        long start = Metrics.start();
+        return record(prefilter.analyze(decoded).mayContainFace(), start);
+    }
+
+    private boolean record(boolean mayContainFace, long start) {
+        Metrics.record(Metrics.Stage.LOCAL_DETECT, start);
+        (mayContainFace ? passed : rejected).incrementAndGet();
+        return mayContainFace;
+    }
+}
@@ -0,0 +1,136 @@
+package utils;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ограничение частоты запросов к Face API по алгоритму "token bucket".
+ * Один экземпляр разделяется всеми запросами, чтобы не превышать лимит подписки.
+ */
+public class RateLimiter {
+
+    /**
+     * Интервал между пополнениями на один запрос, нс.
+     */
+    private final double intervalNanos;
+
+    /**
+     * Максимальное число запросов, которые можно выполнить подряд.
+     */
+    private final double burst;
+
+    /**
+     * Текущее число доступных запросов.
+     */
+    private double tokens;
+
+    /**
+     * Время последнего пополнения, нс.
+     */
+    private long lastRefill;
+
+    /**
+     * Общее время ожидания разрешений, нс.
+     */
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * Число выданных разрешений.
+     */
+    private final AtomicLong acquired = new AtomicLong();
+
+    /**
+     * Число разрешений, для которых пришлось ждать.
+     */
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * @param permitsPerSecond допустимое число запросов в секунду
+     * @param burst максимальное число запросов подряд
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Неверные параметры: permitsPerSecond=%.2f, burst=%d",
+                    permitsPerSecond, burst));
+        }
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Получение разрешения на запрос с ожиданием.
+     * @return время ожидания, нс
+     * @throws InterruptedIOException в случае прерывания ожидания
+     */
+    public long acquire() throws InterruptedIOException {
+        long start = System.nanoTime();
+        long delay;
+        synchronized (this) {
+            refill(start);
+            //разрешение резервируется сразу, ожидание - вне блокировки
+            tokens -= 1;
+            delay = tokens >= 0 ? 0 : (long) (-tokens * intervalNanos);
+        }
+        if (delay > 0) {
+            throttled.incrementAndGet();
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    tokens += 1;
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Ожидание разрешения прервано.");
+            }
+        }
+        long waited = System.nanoTime() - start;
+        waitNanos.addAndGet(waited);
+        acquired.incrementAndGet();
+        return waited;
+    }
+
+    /**
+     * Резервирование разрешения без ожидания, для неблокирующих запросов:
+     * запрос нужно отправить не раньше, чем через возвращенное время.
+     * @return время до разрешенной отправки, нс
+     */
+    public long reserve() {
+        long delay;
+        synchronized (this) {
+            refill(System.nanoTime());
+            tokens -= 1;
+            delay = tokens >= 0 ? 0 : (long) (-tokens * intervalNanos);
+        }
+        if (delay > 0) {
+            throttled.incrementAndGet();
+        }
+        waitNanos.addAndGet(delay);
+        acquired.incrementAndGet();
+        return delay;
+    }
+
+    /**
+     * Пополнение доступных запросов за прошедшее время.
+     * @param now текущее время, нс
+     */
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefill) / intervalNanos);
+        lastRefill = now;
+    }
+
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+}
@@ -0,0 +1,61 @@
+package utils;
+
+import models.DetectModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Поиск лиц через /detect Face API.
+ * Лица содержат faceId для сравнения.
+ */
+public class RemoteFaceDetector implements FaceDetector {
+
+    /**
+     * Базовый URL Face API (null - {@link FaceAPI#getBaseURL()} при каждом запросе).
+     */
+    private final String baseURL;
+    private final DetectOptions options;
+
+    /**
+     * Детектор с базовым URL, который определяется при каждом запросе
+     * по текущему набору регионов ({@link FaceAPI#getBaseURL()}).
+     * @param options запрашиваемые данные о лицах
+     */
+    public RemoteFaceDetector(DetectOptions options) {
+        this(null, options);
+    }
+
+    /**
+     * @param baseURL базовый URL Face API
+     * @param options запрашиваемые данные о лицах
+     */
+    public RemoteFaceDetector(String baseURL, DetectOptions options) {
+        this.baseURL = baseURL;
+        this.options = options;
+    }
+
+    @Override
+    public List<DetectModel> detect(File file) throws URISyntaxException, IOException {
+        return FaceAPI.detectFaces(baseURL(), file, options);
+    }
+
+    @Override
+    public CompletableFuture<List<DetectModel>> detectAsync(File file)
+            throws URISyntaxException {
+        return FaceAPI.detectFacesAsync(baseURL(), file, options);
+    }
+
+    @Override
+    public CompletableFuture<List<DetectModel>> detectAsync(DecodedImage decoded)
+            throws URISyntaxException {
+        return FaceAPI.detectFacesAsync(baseURL(), decoded, options);
+    }
+
+    private String baseURL() {
+        return baseURL != null ? baseURL : FaceAPI.getBaseURL();
+    }
+}
@@ -0,0 +1,116 @@
+package utils;
+
+import models.DetectModel;
+import models.VerifyModel;
+
+import java.net.URISyntaxException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Опережающее сравнение лиц.
+ * Сравнение запускается сразу после распознавания обоих лиц, чтобы к моменту
+ * показа экрана с результатом ответ уже был получен или был в пути.
+ * Объектом владеет сеанс сравнения двух фото ({@code controllers.Session}).
+ */
+public class SpeculativeVerifier {
+
+    /**
+     * Идентификатор первого лица для текущего сравнения.
+     */
+    private String faceId1;
+
+    /**
+     * Идентификатор второго лица для текущего сравнения.
+     */
+    private String faceId2;
+
+    /**
+     * Текущее сравнение.
+     */
+    private CompletableFuture<VerifyModel> future;
+
+    /**
+     * Запуск опережающего сравнения, если известны оба лица.
+     * Повторный запуск для той же пары не выполняет новый запрос.
+     * @param baseURL базовый URL для запроса
+     * @param face1 информация о лице 1 (может быть null)
+     * @param face2 информация о лице 2 (может быть null)
+     */
+    public synchronized void start(String baseURL,
+                                   DetectModel face1,
+                                   DetectModel face2) {
+        if (face1 == null || face2 == null || isUsable(face1, face2)) {
+            return;
+        }
+        try {
+            restart(baseURL, face1, face2);
+        } catch (URISyntaxException e) {
+            //опережающее сравнение необязательно, запрос повторится позже
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Получение результата сравнения: используется опережающее сравнение
+     * той же пары лиц или запускается новое.
+     * Отмена возвращенного future не отменяет общий запрос.
+     * @param baseURL базовый URL для запроса
+     * @param face1 информация о лице 1
+     * @param face2 информация о лице 2
+     * @return future с результатом сравнения лиц
+     * @throws URISyntaxException в случае неверного URL
+     */
+    public synchronized CompletableFuture<VerifyModel> verify(
+            String baseURL, DetectModel face1, DetectModel face2)
+            throws URISyntaxException {
+        if (!isUsable(face1, face2)) {
+            restart(baseURL, face1, face2);
+        }
+        return future.thenApply(Function.identity());
+    }
+
+    /**
+     * Отмена текущего сравнения, например, при замене одного из фото.
+     */
+    public synchronized void invalidate() {
+        if (future != null) {
+            future.cancel(true);
+        }
+        future = null;
+        faceId1 = null;
+        faceId2 = null;
+    }
+
+    /**
+     * Проверка, что текущее сравнение относится к этой паре лиц
+     * и не завершилось ошибкой или пустым ответом.
+     * @param face1 информация о лице 1
+     * @param face2 информация о лице 2
+     * @return true, если результат текущего сравнения можно использовать
+     */
+    private boolean isUsable(DetectModel face1, DetectModel face2) {
+        if (future == null || future.isCompletedExceptionally()
+                || future.isDone() && future.getNow(null) == null) {
+            return false;
+        }
+        return face1.getFaceId().equals(faceId1)
+                && face2.getFaceId().equals(faceId2);
+    }
+
+    /**
+     * Отмена текущего сравнения и запуск нового.
+     * @param baseURL базовый URL для запроса
+     * @param face1 информация о лице 1
+     * @param face2 информация о лице 2
+     * @throws URISyntaxException в случае неверного URL
+     */
+    private void restart(String baseURL, DetectModel face1,
+                         DetectModel face2)
+            throws URISyntaxException {
+        invalidate();
+        future = FaceAPI.verifyAsync(baseURL, face1, face2);
+        faceId1 = face1.getFaceId();
+        faceId2 = face2.getFaceId();
+    }
+}
@@ -0,0 +1,263 @@
+package utils;
+
+import models.DetectModel;
+import models.VerifyModel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Сравнение лиц пачками для запросов от многих клиентов.
+ * <p>
+ * Запросы собираются в пачку в течение окна или до заполнения пачки.
+ * Одинаковые пары в пачке (в любом порядке лиц) сравниваются одним запросом,
+ * уже выполняющиеся и сохраненные пары берутся из {@link VerifyCache}.
+ * Пачка отправляется через общий пул и ограничение частоты {@link FaceAPI};
+ * одновременно выполняется не больше maxInFlight сравнений, остальные ждут
+ * в очереди пачек и могут совпасть с новыми запросами. Если очередь
+ * заполнена, запрос сразу завершается с {@link RejectedExecutionException}.
+ * <p>
+ * Face API не сравнивает несколько пар одним запросом, поэтому пачка
+ * уменьшает число запросов только за счет совпадающих пар.
+ */
+public class VerifyBatcher implements Closeable {
+
+    /**
+     * Базовый URL для запросов.
+     */
+    private final String baseURL;
+
+    /**
+     * Время сбора пачки, мс.
+     */
+    private final long windowMillis;
+
+    /**
+     * Максимальный размер пачки.
+     */
+    private final int maxBatch;
+
+    /**
+     * Максимальное число ожидающих запросов.
+     */
+    private final int maxQueued;
+
+    /**
+     * Места для одновременно выполняющихся сравнений.
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * Запросы, ожидающие отправки.
+     */
+    private final Deque<Pending> queue = new ArrayDeque<>();
+
+    /**
+     * Поток сбора и отправки пачек.
+     */
+    private final ScheduledExecutorService dispatcher
+            = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "face-verify-batch");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Запланированная отправка пачки (null - очередь пуста).
+     */
+    private ScheduledFuture<?> flush;
+
+    private boolean closed;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param baseURL базовый URL для запросов
+     * @param windowMillis время сбора пачки, мс
+     * @param maxBatch максимальный размер пачки
+     * @param maxInFlight максимальное число одновременных сравнений
+     * @param maxQueued максимальное число ожидающих запросов
+     */
+    public VerifyBatcher(String baseURL, long windowMillis, int maxBatch,
+                         int maxInFlight, int maxQueued) {
+        if (windowMillis < 0 || maxBatch <= 0 || maxInFlight <= 0 || maxQueued <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Неверные параметры: windowMillis=%d, maxBatch=%d, maxInFlight=%d, "
+                            + "maxQueued=%d", windowMillis, maxBatch, maxInFlight, maxQueued));
+        }
+        this.baseURL = baseURL;
+        this.windowMillis = windowMillis;
+        this.maxBatch = maxBatch;
+        this.maxQueued = maxQueued;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Постановка сравнения в очередь.
+     * @param face1 информация о лице 1
+     * @param face2 информация о лице 2
+     * @return future с результатом сравнения
+     */
+    public CompletableFuture<VerifyModel> submit(DetectModel face1, DetectModel face2) {
+        Pending pending = new Pending(face1, face2);
+        requests.incrementAndGet();
+        synchronized (this) {
+            if (closed) {
+                pending.future.completeExceptionally(new IOException("Сервис остановлен."));
+                return pending.future;
+            }
+            if (queue.size() >= maxQueued) {
+                rejected.incrementAndGet();
+                pending.future.completeExceptionally(new RejectedExecutionException(
+                        "Очередь сравнений заполнена: " + maxQueued));
+                return pending.future;
+            }
+            queue.add(pending);
+            if (queue.size() >= maxBatch) {
+                //пачка заполнена: отправка без ожидания окна
+                if (flush != null) {
+                    flush.cancel(false);
+                }
+                flush = dispatcher.schedule(this::flush, 0, TimeUnit.MILLISECONDS);
+            } else if (flush == null) {
+                flush = dispatcher.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return pending.future;
+    }
+
+    /**
+     * Отправка пачки. Выполняется потоком dispatcher, ожидание свободного
+     * места задерживает следующие пачки.
+     */
+    private void flush() {
+        List<Pending> batch = new ArrayList<>();
+        synchronized (this) {
+            while (batch.size() < maxBatch && !queue.isEmpty()) {
+                batch.add(queue.poll());
+            }
+            flush = queue.isEmpty() ? null
+                    : dispatcher.schedule(this::flush, 0, TimeUnit.MILLISECONDS);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        batches.incrementAndGet();
+
+        //одинаковые пары сравниваются один раз
+        Map<String, List<Pending>> pairs = new LinkedHashMap<>();
+        for (Pending pending : batch) {
+            pairs.computeIfAbsent(VerifyCache.key(pending.face1, pending.face2),
+                    key -> new ArrayList<>()).add(pending);
+        }
+        merged.addAndGet(batch.size() - pairs.size());
+
+        for (List<Pending> same : pairs.values()) {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(same, new IOException("Сервис остановлен."));
+                continue;
+            }
+            Pending first = same.get(0);
+            CompletableFuture<VerifyModel> call;
+            try {
+                call = FaceAPI.verifyAsync(baseURL, first.face1, first.face2);
+            } catch (URISyntaxException | RuntimeException e) {
+                inFlight.release();
+                fail(same, e);
+                continue;
+            }
+            call.whenComplete((verifyModel, error) -> {
+                inFlight.release();
+                for (Pending pending : same) {
+                    if (error != null) {
+                        pending.future.completeExceptionally(error);
+                    } else {
+                        pending.future.complete(verifyModel);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void fail(List<Pending> same, Throwable error) {
+        for (Pending pending : same) {
+            pending.future.completeExceptionally(error);
+        }
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * @return число запросов, объединенных с одинаковой парой в той же пачке
+     */
+    public long getMerged() {
+        return merged.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Остановка: ожидающие запросы завершаются с ошибкой.
+     */
+    @Override
+    public void close() {
+        List<Pending> pending;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending = new ArrayList<>(queue);
+            queue.clear();
+        }
+        dispatcher.shutdownNow();
+        fail(pending, new IOException("Сервис остановлен."));
+    }
+
+    /**
+     * Запрос, ожидающий отправки.
+     */
+    private static class Pending {
+        private final DetectModel face1;
+        private final DetectModel face2;
+        private final CompletableFuture<VerifyModel> future = new CompletableFuture<>();
+
+        Pending(DetectModel face1, DetectModel face2) {
+            this.face1 = face1;
+            this.face2 = face2;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package utils;
+
+import models.DetectModel;
+import models.VerifyModel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Кэш результатов сравнения лиц по паре faceId.
+ * Пара не зависит от порядка лиц. В кэше хранятся и выполняющиеся запросы,
+ * поэтому одновременные сравнения одной пары выполняются одним запросом.
+ * Каждый вызывающий получает свое ожидание результата: отмена ожидания
+ * прерывает общий запрос, только если его отменили все вызывающие.
+ */
+public class VerifyCache {
+
+    /**
+     * Максимальное число записей.
+     */
+    private final int maxSize;
+
+    /**
+     * Записи кэша в порядке обращения.
+     */
+    private final LinkedHashMap<String, CacheEntry> entries;
+
+    /**
+     * Число найденных в кэше результатов (включая выполняющиеся запросы).
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Число результатов, которых не было в кэше.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize максимальное число записей
+     */
+    public VerifyCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > VerifyCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Ключ кэша для пары лиц, не зависящий от порядка.
+     * @param face1 информация о лице 1
+     * @param face2 информация о лице 2
+     * @return ключ
+     */
+    public static String key(DetectModel face1, DetectModel face2) {
+        String id1 = face1.getFaceId();
+        String id2 = face2.getFaceId();
+        return id1.compareTo(id2) <= 0 ? id1 + "|" + id2 : id2 + "|" + id1;
+    }
+
+    /**
+     * Получение результата сравнения пары или запуск нового запроса.
+     * Если пары нет в кэше, запрос запускается вызовом start в потоке
+     * вызывающего. Завершенные ошибкой или пустым результатом записи удаляются.
+     * @param face1 информация о лице 1
+     * @param face2 информация о лице 2
+     * @param start запуск запроса
+     * @return ожидание результата для одного вызывающего
+     */
+    public CompletableFuture<VerifyModel> join(DetectModel face1, DetectModel face2,
+                                               Supplier<CompletableFuture<VerifyModel>> start) {
+        String key = key(face1, face2);
+        CacheEntry created;
+        CompletableFuture<VerifyModel> waiter;
+        synchronized (this) {
+            CacheEntry entry = entries.get(key);
+            if (entry != null && System.currentTimeMillis() < entry.expiresAt) {
+                hits.incrementAndGet();
+                return entry.waiter();
+            }
+
+            misses.incrementAndGet();
+            created = new CacheEntry(Math.min(face1.getExpiresAt(), face2.getExpiresAt()));
+            entries.put(key, created);
+            //ожидание создается до запуска: отмена других вызывающих
+            //не должна прервать запрос, пока этот вызывающий ждет
+            waiter = created.waiter();
+        }
+        created.future.whenComplete((result, error) -> {
+            if (error != null || result == null) {
+                remove(key, created);
+            }
+        });
+
+        CompletableFuture<VerifyModel> call;
+        try {
+            call = start.get();
+        } catch (RuntimeException e) {
+            created.future.completeExceptionally(e);
+            throw e;
+        }
+        created.attach(call);
+        return waiter;
+    }
+
+    /**
+     * Удаление записи, если она не была заменена.
+     * @param key ключ
+     * @param entry запись
+     */
+    private synchronized void remove(String key, CacheEntry entry) {
+        if (entries.get(key) == entry) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Удаление всех записей.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Запись кэша.
+     */
+    private static class CacheEntry {
+
+        /**
+         * Общий результат сравнения.
+         */
+        private final CompletableFuture<VerifyModel> future = new CompletableFuture<>();
+
+        /**
+         * Время истечения первого из двух faceId.
+         */
+        private final long expiresAt;
+
+        /**
+         * Выполняющийся запрос (null, пока не запущен).
+         */
+        private CompletableFuture<VerifyModel> call;
+
+        /**
+         * Число вызывающих, ожидающих незавершенный запрос.
+         */
+        private int waiters;
+
+        CacheEntry(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Ожидание результата одним вызывающим.
+         * @return future, отмена которого учитывается в числе ожидающих
+         */
+        synchronized CompletableFuture<VerifyModel> waiter() {
+            CompletableFuture<VerifyModel> waiter = future.thenApply(Function.identity());
+            if (!waiter.isDone()) {
+                waiters++;
+                waiter.whenComplete((result, error) -> {
+                    if (waiter.isCancelled()) {
+                        cancelled();
+                    }
+                });
+            }
+            return waiter;
+        }
+
+        /**
+         * Отмена одного ожидания. Запрос прерывается, когда отменены все.
+         */
+        private void cancelled() {
+            CompletableFuture<VerifyModel> running;
+            synchronized (this) {
+                if (--waiters > 0 || future.isDone()) {
+                    return;
+                }
+                running = call;
+            }
+            future.cancel(true);
+            if (running != null) {
+                running.cancel(true);
+            }
+        }
+
+        /**
+         * Привязка запущенного запроса к общему результату.
+         * @param started запущенный запрос
+         */
+        void attach(CompletableFuture<VerifyModel> started) {
+            synchronized (this) {
+                call = started;
+            }
+            if (future.isCancelled()) {
+                started.cancel(true);
+                return;
+            }
+            started.whenComplete((verifyModel, error) -> {
+                if (error != null) {
+                    future.completeExceptionally(error);
+                } else {
+                    future.complete(verifyModel);
+                }
+            });
+        }
+    }
+}
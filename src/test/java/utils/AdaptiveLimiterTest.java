@@ -0,0 +1,111 @@
+package utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Рост и снижение лимита {@link AdaptiveLimiter}.
+ */
+public class AdaptiveLimiterTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void limitGrowsByOneAfterLimitFastSuccesses() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 4, 10);
+        //рост на 1/limit за запрос: 4 -> 4.92 после четырех, 5.12 после пяти
+        complete(limiter, "verify", FAST, 4);
+        assertEquals(4, limiter.getLimit());
+        complete(limiter, "verify", FAST, 1);
+        assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    public void limitStopsAtMaximum() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 2, 3);
+        complete(limiter, "verify", FAST, 100);
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void overloadCutsLimitByQuarterDownToMinimum() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 8, 10);
+        release(limiter, "verify", FAST, true);
+        assertEquals(6, limiter.getLimit());
+        release(limiter, "verify", FAST, true);
+        release(limiter, "verify", FAST, true);
+        release(limiter, "verify", FAST, true);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void latencySpikeCountsOnlyAgainstSameOperation() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 8, 10);
+        complete(limiter, "verify", FAST, 1);
+        int limit = limiter.getLimit();
+
+        //первый медленный detect: своей базы еще нет, это не перегрузка
+        release(limiter, "detect", FAST * 10, false);
+        assertTrue(limiter.getLimit() >= limit);
+        assertEquals(1000, limiter.getSmoothedLatencyMillis("detect"));
+        assertEquals(100, limiter.getSmoothedLatencyMillis("verify"));
+
+        //verify в три раза медленнее своей базы - перегрузка
+        release(limiter, "verify", FAST * 3, false);
+        assertEquals(6, limiter.getLimit());
+    }
+
+    @Test
+    public void overloadedLatencyDoesNotMoveBaseline() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 4, 10);
+        complete(limiter, "verify", FAST, 1);
+        release(limiter, "verify", FAST * 50, true);
+        assertEquals(100, limiter.getSmoothedLatencyMillis("verify"));
+    }
+
+    @Test
+    public void acquireWaitsUntilRelease() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1);
+        limiter.acquire();
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                limiter.acquire();
+                acquired.countDown();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        waiter.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+        limiter.release("verify", FAST, false);
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        assertEquals(1, limiter.getInFlight());
+        waiter.join();
+    }
+
+    private static void complete(AdaptiveLimiter limiter, String operation,
+                                 long latencyNanos, int count) {
+        for (int i = 0; i < count; i++) {
+            release(limiter, operation, latencyNanos, false);
+        }
+    }
+
+    private static void release(AdaptiveLimiter limiter, String operation,
+                                long latencyNanos, boolean overloaded) {
+        try {
+            limiter.acquire();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        limiter.release(operation, latencyNanos, overloaded);
+    }
+}
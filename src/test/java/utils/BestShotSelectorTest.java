@@ -0,0 +1,160 @@
+package utils;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ранжирование кадров и выбор лучшего кадра {@link BestShotSelector}.
+ */
+public class BestShotSelectorTest {
+
+    private LocalFaceServer server;
+    private CloseableHttpClient httpClient;
+    private DetectionCache detectionCache;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        httpClient = HttpClients.createDefault();
+        FaceAPI.setHttpClient(httpClient);
+        server = new LocalFaceServer();
+        detectionCache = FaceAPI.getDetectionCache();
+        FaceAPI.setDetectionCache(null);
+        dir = Files.createTempDirectory("best-shot-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FaceAPI.setHttpClient(null);
+        httpClient.close();
+        FaceAPI.setDetectionCache(detectionCache);
+        server.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void sharperFrameRanksFirstAndUnreadableLast() throws IOException {
+        File broken = new File(dir, "broken.jpg");
+        Files.write(broken.toPath(), "не фото".getBytes(StandardCharsets.UTF_8));
+        File blurred = gray("blurred", 8);
+        File sharp = gray("sharp", 255);
+
+        List<BestShotSelector.Shot> ranked = new BestShotSelector().rank(
+                Arrays.asList(broken, blurred, sharp));
+        assertEquals(sharp, ranked.get(0).getFile());
+        assertEquals(blurred, ranked.get(1).getFile());
+        assertEquals(broken, ranked.get(2).getFile());
+        assertEquals(0, ranked.get(2).getScore(), 0);
+        assertTrue(ranked.get(0).getSharpness() > ranked.get(1).getSharpness());
+    }
+
+    @Test
+    public void equalScoresKeepFrameOrder() throws IOException {
+        File first = gray("first", 128);
+        File second = new File(dir, "second.png");
+        File third = new File(dir, "third.png");
+        Files.copy(first.toPath(), second.toPath());
+        Files.copy(first.toPath(), third.toPath());
+
+        List<BestShotSelector.Shot> ranked = new BestShotSelector().rank(
+                Arrays.asList(first, second, third));
+        assertEquals(first, ranked.get(0).getFile());
+        assertEquals(second, ranked.get(1).getFile());
+        assertEquals(third, ranked.get(2).getFile());
+    }
+
+    @Test
+    public void coloredFrameWithoutSkinScoresZero() throws IOException {
+        Random random = new Random(1);
+        BufferedImage image = new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, random.nextInt(256));
+            }
+        }
+        File blue = new File(dir, "blue.png");
+        ImageIO.write(image, "png", blue);
+
+        BestShotSelector.Shot shot = new BestShotSelector().rank(Arrays.asList(blue)).get(0);
+        assertEquals(0, shot.getScore(), 0);
+        assertTrue(shot.getSharpness() > 0);
+    }
+
+    @Test
+    public void onlyTopFramesAreSentToFaceApi() throws Exception {
+        List<File> frames = Arrays.asList(gray("a", 16), gray("b", 255), gray("c", 32),
+                gray("d", 128));
+
+        BestShotSelector.Shot best = new BestShotSelector(2)
+                .select(server.getBaseURL(), frames, DetectOptions.DEFAULT);
+        assertEquals(2, server.getRequests());
+        assertEquals(frames.get(1), best.getFile());
+        assertNotNull(best.getDetect());
+        assertEquals(1, best.getFaces().size());
+        //размер лица берется из ответа Face API
+        assertEquals(100, best.getFaceSize());
+    }
+
+    @Test
+    public void noFaceOnTopFramesSelectsNothing() throws Exception {
+        server.setFacesPerImage(0);
+        List<File> frames = Arrays.asList(gray("a", 64), gray("b", 255), gray("c", 128));
+
+        assertNull(new BestShotSelector(2).select(server.getBaseURL(), frames,
+                DetectOptions.DEFAULT));
+        assertEquals(2, server.getRequests());
+        assertNull(new BestShotSelector().select(server.getBaseURL(),
+                Arrays.<File>asList(), DetectOptions.DEFAULT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void topKMustBePositive() {
+        new BestShotSelector(0);
+    }
+
+    /**
+     * Серый кадр: шум заданной амплитуды вокруг средней яркости,
+     * резкость растет с амплитудой.
+     * @param name имя файла без расширения
+     * @param amplitude амплитуда шума, от 1 до 255
+     * @return файл PNG
+     * @throws IOException в случае ошибки записи
+     */
+    private File gray(String name, int amplitude) throws IOException {
+        Random random = new Random(name.hashCode());
+        BufferedImage image = new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                int luma = 128 - amplitude / 2 + random.nextInt(amplitude);
+                image.setRGB(x, y, luma << 16 | luma << 8 | luma);
+            }
+        }
+        File file = new File(dir, name + ".png");
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+}
@@ -0,0 +1,168 @@
+package utils;
+
+import models.DetectModel;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Фото, декодированное один раз ({@link DecodedImage}): проверка качества,
+ * подготовка и распознавание дают тот же результат, что и по файлу.
+ */
+public class DecodedImageTest {
+
+    private LocalFaceServer server;
+    private CloseableHttpClient httpClient;
+    private DetectionCache detectionCache;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        httpClient = HttpClients.createDefault();
+        FaceAPI.setHttpClient(httpClient);
+        server = new LocalFaceServer();
+        detectionCache = FaceAPI.getDetectionCache();
+        dir = Files.createTempDirectory("decoded-image-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FaceAPI.setHttpClient(null);
+        httpClient.close();
+        FaceAPI.setDetectionCache(detectionCache);
+        server.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void readKeepsSourceSizeAndSubsamples() throws IOException {
+        File file = noise("large", 3000, 1500, 2, 1);
+        DecodedImage decoded = DecodedImage.read(file, 1280);
+
+        assertEquals(3000, decoded.getWidth());
+        assertEquals(1500, decoded.getHeight());
+        assertEquals(file.length(), decoded.getData().length);
+        //прореживание не меньше запрошенного размера
+        assertEquals(1500, decoded.getImage().getWidth());
+        assertEquals(750, decoded.subsample(640).getWidth());
+    }
+
+    @Test
+    public void qualityOfDecodedPhotoMatchesFile() throws IOException {
+        ImageQuality quality = new ImageQuality();
+        for (File file : Arrays.asList(noise("sharp", 1600, 1200, 255, 1),
+                noise("flat", 1600, 1200, 2, 1), noise("dark", 1600, 1200, 255, 0.2),
+                noise("tiny", 30, 200, 255, 1))) {
+            assertEquals(file.getName(), quality.analyze(file).getIssues(),
+                    quality.analyze(DecodedImage.read(file, 1280)).getIssues());
+        }
+    }
+
+    @Test
+    public void preparedDecodedPhotoMatchesFileAndKeepsImage() throws IOException {
+        File file = noise("dark", 1600, 1200, 255, 0.2);
+        int[] levels = new ImageQuality().analyze(file).getLevels();
+        assertNotNull(levels);
+        DecodedImage decoded = DecodedImage.read(file, 1280);
+        BufferedImage image = decoded.getImage();
+        int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(),
+                null, 0, image.getWidth());
+        ImagePreprocessor preprocessor = new ImagePreprocessor(800,
+                ImagePreprocessor.DEFAULT_QUALITY);
+
+        ImagePreprocessor.PreparedImage fromFile = preprocessor.prepare(file, levels);
+        ImagePreprocessor.PreparedImage fromDecoded = preprocessor.prepare(decoded, levels);
+
+        assertFalse(fromDecoded.isOriginal());
+        assertEquals(800, ImageIO.read(new ByteArrayInputStream(
+                fromDecoded.getData(), 0, fromDecoded.getLength())).getWidth());
+        DetectModel expected = fromFile.toOriginal(face(100, 100, 200, 200));
+        DetectModel actual = fromDecoded.toOriginal(face(100, 100, 200, 200));
+        assertEquals(expected.getX(), actual.getX());
+        assertEquals(expected.getWidth(), actual.getWidth());
+        //яркость исправлена на копии
+        assertTrue(Arrays.equals(pixels, image.getRGB(0, 0, image.getWidth(),
+                image.getHeight(), null, 0, image.getWidth())));
+    }
+
+    @Test
+    public void detectSendsDecodedBytesAndSharesCacheWithFile() throws Exception {
+        FaceAPI.setDetectionCache(new DetectionCache(16));
+        File file = noise("photo", 400, 300, 255, 1);
+        DecodedImage decoded = DecodedImage.read(file, 1280);
+        assertEquals(1, FaceAPI.detectFaces(server.getBaseURL(), file,
+                DetectOptions.DEFAULT).size());
+        assertTrue(file.delete());
+
+        //ключ кэша по содержимому в памяти совпадает с ключом по файлу
+        assertEquals(1, FaceAPI.detectFacesAsync(server.getBaseURL(), decoded,
+                DetectOptions.DEFAULT).get(5, TimeUnit.SECONDS).size());
+        assertEquals(1, server.getRequests());
+
+        //без кэша отправляется прочитанное содержимое, файл больше не нужен
+        FaceAPI.setDetectionCache(null);
+        assertEquals(1, FaceAPI.detectFacesAsync(server.getBaseURL(), decoded,
+                DetectOptions.DEFAULT).get(5, TimeUnit.SECONDS).size());
+        assertEquals(2, server.getRequests());
+    }
+
+    private static DetectModel face(int x, int y, int width, int height) {
+        DetectModel face = new DetectModel();
+        face.setX(x);
+        face.setY(y);
+        face.setWidth(width);
+        face.setHeight(height);
+        return face;
+    }
+
+    /**
+     * Фото PNG из шума.
+     * @param name имя файла без расширения
+     * @param width ширина
+     * @param height высота
+     * @param amplitude амплитуда шума яркости, от 1 до 255
+     * @param brightness множитель яркости
+     * @return файл
+     * @throws IOException в случае ошибки записи
+     */
+    private File noise(String name, int width, int height, int amplitude, double brightness)
+            throws IOException {
+        Random random = new Random(name.hashCode());
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int base = amplitude >= 255 ? 0 : 128 - amplitude / 2;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int r = (int) ((base + random.nextInt(amplitude)) * brightness);
+                int g = (int) ((base + random.nextInt(amplitude)) * brightness);
+                int b = (int) ((base + random.nextInt(amplitude)) * brightness);
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+        File file = new File(dir, name + ".png");
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+}
@@ -0,0 +1,82 @@
+package utils;
+
+import org.apache.http.client.utils.URIBuilder;
+import org.junit.Test;
+
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ключи кэша и разбор строки запроса {@link DetectOptions}.
+ */
+public class DetectOptionsTest {
+
+    @Test
+    public void defaultOptionsAddNothingToKey() {
+        assertEquals("", DetectOptions.DEFAULT.cacheKey());
+        assertEquals("", DetectOptions.DEFAULT.withAttributes().cacheKey());
+    }
+
+    @Test
+    public void everyOptionGetsItsOwnKey() {
+        List<DetectOptions> options = Arrays.asList(
+                DetectOptions.DEFAULT,
+                DetectOptions.DEFAULT.withFaceId(false),
+                DetectOptions.DEFAULT.withLandmarks(true),
+                DetectOptions.DEFAULT.withAttributes(DetectOptions.Attribute.AGE),
+                DetectOptions.DEFAULT.withAttributes(DetectOptions.Attribute.AGE,
+                        DetectOptions.Attribute.SMILE),
+                DetectOptions.DEFAULT.withRecognitionModel("recognition_02"),
+                DetectOptions.DEFAULT.withRecognitionModel("recognition_03"),
+                DetectOptions.DEFAULT.withDetectionModel("detection_02"),
+                //одно и то же значение в разных параметрах
+                DetectOptions.DEFAULT.withRecognitionModel("latest"),
+                DetectOptions.DEFAULT.withDetectionModel("latest"));
+        Set<String> keys = new HashSet<>();
+        for (DetectOptions option : options) {
+            assertTrue("повторный ключ " + option.cacheKey(), keys.add(option.cacheKey()));
+        }
+    }
+
+    @Test
+    public void attributeOrderDoesNotChangeKey() {
+        assertEquals(
+                DetectOptions.DEFAULT.withAttributes(DetectOptions.Attribute.SMILE,
+                        DetectOptions.Attribute.AGE).cacheKey(),
+                DetectOptions.DEFAULT.withAttributes(DetectOptions.Attribute.AGE,
+                        DetectOptions.Attribute.SMILE).cacheKey());
+    }
+
+    @Test
+    public void queryRoundTripKeepsKey() throws URISyntaxException {
+        DetectOptions options = DetectOptions.DEFAULT
+                .withFaceId(false)
+                .withLandmarks(true)
+                .withAttributes(DetectOptions.Attribute.HEAD_POSE, DetectOptions.Attribute.BLUR)
+                .withRecognitionModel("recognition_02")
+                .withDetectionModel("detection_02");
+        URIBuilder builder = new URIBuilder("http://localhost/face/v1.0/detect");
+        options.apply(builder);
+
+        DetectOptions parsed = DetectOptions.fromQuery(builder.build().getRawQuery());
+        assertEquals(options.cacheKey(), parsed.cacheKey());
+        assertFalse(parsed.isFaceId());
+        assertEquals(options.getAttributes(), parsed.getAttributes());
+    }
+
+    @Test
+    public void unknownQueryParametersAreIgnored() {
+        DetectOptions parsed = DetectOptions.fromQuery(
+                "returnFaceAttributes=age,emotion&returnRecognitionModel=true");
+        assertEquals(DetectOptions.DEFAULT.withAttributes(DetectOptions.Attribute.AGE).cacheKey(),
+                parsed.cacheKey());
+        assertEquals("", DetectOptions.fromQuery(null).cacheKey());
+    }
+}
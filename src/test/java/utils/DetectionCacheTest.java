@@ -0,0 +1,201 @@
+package utils;
+
+import models.DetectModel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ключи, вытеснение, истечение и файл {@link DetectionCache}.
+ */
+public class DetectionCacheTest {
+
+    private static final String BASE_URL = "https://westeurope.api.cognitive.microsoft.com/face/v1.0";
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("detection-cache-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void keyIsSha256OfContent() throws IOException {
+        File file = write("photo.jpg", "abc");
+        String sha256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+        assertEquals(sha256, DetectionCache.key(file));
+        assertEquals(sha256, DetectionCache.key("abc".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void keySeparatesServicesAndOptions() throws IOException {
+        File file = write("photo.jpg", "photo");
+        File copy = write("copy.jpg", "photo");
+        String key = DetectionCache.key(BASE_URL, file, DetectOptions.DEFAULT);
+
+        assertEquals(key, DetectionCache.key(BASE_URL, copy, DetectOptions.DEFAULT));
+        assertNotEquals(key, DetectionCache.key("http://localhost:8090/face/v1.0",
+                file, DetectOptions.DEFAULT));
+        assertNotEquals(key, DetectionCache.key(BASE_URL, file,
+                DetectOptions.DEFAULT.withLandmarks(true)));
+    }
+
+    @Test
+    public void getReturnsCopiesWithCallersSource() {
+        DetectionCache cache = new DetectionCache(4);
+        cache.put("a", Arrays.asList(face("face-1"), face("face-2")));
+        File source = new File(dir, "photo.jpg");
+
+        List<DetectModel> faces = cache.get("a", source);
+        assertEquals(2, faces.size());
+        assertEquals("face-1", faces.get(0).getFaceId());
+        assertEquals(source, faces.get(1).getSource());
+
+        faces.get(0).setFaceId("changed");
+        assertEquals("face-1", cache.get("a").get(0).getFaceId());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void expiredFacesAreNotReturned() throws InterruptedException {
+        DetectionCache cache = new DetectionCache(4);
+        cache.put("expired", Collections.singletonList(expiring("face-1", -1)));
+        assertEquals(0, cache.size());
+
+        cache.put("expiring", Collections.singletonList(expiring("face-2", 50)));
+        assertNotNull(cache.get("expiring"));
+        Thread.sleep(100);
+        assertNull(cache.get("expiring"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() {
+        DetectionCache cache = new DetectionCache(2);
+        cache.put("a", Collections.singletonList(face("face-a")));
+        cache.put("b", Collections.singletonList(face("face-b")));
+        cache.get("a");
+        cache.put("c", Collections.singletonList(face("face-c")));
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void flushReplacesFileAndReloads() throws IOException {
+        File persistFile = new File(dir, "cache.json");
+        DetectionCache cache = new DetectionCache(4, persistFile);
+        cache.put("a", Arrays.asList(face("face-1"), face("face-2")));
+        cache.flush();
+
+        //файл заменяется целиком, временный файл не остается
+        assertTrue(persistFile.isFile());
+        assertFalse(new File(dir, "cache.json.tmp").exists());
+        cache.put("b", Collections.singletonList(face("face-4")));
+        cache.flush();
+        assertFalse(new File(dir, "cache.json.tmp").exists());
+
+        DetectionCache reloaded = new DetectionCache(4, persistFile);
+        assertEquals(2, reloaded.size());
+        List<DetectModel> faces = reloaded.get("a");
+        assertEquals(2, faces.size());
+        assertEquals("face-2", faces.get(1).getFaceId());
+        assertNull(faces.get(0).getSource());
+    }
+
+    @Test
+    public void expiredEntriesAreSkippedOnLoad() throws Exception {
+        File persistFile = new File(dir, "cache.json");
+        DetectionCache cache = new DetectionCache(4, persistFile);
+        cache.put("a", Collections.singletonList(face("face-1")));
+        cache.put("expiring", Collections.singletonList(expiring("face-2", 50)));
+        cache.flush();
+        Thread.sleep(100);
+
+        DetectionCache reloaded = new DetectionCache(4, persistFile);
+        assertEquals(1, reloaded.size());
+        assertNull(reloaded.get("expiring"));
+    }
+
+    @Test
+    public void singleFaceEntriesOfOldFormatAreLoaded() throws IOException {
+        long detectedAt = System.currentTimeMillis();
+        File persistFile = write("cache.json", "{\"old\":{\"faceId\":\"face-1\",\"x\":10,"
+                + "\"y\":20,\"width\":30,\"height\":40,\"detectedAt\":" + detectedAt + "},"
+                + "\"new\":[{\"faceId\":\"face-2\",\"x\":1,\"y\":2,\"width\":3,"
+                + "\"height\":4,\"detectedAt\":" + detectedAt + "}]}");
+
+        DetectionCache cache = new DetectionCache(4, persistFile);
+        List<DetectModel> old = cache.get("old");
+        assertEquals(1, old.size());
+        assertEquals("face-1", old.get(0).getFaceId());
+        assertEquals(40, old.get(0).getHeight());
+        assertEquals("face-2", cache.get("new").get(0).getFaceId());
+    }
+
+    @Test
+    public void damagedFileIsIgnored() throws IOException {
+        File persistFile = write("cache.json", "{\"a\":[{\"faceId\":");
+        DetectionCache cache = new DetectionCache(4, persistFile);
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Только что полученное лицо.
+     * @param faceId идентификатор
+     * @return DetectModel
+     */
+    private static DetectModel face(String faceId) {
+        return expiring(faceId, DetectModel.FACE_ID_LIFETIME - DetectModel.FACE_ID_EXPIRY_MARGIN);
+    }
+
+    /**
+     * Лицо, faceId которого перестанет использоваться через заданное время.
+     * @param faceId идентификатор
+     * @param millis время до истечения с учетом запаса, мс
+     * @return DetectModel
+     */
+    private static DetectModel expiring(String faceId, long millis) {
+        DetectModel face = new DetectModel();
+        face.setFaceId(faceId);
+        face.setWidth(100);
+        face.setHeight(100);
+        face.setDetectedAt(System.currentTimeMillis() + millis
+                - DetectModel.FACE_ID_LIFETIME + DetectModel.FACE_ID_EXPIRY_MARGIN);
+        return face;
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
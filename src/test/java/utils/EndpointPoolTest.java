@@ -0,0 +1,294 @@
+package utils;
+
+import models.DetectModel;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Выбор региона, повторные запросы и переход в другой регион
+ * в {@link EndpointPool}: на двух {@link LocalFaceServer} через {@link FaceAPI}
+ * и на попытках, завершаемых тестом.
+ */
+public class EndpointPoolTest {
+
+    private LocalFaceServer primary;
+    private LocalFaceServer secondary;
+    private CloseableHttpClient httpClient;
+    private DetectionCache detectionCache;
+    private VerifyCache verifyCache;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        httpClient = HttpClients.createDefault();
+        FaceAPI.setHttpClient(httpClient);
+        primary = new LocalFaceServer();
+        secondary = new LocalFaceServer();
+        detectionCache = FaceAPI.getDetectionCache();
+        FaceAPI.setDetectionCache(null);
+        verifyCache = FaceAPI.getVerifyCache();
+        FaceAPI.setVerifyCache(null);
+        dir = Files.createTempDirectory("endpoint-pool-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FaceAPI.setEndpoints(null);
+        FaceAPI.setHttpClient(null);
+        httpClient.close();
+        FaceAPI.setDetectionCache(detectionCache);
+        FaceAPI.setVerifyCache(verifyCache);
+        primary.close();
+        secondary.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void baseURLFollowsCurrentPool() {
+        assertEquals(FaceAPI.DEFAULT_BASE_URL, FaceAPI.getBaseURL());
+        FaceAPI.setEndpoints(servers());
+        assertEquals(primary.getBaseURL(), FaceAPI.getBaseURL());
+        FaceAPI.setEndpoints(null);
+        assertEquals(FaceAPI.DEFAULT_BASE_URL, FaceAPI.getBaseURL());
+    }
+
+    @Test
+    public void serverErrorFailsOverAndVerifyStaysInIssuingRegion() throws Exception {
+        EndpointPool pool = servers();
+        FaceAPI.setEndpoints(pool);
+        primary.setErrorRate(1);
+
+        RemoteFaceDetector detector = new RemoteFaceDetector(DetectOptions.DEFAULT);
+        DetectModel face1 = detector.detect(photo(1)).get(0);
+        DetectModel face2 = detector.detect(photo(2)).get(0);
+        assertEquals(2, pool.getFailovers());
+        assertEquals(2, secondary.getRequests());
+
+        //основной регион исправен, но faceId выданы вторым регионом
+        primary.setErrorRate(0);
+        long primaryRequests = primary.getRequests();
+        assertFalse(FaceAPI.faceVerify(FaceAPI.getBaseURL(), face1, face2).isIdentical());
+        assertEquals(primaryRequests, primary.getRequests());
+        assertEquals(3, secondary.getRequests());
+    }
+
+    @Test
+    public void slowRegionIsHedgedToAnother() throws Exception {
+        EndpointPool pool = servers();
+        FaceAPI.setEndpoints(pool);
+        //повтор через 2 с, пока замеров задержки мало
+        primary.setLatency(5_000, 0);
+
+        long start = System.nanoTime();
+        List<DetectModel> faces = FaceAPI.detectFaces(primary.getBaseURL(), photo(1),
+                DetectOptions.DEFAULT);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(1, faces.size());
+        assertEquals(1, pool.getHedges());
+        assertEquals(1, secondary.getRequests());
+        assertTrue("прошло " + elapsed, elapsed < 4_000);
+    }
+
+    @Test
+    public void hedgesStayWithinBudget() throws Exception {
+        Endpoint slow = endpoint("slow");
+        Endpoint fast = endpoint("fast");
+        //достаточно замеров: повтор через минимальные 50 мс; по замерам
+        //"slow" быстрее, поэтому выбирается первым
+        for (int i = 0; i < 20; i++) {
+            slow.recordSuccess(TimeUnit.MILLISECONDS.toNanos(1));
+            fast.recordSuccess(TimeUnit.SECONDS.toNanos(1));
+        }
+        EndpointPool pool = new EndpointPool(Arrays.asList(slow, fast));
+        try {
+            List<Endpoint> attempts = new CopyOnWriteArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                CompletableFuture<String> call = pool.execute(endpoint -> {
+                    attempts.add(endpoint);
+                    return endpoint == slow ? completeAfter(200, "slow") : completeAfter(0, "fast");
+                });
+                call.get(5, TimeUnit.SECONDS);
+            }
+            //10% от 10 запросов: дублируется только первый
+            assertEquals(1, pool.getHedges());
+            assertEquals(11, attempts.size());
+            assertEquals(1, attempts.stream().filter(endpoint -> endpoint == fast).count());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void failoverUsesTheOnlyExtraSlot() throws Exception {
+        Endpoint broken = endpoint("broken");
+        Endpoint spare = endpoint("spare");
+        EndpointPool pool = new EndpointPool(Arrays.asList(broken, spare));
+        try {
+            List<Endpoint> attempts = new CopyOnWriteArrayList<>();
+            CompletableFuture<String> call = pool.execute(endpoint -> {
+                attempts.add(endpoint);
+                return endpoint == broken ? failed(new ConnectException("нет соединения"))
+                        : completeAfter(0, "ok");
+            });
+            assertEquals("ok", call.get(5, TimeUnit.SECONDS));
+            assertEquals(1, pool.getFailovers());
+            assertEquals(1, broken.getConsecutiveFailures());
+
+            //обе попытки неудачны: ошибка второй, третьей попытки нет
+            attempts.clear();
+            CompletableFuture<String> failing = pool.execute(endpoint -> {
+                attempts.add(endpoint);
+                return failed(new ConnectException(endpoint.getRegion()));
+            });
+            try {
+                failing.get(5, TimeUnit.SECONDS);
+                fail("запрос не завершился ошибкой");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ConnectException);
+            }
+            assertEquals(2, attempts.size());
+            //повтор по таймеру не запускается после перехода
+            Thread.sleep(100);
+            assertEquals(2, attempts.size());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void requestErrorDoesNotChangeRegion() throws Exception {
+        Endpoint first = endpoint("first");
+        Endpoint second = endpoint("second");
+        EndpointPool pool = new EndpointPool(Arrays.asList(first, second));
+        try {
+            List<Endpoint> attempts = new CopyOnWriteArrayList<>();
+            CompletableFuture<String> call = pool.execute(endpoint -> {
+                attempts.add(endpoint);
+                return failed(new FaceApiException(400, "InvalidImage", "Decoding error."));
+            });
+            try {
+                call.get(5, TimeUnit.SECONDS);
+                fail("запрос не завершился ошибкой");
+            } catch (ExecutionException e) {
+                assertEquals(400, ((FaceApiException) e.getCause()).getStatusCode());
+            }
+            assertEquals(Arrays.asList(first), attempts);
+            assertEquals(0, pool.getFailovers());
+            assertEquals(0, first.getConsecutiveFailures());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void repeatedFailuresEjectRegion() throws Exception {
+        Endpoint broken = endpoint("broken");
+        Endpoint spare = endpoint("spare");
+        EndpointPool pool = new EndpointPool(Arrays.asList(broken, spare));
+        try {
+            for (int i = 0; i < EndpointPool.FAILURES_TO_EJECT; i++) {
+                pool.executeIn(broken, endpoint -> failed(new ConnectException("нет соединения")))
+                        .handle((value, error) -> null).get(5, TimeUnit.SECONDS);
+            }
+            assertFalse(broken.isHealthy());
+            assertEquals(1, pool.getEjections());
+            assertSame(spare, pool.select(null));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void cancellingCallCancelsAttempts() throws Exception {
+        EndpointPool pool = new EndpointPool(Arrays.asList(endpoint("only")));
+        try {
+            CompletableFuture<String> attempt = new CompletableFuture<>();
+            CompletableFuture<String> call = pool.execute(endpoint -> attempt);
+            call.cancel(true);
+            assertTrue(attempt.isCancelled());
+        } finally {
+            pool.close();
+        }
+    }
+
+    private EndpointPool servers() {
+        return new EndpointPool(Arrays.asList(
+                new Endpoint("primary", primary.getBaseURL(), "key"),
+                new Endpoint("secondary", secondary.getBaseURL(), "key")));
+    }
+
+    private static Endpoint endpoint(String region) {
+        return new Endpoint(region, "http://" + region + ".invalid/face/v1.0", "key");
+    }
+
+    private static CompletableFuture<String> completeAfter(long millis, String value) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        if (millis == 0) {
+            future.complete(value);
+            return future;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                Thread.sleep(millis);
+                future.complete(value);
+            } catch (InterruptedException e) {
+                future.cancel(true);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    private static CompletableFuture<String> failed(Throwable error) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    /**
+     * Фото с новым лицом: шум с заданным зерном.
+     */
+    private File photo(int seed) throws IOException {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        File file = new File(dir, "face-" + seed + ".png");
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+}
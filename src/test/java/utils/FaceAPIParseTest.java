@@ -0,0 +1,164 @@
+package utils;
+
+import models.DetectModel;
+import models.VerifyModel;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Потоковый разбор ответов /detect, /verify и ошибок Face API.
+ */
+public class FaceAPIParseTest {
+
+    @Test
+    public void emptyDetectResponseHasNoFaces() throws IOException {
+        assertTrue(FaceAPI.parseDetect(json("[]")).isEmpty());
+    }
+
+    @Test
+    public void everyFaceIsReadInOrder() throws IOException {
+        List<DetectModel> faces = FaceAPI.parseDetect(json("["
+                + "{\"faceId\":\"a\",\"faceRectangle\":{\"top\":10,\"left\":20,\"width\":30,\"height\":40}},"
+                + "{\"faceId\":\"b\",\"faceRectangle\":{\"top\":1,\"left\":2,\"width\":3,\"height\":4},"
+                + "\"faceLandmarks\":{\"noseTip\":{\"x\":12.5,\"y\":30.25}},"
+                + "\"faceAttributes\":{\"age\":31.0,\"headPose\":{\"pitch\":0,\"roll\":-2.5,\"yaw\":7.1}}}"
+                + "]"));
+
+        assertEquals(2, faces.size());
+        DetectModel first = faces.get(0);
+        assertEquals("a", first.getFaceId());
+        assertEquals(20, first.getX());
+        assertEquals(10, first.getY());
+        assertEquals(30, first.getWidth());
+        assertEquals(40, first.getHeight());
+        assertNull(first.getLandmarks());
+        assertNull(first.getAttributes());
+        assertTrue(first.getDetectedAt() > 0);
+
+        DetectModel second = faces.get(1);
+        assertEquals(12.5, second.getLandmarks().get("noseTip").getX(), 0);
+        assertEquals(30.25, second.getLandmarks().get("noseTip").getY(), 0);
+        assertEquals(31.0, second.getAttributes().getAge(), 0);
+        assertEquals(7.1, second.getAttributes().getYaw(), 0);
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() throws IOException {
+        List<DetectModel> faces = FaceAPI.parseDetect(json("[{"
+                + "\"recognitionModel\":\"recognition_04\","
+                + "\"faceRectangle\":{\"top\":1,\"left\":2,\"width\":3,\"height\":4,\"extra\":[1,{\"x\":2}]},"
+                + "\"faceId\":\"a\","
+                + "\"faceAttributes\":{\"emotion\":{\"happiness\":0.9},\"age\":20.0},"
+                + "\"future\":{\"nested\":[[],{}]}}]"));
+
+        assertEquals(1, faces.size());
+        assertEquals("a", faces.get(0).getFaceId());
+        assertEquals(3, faces.get(0).getWidth());
+        assertEquals(20.0, faces.get(0).getAttributes().getAge(), 0);
+    }
+
+    @Test
+    public void faceIdIsOptional() throws IOException {
+        List<DetectModel> faces = FaceAPI.parseDetect(json(
+                "[{\"faceRectangle\":{\"top\":1,\"left\":2,\"width\":3,\"height\":4}}]"));
+        assertNull(faces.get(0).getFaceId());
+    }
+
+    @Test
+    public void faceWithoutRectangleIsRejected() {
+        assertInvalidDetect("[{\"faceId\":\"a\"}]");
+    }
+
+    @Test
+    public void malformedDetectResponseIsRejected() {
+        assertInvalidDetect("{\"faceId\":\"a\"}");
+        assertInvalidDetect("[{\"faceId\":\"a\",\"faceRectangle\":{\"top\":\"high\"}}]");
+        assertInvalidDetect("[{\"faceId\":\"a\"");
+    }
+
+    @Test
+    public void verifyFieldsAreReadInAnyOrder() throws IOException {
+        VerifyModel verify = FaceAPI.parseVerify(json(
+                "{\"confidence\":0.73,\"extra\":{\"a\":[1]},\"isIdentical\":true}"));
+        assertTrue(verify.isIdentical());
+        assertEquals(0.73, verify.getConfidence(), 0);
+    }
+
+    @Test
+    public void incompleteVerifyResponseIsRejected() {
+        try {
+            FaceAPI.parseVerify(json("{\"isIdentical\":false}"));
+            fail("ответ без confidence принят");
+        } catch (IOException e) {
+            //ожидаемая ошибка
+        }
+    }
+
+    @Test
+    public void errorBodyGivesCodeAndMessage() {
+        FaceApiException error = FaceAPI.parseError(response(400, "Bad Request",
+                "{\"error\":{\"code\":\"InvalidImageSize\",\"message\":\"Image size is too small.\"}}"));
+        assertEquals(400, error.getStatusCode());
+        assertEquals("InvalidImageSize", error.getErrorCode());
+        assertTrue(error.getMessage().contains("Image size is too small."));
+        assertFalse(error.isThrottled());
+    }
+
+    @Test
+    public void errorBodyMayHaveOtherFields() {
+        FaceApiException error = FaceAPI.parseError(response(429, "Too Many Requests",
+                "{\"requestId\":\"1\",\"error\":{\"innerError\":{\"code\":\"x\"},"
+                        + "\"code\":\"RateLimitExceeded\",\"message\":\"Rate limit is exceeded.\"}}"));
+        assertEquals("RateLimitExceeded", error.getErrorCode());
+        assertTrue(error.isThrottled());
+    }
+
+    @Test
+    public void nonJsonErrorUsesStatusText() {
+        FaceApiException error = FaceAPI.parseError(response(502, "Bad Gateway",
+                "<html><body>proxy error</body></html>"));
+        assertEquals(502, error.getStatusCode());
+        assertNull(error.getErrorCode());
+        assertTrue(error.getMessage().contains("Bad Gateway"));
+    }
+
+    @Test
+    public void errorWithoutBodyUsesStatusText() {
+        FaceApiException error = FaceAPI.parseError(
+                new BasicHttpResponse(HttpVersion.HTTP_1_1, 401, "Unauthorized"));
+        assertEquals(401, error.getStatusCode());
+        assertTrue(error.getMessage().contains("Unauthorized"));
+    }
+
+    private static void assertInvalidDetect(String body) {
+        try {
+            FaceAPI.parseDetect(json(body));
+            fail("неверный ответ принят: " + body);
+        } catch (IOException e) {
+            //ожидаемая ошибка
+        }
+    }
+
+    private static StringEntity json(String body) {
+        return new StringEntity(body, ContentType.APPLICATION_JSON);
+    }
+
+    private static HttpResponse response(int status, String reason, String body) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, reason);
+        response.setEntity(json(body));
+        return response;
+    }
+}
@@ -0,0 +1,135 @@
+package utils;
+
+import com.sun.net.httpserver.HttpServer;
+import models.DetectModel;
+import models.VerifyModel;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Повторы запросов после ответа 429 с Retry-After.
+ */
+public class FaceAPIRetryTest {
+
+    private HttpServer server;
+    private CloseableHttpClient httpClient;
+    private VerifyCache verifyCache;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * Число первых запросов, на которые сервер отвечает 429.
+     */
+    private volatile int throttled;
+
+    @Before
+    public void setUp() throws IOException {
+        httpClient = HttpClients.createDefault();
+        FaceAPI.setHttpClient(httpClient);
+        //без кэша каждое сравнение - запрос к серверу
+        verifyCache = FaceAPI.getVerifyCache();
+        FaceAPI.setVerifyCache(null);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/face/v1.0/verify", exchange -> {
+            byte[] body;
+            if (requests.incrementAndGet() <= throttled) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                body = "{\"error\":{\"code\":\"RateLimitExceeded\",\"message\":\"Rate limit is exceeded.\"}}"
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(429, body.length);
+            } else {
+                body = "{\"isIdentical\":true,\"confidence\":0.9}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+            }
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FaceAPI.setHttpClient(null);
+        httpClient.close();
+        server.stop(0);
+        FaceAPI.setVerifyCache(verifyCache);
+    }
+
+    @Test
+    public void throttledRequestIsRetriedAfterRetryAfter() throws Exception {
+        throttled = 1;
+        long start = System.currentTimeMillis();
+        VerifyModel result = FaceAPI.faceVerify(baseURL(), face("face-1"), face("face-2"));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue(result.isIdentical());
+        assertEquals(2, requests.get());
+        //повтор не раньше Retry-After, хотя первая задержка backoff - до 500 мс
+        assertTrue("прошло " + elapsed, elapsed >= 1000);
+    }
+
+    @Test
+    public void retryDelayNeverUndercutsRetryAfterSeconds() {
+        HttpResponse response = throttledResponse("3");
+        for (int attempt = 0; attempt < 3; attempt++) {
+            assertTrue(FaceAPI.retryDelay(response, attempt) >= 3000);
+        }
+    }
+
+    @Test
+    public void retryDelayAcceptsHttpDate() {
+        Date at = new Date(System.currentTimeMillis() + 5000);
+        long delay = FaceAPI.retryDelay(throttledResponse(DateUtils.formatDate(at)), 0);
+        //дата в заголовке - с точностью до секунды
+        assertTrue("задержка " + delay, delay >= 3900 && delay <= 5000);
+    }
+
+    @Test
+    public void backoffGrowsWithAttemptAndIsCapped() {
+        HttpResponse response = throttledResponse(null);
+        long first = FaceAPI.retryDelay(response, 0);
+        assertTrue("задержка " + first, first >= 250 && first <= 500);
+        long third = FaceAPI.retryDelay(response, 2);
+        assertTrue("задержка " + third, third >= 1000 && third <= 2000);
+        long capped = FaceAPI.retryDelay(response, 20);
+        assertTrue("задержка " + capped, capped >= 15_000 && capped <= 30_000);
+    }
+
+    private String baseURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/face/v1.0";
+    }
+
+    private static HttpResponse throttledResponse(String retryAfter) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 429,
+                "Too Many Requests");
+        if (retryAfter != null) {
+            response.addHeader("Retry-After", retryAfter);
+        }
+        return response;
+    }
+
+    private static DetectModel face(String faceId) {
+        DetectModel face = new DetectModel();
+        face.setFaceId(faceId);
+        face.setDetectedAt(System.currentTimeMillis());
+        return face;
+    }
+}
@@ -0,0 +1,177 @@
+package utils;
+
+import models.CandidateModel;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Галерея лиц с локальной заменой Face API ({@link LocalFaceServer}).
+ * Заглушка считает одинаковыми лица на фото с одинаковым содержимым.
+ */
+public class FaceGalleryTest {
+
+    private static final String GROUP = "test-group";
+
+    private LocalFaceServer server;
+    private CloseableHttpClient httpClient;
+    private DetectionCache detectionCache;
+    private File dir;
+    private int photos;
+
+    @Before
+    public void setUp() throws IOException {
+        //свой HTTP клиент: тест закрывает его сам, общий клиент Face API не трогается
+        httpClient = HttpClients.createDefault();
+        FaceAPI.setHttpClient(httpClient);
+        server = new LocalFaceServer();
+        //без кэша каждый поиск - запрос /detect, число запросов предсказуемо
+        detectionCache = FaceAPI.getDetectionCache();
+        FaceAPI.setDetectionCache(null);
+        dir = Files.createTempDirectory("face-gallery-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FaceAPI.setHttpClient(null);
+        httpClient.close();
+        FaceAPI.setDetectionCache(detectionCache);
+        server.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void enrollAddsPersonOnceAndIndexesEveryFace() throws Exception {
+        FaceGallery gallery = new FaceGallery(server.getBaseURL(), GROUP, null);
+        gallery.enroll("alice", photo());
+        gallery.enroll("alice", photo());
+        gallery.enroll("bob", photo());
+
+        assertEquals(2, gallery.size());
+        assertEquals(3, gallery.getIndex().size());
+        assertFalse(gallery.isTrained());
+    }
+
+    @Test
+    public void galleryIsReloadedFromFile() throws Exception {
+        File persistFile = new File(dir, "gallery.json");
+        File alicePhoto = photo();
+        FaceGallery gallery = new FaceGallery(server.getBaseURL(), GROUP, persistFile);
+        gallery.enroll("alice", alicePhoto);
+        gallery.enroll("bob", photo());
+        gallery.train();
+
+        FaceGallery reloaded = new FaceGallery(server.getBaseURL(), GROUP, persistFile);
+        assertEquals(2, reloaded.size());
+        assertEquals(2, reloaded.getIndex().size());
+        assertTrue(reloaded.isTrained());
+        List<CandidateModel> candidates = reloaded.identify(alicePhoto, 1);
+        assertEquals(1, candidates.size());
+        assertEquals("alice", candidates.get(0).getName());
+
+        //файл другой группы не загружается
+        FaceGallery other = new FaceGallery(server.getBaseURL(), "other-group", persistFile);
+        assertEquals(0, other.size());
+    }
+
+    @Test
+    public void identifyWithoutTrainingVerifiesEnrolledPeople() throws Exception {
+        FaceGallery gallery = new FaceGallery(server.getBaseURL(), GROUP, null);
+        File alicePhoto = photo();
+        gallery.enroll("alice", alicePhoto);
+        gallery.enroll("bob", photo());
+
+        List<CandidateModel> candidates = gallery.identify(alicePhoto, 3);
+        assertEquals(1, candidates.size());
+        assertEquals("alice", candidates.get(0).getName());
+        assertTrue(gallery.identify(photo(), 3).isEmpty());
+    }
+
+    @Test
+    public void identifyAfterTrainingUsesPersonGroup() throws Exception {
+        FaceGallery gallery = new FaceGallery(server.getBaseURL(), GROUP, null);
+        File bobPhoto = photo();
+        gallery.enroll("alice", photo());
+        gallery.enroll("bob", bobPhoto);
+        gallery.train();
+        assertTrue(gallery.isTrained());
+
+        long requests = server.getRequests();
+        List<CandidateModel> candidates = gallery.identify(bobPhoto, 3);
+        assertEquals("bob", candidates.get(0).getName());
+        //обученная группа: /detect и один /identify
+        assertEquals(2, server.getRequests() - requests);
+    }
+
+    @Test
+    public void candidateIndexNarrowsRemoteVerification() throws Exception {
+        FaceGallery gallery = new FaceGallery(server.getBaseURL(), GROUP, null);
+        int people = 20;
+        File query = null;
+        for (int i = 0; i < people; i++) {
+            File file = photo();
+            gallery.enroll("person-" + i, file);
+            if (i == people / 2) {
+                query = file;
+            }
+        }
+
+        long requests = server.getRequests();
+        List<CandidateModel> candidates = gallery.identify(query, 1);
+        long verifies = server.getRequests() - requests - 1;
+
+        assertEquals("person-" + people / 2, candidates.get(0).getName());
+        //без индекса сравнение со всеми людьми галереи
+        assertTrue("сравнений: " + verifies, verifies >= 1 && verifies <= 3);
+    }
+
+    @Test
+    public void sharedClientIsRecreatedAfterShutdown() throws Exception {
+        FaceAPI.setHttpClient(null);
+        FaceAPI.shutdown();
+
+        //общий клиент создается заново при первом запросе
+        FaceGallery gallery = new FaceGallery(server.getBaseURL(), GROUP, null);
+        gallery.enroll("alice", photo());
+        assertEquals(1, gallery.size());
+        assertTrue(server.getRequests() > 0);
+    }
+
+    /**
+     * Фото с новым лицом: шум с уникальным зерном.
+     * @return файл PNG
+     * @throws IOException в случае ошибки записи
+     */
+    private File photo() throws IOException {
+        Random random = new Random(photos);
+        BufferedImage image = new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        File file = new File(dir, "face-" + photos++ + ".png");
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+}
@@ -0,0 +1,308 @@
+package utils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Встроенный сервис с локальной заменой Face API ({@link LocalFaceServer}).
+ * Клиент сервиса - обычные HTTP запросы с фото в теле.
+ */
+public class FaceServiceTest {
+
+    private LocalFaceServer server;
+    private CloseableHttpClient httpClient;
+    private DetectionCache detectionCache;
+    private VerifyCache verifyCache;
+    private FaceService service;
+    private int photos;
+
+    @Before
+    public void setUp() throws IOException {
+        httpClient = HttpClients.createDefault();
+        FaceAPI.setHttpClient(httpClient);
+        server = new LocalFaceServer();
+        //без кэшей каждое распознавание сервиса - запрос /detect
+        detectionCache = FaceAPI.getDetectionCache();
+        FaceAPI.setDetectionCache(null);
+        verifyCache = FaceAPI.getVerifyCache();
+        FaceAPI.setVerifyCache(null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (service != null) {
+            service.close();
+        }
+        FaceAPI.setHttpClient(null);
+        httpClient.close();
+        FaceAPI.setDetectionCache(detectionCache);
+        FaceAPI.setVerifyCache(verifyCache);
+        server.close();
+    }
+
+    @Test
+    public void concurrentIdenticalDetectsShareOneRequest() throws Exception {
+        start(new VerifyBatcher(server.getBaseURL(), 50, 10, 4, 10), 16);
+        server.setLatency(500, 0);
+        byte[] photo = photo();
+
+        CompletableFuture<Response> first = detectAsync(photo);
+        awaitRequests(1);
+        Response second = detect(photo);
+
+        assertEquals(200, second.status);
+        assertEquals(faceId(first.get(5, TimeUnit.SECONDS)), faceId(second));
+        assertEquals(1, server.getRequests());
+        assertEquals(1, service.getCoalesced());
+        assertEquals(2, service.getDetectRequests());
+    }
+
+    @Test
+    public void issuedFacesAreVerified() throws Exception {
+        start(new VerifyBatcher(server.getBaseURL(), 50, 10, 4, 10), 16);
+        byte[] photo = photo();
+        String first = faceId(detect(photo));
+        String second = faceId(detect(photo));
+        String other = faceId(detect(photo()));
+
+        assertTrue(service.isIssued(first));
+        assertTrue(json(verify(first, second)).get("isIdentical").getAsBoolean());
+        assertFalse(json(verify(first, other)).get("isIdentical").getAsBoolean());
+    }
+
+    @Test
+    public void evictedPhotoIsKeptUntilItsDetectionCompletes() throws Exception {
+        start(new VerifyBatcher(server.getBaseURL(), 50, 10, 4, 10), 1);
+        server.setLatency(1000, 0);
+
+        CompletableFuture<Response> evicted = detectAsync(photo());
+        awaitRequests(1);
+        CompletableFuture<Response> latest = detectAsync(photo());
+        awaitRequests(2);
+        //первое фото вытеснено вторым, но еще распознается: файлы обоих на месте
+        assertEquals(2, spooledFiles());
+
+        Response evictedResponse = evicted.get(5, TimeUnit.SECONDS);
+        Response latestResponse = latest.get(5, TimeUnit.SECONDS);
+        assertEquals(200, evictedResponse.status);
+        assertEquals(200, latestResponse.status);
+        assertEquals(1, spooledFiles());
+        //лица вытесненного фото не запоминаются
+        assertFalse(service.isIssued(faceId(evictedResponse)));
+        assertTrue(service.isIssued(faceId(latestResponse)));
+    }
+
+    @Test
+    public void evictedFacesAreForgottenButStillVerified() throws Exception {
+        start(new VerifyBatcher(server.getBaseURL(), 50, 10, 4, 10), 1);
+        byte[] photo = photo();
+        String first = faceId(detect(photo));
+        String second = faceId(detect(photo()));
+
+        assertFalse(service.isIssued(first));
+        assertTrue(service.isIssued(second));
+        assertEquals(1, spooledFiles());
+        //забытое лицо сравнивается только по faceId
+        Response response = verify(first, faceId(detect(photo)));
+        assertEquals(200, response.status);
+        assertTrue(json(response).get("isIdentical").getAsBoolean());
+    }
+
+    @Test
+    public void failedDetectIsForwardedAndNotShared() throws Exception {
+        start(new VerifyBatcher(server.getBaseURL(), 50, 10, 4, 10), 16);
+        byte[] photo = photo();
+        server.setErrorRate(1);
+
+        Response failed = detect(photo);
+        assertEquals(500, failed.status);
+        assertTrue(failed.body, json(failed).has("error"));
+
+        //ошибка не остается в выполняющихся распознаваниях
+        server.setErrorRate(0);
+        Response retried = detect(photo);
+        assertEquals(200, retried.status);
+        assertTrue(service.isIssued(faceId(retried)));
+        assertEquals(2, server.getRequests());
+    }
+
+    @Test
+    public void invalidRequestsAreRejected() throws Exception {
+        start(new VerifyBatcher(server.getBaseURL(), 50, 10, 4, 10), 16);
+
+        assertEquals(405, execute(new HttpGet(url("/detect"))).status);
+        assertEquals("InvalidImage", errorCode(detect(new byte[0])));
+        HttpPost badJson = new HttpPost(url("/verify"));
+        badJson.setEntity(new StringEntity("{\"faceId1\":", ContentType.APPLICATION_JSON));
+        assertEquals("BadArgument", errorCode(execute(badJson)));
+        //faceId, который Face API не выдавал
+        Response unknown = verify("unknown-1", "unknown-2");
+        assertEquals(400, unknown.status);
+        assertEquals("FaceNotFound", errorCode(unknown));
+        assertEquals(0, service.getDetectRequests());
+    }
+
+    @Test
+    public void fullVerifyQueueAnswersServiceBusy() throws Exception {
+        VerifyBatcher batcher = new VerifyBatcher(server.getBaseURL(), 2000, 10, 4, 1);
+        start(batcher, 16);
+        byte[] photo = photo();
+        String first = faceId(detect(photo));
+        String second = faceId(detect(photo));
+
+        CompletableFuture<Response> queued = CompletableFuture.supplyAsync(
+                () -> verifyUnchecked(first, second));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (batcher.getQueued() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Response busy = verify(first, second);
+
+        assertEquals(503, busy.status);
+        assertEquals("ServiceBusy", errorCode(busy));
+        assertEquals("1", busy.retryAfter);
+        assertEquals(1, batcher.getRejected());
+        assertEquals(200, queued.get(5, TimeUnit.SECONDS).status);
+    }
+
+    private void start(VerifyBatcher batcher, int spoolSize) throws IOException {
+        service = new FaceService(new InetSocketAddress("127.0.0.1", 0),
+                server.getBaseURL(), 4, batcher, spoolSize);
+    }
+
+    private String url(String path) {
+        return service.getBaseURL("127.0.0.1") + path;
+    }
+
+    private Response detect(byte[] photo) throws IOException {
+        HttpPost request = new HttpPost(url("/detect"));
+        request.setEntity(new ByteArrayEntity(photo, ContentType.APPLICATION_OCTET_STREAM));
+        return execute(request);
+    }
+
+    private CompletableFuture<Response> detectAsync(byte[] photo) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return detect(photo);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private Response verify(String faceId1, String faceId2) throws IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("faceId1", faceId1);
+        body.addProperty("faceId2", faceId2);
+        HttpPost request = new HttpPost(url("/verify"));
+        request.setEntity(new StringEntity(body.toString(), ContentType.APPLICATION_JSON));
+        return execute(request);
+    }
+
+    private Response verifyUnchecked(String faceId1, String faceId2) {
+        try {
+            return verify(faceId1, faceId2);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Запрос к сервису отдельным клиентом: пул соединений с Face API не занимается.
+     * @param request запрос
+     * @return ответ
+     * @throws IOException в случае ошибки запроса
+     */
+    private static Response execute(HttpUriRequest request) throws IOException {
+        try (CloseableHttpClient client = HttpClients.createDefault()) {
+            HttpResponse response = client.execute(request);
+            Response result = new Response();
+            result.status = response.getStatusLine().getStatusCode();
+            result.body = EntityUtils.toString(response.getEntity());
+            if (response.getFirstHeader("Retry-After") != null) {
+                result.retryAfter = response.getFirstHeader("Retry-After").getValue();
+            }
+            return result;
+        }
+    }
+
+    private void awaitRequests(long requests) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getRequests() < requests && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(requests, server.getRequests());
+    }
+
+    private int spooledFiles() {
+        String[] files = service.getSpoolDir().list();
+        return files == null ? 0 : files.length;
+    }
+
+    private static JsonObject json(Response response) {
+        return new JsonParser().parse(response.body).getAsJsonObject();
+    }
+
+    private static String errorCode(Response response) {
+        return json(response).getAsJsonObject("error").get("code").getAsString();
+    }
+
+    private static String faceId(Response response) {
+        JsonElement faces = new JsonParser().parse(response.body);
+        return faces.getAsJsonArray().get(0).getAsJsonObject().get("faceId").getAsString();
+    }
+
+    /**
+     * Фото с новым лицом: шум с уникальным зерном.
+     * @return PNG
+     * @throws IOException в случае ошибки записи
+     */
+    private byte[] photo() throws IOException {
+        Random random = new Random(photos++);
+        BufferedImage image = new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Ответ сервиса.
+     */
+    private static class Response {
+        private int status;
+        private String body;
+        private String retryAfter;
+    }
+}
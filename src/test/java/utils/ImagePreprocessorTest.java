@@ -0,0 +1,212 @@
+package utils;
+
+import models.DetectModel;
+import models.FacePoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Пересчет координат лиц на уменьшенном и вырезанном фото
+ * в пиксели исходного фото ({@link ImagePreprocessor.PreparedImage#toOriginal}).
+ * На фото рисуется красный квадрат - "лицо", его положение на отправленном
+ * изображении находится по цвету и пересчитывается обратно.
+ */
+public class ImagePreprocessorTest {
+
+    /**
+     * Допустимая ошибка после пересчета, пикселей отправленного изображения
+     * (сглаживание краев при уменьшении).
+     */
+    private static final double TOLERANCE = 1.5;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("preprocessor-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void smallPhotoIsSentAsIs() throws IOException {
+        File file = photo(400, 300, 100, 100, 80, 80);
+        ImagePreprocessor.PreparedImage prepared = new ImagePreprocessor().prepare(file);
+
+        assertTrue(prepared.isOriginal());
+        assertFace(face(100, 100, 80, 80), prepared.toOriginal(face(100, 100, 80, 80)), 0);
+    }
+
+    @Test
+    public void downscaledFaceMapsBackToSourcePixels() throws IOException {
+        //прореживание при декодировании (3) и точное уменьшение
+        File file = photo(3000, 1500, 1700, 400, 300, 360);
+        ImagePreprocessor.PreparedImage prepared = new ImagePreprocessor(800, 0.9f).prepare(file);
+
+        assertFalse(prepared.isOriginal());
+        BufferedImage sent = decode(prepared);
+        assertEquals(800, sent.getWidth());
+        assertEquals(400, sent.getHeight());
+        assertFace(face(1700, 400, 300, 360), prepared.toOriginal(find(sent)),
+                3000.0 / sent.getWidth() * TOLERANCE);
+    }
+
+    @Test
+    public void croppedFaceMapsBackToSourcePixels() throws IOException {
+        File file = photo(1600, 1200, 1100, 250, 120, 150);
+        ImagePreprocessor.PreparedImage prepared = new ImagePreprocessor()
+                .crop(file, face(1100, 250, 120, 150), ImagePreprocessor.DEFAULT_CROP_PADDING);
+
+        BufferedImage sent = decode(prepared);
+        //область с полем 75 px с каждой стороны
+        assertEquals(270, sent.getWidth());
+        assertEquals(300, sent.getHeight());
+        assertFace(face(1100, 250, 120, 150), prepared.toOriginal(find(sent)), TOLERANCE);
+    }
+
+    @Test
+    public void croppedAndDownscaledFaceMapsBackToSourcePixels() throws IOException {
+        //область 2000x2000 больше максимального размера и уменьшается
+        File file = photo(4000, 3000, 2500, 1200, 1000, 1000);
+        ImagePreprocessor.PreparedImage prepared = new ImagePreprocessor(500, 0.9f)
+                .crop(file, face(2500, 1200, 1000, 1000), 0.5);
+
+        BufferedImage sent = decode(prepared);
+        assertEquals(500, Math.max(sent.getWidth(), sent.getHeight()));
+        assertFace(face(2500, 1200, 1000, 1000), prepared.toOriginal(find(sent)),
+                2000.0 / sent.getWidth() * TOLERANCE);
+    }
+
+    @Test
+    public void cropNearEdgeIsClippedToPhoto() throws IOException {
+        File file = photo(1600, 1200, 0, 1100, 100, 100);
+        ImagePreprocessor.PreparedImage prepared = new ImagePreprocessor()
+                .crop(file, face(0, 1100, 100, 100), 0.5);
+
+        BufferedImage sent = decode(prepared);
+        assertEquals(150, sent.getWidth());
+        assertEquals(150, sent.getHeight());
+        assertFace(face(0, 1100, 100, 100), prepared.toOriginal(find(sent)), TOLERANCE);
+    }
+
+    @Test
+    public void landmarksMapBackWithRectangle() throws IOException {
+        File file = photo(3000, 1500, 1700, 400, 300, 360);
+        ImagePreprocessor.PreparedImage prepared = new ImagePreprocessor(800, 0.9f)
+                .crop(file, face(1700, 400, 300, 360), 0.5);
+
+        DetectModel detect = find(decode(prepared));
+        //точка в центре найденного квадрата
+        detect.setLandmarks(Collections.singletonMap("noseTip",
+                new FacePoint(detect.getX() + detect.getWidth() / 2.0,
+                        detect.getY() + detect.getHeight() / 2.0)));
+        FacePoint nose = prepared.toOriginal(detect).getLandmarks().get("noseTip");
+        assertEquals(1850, nose.getX(), TOLERANCE);
+        assertEquals(580, nose.getY(), TOLERANCE);
+    }
+
+    /**
+     * Серое фото PNG с красным квадратом.
+     */
+    private File photo(int width, int height, int x, int y, int faceWidth, int faceHeight)
+            throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setColor(Color.GRAY);
+            graphics.fillRect(0, 0, width, height);
+            graphics.setColor(Color.RED);
+            graphics.fillRect(x, y, faceWidth, faceHeight);
+        } finally {
+            graphics.dispose();
+        }
+        File file = new File(dir, "photo-" + width + "x" + height + ".png");
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+
+    private static BufferedImage decode(ImagePreprocessor.PreparedImage prepared)
+            throws IOException {
+        assertFalse(prepared.isOriginal());
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                prepared.getData(), 0, prepared.getLength()));
+        assertNotNull(image);
+        return image;
+    }
+
+    /**
+     * Прямоугольник красных пикселей на отправленном изображении,
+     * как его вернул бы Face API.
+     */
+    private static DetectModel find(BufferedImage image) {
+        int x0 = Integer.MAX_VALUE;
+        int y0 = Integer.MAX_VALUE;
+        int x1 = -1;
+        int y1 = -1;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int rgb = image.getRGB(x, y);
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                if (r - g > 96) {
+                    x0 = Math.min(x0, x);
+                    y0 = Math.min(y0, y);
+                    x1 = Math.max(x1, x + 1);
+                    y1 = Math.max(y1, y + 1);
+                }
+            }
+        }
+        assertTrue("лицо не найдено", x1 > 0);
+        return face(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    private static DetectModel face(int x, int y, int width, int height) {
+        DetectModel face = new DetectModel();
+        face.setX(x);
+        face.setY(y);
+        face.setWidth(width);
+        face.setHeight(height);
+        return face;
+    }
+
+    /**
+     * Сравнение краев прямоугольников.
+     * @param tolerance допустимая ошибка, пикселей исходного фото
+     */
+    private static void assertFace(DetectModel expected, DetectModel actual, double tolerance) {
+        String message = String.format("ожидалось (%d, %d, %d, %d), получено (%d, %d, %d, %d)",
+                expected.getX(), expected.getY(), expected.getWidth(), expected.getHeight(),
+                actual.getX(), actual.getY(), actual.getWidth(), actual.getHeight());
+        assertEquals(message, expected.getX(), actual.getX(), tolerance);
+        assertEquals(message, expected.getY(), actual.getY(), tolerance);
+        assertEquals(message, expected.getX() + expected.getWidth(),
+                actual.getX() + actual.getWidth(), tolerance);
+        assertEquals(message, expected.getY() + expected.getHeight(),
+                actual.getY() + actual.getHeight(), tolerance);
+    }
+}
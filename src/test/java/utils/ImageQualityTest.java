@@ -0,0 +1,171 @@
+package utils;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.EnumSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Проверка качества фото ({@link ImageQuality}) и ее использование в {@link FaceAPI}.
+ */
+public class ImageQualityTest {
+
+    private LocalFaceServer server;
+    private CloseableHttpClient httpClient;
+    private DetectionCache detectionCache;
+    private ImageQuality qualityGate;
+    private ImagePreprocessor preprocessor;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        httpClient = HttpClients.createDefault();
+        FaceAPI.setHttpClient(httpClient);
+        server = new LocalFaceServer();
+        detectionCache = FaceAPI.getDetectionCache();
+        FaceAPI.setDetectionCache(null);
+        qualityGate = FaceAPI.getQualityGate();
+        preprocessor = FaceAPI.getPreprocessor();
+        dir = Files.createTempDirectory("image-quality-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FaceAPI.setHttpClient(null);
+        httpClient.close();
+        FaceAPI.setDetectionCache(detectionCache);
+        FaceAPI.setQualityGate(qualityGate);
+        FaceAPI.setPreprocessor(preprocessor);
+        server.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void sharpPhotoHasNoIssues() throws IOException {
+        ImageQuality.Report report = new ImageQuality().analyze(noise("sharp", 400, 300, 255, 1));
+        assertTrue(report.toString(), report.getIssues().isEmpty());
+        assertEquals(400, report.getWidth());
+        assertNull(report.getLevels());
+    }
+
+    @Test
+    public void flatPhotoIsBlurry() throws IOException {
+        ImageQuality.Report report = new ImageQuality().analyze(noise("flat", 400, 300, 2, 1));
+        assertEquals(EnumSet.of(ImageQuality.Issue.BLURRY), report.getIssues());
+        assertEquals(EnumSet.of(ImageQuality.Issue.BLURRY), report.getBlockingIssues(true));
+        //без порога резкость не проверяется
+        assertTrue(new ImageQuality(ImageQuality.DEFAULT_ANALYSIS_SIZE, 0)
+                .analyze(noise("flat", 400, 300, 2, 1)).getIssues().isEmpty());
+    }
+
+    @Test
+    public void darkPhotoWithDetailsIsFixedByLevels() throws IOException {
+        ImageQuality.Report report = new ImageQuality().analyze(noise("dark", 400, 300, 255, 0.2));
+        assertEquals(EnumSet.of(ImageQuality.Issue.TOO_DARK), report.getIssues());
+        assertNotNull(report.getLevels());
+        assertTrue(report.getBlockingIssues(true).isEmpty());
+        //без подготовки фото исправить нельзя
+        assertEquals(EnumSet.of(ImageQuality.Issue.TOO_DARK), report.getBlockingIssues(false));
+    }
+
+    @Test
+    public void blackPhotoCannotBeFixed() throws IOException {
+        ImageQuality.Report report = new ImageQuality().analyze(noise("black", 400, 300, 255, 0.03));
+        assertTrue(report.getIssues().contains(ImageQuality.Issue.TOO_DARK));
+        assertNull(report.getLevels());
+        assertTrue(report.getBlockingIssues(true).contains(ImageQuality.Issue.TOO_DARK));
+    }
+
+    @Test
+    public void tinyPhotoIsTooSmall() throws IOException {
+        ImageQuality.Report report = new ImageQuality().analyze(noise("tiny", 30, 200, 255, 1));
+        assertEquals(EnumSet.of(ImageQuality.Issue.IMAGE_TOO_SMALL), report.getIssues());
+    }
+
+    @Test
+    public void gateIsOffByDefault() throws Exception {
+        assertNull(qualityGate);
+        //черное фото отправляется без локального анализа
+        File black = noise("black", 400, 300, 255, 0.03);
+        assertEquals(1, FaceAPI.detectFaces(server.getBaseURL(), black,
+                DetectOptions.DEFAULT).size());
+        assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void enabledGateRejectsWithoutRequest() throws Exception {
+        FaceAPI.setQualityGate(new ImageQuality());
+        File black = noise("black", 400, 300, 255, 0.03);
+        try {
+            FaceAPI.detectFaces(server.getBaseURL(), black, DetectOptions.DEFAULT);
+            fail("фото не отклонено");
+        } catch (ImageQualityException e) {
+            assertTrue(e.getIssues().contains(ImageQuality.Issue.TOO_DARK));
+        }
+        assertEquals(0, server.getRequests());
+    }
+
+    @Test
+    public void oversizedFileWithinDimensionsIsReencoded() throws Exception {
+        //1500x1500 PNG из шума больше 6 МБ, сторона не больше максимальной
+        FaceAPI.setPreprocessor(new ImagePreprocessor(2000, ImagePreprocessor.DEFAULT_QUALITY));
+        FaceAPI.setQualityGate(new ImageQuality());
+        File large = noise("large", 1500, 1500, 255, 1);
+        assertTrue(large.length() > ImageQuality.MAX_FILE_BYTES);
+        assertEquals(EnumSet.of(ImageQuality.Issue.FILE_TOO_LARGE),
+                new ImageQuality().analyze(large).getIssues());
+
+        assertEquals(1, FaceAPI.detectFaces(server.getBaseURL(), large,
+                DetectOptions.DEFAULT).size());
+        assertTrue(server.getMaxImageBytes() <= ImageQuality.MAX_FILE_BYTES);
+    }
+
+    /**
+     * Фото PNG из шума.
+     * @param name имя файла без расширения
+     * @param width ширина
+     * @param height высота
+     * @param amplitude амплитуда шума яркости, от 1 до 255
+     * @param brightness множитель яркости
+     * @return файл
+     * @throws IOException в случае ошибки записи
+     */
+    private File noise(String name, int width, int height, int amplitude, double brightness)
+            throws IOException {
+        Random random = new Random(name.hashCode());
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int base = amplitude >= 255 ? 0 : 128 - amplitude / 2;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int r = (int) ((base + random.nextInt(amplitude)) * brightness);
+                int g = (int) ((base + random.nextInt(amplitude)) * brightness);
+                int b = (int) ((base + random.nextInt(amplitude)) * brightness);
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+        File file = new File(dir, name + ".png");
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+}
@@ -0,0 +1,197 @@
+package utils;
+
+import models.DetectModel;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Локальная проверка перед запросом на настоящих фото из ресурсов
+ * (face.jpg, face2.jpg) и их вариантах с другим освещением и тоном кожи.
+ * <p>
+ * Известные пропуски локального поиска, из-за которых проверка выключена
+ * по умолчанию: face.jpg без изменений (светлые волосы и борода сливаются
+ * с кожей) и face2.jpg с тоном кожи 0.55/0.42/0.32.
+ */
+public class PrefilterFaceDetectorTest {
+
+    /**
+     * Множители каналов R, G, B: освещение, баланс белого и тон кожи,
+     * на которых лицо face2.jpg находится локально.
+     */
+    private static final double[][] FOUND_VARIANTS = {
+            {1, 1, 1},
+            //слабый свет
+            {0.35, 0.35, 0.35},
+            {0.2, 0.2, 0.2},
+            //пересвет
+            {1.4, 1.4, 1.4},
+            //теплый и холодный свет
+            {1.15, 1, 0.8},
+            {0.85, 0.95, 1.2},
+            //более темный тон кожи
+            {0.45, 0.33, 0.25}
+    };
+
+    private LocalFaceServer server;
+    private CloseableHttpClient httpClient;
+    private DetectionCache detectionCache;
+    private ImagePreprocessor preprocessor;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        httpClient = HttpClients.createDefault();
+        FaceAPI.setHttpClient(httpClient);
+        server = new LocalFaceServer();
+        detectionCache = FaceAPI.getDetectionCache();
+        FaceAPI.setDetectionCache(null);
+        preprocessor = FaceAPI.getPreprocessor();
+        dir = Files.createTempDirectory("prefilter-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FaceAPI.setHttpClient(null);
+        httpClient.close();
+        FaceAPI.setDetectionCache(detectionCache);
+        FaceAPI.setPreprocessor(preprocessor);
+        server.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void realFacesReachFaceApiUnderLightingAndToneChanges() throws Exception {
+        BufferedImage photo = resource("face2.jpg");
+        PrefilterFaceDetector detector = detector();
+        for (double[] variant : FOUND_VARIANTS) {
+            File file = write(tone(photo, variant), String.format("face2-%.2f-%.2f-%.2f",
+                    variant[0], variant[1], variant[2]));
+            assertEquals(file.getName(), 1, detector.detect(file).size());
+        }
+        assertEquals(FOUND_VARIANTS.length, server.getRequests());
+        assertEquals(FOUND_VARIANTS.length, detector.getPassed());
+    }
+
+    @Test
+    public void realBackgroundIsAnsweredWithoutRequest() throws Exception {
+        BufferedImage photo = resource("face.jpg");
+        BufferedImage photo2 = resource("face2.jpg");
+        PrefilterFaceDetector detector = detector();
+        //стена за спиной, пиджак и нижняя полоса второго фото
+        File[] negatives = {
+                write(photo.getSubimage(300, 0, 130, 200), "wall"),
+                write(photo.getSubimage(0, 420, 120, 105), "suit"),
+                write(photo2.getSubimage(0, 300, 550, 81), "strip")
+        };
+        for (File file : negatives) {
+            assertTrue(file.getName(), detector.detect(file).isEmpty());
+            assertTrue(file.getName(), detector.detectAsync(file).get().isEmpty());
+        }
+        assertEquals(0, server.getRequests());
+        assertEquals(2 * negatives.length, detector.getRejected());
+    }
+
+    @Test
+    public void smallLocalFaceIsSentToFaceApi() throws Exception {
+        //лицо занимает малую часть фото и после уменьшения до 300 px
+        //по локальному прямоугольнику меньше 36 px
+        FaceAPI.setPreprocessor(new ImagePreprocessor(300, 0.85f));
+        BufferedImage photo = resource("face2.jpg");
+        BufferedImage canvas = new BufferedImage(photo.getWidth() * 5, photo.getHeight() * 5,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = canvas.createGraphics();
+        try {
+            graphics.setColor(new Color(70, 110, 190));
+            graphics.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+            graphics.drawImage(photo, photo.getWidth() * 2, photo.getHeight() * 2, null);
+        } finally {
+            graphics.dispose();
+        }
+        File file = write(canvas, "small-face");
+        assertTrue(new LocalFaceDetector().detect(file).size() > 0);
+
+        List<DetectModel> faces = detector().detectAsync(file).get();
+        assertEquals(1, faces.size());
+        assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void prefilterIsOptIn() {
+        FaceDetector remote = new RemoteFaceDetector(server.getBaseURL(), DetectOptions.DEFAULT);
+        String previous = System.getProperty(PrefilterFaceDetector.ENABLED_PROPERTY);
+        try {
+            System.clearProperty(PrefilterFaceDetector.ENABLED_PROPERTY);
+            assertSame(remote, PrefilterFaceDetector.optional(remote));
+            System.setProperty(PrefilterFaceDetector.ENABLED_PROPERTY, "true");
+            assertTrue(PrefilterFaceDetector.optional(remote) instanceof PrefilterFaceDetector);
+        } finally {
+            if (previous != null) {
+                System.setProperty(PrefilterFaceDetector.ENABLED_PROPERTY, previous);
+            } else {
+                System.clearProperty(PrefilterFaceDetector.ENABLED_PROPERTY);
+            }
+        }
+    }
+
+    private PrefilterFaceDetector detector() {
+        return new PrefilterFaceDetector(new LocalFaceDetector(),
+                new RemoteFaceDetector(server.getBaseURL(), DetectOptions.DEFAULT));
+    }
+
+    private static BufferedImage resource(String name) throws IOException {
+        BufferedImage image = ImageIO.read(PrefilterFaceDetectorTest.class.getResource("/" + name));
+        if (image == null) {
+            throw new IOException("Не удалось прочитать " + name);
+        }
+        return image;
+    }
+
+    /**
+     * Фото с измененными каналами: освещение и тон кожи.
+     * @param source исходное фото
+     * @param factors множители каналов R, G, B
+     * @return новое фото
+     */
+    private static BufferedImage tone(BufferedImage source, double[] factors) {
+        BufferedImage image = new BufferedImage(source.getWidth(), source.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                int rgb = source.getRGB(x, y);
+                int r = (int) Math.min(255, ((rgb >> 16) & 0xFF) * factors[0]);
+                int g = (int) Math.min(255, ((rgb >> 8) & 0xFF) * factors[1]);
+                int b = (int) Math.min(255, (rgb & 0xFF) * factors[2]);
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+        return image;
+    }
+
+    private File write(BufferedImage image, String name) throws IOException {
+        File file = new File(dir, name + ".png");
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+}
@@ -0,0 +1,67 @@
+package utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Пополнение и ожидание в {@link RateLimiter}.
+ */
+public class RateLimiterTest {
+
+    @Test
+    public void burstIsAvailableAtOnce() {
+        RateLimiter limiter = new RateLimiter(10, 3);
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+
+        //четвертый запрос - через интервал пополнения (100 мс)
+        long delay = TimeUnit.NANOSECONDS.toMillis(limiter.reserve());
+        assertTrue("задержка " + delay, delay > 80 && delay <= 100);
+        assertEquals(1, limiter.getThrottled());
+        assertEquals(4, limiter.getAcquired());
+    }
+
+    @Test
+    public void tokensRefillOverTimeUpToBurst() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(20, 2);
+        limiter.reserve();
+        limiter.reserve();
+        assertTrue(limiter.reserve() > 0);
+
+        //за 500 мс пополняется 10 запросов, но не больше burst
+        Thread.sleep(500);
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+        assertTrue(limiter.reserve() > 0);
+    }
+
+    @Test
+    public void reservedDelaysQueueUp() {
+        RateLimiter limiter = new RateLimiter(10, 1);
+        limiter.reserve();
+        long second = limiter.reserve();
+        long third = limiter.reserve();
+        //каждое следующее разрешение - на интервал позже
+        long step = TimeUnit.NANOSECONDS.toMillis(third - second);
+        assertTrue("шаг " + step, step > 90 && step <= 100);
+    }
+
+    @Test
+    public void acquireWaitsForToken() throws Exception {
+        RateLimiter limiter = new RateLimiter(20, 1);
+        assertEquals(0, TimeUnit.NANOSECONDS.toMillis(limiter.acquire()));
+        long waited = TimeUnit.NANOSECONDS.toMillis(limiter.acquire());
+        assertTrue("ожидание " + waited, waited >= 40);
+        assertTrue(limiter.getWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(40));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rateMustBePositive() {
+        new RateLimiter(0, 1);
+    }
+}
@@ -0,0 +1,205 @@
+package utils;
+
+import models.DetectModel;
+import models.VerifyModel;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Сравнение пачками с локальной заменой Face API ({@link LocalFaceServer}).
+ */
+public class VerifyBatcherTest {
+
+    private LocalFaceServer server;
+    private CloseableHttpClient httpClient;
+    private DetectionCache detectionCache;
+    private VerifyCache verifyCache;
+    private VerifyBatcher batcher;
+    private File dir;
+    private int photos;
+
+    @Before
+    public void setUp() throws IOException {
+        httpClient = HttpClients.createDefault();
+        FaceAPI.setHttpClient(httpClient);
+        server = new LocalFaceServer();
+        //без кэшей каждое сравнение пачки - запрос /verify
+        detectionCache = FaceAPI.getDetectionCache();
+        FaceAPI.setDetectionCache(null);
+        verifyCache = FaceAPI.getVerifyCache();
+        FaceAPI.setVerifyCache(null);
+        dir = Files.createTempDirectory("verify-batcher-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (batcher != null) {
+            batcher.close();
+        }
+        FaceAPI.setHttpClient(null);
+        httpClient.close();
+        FaceAPI.setDetectionCache(detectionCache);
+        FaceAPI.setVerifyCache(verifyCache);
+        server.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void identicalPairsInBatchAreVerifiedOnce() throws Exception {
+        File photo = photo();
+        DetectModel a = detect(photo);
+        DetectModel b = detect(photo);
+        DetectModel c = detect(photo());
+        batcher = new VerifyBatcher(server.getBaseURL(), 200, 10, 4, 10);
+
+        long requests = server.getRequests();
+        CompletableFuture<VerifyModel> first = batcher.submit(a, b);
+        //та же пара в другом порядке
+        CompletableFuture<VerifyModel> second = batcher.submit(b, a);
+        CompletableFuture<VerifyModel> other = batcher.submit(a, c);
+
+        assertTrue(first.get(5, TimeUnit.SECONDS).isIdentical());
+        assertTrue(second.get(5, TimeUnit.SECONDS).isIdentical());
+        assertFalse(other.get(5, TimeUnit.SECONDS).isIdentical());
+        assertEquals(1, batcher.getBatches());
+        assertEquals(1, batcher.getMerged());
+        assertEquals(2, server.getRequests() - requests);
+    }
+
+    @Test
+    public void fullBatchIsSentWithoutWaitingForWindow() throws Exception {
+        DetectModel a = detect(photo());
+        DetectModel b = detect(photo());
+        DetectModel c = detect(photo());
+        batcher = new VerifyBatcher(server.getBaseURL(), 10_000, 2, 4, 10);
+
+        long start = System.currentTimeMillis();
+        CompletableFuture<VerifyModel> first = batcher.submit(a, b);
+        CompletableFuture<VerifyModel> second = batcher.submit(a, c);
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("прошло " + elapsed, elapsed < 5000);
+        assertEquals(1, batcher.getBatches());
+    }
+
+    @Test
+    public void overflowIsRejectedAndCloseFailsQueued() throws Exception {
+        DetectModel a = detect(photo());
+        DetectModel b = detect(photo());
+        batcher = new VerifyBatcher(server.getBaseURL(), 10_000, 10, 4, 1);
+
+        CompletableFuture<VerifyModel> queued = batcher.submit(a, b);
+        CompletableFuture<VerifyModel> overflow = batcher.submit(a, b);
+        assertFailsWith(overflow, RejectedExecutionException.class);
+        assertEquals(1, batcher.getRejected());
+        assertEquals(1, batcher.getQueued());
+
+        long requests = server.getRequests();
+        batcher.close();
+        assertFailsWith(queued, IOException.class);
+        assertFailsWith(batcher.submit(a, b), IOException.class);
+        assertEquals(0, batcher.getQueued());
+        assertEquals(requests, server.getRequests());
+    }
+
+    @Test
+    public void failedPairDoesNotFailOtherPairsOfBatch() throws Exception {
+        DetectModel a = detect(photo());
+        DetectModel b = detect(photo());
+        //faceId, который сервер не выдавал
+        DetectModel unknown = new DetectModel();
+        unknown.setFaceId("unknown");
+        unknown.setDetectedAt(System.currentTimeMillis());
+        batcher = new VerifyBatcher(server.getBaseURL(), 100, 10, 1, 10);
+
+        CompletableFuture<VerifyModel> failed = batcher.submit(a, unknown);
+        CompletableFuture<VerifyModel> verified = batcher.submit(a, b);
+
+        FaceApiException error = assertFailsWith(failed, FaceApiException.class);
+        assertEquals(400, error.getStatusCode());
+        assertEquals("FaceNotFound", error.getErrorCode());
+        assertFalse(verified.get(5, TimeUnit.SECONDS).isIdentical());
+    }
+
+    @Test
+    public void serverErrorFailsEveryMergedRequest() throws Exception {
+        DetectModel a = detect(photo());
+        DetectModel b = detect(photo());
+        server.setErrorRate(1);
+        batcher = new VerifyBatcher(server.getBaseURL(), 100, 10, 1, 10);
+
+        CompletableFuture<VerifyModel> first = batcher.submit(a, b);
+        CompletableFuture<VerifyModel> second = batcher.submit(b, a);
+
+        assertEquals(500, assertFailsWith(first, FaceApiException.class).getStatusCode());
+        assertEquals(500, assertFailsWith(second, FaceApiException.class).getStatusCode());
+        assertEquals(1, batcher.getMerged());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchSizeMustBePositive() {
+        new VerifyBatcher(server.getBaseURL(), 100, 0, 1, 10);
+    }
+
+    private static <T extends Throwable> T assertFailsWith(CompletableFuture<?> future,
+                                                           Class<T> type) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            assertTrue("ошибка " + cause, type.isInstance(cause));
+            return type.cast(cause);
+        }
+        fail("ожидалась ошибка " + type.getSimpleName());
+        return null;
+    }
+
+    private DetectModel detect(File photo) throws Exception {
+        return FaceAPI.detectFaces(server.getBaseURL(), photo, DetectOptions.DEFAULT).get(0);
+    }
+
+    /**
+     * Фото с новым лицом: шум с уникальным зерном.
+     * @return файл PNG
+     * @throws IOException в случае ошибки записи
+     */
+    private File photo() throws IOException {
+        Random random = new Random(photos);
+        BufferedImage image = new BufferedImage(300, 300, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        File file = new File(dir, "face-" + photos++ + ".png");
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+}
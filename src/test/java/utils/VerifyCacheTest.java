@@ -0,0 +1,92 @@
+package utils;
+
+import models.DetectModel;
+import models.VerifyModel;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Общие запросы сравнения в {@link VerifyCache}.
+ */
+public class VerifyCacheTest {
+
+    private final VerifyCache cache = new VerifyCache(16);
+    private final DetectModel face1 = face("face-1");
+    private final DetectModel face2 = face("face-2");
+    private final AtomicInteger started = new AtomicInteger();
+    private final CompletableFuture<VerifyModel> call = new CompletableFuture<>();
+
+    @Test
+    public void concurrentCallersShareOneRequestInEitherOrder() {
+        CompletableFuture<VerifyModel> first = cache.join(face1, face2, this::start);
+        CompletableFuture<VerifyModel> second = cache.join(face2, face1, this::start);
+
+        assertEquals(1, started.get());
+        assertNotSame(call, first);
+        VerifyModel result = new VerifyModel(true, 0.9);
+        call.complete(result);
+        assertEquals(result, first.join());
+        assertEquals(result, second.join());
+
+        //сохраненный результат
+        assertEquals(result, cache.join(face1, face2, this::start).join());
+        assertEquals(1, started.get());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void cancellingOneCallerKeepsSharedRequest() {
+        CompletableFuture<VerifyModel> first = cache.join(face1, face2, this::start);
+        CompletableFuture<VerifyModel> second = cache.join(face1, face2, this::start);
+
+        first.cancel(true);
+        assertFalse(call.isCancelled());
+
+        VerifyModel result = new VerifyModel(false, 0.1);
+        call.complete(result);
+        assertEquals(result, second.join());
+    }
+
+    @Test
+    public void cancellingEveryCallerAbortsRequestAndDropsEntry() {
+        CompletableFuture<VerifyModel> first = cache.join(face1, face2, this::start);
+        CompletableFuture<VerifyModel> second = cache.join(face1, face2, this::start);
+
+        second.cancel(true);
+        first.cancel(true);
+        assertTrue(call.isCancelled());
+        assertEquals(0, cache.size());
+
+        //следующий вызов начинает новый запрос
+        cache.join(face1, face2, this::start);
+        assertEquals(2, started.get());
+    }
+
+    @Test
+    public void failedRequestIsNotCached() {
+        CompletableFuture<VerifyModel> first = cache.join(face1, face2, this::start);
+        call.completeExceptionally(new IllegalStateException("ошибка"));
+
+        assertTrue(first.isCompletedExceptionally());
+        assertEquals(0, cache.size());
+    }
+
+    private CompletableFuture<VerifyModel> start() {
+        started.incrementAndGet();
+        return call;
+    }
+
+    private static DetectModel face(String faceId) {
+        DetectModel face = new DetectModel();
+        face.setFaceId(faceId);
+        face.setDetectedAt(System.currentTimeMillis());
+        return face;
+    }
+}